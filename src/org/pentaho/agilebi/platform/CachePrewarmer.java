@@ -0,0 +1,210 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.platform;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import mondrian.olap.Connection;
+import mondrian.olap.Cube;
+import mondrian.olap.Dimension;
+import mondrian.olap.DriverManager;
+import mondrian.olap.Hierarchy;
+import mondrian.olap.Level;
+import mondrian.olap.SchemaReader;
+import mondrian.olap.Util;
+
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.logging.LogChannel;
+import org.pentaho.di.core.logging.LogChannelInterface;
+import org.pentaho.platform.api.engine.IPentahoSession;
+import org.pentaho.platform.engine.core.system.PentahoSessionHolder;
+import org.pentaho.platform.engine.core.system.PentahoSystem;
+import org.pentaho.platform.engine.core.system.StandaloneSession;
+import org.pentaho.platform.plugin.action.mondrian.catalog.IMondrianCatalogService;
+import org.pentaho.platform.plugin.action.mondrian.catalog.MondrianCatalog;
+
+/**
+ * Warms the caches of a new visualization while its browser tab is still loading: opens the datasource's connection
+ * pool, then loads the default member of every hierarchy and the level cardinalities of the model's cube into
+ * Mondrian's caches, and the members of the levels small enough to be picked from a list. The first query the user
+ * builds then finds its members cached and connections open.
+ * <p>
+ * Off unless {@value #ENABLED_PROPERTY}=Y. Levels with more than {@value #MAX_MEMBERS_PROPERTY} members (default
+ * {@value #DEFAULT_MAX_MEMBERS}) are not loaded. Models are warmed one at a time on a background thread.
+ */
+public class CachePrewarmer {
+
+  public static final String ENABLED_PROPERTY = "KETTLE_AGILEBI_PREWARM"; //$NON-NLS-1$
+
+  public static final String MAX_MEMBERS_PROPERTY = "KETTLE_AGILEBI_PREWARM_MAX_MEMBERS"; //$NON-NLS-1$
+
+  public static final int DEFAULT_MAX_MEMBERS = 1000;
+
+  private static LogChannelInterface log = new LogChannel(CachePrewarmer.class.getSimpleName());
+
+  private static CachePrewarmer instance;
+
+  private final boolean enabled;
+
+  private final int maxMembers;
+
+  private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "AgileBI cache pre-warm"); //$NON-NLS-1$
+      thread.setDaemon(true);
+      thread.setPriority(Thread.MIN_PRIORITY);
+      return thread;
+    }
+  });
+
+  /** catalogs queued or being warmed */
+  private final Set<String> pending = Collections.synchronizedSet(new HashSet<String>());
+
+  CachePrewarmer(boolean enabled, int maxMembers) {
+    this.enabled = enabled;
+    this.maxMembers = maxMembers;
+  }
+
+  public static synchronized CachePrewarmer getInstance() {
+    if (instance == null) {
+      instance = create(System.getProperties());
+    }
+    return instance;
+  }
+
+  /**
+   * @return a prewarmer configured by {@value #ENABLED_PROPERTY} and {@value #MAX_MEMBERS_PROPERTY}
+   */
+  static CachePrewarmer create(Properties properties) {
+    return new CachePrewarmer("Y".equalsIgnoreCase(properties.getProperty(ENABLED_PROPERTY)), //$NON-NLS-1$
+        Const.toInt(properties.getProperty(MAX_MEMBERS_PROPERTY), DEFAULT_MAX_MEMBERS));
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Warms the caches of a model in the background, unless it is being warmed already.
+   *
+   * @param catalog Catalog, i.e. the model's file
+   * @param cubeName Cube of the model
+   */
+  public void prewarm(final String catalog, final String cubeName) {
+    if (!enabled || !pending.add(catalog)) {
+      return;
+    }
+    executor.execute(new Runnable() {
+      public void run() {
+        long start = System.currentTimeMillis();
+        try {
+          int loaded = warm(catalog, cubeName);
+          log.logDetailed("Pre-warmed " + cubeName + " with " + loaded + " queries and levels in " //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+              + (System.currentTimeMillis() - start) + "ms"); //$NON-NLS-1$
+        } catch (Throwable t) {
+          // the visualization will load everything itself
+          log.logDetailed("Could not pre-warm " + cubeName + ": " + t.getMessage()); //$NON-NLS-1$ //$NON-NLS-2$
+        } finally {
+          pending.remove(catalog);
+        }
+      }
+    });
+  }
+
+  private int warm(String catalog, String cubeName) throws Exception {
+    InstaviewDatasourceService.prepareDataSource(catalog);
+
+    IPentahoSession session = new StandaloneSession("AgileBI pre-warm"); //$NON-NLS-1$
+    PentahoSessionHolder.setSession(session);
+    try {
+      IMondrianCatalogService catalogService = PentahoSystem.get(IMondrianCatalogService.class,
+          "IMondrianCatalogService", session); //$NON-NLS-1$
+      MondrianCatalog mondrianCatalog = catalogService.getCatalog(catalog, session);
+      if (mondrianCatalog == null) {
+        return 0;
+      }
+      // the same connect string as the platform's, so that the schema and its caches are shared with Analyzer
+      Connection connection = DriverManager.getConnection("Provider=mondrian;" //$NON-NLS-1$
+          + mondrianCatalog.getDataSourceInfo() + ";Catalog=" + mondrianCatalog.getDefinition(), null); //$NON-NLS-1$
+      try {
+        Cube cube = connection.getSchema().lookupCube(cubeName, true);
+        List<String> queries = getQueries(cube);
+        for (String mdx : queries) {
+          connection.execute(connection.parseQuery(mdx));
+        }
+        SchemaReader reader = cube.getSchemaReader(connection.getRole()).withLocus();
+        List<Level> levels = getLevelsToLoad(reader, cube, maxMembers);
+        for (Level level : levels) {
+          reader.getLevelMembers(level, false);
+        }
+        return queries.size() + levels.size();
+      } finally {
+        connection.close();
+      }
+    } finally {
+      PentahoSessionHolder.removeSession();
+    }
+  }
+
+  /**
+   * @return one query loading the default member of each hierarchy
+   */
+  static List<String> getQueries(Cube cube) {
+    String cubeName = Util.quoteMdxIdentifier(cube.getName());
+    List<String> queries = new ArrayList<String>();
+    for (Dimension dimension : cube.getDimensions()) {
+      if (dimension.isMeasures()) {
+        continue;
+      }
+      for (Hierarchy hierarchy : dimension.getHierarchies()) {
+        queries.add("SELECT {" + hierarchy.getUniqueName() + ".DefaultMember} ON COLUMNS FROM " + cubeName); //$NON-NLS-1$ //$NON-NLS-2$
+      }
+    }
+    return queries;
+  }
+
+  /**
+   * Looks up the cardinality of every level, which Mondrian caches, without loading its members.
+   *
+   * @return the levels with at most maxMembers members
+   */
+  static List<Level> getLevelsToLoad(SchemaReader reader, Cube cube, int maxMembers) {
+    List<Level> levels = new ArrayList<Level>();
+    for (Dimension dimension : cube.getDimensions()) {
+      if (dimension.isMeasures()) {
+        continue;
+      }
+      for (Hierarchy hierarchy : dimension.getHierarchies()) {
+        for (Level level : hierarchy.getLevels()) {
+          if (!level.isAll() && reader.getLevelCardinality(level, true, true) <= maxMembers) {
+            levels.add(level);
+          }
+        }
+      }
+    }
+    return levels;
+  }
+}
@@ -0,0 +1,633 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.platform;
+
+import java.io.Reader;
+import java.io.StringReader;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The rows of a query, stored column by column. Integral and floating point columns are kept in {@code long[]} and
+ * {@code double[]} arrays, other values in object arrays with equal strings shared. Cached results are read through a
+ * read-only, scrollable {@link ResultSet} returned by {@link #open(Statement)}.
+ */
+public class CachedResult {
+
+  /** column types whose values can't be read twice or can't be copied */
+  private static final Set<Integer> UNCACHEABLE_TYPES = new HashSet<Integer>(Arrays.asList(Types.BLOB, Types.CLOB,
+      Types.NCLOB, Types.BINARY, Types.VARBINARY, Types.LONGVARBINARY, Types.LONGVARCHAR, Types.LONGNVARCHAR,
+      Types.ARRAY, Types.STRUCT, Types.REF, Types.JAVA_OBJECT, Types.OTHER, Types.DATALINK, Types.SQLXML, Types.ROWID));
+
+  /** result set methods that aren't column getters */
+  private static final Set<String> CURSOR_GETTERS = new HashSet<String>(Arrays.asList("getRow", "getType", //$NON-NLS-1$ //$NON-NLS-2$
+      "getConcurrency", "getFetchSize", "getFetchDirection", "getHoldability", "getMetaData", "getStatement", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$ //$NON-NLS-6$
+      "getWarnings", "getCursorName")); //$NON-NLS-1$ //$NON-NLS-2$
+
+  /** answers of the result set meta data methods that take a column, by method name */
+  private final Map<String, Object[]> metaData;
+
+  private final Column[] columns;
+
+  private final int rowCount;
+
+  private final long size;
+
+  private CachedResult(Map<String, Object[]> metaData, Column[] columns, int rowCount, long size) {
+    this.metaData = metaData;
+    this.columns = columns;
+    this.rowCount = rowCount;
+    this.size = size;
+  }
+
+  public int getRowCount() {
+    return rowCount;
+  }
+
+  public int getColumnCount() {
+    return columns.length;
+  }
+
+  /**
+   * @return the estimated number of bytes held
+   */
+  public long getSize() {
+    return size;
+  }
+
+  /**
+   * @param row Row, from 0
+   * @param column Column, from 0
+   */
+  public Object getValue(int row, int column) {
+    return columns[column].get(row);
+  }
+
+  /**
+   * @param statement Statement to report as the result set's
+   * @return a new result set over the rows
+   */
+  public ResultSet open(Statement statement) {
+    return (ResultSet) Proxy.newProxyInstance(CachedResult.class.getClassLoader(), new Class[] { ResultSet.class },
+        new CursorHandler(statement));
+  }
+
+  private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+    try {
+      return method.invoke(target, args);
+    } catch (InvocationTargetException e) {
+      throw e.getCause();
+    }
+  }
+
+  /**
+   * @return the value converted to the getter's return type
+   */
+  static Object convert(Object value, Class<?> type) throws SQLException {
+    if (value == null) {
+      if (type == Boolean.TYPE) {
+        return Boolean.FALSE;
+      }
+      return type.isPrimitive() ? convert(Integer.valueOf(0), type) : null;
+    }
+    if (type.isInstance(value)) {
+      return value;
+    }
+    if (type == String.class) {
+      return value.toString();
+    }
+    if (type == Reader.class) {
+      return new StringReader(value.toString());
+    }
+    if (value instanceof Boolean && type != Boolean.TYPE) {
+      value = Integer.valueOf(((Boolean) value).booleanValue() ? 1 : 0);
+    }
+    if (value instanceof String && type.isPrimitive() && type != Boolean.TYPE) {
+      try {
+        value = new BigDecimal(((String) value).trim());
+      } catch (NumberFormatException e) {
+        throw new SQLException("Cannot convert '" + value + "' to " + type.getName()); //$NON-NLS-1$ //$NON-NLS-2$
+      }
+    }
+    if (value instanceof Number) {
+      Number number = (Number) value;
+      if (type == Integer.TYPE) {
+        return number.intValue();
+      } else if (type == Long.TYPE) {
+        return number.longValue();
+      } else if (type == Double.TYPE) {
+        return number.doubleValue();
+      } else if (type == Float.TYPE) {
+        return number.floatValue();
+      } else if (type == Short.TYPE) {
+        return number.shortValue();
+      } else if (type == Byte.TYPE) {
+        return number.byteValue();
+      } else if (type == Boolean.TYPE) {
+        return number.doubleValue() != 0;
+      } else if (type == BigDecimal.class) {
+        return number instanceof BigInteger ? new BigDecimal((BigInteger) number) : new BigDecimal(number.toString());
+      }
+    }
+    if (type == Boolean.TYPE) {
+      String string = value.toString().trim();
+      return string.equalsIgnoreCase("true") || string.equals("1") || string.equalsIgnoreCase("Y"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+    }
+    if (value instanceof java.util.Date) {
+      long time = ((java.util.Date) value).getTime();
+      if (type == java.sql.Date.class) {
+        return new java.sql.Date(time);
+      } else if (type == java.sql.Timestamp.class) {
+        return new java.sql.Timestamp(time);
+      } else if (type == java.sql.Time.class) {
+        return new java.sql.Time(time);
+      }
+    }
+    throw new SQLException("Cannot convert " + value.getClass().getName() + " to " + type.getName()); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+
+  /**
+   * Reads a cached result.
+   */
+  private class CursorHandler implements InvocationHandler {
+    private final Statement statement;
+    private int row = -1;
+    private boolean wasNull;
+    private boolean closed;
+
+    CursorHandler(Statement statement) {
+      this.statement = statement;
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      String name = method.getName();
+      if (name.equals("close")) { //$NON-NLS-1$
+        closed = true;
+        return null;
+      } else if (name.equals("isClosed")) { //$NON-NLS-1$
+        return closed;
+      } else if (name.equals("equals")) { //$NON-NLS-1$
+        return proxy == args[0];
+      } else if (name.equals("hashCode")) { //$NON-NLS-1$
+        return System.identityHashCode(proxy);
+      } else if (name.equals("toString")) { //$NON-NLS-1$
+        return "CachedResultSet[rows=" + rowCount + "]"; //$NON-NLS-1$ //$NON-NLS-2$
+      }
+      if (closed) {
+        throw new SQLException("Result set is closed"); //$NON-NLS-1$
+      }
+      if (name.equals("next")) { //$NON-NLS-1$
+        return move(row + 1);
+      } else if (name.equals("previous")) { //$NON-NLS-1$
+        return move(row - 1);
+      } else if (name.equals("absolute")) { //$NON-NLS-1$
+        int to = (Integer) args[0];
+        return move(to >= 0 ? to - 1 : rowCount + to);
+      } else if (name.equals("relative")) { //$NON-NLS-1$
+        return move(row + (Integer) args[0]);
+      } else if (name.equals("first")) { //$NON-NLS-1$
+        return move(0);
+      } else if (name.equals("last")) { //$NON-NLS-1$
+        return move(rowCount - 1);
+      } else if (name.equals("beforeFirst")) { //$NON-NLS-1$
+        move(-1);
+        return null;
+      } else if (name.equals("afterLast")) { //$NON-NLS-1$
+        move(rowCount);
+        return null;
+      } else if (name.equals("isBeforeFirst")) { //$NON-NLS-1$
+        return row < 0 && rowCount > 0;
+      } else if (name.equals("isAfterLast")) { //$NON-NLS-1$
+        return row >= rowCount && rowCount > 0;
+      } else if (name.equals("isFirst")) { //$NON-NLS-1$
+        return row == 0 && rowCount > 0;
+      } else if (name.equals("isLast")) { //$NON-NLS-1$
+        return row == rowCount - 1 && rowCount > 0;
+      } else if (name.equals("getRow")) { //$NON-NLS-1$
+        return row >= 0 && row < rowCount ? row + 1 : 0;
+      } else if (name.equals("wasNull")) { //$NON-NLS-1$
+        return wasNull;
+      } else if (name.equals("findColumn")) { //$NON-NLS-1$
+        return findColumn((String) args[0]) + 1;
+      } else if (name.equals("getMetaData")) { //$NON-NLS-1$
+        return Proxy.newProxyInstance(CachedResult.class.getClassLoader(), new Class[] { ResultSetMetaData.class },
+            new MetaDataHandler());
+      } else if (name.equals("getStatement")) { //$NON-NLS-1$
+        return statement;
+      } else if (name.equals("getType")) { //$NON-NLS-1$
+        return ResultSet.TYPE_SCROLL_INSENSITIVE;
+      } else if (name.equals("getConcurrency")) { //$NON-NLS-1$
+        return ResultSet.CONCUR_READ_ONLY;
+      } else if (name.equals("getFetchDirection")) { //$NON-NLS-1$
+        return ResultSet.FETCH_FORWARD;
+      } else if (name.equals("getHoldability")) { //$NON-NLS-1$
+        return ResultSet.HOLD_CURSORS_OVER_COMMIT;
+      } else if (name.equals("getFetchSize")) { //$NON-NLS-1$
+        return 0;
+      } else if (name.equals("getWarnings") || name.equals("setFetchSize") || name.equals("setFetchDirection") //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+          || name.equals("clearWarnings")) { //$NON-NLS-1$
+        return null;
+      } else if (name.equals("isWrapperFor")) { //$NON-NLS-1$
+        return false;
+      } else if (name.startsWith("get") && !CURSOR_GETTERS.contains(name) && args != null && args.length > 0) { //$NON-NLS-1$
+        if (row < 0 || row >= rowCount) {
+          throw new SQLException("No current row"); //$NON-NLS-1$
+        }
+        int column = args[0] instanceof String ? findColumn((String) args[0]) : (Integer) args[0] - 1;
+        if (column < 0 || column >= columns.length) {
+          throw new SQLException("Invalid column index " + args[0]); //$NON-NLS-1$
+        }
+        Object value = columns[column].get(row);
+        wasNull = value == null;
+        return convert(value, method.getReturnType());
+      }
+      throw new SQLFeatureNotSupportedException(name + " is not supported on cached results"); //$NON-NLS-1$
+    }
+
+    private boolean move(int to) {
+      row = Math.max(-1, Math.min(rowCount, to));
+      return row >= 0 && row < rowCount;
+    }
+
+    private int findColumn(String label) throws SQLException {
+      Object[] labels = metaData.get("getColumnLabel"); //$NON-NLS-1$
+      if (labels == null) {
+        labels = metaData.get("getColumnName"); //$NON-NLS-1$
+      }
+      for (int i = 0; labels != null && i < labels.length; i++) {
+        if (label.equalsIgnoreCase((String) labels[i])) {
+          return i;
+        }
+      }
+      throw new SQLException("Unknown column " + label); //$NON-NLS-1$
+    }
+  }
+
+  private class MetaDataHandler implements InvocationHandler {
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      String name = method.getName();
+      if (name.equals("getColumnCount")) { //$NON-NLS-1$
+        return columns.length;
+      }
+      Object[] values = metaData.get(name);
+      if (values == null) {
+        throw new SQLFeatureNotSupportedException(name + " is not supported on cached results"); //$NON-NLS-1$
+      }
+      int column = (Integer) args[0] - 1;
+      if (column < 0 || column >= values.length) {
+        throw new SQLException("Invalid column index " + args[0]); //$NON-NLS-1$
+      }
+      return values[column];
+    }
+  }
+
+  /**
+   * Copies the rows of a result set while its reader goes through them.
+   */
+  static class Builder {
+    private final Map<String, Object[]> metaData;
+    private final Column[] columns;
+    private final long maxSize;
+    private int rowCount;
+
+    private Builder(Map<String, Object[]> metaData, int columnCount, long maxSize) {
+      this.metaData = metaData;
+      this.columns = new Column[columnCount];
+      this.maxSize = maxSize;
+    }
+
+    /**
+     * @param maxSize Bytes the result may take
+     * @return a builder, or {@code null} if the result set has columns that can't be cached
+     */
+    static Builder create(ResultSetMetaData resultSetMetaData, long maxSize) throws SQLException {
+      int columnCount = resultSetMetaData.getColumnCount();
+      for (int i = 1; i <= columnCount; i++) {
+        if (UNCACHEABLE_TYPES.contains(resultSetMetaData.getColumnType(i))) {
+          return null;
+        }
+      }
+      // take everything the meta data can tell about a column, so that it can still be asked when the result is cached
+      Map<String, Object[]> metaData = new HashMap<String, Object[]>();
+      for (Method method : ResultSetMetaData.class.getMethods()) {
+        if (method.getParameterTypes().length != 1 || method.getParameterTypes()[0] != Integer.TYPE) {
+          continue;
+        }
+        Object[] values = new Object[columnCount];
+        try {
+          for (int i = 0; i < columnCount; i++) {
+            values[i] = method.invoke(resultSetMetaData, Integer.valueOf(i + 1));
+          }
+          metaData.put(method.getName(), values);
+        } catch (Exception e) {
+          // not supported by the driver
+        }
+      }
+      return new Builder(metaData, columnCount, maxSize);
+    }
+
+    /**
+     * @return the result set, which stores its rows in the cache once they have all been read
+     */
+    ResultSet record(ResultSet resultSet, Statement statement, ResultSetCache cache, ResultSetCache.Entry entry) {
+      return (ResultSet) Proxy.newProxyInstance(CachedResult.class.getClassLoader(), new Class[] { ResultSet.class },
+          new RecordingHandler(resultSet, statement, cache, entry, this));
+    }
+
+    /**
+     * Copies the current row.
+     *
+     * @return false if the result has become too large
+     */
+    boolean add(ResultSet resultSet) throws SQLException {
+      long size = 0;
+      for (int i = 0; i < columns.length; i++) {
+        Object value = resultSet.getObject(i + 1);
+        if (columns[i] == null && value != null) {
+          columns[i] = Column.create(value, rowCount);
+        }
+        if (columns[i] != null && !columns[i].add(rowCount, value)) {
+          columns[i] = columns[i].toObjects(rowCount);
+          columns[i].add(rowCount, value);
+        }
+        size += columns[i] == null ? 0 : columns[i].getSize(rowCount + 1);
+      }
+      rowCount++;
+      return size <= maxSize;
+    }
+
+    CachedResult build() {
+      long size = 0;
+      for (int i = 0; i < columns.length; i++) {
+        if (columns[i] == null) {
+          // nothing but nulls
+          columns[i] = new ObjectColumn(rowCount);
+        }
+        columns[i].trim(rowCount);
+        size += columns[i].getSize(rowCount);
+      }
+      return new CachedResult(metaData, columns, rowCount, size);
+    }
+  }
+
+  private static class RecordingHandler implements InvocationHandler {
+    private final ResultSet resultSet;
+    private final Statement statement;
+    private final ResultSetCache cache;
+    private final ResultSetCache.Entry entry;
+    private Builder builder;
+
+    RecordingHandler(ResultSet resultSet, Statement statement, ResultSetCache cache, ResultSetCache.Entry entry,
+        Builder builder) {
+      this.resultSet = resultSet;
+      this.statement = statement;
+      this.cache = cache;
+      this.entry = entry;
+      this.builder = builder;
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      String name = method.getName();
+      if (name.equals("getStatement") && statement != null) { //$NON-NLS-1$
+        return statement;
+      }
+      Object result = CachedResult.invoke(resultSet, method, args);
+      if (builder == null) {
+        return result;
+      }
+      if (name.equals("next")) { //$NON-NLS-1$
+        if (((Boolean) result).booleanValue()) {
+          try {
+            if (!builder.add(resultSet)) {
+              builder = null;
+            }
+          } catch (SQLException e) {
+            builder = null;
+          }
+        } else {
+          cache.put(entry, builder.build());
+          builder = null;
+        }
+      } else if (name.equals("previous") || name.equals("absolute") || name.equals("relative") //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+          || name.equals("first") || name.equals("last") || name.equals("beforeFirst") || name.equals("afterLast")) { //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+        // rows would be skipped or read twice
+        builder = null;
+      }
+      return result;
+    }
+  }
+
+  private abstract static class Column {
+    final BitSet nulls = new BitSet();
+
+    static Column create(Object value, int rowCount) {
+      Column column;
+      if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+        column = new LongColumn(value.getClass(), rowCount);
+      } else if (value instanceof Double || value instanceof Float) {
+        column = new DoubleColumn(value.getClass(), rowCount);
+      } else {
+        column = new ObjectColumn(rowCount);
+      }
+      column.nulls.set(0, rowCount);
+      return column;
+    }
+
+    static int grow(int capacity, int row) {
+      return Math.max(row + 1, Math.max(16, capacity * 2));
+    }
+
+    /**
+     * @return false if the value doesn't fit the column's type
+     */
+    abstract boolean add(int row, Object value);
+
+    abstract Object get(int row);
+
+    /**
+     * @return the estimated number of bytes the first rows take
+     */
+    abstract long getSize(int rowCount);
+
+    abstract void trim(int rowCount);
+
+    ObjectColumn toObjects(int rowCount) {
+      ObjectColumn objects = new ObjectColumn(rowCount);
+      for (int row = 0; row < rowCount; row++) {
+        objects.add(row, get(row));
+      }
+      return objects;
+    }
+  }
+
+  private static class LongColumn extends Column {
+    private final Class<?> type;
+    private long[] values;
+
+    LongColumn(Class<?> type, int capacity) {
+      this.type = type;
+      this.values = new long[capacity];
+    }
+
+    boolean add(int row, Object value) {
+      if (value != null && value.getClass() != type) {
+        return false;
+      }
+      if (row >= values.length) {
+        values = Arrays.copyOf(values, grow(values.length, row));
+      }
+      if (value == null) {
+        nulls.set(row);
+      } else {
+        values[row] = ((Number) value).longValue();
+      }
+      return true;
+    }
+
+    Object get(int row) {
+      if (nulls.get(row)) {
+        return null;
+      }
+      long value = values[row];
+      if (type == Integer.class) {
+        return Integer.valueOf((int) value);
+      } else if (type == Short.class) {
+        return Short.valueOf((short) value);
+      } else if (type == Byte.class) {
+        return Byte.valueOf((byte) value);
+      }
+      return Long.valueOf(value);
+    }
+
+    long getSize(int rowCount) {
+      return rowCount * 8L + nulls.size() / 8;
+    }
+
+    void trim(int rowCount) {
+      values = Arrays.copyOf(values, rowCount);
+    }
+  }
+
+  private static class DoubleColumn extends Column {
+    private final Class<?> type;
+    private double[] values;
+
+    DoubleColumn(Class<?> type, int capacity) {
+      this.type = type;
+      this.values = new double[capacity];
+    }
+
+    boolean add(int row, Object value) {
+      if (value != null && value.getClass() != type) {
+        return false;
+      }
+      if (row >= values.length) {
+        values = Arrays.copyOf(values, grow(values.length, row));
+      }
+      if (value == null) {
+        nulls.set(row);
+      } else {
+        values[row] = ((Number) value).doubleValue();
+      }
+      return true;
+    }
+
+    Object get(int row) {
+      if (nulls.get(row)) {
+        return null;
+      }
+      return type == Float.class ? (Object) Float.valueOf((float) values[row]) : (Object) Double.valueOf(values[row]);
+    }
+
+    long getSize(int rowCount) {
+      return rowCount * 8L + nulls.size() / 8;
+    }
+
+    void trim(int rowCount) {
+      values = Arrays.copyOf(values, rowCount);
+    }
+  }
+
+  private static class ObjectColumn extends Column {
+    private Object[] values;
+    private long valueSize;
+    /** distinct strings seen so far, so that repeated ones are stored once; dropped when the column is complete */
+    private Map<Object, Object> distinct = new HashMap<Object, Object>();
+
+    ObjectColumn(int capacity) {
+      this.values = new Object[capacity];
+    }
+
+    boolean add(int row, Object value) {
+      if (row >= values.length) {
+        values = Arrays.copyOf(values, grow(values.length, row));
+      }
+      if (value instanceof String) {
+        Object shared = distinct.get(value);
+        if (shared == null) {
+          distinct.put(value, value);
+          valueSize += estimateSize(value);
+          shared = value;
+        }
+        value = shared;
+      } else if (value != null) {
+        valueSize += estimateSize(value);
+      }
+      values[row] = value;
+      return true;
+    }
+
+    Object get(int row) {
+      return values[row];
+    }
+
+    long getSize(int rowCount) {
+      return rowCount * 8L + valueSize;
+    }
+
+    void trim(int rowCount) {
+      values = Arrays.copyOf(values, rowCount);
+      distinct = null;
+    }
+
+    private static long estimateSize(Object value) {
+      if (value instanceof String) {
+        return 40 + 2L * ((String) value).length();
+      } else if (value instanceof BigDecimal || value instanceof BigInteger) {
+        return 64;
+      }
+      return 32;
+    }
+  }
+}
@@ -0,0 +1,272 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.platform;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Wraps a JDBC connection so that its queries are answered from {@link ResultSetCache} when possible, and so that its
+ * writes drop the cached results of the tables they modify. Writes in a transaction are dropped again when it ends,
+ * since other connections may have cached the old rows in the meantime.
+ */
+public class CachingConnection {
+
+  private CachingConnection() {
+  }
+
+  /**
+   * @param datasource Datasource key the cache entries are filed under
+   */
+  public static Connection wrap(Connection connection, String datasource, ResultSetCache cache) {
+    return (Connection) Proxy.newProxyInstance(CachingConnection.class.getClassLoader(),
+        new Class[] { Connection.class }, new ConnectionHandler(connection, datasource, cache));
+  }
+
+  private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+    try {
+      return method.invoke(target, args);
+    } catch (InvocationTargetException e) {
+      throw e.getCause();
+    }
+  }
+
+  private static class ConnectionHandler implements InvocationHandler {
+    private final Connection connection;
+    private final String datasource;
+    private final ResultSetCache cache;
+    /** writes of the current transaction */
+    private final List<String> pending = new ArrayList<String>();
+
+    ConnectionHandler(Connection connection, String datasource, ResultSetCache cache) {
+      this.connection = connection;
+      this.datasource = datasource;
+      this.cache = cache;
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      String name = method.getName();
+      if (name.equals("equals")) { //$NON-NLS-1$
+        return proxy == args[0];
+      }
+      if (name.equals("hashCode")) { //$NON-NLS-1$
+        return System.identityHashCode(proxy);
+      }
+      if (name.equals("commit") || name.equals("rollback") || name.equals("close")) { //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        try {
+          return CachingConnection.invoke(connection, method, args);
+        } finally {
+          endTransaction();
+        }
+      }
+      Object result = CachingConnection.invoke(connection, method, args);
+      if (result instanceof Statement) {
+        String sql = (name.equals("prepareStatement") || name.equals("prepareCall")) ? (String) args[0] : null; //$NON-NLS-1$ //$NON-NLS-2$
+        Class<?> type = result instanceof CallableStatement ? CallableStatement.class
+            : (result instanceof PreparedStatement ? PreparedStatement.class : Statement.class);
+        return Proxy.newProxyInstance(CachingConnection.class.getClassLoader(), new Class[] { type },
+            new StatementHandler((Statement) result, sql, result instanceof CallableStatement, this));
+      }
+      return result;
+    }
+
+    /**
+     * @param sql Statement that may have modified the database, {@code null} if unknown
+     */
+    void written(String sql) throws Exception {
+      cache.invalidateWrite(datasource, sql);
+      if (!connection.getAutoCommit()) {
+        synchronized (pending) {
+          pending.add(sql);
+        }
+      }
+    }
+
+    private void endTransaction() {
+      List<String> written;
+      synchronized (pending) {
+        written = new ArrayList<String>(pending);
+        pending.clear();
+      }
+      for (String sql : written) {
+        cache.invalidateWrite(datasource, sql);
+      }
+    }
+  }
+
+  private static class StatementHandler implements InvocationHandler {
+    private final Statement statement;
+    private final String preparedSql;
+    private final boolean callable;
+    private final ConnectionHandler connection;
+    /** parameters by index, null for values that can't be part of a key */
+    private final Map<Integer, String> parameters = new TreeMap<Integer, String>();
+    private final List<String> batch = new ArrayList<String>();
+    private int maxRows;
+    /** cached result of the last execute() */
+    private ResultSet current;
+    /** whether the last execution was answered from the cache, so the statement itself never ran */
+    private boolean cacheHit;
+
+    StatementHandler(Statement statement, String preparedSql, boolean callable, ConnectionHandler connection) {
+      this.statement = statement;
+      this.preparedSql = preparedSql;
+      this.callable = callable;
+      this.connection = connection;
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      String name = method.getName();
+      if (name.startsWith("execute")) { //$NON-NLS-1$
+        current = null;
+        cacheHit = false;
+        String sql = args != null && args.length > 0 && args[0] instanceof String ? (String) args[0] : preparedSql;
+        if (name.equals("executeBatch")) { //$NON-NLS-1$
+          return executeBatch(method, args);
+        }
+        String key = getKey(sql, args == null || args.length == 0);
+        if (key == null) {
+          return execute(sql, method, args);
+        }
+        ResultSetCache cache = connection.cache;
+        CachedResult cached = cache.get(key);
+        if (name.equals("executeQuery")) { //$NON-NLS-1$
+          if (cached != null) {
+            cacheHit = true;
+            return cached.open((Statement) proxy);
+          }
+          return cache.record(key, sql, (ResultSet) CachingConnection.invoke(statement, method, args), (Statement) proxy);
+        }
+        if (name.equals("execute")) { //$NON-NLS-1$
+          if (cached != null) {
+            cacheHit = true;
+            current = cached.open((Statement) proxy);
+            return Boolean.TRUE;
+          }
+          Boolean hasResultSet = (Boolean) CachingConnection.invoke(statement, method, args);
+          if (hasResultSet.booleanValue()) {
+            current = cache.record(key, sql, statement.getResultSet(), (Statement) proxy);
+          }
+          return hasResultSet;
+        }
+        return execute(sql, method, args);
+      }
+      if (current != null || cacheHit) {
+        // a cached result is the only result; the statement itself has nothing to report
+        if (name.equals("getResultSet")) { //$NON-NLS-1$
+          return current;
+        } else if (name.equals("getUpdateCount")) { //$NON-NLS-1$
+          return -1;
+        } else if (name.equals("getMoreResults")) { //$NON-NLS-1$
+          if (current != null) {
+            current.close();
+            current = null;
+          }
+          return Boolean.FALSE;
+        }
+      }
+      if (name.equals("setMaxRows")) { //$NON-NLS-1$
+        maxRows = (Integer) args[0];
+      } else if (name.equals("clearParameters")) { //$NON-NLS-1$
+        parameters.clear();
+      } else if (name.equals("addBatch") && args != null && args.length == 1) { //$NON-NLS-1$
+        batch.add((String) args[0]);
+      } else if (name.equals("clearBatch")) { //$NON-NLS-1$
+        batch.clear();
+      } else if (name.startsWith("set") && preparedSql != null && args != null && args.length >= 2 //$NON-NLS-1$
+          && args[0] instanceof Integer) {
+        parameters.put((Integer) args[0], describe(name, args));
+      }
+      return CachingConnection.invoke(statement, method, args);
+    }
+
+    /**
+     * @return the cache key of the query, or {@code null} if its results can't be cached
+     */
+    private String getKey(String sql, boolean prepared) {
+      if (callable || !ResultSetCache.isCacheable(sql)) {
+        return null;
+      }
+      if (!prepared) {
+        return ResultSetCache.getKey(connection.datasource, sql, null, maxRows);
+      }
+      if (parameters.containsValue(null)) {
+        return null;
+      }
+      return ResultSetCache.getKey(connection.datasource, sql, parameters, maxRows);
+    }
+
+    private Object execute(String sql, Method method, Object[] args) throws Throwable {
+      try {
+        return CachingConnection.invoke(statement, method, args);
+      } finally {
+        if (callable || !ResultSetCache.isCacheable(sql)) {
+          connection.written(sql);
+        }
+      }
+    }
+
+    private Object executeBatch(Method method, Object[] args) throws Throwable {
+      List<String> written = new ArrayList<String>(batch);
+      batch.clear();
+      try {
+        return CachingConnection.invoke(statement, method, args);
+      } finally {
+        if (written.isEmpty()) {
+          written.add(preparedSql);
+        }
+        for (String sql : written) {
+          connection.written(sql);
+        }
+      }
+    }
+
+    /**
+     * @return the parameter as part of a cache key, {@code null} if it's a stream or the like
+     */
+    private static String describe(String setter, Object[] args) {
+      if (setter.equals("setNull")) { //$NON-NLS-1$
+        return "NULL"; //$NON-NLS-1$
+      }
+      Object value = args[1];
+      if (value == null) {
+        return "NULL"; //$NON-NLS-1$
+      }
+      if (args.length > 2 && !(args[2] instanceof Integer)) {
+        // a calendar
+        return null;
+      }
+      if (value instanceof String || value instanceof Number || value instanceof Boolean
+          || value instanceof java.util.Date || value instanceof Character) {
+        return value.getClass().getName() + ':' + value;
+      }
+      return null;
+    }
+  }
+}
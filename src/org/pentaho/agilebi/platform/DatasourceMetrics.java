@@ -0,0 +1,455 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.platform;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.regex.Pattern;
+
+import javax.management.ObjectName;
+
+import org.apache.commons.pool.impl.GenericObjectPool;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.logging.LogChannel;
+import org.pentaho.di.core.logging.LogChannelInterface;
+
+/**
+ * Connection pool and SQL statistics of the datasources served by {@link InstaviewDatasourceService}. Available over
+ * JMX as {@value #OBJECT_NAME} and as JSON from the embedded server, see {@link JettyServer#METRICS_PATH}.
+ * <p>
+ * Statements are grouped by fingerprint: the SQL with literals replaced by "?", so that the same query with different
+ * filter values counts as one. Statements taking longer than {@value #SLOW_QUERY_PROPERTY} milliseconds (default
+ * {@value #DEFAULT_SLOW_QUERY_THRESHOLD}, 0 to turn off) are counted, and their fingerprints are written to the Kettle
+ * log at detailed level.
+ */
+public class DatasourceMetrics implements DatasourceMetricsMBean {
+
+  public static final String OBJECT_NAME = "org.pentaho.agilebi:type=DatasourceMetrics"; //$NON-NLS-1$
+
+  public static final String SLOW_QUERY_PROPERTY = "KETTLE_AGILEBI_SLOW_QUERY_MS"; //$NON-NLS-1$
+
+  public static final long DEFAULT_SLOW_QUERY_THRESHOLD = 1000L;
+
+  /** distinct statements tracked; the least recently executed ones are dropped */
+  static final int MAX_STATEMENTS = 200;
+
+  private static final int MAX_FINGERPRINT_LENGTH = 1000;
+
+  private static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^']|'')*'"); //$NON-NLS-1$
+
+  private static final Pattern NUMBER = Pattern.compile("(?<![\\w.])-?\\d+(?:\\.\\d+)?"); //$NON-NLS-1$
+
+  private static final Pattern IN_LIST = Pattern.compile("\\(\\s*\\?(?:\\s*,\\s*\\?)+\\s*\\)"); //$NON-NLS-1$
+
+  private static final Pattern WHITESPACE = Pattern.compile("\\s+"); //$NON-NLS-1$
+
+  private static LogChannelInterface log = new LogChannel(DatasourceMetrics.class.getSimpleName());
+
+  private static DatasourceMetrics instance;
+
+  private final ConcurrentMap<String, PoolStats> pools = new ConcurrentHashMap<String, PoolStats>();
+
+  private final Histogram borrowWait = new Histogram();
+
+  private final Histogram connectionCreate = new Histogram();
+
+  private final Histogram statementTime = new Histogram();
+
+  private final AtomicLong rowsFetched = new AtomicLong();
+
+  private final AtomicLong slowStatements = new AtomicLong();
+
+  /** guarded by itself */
+  private final Map<String, StatementStats> statements = new LinkedHashMap<String, StatementStats>(16, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, StatementStats> eldest) {
+      return size() > MAX_STATEMENTS;
+    }
+  };
+
+  private volatile long slowQueryThreshold;
+
+  DatasourceMetrics(long slowQueryThreshold) {
+    this.slowQueryThreshold = slowQueryThreshold;
+  }
+
+  public static synchronized DatasourceMetrics getInstance() {
+    if (instance == null) {
+      instance = new DatasourceMetrics(Const.toLong(System.getProperty(SLOW_QUERY_PROPERTY), DEFAULT_SLOW_QUERY_THRESHOLD));
+      try {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(instance, new ObjectName(OBJECT_NAME));
+      } catch (Exception e) {
+        log.logError("Unable to register " + OBJECT_NAME, e); //$NON-NLS-1$
+      }
+    }
+    return instance;
+  }
+
+  // ======== recording ======== //
+
+  void registerPool(String name, GenericObjectPool pool) {
+    pools.put(name, new PoolStats(pool));
+  }
+
+  /**
+   * Forgets the pool, unless a newer pool has been registered under the name since.
+   */
+  void unregisterPool(String name, GenericObjectPool pool) {
+    PoolStats stats = pools.get(name);
+    if (stats != null && stats.pool == pool) {
+      pools.remove(name, stats);
+    }
+  }
+
+  /**
+   * Call before borrowing a connection from the pool, and {@link #borrowed(String, long)} once it is borrowed or
+   * borrowing failed.
+   */
+  void borrowing(String poolName) {
+    PoolStats stats = pools.get(poolName);
+    if (stats != null) {
+      stats.waiters.incrementAndGet();
+    }
+  }
+
+  void borrowed(String poolName, long millis) {
+    borrowWait.record(millis);
+    PoolStats stats = pools.get(poolName);
+    if (stats != null) {
+      stats.waiters.decrementAndGet();
+      stats.borrowWait.record(millis);
+    }
+  }
+
+  void connectionCreated(String poolName, long millis) {
+    connectionCreate.record(millis);
+    PoolStats stats = pools.get(poolName);
+    if (stats != null) {
+      stats.create.record(millis);
+    }
+  }
+
+  /**
+   * Records a statement execution and logs it if it was slow.
+   *
+   * @return the statistics of the statement's fingerprint, to add the rows fetched to
+   */
+  StatementStats statementExecuted(String sql, long millis) {
+    statementTime.record(millis);
+    long threshold = slowQueryThreshold;
+    String fingerprint = fingerprint(sql);
+    if (threshold > 0 && millis >= threshold) {
+      slowStatements.incrementAndGet();
+      // the fingerprint leaves out the literals, which may hold data the log should not
+      if (log.isDetailed()) {
+        log.logDetailed("Slow SQL statement (" + millis + "ms): " + fingerprint); //$NON-NLS-1$ //$NON-NLS-2$
+      }
+    }
+    StatementStats stats;
+    synchronized (statements) {
+      stats = statements.get(fingerprint);
+      if (stats == null) {
+        stats = new StatementStats(fingerprint);
+        statements.put(fingerprint, stats);
+      }
+    }
+    stats.time.record(millis);
+    return stats;
+  }
+
+  void rowsFetched(StatementStats stats, long rows) {
+    rowsFetched.addAndGet(rows);
+    if (stats != null) {
+      stats.rows.addAndGet(rows);
+    }
+  }
+
+  /**
+   * @return the SQL with literals replaced by "?" and whitespace collapsed
+   */
+  static String fingerprint(String sql) {
+    if (sql == null) {
+      return ""; //$NON-NLS-1$
+    }
+    String fingerprint = STRING_LITERAL.matcher(sql).replaceAll("?"); //$NON-NLS-1$
+    fingerprint = NUMBER.matcher(fingerprint).replaceAll("?"); //$NON-NLS-1$
+    fingerprint = IN_LIST.matcher(fingerprint).replaceAll("(?)"); //$NON-NLS-1$
+    fingerprint = WHITESPACE.matcher(fingerprint).replaceAll(" ").trim(); //$NON-NLS-1$
+    if (fingerprint.length() > MAX_FINGERPRINT_LENGTH) {
+      fingerprint = fingerprint.substring(0, MAX_FINGERPRINT_LENGTH);
+    }
+    return fingerprint;
+  }
+
+  // ======== DatasourceMetricsMBean ======== //
+
+  public int getPoolCount() {
+    return pools.size();
+  }
+
+  public int getActiveConnections() {
+    int active = 0;
+    for (PoolStats stats : pools.values()) {
+      active += stats.pool.getNumActive();
+    }
+    return active;
+  }
+
+  public int getIdleConnections() {
+    int idle = 0;
+    for (PoolStats stats : pools.values()) {
+      idle += stats.pool.getNumIdle();
+    }
+    return idle;
+  }
+
+  public int getWaiters() {
+    int waiters = 0;
+    for (PoolStats stats : pools.values()) {
+      waiters += stats.waiters.get();
+    }
+    return waiters;
+  }
+
+  public long getBorrowCount() {
+    return borrowWait.getCount();
+  }
+
+  public double getBorrowWaitMean() {
+    return borrowWait.getMean();
+  }
+
+  public long getBorrowWaitMax() {
+    return borrowWait.getMax();
+  }
+
+  public long getConnectionsCreated() {
+    return connectionCreate.getCount();
+  }
+
+  public double getConnectionCreateMean() {
+    return connectionCreate.getMean();
+  }
+
+  public long getConnectionCreateMax() {
+    return connectionCreate.getMax();
+  }
+
+  public long getStatementCount() {
+    return statementTime.getCount();
+  }
+
+  public double getStatementTimeMean() {
+    return statementTime.getMean();
+  }
+
+  public long getStatementTimeMax() {
+    return statementTime.getMax();
+  }
+
+  public long getRowsFetched() {
+    return rowsFetched.get();
+  }
+
+  public long getSlowStatementCount() {
+    return slowStatements.get();
+  }
+
+  public long getSlowQueryThreshold() {
+    return slowQueryThreshold;
+  }
+
+  public void setSlowQueryThreshold(long millis) {
+    slowQueryThreshold = millis;
+  }
+
+  public void reset() {
+    borrowWait.reset();
+    connectionCreate.reset();
+    statementTime.reset();
+    rowsFetched.set(0);
+    slowStatements.set(0);
+    for (PoolStats stats : pools.values()) {
+      stats.borrowWait.reset();
+      stats.create.reset();
+    }
+    synchronized (statements) {
+      statements.clear();
+    }
+  }
+
+  public String getJson() {
+    try {
+      return toJson().toString();
+    } catch (JSONException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  JSONObject toJson() throws JSONException {
+    JSONObject json = new JSONObject();
+    JSONObject poolsJson = new JSONObject();
+    for (Map.Entry<String, PoolStats> entry : pools.entrySet()) {
+      PoolStats stats = entry.getValue();
+      JSONObject poolJson = new JSONObject();
+      poolJson.put("active", stats.pool.getNumActive()); //$NON-NLS-1$
+      poolJson.put("idle", stats.pool.getNumIdle()); //$NON-NLS-1$
+      poolJson.put("waiters", stats.waiters.get()); //$NON-NLS-1$
+      poolJson.put("borrowWait", stats.borrowWait.toJson()); //$NON-NLS-1$
+      poolJson.put("connectionCreate", stats.create.toJson()); //$NON-NLS-1$
+      poolsJson.put(entry.getKey(), poolJson);
+    }
+    json.put("pools", poolsJson); //$NON-NLS-1$
+    json.put("borrowWait", borrowWait.toJson()); //$NON-NLS-1$
+    json.put("connectionCreate", connectionCreate.toJson()); //$NON-NLS-1$
+    json.put("statementTime", statementTime.toJson()); //$NON-NLS-1$
+    json.put("rowsFetched", rowsFetched.get()); //$NON-NLS-1$
+    json.put("slowStatements", slowStatements.get()); //$NON-NLS-1$
+    json.put("slowQueryThreshold", slowQueryThreshold); //$NON-NLS-1$
+
+    List<StatementStats> byTotalTime;
+    synchronized (statements) {
+      byTotalTime = new ArrayList<StatementStats>(statements.values());
+    }
+    Collections.sort(byTotalTime, new Comparator<StatementStats>() {
+      public int compare(StatementStats s1, StatementStats s2) {
+        long t1 = s1.time.getTotal();
+        long t2 = s2.time.getTotal();
+        return t1 > t2 ? -1 : (t1 < t2 ? 1 : 0);
+      }
+    });
+    JSONArray statementsJson = new JSONArray();
+    for (StatementStats stats : byTotalTime) {
+      JSONObject statementJson = stats.time.toJson();
+      statementJson.put("sql", stats.fingerprint); //$NON-NLS-1$
+      statementJson.put("rows", stats.rows.get()); //$NON-NLS-1$
+      statementsJson.put(statementJson);
+    }
+    json.put("statements", statementsJson); //$NON-NLS-1$
+    return json;
+  }
+
+  /**
+   * Count, mean, max and a coarse distribution of durations in milliseconds.
+   */
+  public static class Histogram {
+    static final long[] BOUNDS = { 1, 5, 10, 50, 100, 500, 1000, 5000, 10000 };
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS.length + 1);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long millis) {
+      int bucket = 0;
+      while (bucket < BOUNDS.length && millis > BOUNDS[bucket]) {
+        bucket++;
+      }
+      buckets.incrementAndGet(bucket);
+      count.incrementAndGet();
+      total.addAndGet(millis);
+      long current = max.get();
+      while (millis > current && !max.compareAndSet(current, millis)) {
+        current = max.get();
+      }
+    }
+
+    public long getCount() {
+      return count.get();
+    }
+
+    public long getTotal() {
+      return total.get();
+    }
+
+    public double getMean() {
+      long n = count.get();
+      return n == 0 ? 0 : (double) total.get() / n;
+    }
+
+    public long getMax() {
+      return max.get();
+    }
+
+    /**
+     * @return how many durations fell into bucket i: at most BOUNDS[i], above the previous bound
+     */
+    long getBucket(int i) {
+      return buckets.get(i);
+    }
+
+    void reset() {
+      for (int i = 0; i < buckets.length(); i++) {
+        buckets.set(i, 0);
+      }
+      count.set(0);
+      total.set(0);
+      max.set(0);
+    }
+
+    JSONObject toJson() throws JSONException {
+      JSONObject json = new JSONObject();
+      json.put("count", getCount()); //$NON-NLS-1$
+      json.put("mean", getMean()); //$NON-NLS-1$
+      json.put("max", getMax()); //$NON-NLS-1$
+      JSONObject distribution = new JSONObject();
+      for (int i = 0; i < BOUNDS.length; i++) {
+        distribution.put("<=" + BOUNDS[i], buckets.get(i)); //$NON-NLS-1$
+      }
+      distribution.put(">" + BOUNDS[BOUNDS.length - 1], buckets.get(BOUNDS.length)); //$NON-NLS-1$
+      json.put("distribution", distribution); //$NON-NLS-1$
+      return json;
+    }
+  }
+
+  private static class PoolStats {
+    final GenericObjectPool pool;
+    final AtomicInteger waiters = new AtomicInteger();
+    final Histogram borrowWait = new Histogram();
+    final Histogram create = new Histogram();
+
+    PoolStats(GenericObjectPool pool) {
+      this.pool = pool;
+    }
+  }
+
+  static class StatementStats {
+    final String fingerprint;
+    final Histogram time = new Histogram();
+    final AtomicLong rows = new AtomicLong();
+
+    StatementStats(String fingerprint) {
+      this.fingerprint = fingerprint;
+    }
+  }
+}
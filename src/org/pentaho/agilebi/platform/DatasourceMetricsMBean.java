@@ -0,0 +1,65 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.platform;
+
+/**
+ * JMX view of {@link DatasourceMetrics}. Times are in milliseconds.
+ */
+public interface DatasourceMetricsMBean {
+
+  int getPoolCount();
+
+  int getActiveConnections();
+
+  int getIdleConnections();
+
+  int getWaiters();
+
+  long getBorrowCount();
+
+  double getBorrowWaitMean();
+
+  long getBorrowWaitMax();
+
+  long getConnectionsCreated();
+
+  double getConnectionCreateMean();
+
+  long getConnectionCreateMax();
+
+  long getStatementCount();
+
+  double getStatementTimeMean();
+
+  long getStatementTimeMax();
+
+  long getRowsFetched();
+
+  long getSlowStatementCount();
+
+  long getSlowQueryThreshold();
+
+  void setSlowQueryThreshold(long millis);
+
+  /**
+   * @return everything, including the per-pool and per-statement figures, as JSON
+   */
+  String getJson();
+
+  void reset();
+}
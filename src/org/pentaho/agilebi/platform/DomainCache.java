@@ -0,0 +1,230 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.platform;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.SerializationUtils;
+import org.pentaho.di.core.logging.LogChannel;
+import org.pentaho.di.core.logging.LogChannelInterface;
+import org.pentaho.metadata.model.Domain;
+import org.pentaho.metadata.util.XmiParser;
+
+/**
+ * Process-wide cache of parsed {@link Domain}s, keyed by the canonical path of the XMI file. An entry is only
+ * reused while the file's last-modified time and size are unchanged, so a model saved from the modeler is
+ * picked up on the next read. The least recently used entries are evicted once {@link #getMaxEntries()} is
+ * exceeded.
+ * <p>
+ * Domains returned by {@link #getDomain(String)} are shared between callers and must be treated as read-only.
+ * Callers that modify the domain (e.g. by handing it to a {@link org.pentaho.agilebi.modeler.ModelerWorkspace})
+ * must use {@link #getDomainCopy(String)} instead.
+ */
+public class DomainCache {
+
+  /**
+   * Writes files that are known to exist logically but have not been written to disk yet, such as temporary models.
+   */
+  public interface FileMaterializer {
+    /**
+     * @param fileName File that is about to be read
+     * @return {@code true} if the file is known to the materializer and now exists
+     * @throws IOException if the file cannot be written
+     */
+    boolean materialize(String fileName) throws IOException;
+  }
+
+  public static final int DEFAULT_MAX_ENTRIES = 16;
+
+  private static LogChannelInterface log = new LogChannel(DomainCache.class.getSimpleName());
+
+  private static DomainCache instance = new DomainCache(DEFAULT_MAX_ENTRIES);
+
+  private final int maxEntries;
+
+  private final Map<String, CachedDomain> domains;
+
+  private long hits;
+
+  private long misses;
+
+  private volatile FileMaterializer fileMaterializer;
+
+  public DomainCache(int maxEntries) {
+    if (maxEntries < 1) {
+      throw new IllegalArgumentException("maxEntries must be at least 1");
+    }
+    this.maxEntries = maxEntries;
+    this.domains = new LinkedHashMap<String, CachedDomain>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, CachedDomain> eldest) {
+        return size() > DomainCache.this.maxEntries;
+      }
+    };
+  }
+
+  public static DomainCache getInstance() {
+    return instance;
+  }
+
+  /**
+   * Returns the domain stored in {@code fileName}, parsing the file only if it is not cached or has changed on
+   * disk since it was cached. The returned instance is shared and must not be modified.
+   *
+   * @param fileName XMI file to load
+   * @return the parsed domain
+   * @throws IOException if the file cannot be read or parsed
+   */
+  public Domain getDomain(String fileName) throws IOException {
+    File file = new File(fileName);
+    if (!file.exists() && fileMaterializer != null) {
+      fileMaterializer.materialize(fileName);
+    }
+    String key = file.getCanonicalPath();
+    long lastModified = file.lastModified();
+    long length = file.length();
+
+    synchronized (domains) {
+      CachedDomain cached = domains.get(key);
+      if (cached != null && cached.isCurrent(lastModified, length)) {
+        hits++;
+        return cached.domain;
+      }
+      misses++;
+    }
+
+    Domain domain = parse(file);
+    synchronized (domains) {
+      domains.put(key, new CachedDomain(domain, lastModified, length));
+    }
+    return domain;
+  }
+
+  /**
+   * Returns a private copy of the domain stored in {@code fileName} that the caller is free to modify. The copy
+   * is made from the cached instance, so the XMI is only parsed if the file has changed.
+   *
+   * @param fileName XMI file to load
+   * @return a copy of the parsed domain
+   * @throws IOException if the file cannot be read or parsed
+   */
+  public Domain getDomainCopy(String fileName) throws IOException {
+    Domain domain = getDomain(fileName);
+    try {
+      return (Domain) SerializationUtils.clone(domain);
+    } catch (RuntimeException e) {
+      // not everything hanging off a domain is guaranteed to be serializable, fall back to a fresh parse
+      log.logDebug("Unable to copy cached domain for " + fileName + ", parsing it again", e);
+      return parse(new File(fileName));
+    }
+  }
+
+  /**
+   * Drops any cached domain for {@code fileName}. Should be called after the file has been rewritten so readers
+   * never see a stale model when the file system's timestamp resolution hides the change.
+   *
+   * @param fileName XMI file that has changed
+   */
+  public void invalidate(String fileName) {
+    if (fileName == null) {
+      return;
+    }
+    try {
+      String key = new File(fileName).getCanonicalPath();
+      synchronized (domains) {
+        domains.remove(key);
+      }
+    } catch (IOException e) {
+      clear();
+    }
+  }
+
+  public void setFileMaterializer(FileMaterializer fileMaterializer) {
+    this.fileMaterializer = fileMaterializer;
+  }
+
+  public void clear() {
+    synchronized (domains) {
+      domains.clear();
+    }
+  }
+
+  public int size() {
+    synchronized (domains) {
+      return domains.size();
+    }
+  }
+
+  public int getMaxEntries() {
+    return maxEntries;
+  }
+
+  public long getHitCount() {
+    synchronized (domains) {
+      return hits;
+    }
+  }
+
+  public long getMissCount() {
+    synchronized (domains) {
+      return misses;
+    }
+  }
+
+  protected Domain parse(File file) throws IOException {
+    long start = System.currentTimeMillis();
+    InputStream in = new FileInputStream(file);
+    try {
+      Domain domain = new XmiParser().parseXmi(in);
+      if (log.isDetailed()) {
+        log.logDetailed("Parsed " + file + " in " + (System.currentTimeMillis() - start) + "ms");
+      }
+      return domain;
+    } catch (IOException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new IOException("Unable to parse " + file, e);
+    } finally {
+      IOUtils.closeQuietly(in);
+    }
+  }
+
+  private static class CachedDomain {
+    final Domain domain;
+    final long lastModified;
+    final long length;
+
+    CachedDomain(Domain domain, long lastModified, long length) {
+      this.domain = domain;
+      this.lastModified = lastModified;
+      this.length = length;
+    }
+
+    boolean isCurrent(long lastModified, long length) {
+      return this.lastModified == lastModified && this.length == length;
+    }
+  }
+}
@@ -0,0 +1,358 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.platform;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.logging.LogChannel;
+import org.pentaho.di.core.logging.LogChannelInterface;
+
+/**
+ * Owns the embedded {@link JettyServer} and decides when the Pentaho platform inside it runs.
+ * <p>
+ * By default the platform boots right after Spoon starts. In lazy mode ({@value #LAZY_PROPERTY}=Y) only the port is
+ * reserved at startup and the platform boots the first time a feature needs it, see {@link #ensureStarted()} and
+ * {@link #startAsync()}. Two optional timeouts, in seconds, refine this:
+ * <ul>
+ * <li>{@value #PREWARM_PROPERTY}: boot the platform once the user has been idle this long, so that it is ready before
+ * it is needed (lazy mode only, once per session)</li>
+ * <li>{@value #IDLE_SHUTDOWN_PROPERTY}: shut the platform down again after it has served no requests for this long,
+ * giving its memory back. It is never shut down while it is handling a request. The port stays reserved and the next
+ * use boots it again.</li>
+ * </ul>
+ * All boots and shutdowns happen one at a time on a background thread.
+ */
+public class EmbeddedPlatform {
+
+  /**
+   * Notified on the platform thread when the server or the platform changes state.
+   */
+  public interface Listener {
+    /** the port is reserved, the platform may not be running yet */
+    void serverStarted(int port);
+
+    void platformStarted();
+
+    void platformStopped();
+  }
+
+  /**
+   * Lets the UI veto an idle shutdown, e.g. while a page served by the platform is still open.
+   */
+  public interface IdleCheck {
+    boolean isInUse();
+  }
+
+  public static final String LAZY_PROPERTY = "KETTLE_AGILEBI_LAZY_PLATFORM"; //$NON-NLS-1$
+
+  public static final String PREWARM_PROPERTY = "KETTLE_AGILEBI_PLATFORM_PREWARM_SECONDS"; //$NON-NLS-1$
+
+  public static final String IDLE_SHUTDOWN_PROPERTY = "KETTLE_AGILEBI_PLATFORM_IDLE_SHUTDOWN_SECONDS"; //$NON-NLS-1$
+
+  private static final long MONITOR_INTERVAL = 5000L;
+
+  private static LogChannelInterface log = new LogChannel(EmbeddedPlatform.class.getSimpleName());
+
+  private static EmbeddedPlatform instance;
+
+  private final boolean lazy;
+
+  private final long prewarmAfter;
+
+  private final long shutdownAfter;
+
+  private final long monitorInterval;
+
+  /** runs server start, boots and shutdowns in submission order */
+  private final ExecutorService platformThread;
+
+  /** watches for idleness; never waited on, so it may block on the UI */
+  private ScheduledExecutorService monitor;
+
+  private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+  private volatile IdleCheck idleCheck;
+
+  private volatile JettyServer server;
+
+  private volatile long lastUsed = System.currentTimeMillis();
+
+  private volatile long lastUserActivity = System.currentTimeMillis();
+
+  private volatile boolean prewarmed;
+
+  private Future<?> boot;
+
+  private Future<?> serverStart;
+
+  public EmbeddedPlatform(boolean lazy, long prewarmAfter, long shutdownAfter) {
+    this(lazy, prewarmAfter, shutdownAfter, MONITOR_INTERVAL);
+  }
+
+  EmbeddedPlatform(boolean lazy, long prewarmAfter, long shutdownAfter, long monitorInterval) {
+    this.lazy = lazy;
+    this.prewarmAfter = prewarmAfter;
+    this.shutdownAfter = shutdownAfter;
+    this.monitorInterval = monitorInterval;
+    this.platformThread = Executors.newSingleThreadExecutor(daemonThreads("AgileBI platform")); //$NON-NLS-1$
+  }
+
+  public static synchronized EmbeddedPlatform getInstance() {
+    if (instance == null) {
+      instance = new EmbeddedPlatform("Y".equalsIgnoreCase(System.getProperty(LAZY_PROPERTY)), //$NON-NLS-1$
+          Const.toInt(System.getProperty(PREWARM_PROPERTY), 0) * 1000L,
+          Const.toInt(System.getProperty(IDLE_SHUTDOWN_PROPERTY), 0) * 1000L);
+    }
+    return instance;
+  }
+
+  public void addListener(Listener listener) {
+    listeners.add(listener);
+  }
+
+  public void setIdleCheck(IdleCheck idleCheck) {
+    this.idleCheck = idleCheck;
+  }
+
+  public boolean isLazy() {
+    return lazy;
+  }
+
+  /**
+   * Reserves a port and starts the server, and unless in lazy mode also boots the platform. Only the first call starts
+   * the server, later ones return its future.
+   *
+   * @return completes once the server is listening, or the platform has booted if not in lazy mode
+   */
+  public synchronized Future<?> startServer(final String hostname) {
+    if (serverStart != null) {
+      return serverStart;
+    }
+    Future<?> started = platformThread.submit(new Callable<Object>() {
+      public Object call() throws Exception {
+        JettyServer jettyServer = createServer(hostname);
+        jettyServer.startConnector();
+        server = jettyServer;
+        for (Listener listener : listeners) {
+          listener.serverStarted(jettyServer.getPort());
+        }
+        if (!lazy) {
+          bootPlatform();
+        }
+        return null;
+      }
+    });
+    if ((lazy && prewarmAfter > 0) || shutdownAfter > 0) {
+      startMonitor();
+    }
+    serverStart = started;
+    return started;
+  }
+
+  /**
+   * Creates the server {@link #startServer(String)} starts.
+   */
+  protected JettyServer createServer(String hostname) throws Exception {
+    // port 0 lets the OS pick a free port as part of the bind
+    return new JettyServer(hostname, 0);
+  }
+
+  /**
+   * Boots the platform if it is not running and waits for it.
+   */
+  public void ensureStarted() throws Exception {
+    try {
+      startAsync().get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof Exception) {
+        throw (Exception) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Boots the platform in the background if it is not running.
+   *
+   * @return completes once the platform is running
+   */
+  public synchronized Future<?> startAsync() {
+    lastUsed = System.currentTimeMillis();
+    if (boot == null || (boot.isDone() && !isStarted())) {
+      boot = platformThread.submit(new Callable<Object>() {
+        public Object call() throws Exception {
+          bootPlatform();
+          return null;
+        }
+      });
+    }
+    return boot;
+  }
+
+  public boolean isStarted() {
+    JettyServer jettyServer = server;
+    return jettyServer != null && jettyServer.isWebappStarted();
+  }
+
+  /**
+   * @return the port the server listens on, or -1 if it has not been started yet
+   */
+  public int getPort() {
+    JettyServer jettyServer = server;
+    return jettyServer == null ? -1 : jettyServer.getPort();
+  }
+
+  /**
+   * Records that the user is working in Spoon, which postpones pre-warming.
+   */
+  public void userActivity() {
+    lastUserActivity = System.currentTimeMillis();
+  }
+
+  /**
+   * Stops the platform and the server. Waits for a boot in progress to finish first.
+   */
+  public void shutdown() {
+    synchronized (this) {
+      if (monitor != null) {
+        monitor.shutdownNow();
+      }
+    }
+    Future<?> stopped = platformThread.submit(new Runnable() {
+      public void run() {
+        JettyServer jettyServer = server;
+        if (jettyServer != null) {
+          jettyServer.stopServer();
+        }
+      }
+    });
+    try {
+      stopped.get();
+    } catch (Exception e) {
+      log.logError("Error stopping the Agile BI platform", e); //$NON-NLS-1$
+    }
+    platformThread.shutdown();
+  }
+
+  /**
+   * Runs on the platform thread.
+   */
+  private void bootPlatform() throws Exception {
+    JettyServer jettyServer = server;
+    if (jettyServer == null) {
+      throw new IllegalStateException("The Agile BI server has not been started"); //$NON-NLS-1$
+    }
+    if (jettyServer.isWebappStarted()) {
+      return;
+    }
+    long start = System.currentTimeMillis();
+    jettyServer.startWebapp();
+    prewarmed = true;
+    log.logBasic("Started the Agile BI platform in " + (System.currentTimeMillis() - start) + "ms"); //$NON-NLS-1$ //$NON-NLS-2$
+    for (Listener listener : listeners) {
+      listener.platformStarted();
+    }
+  }
+
+  /**
+   * Runs on the platform thread. Checks idleness again in case the platform was used since the shutdown was
+   * requested.
+   */
+  private void stopIfIdle() {
+    JettyServer jettyServer = server;
+    if (jettyServer == null || !jettyServer.isWebappStarted() || !isIdle(jettyServer)) {
+      return;
+    }
+    jettyServer.stopWebapp();
+    log.logBasic("Stopped the idle Agile BI platform"); //$NON-NLS-1$
+    for (Listener listener : listeners) {
+      listener.platformStopped();
+    }
+  }
+
+  private boolean isIdle(JettyServer jettyServer) {
+    if (jettyServer.getActiveRequests() > 0) {
+      return false;
+    }
+    long lastActivity = Math.max(lastUsed, jettyServer.getLastRequestTime());
+    return System.currentTimeMillis() - lastActivity >= shutdownAfter;
+  }
+
+  private synchronized void startMonitor() {
+    if (monitor != null) {
+      return;
+    }
+    monitor = Executors.newSingleThreadScheduledExecutor(daemonThreads("AgileBI platform monitor")); //$NON-NLS-1$
+    monitor.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        try {
+          checkIdle();
+        } catch (RuntimeException e) {
+          log.logError("Error checking whether the Agile BI platform is idle", e); //$NON-NLS-1$
+        }
+      }
+    }, monitorInterval, monitorInterval, TimeUnit.MILLISECONDS);
+  }
+
+  private void checkIdle() {
+    JettyServer jettyServer = server;
+    if (jettyServer == null) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    if (!jettyServer.isWebappStarted()) {
+      if (lazy && prewarmAfter > 0 && !prewarmed && now - lastUserActivity >= prewarmAfter) {
+        log.logBasic("Spoon is idle, starting the Agile BI platform"); //$NON-NLS-1$
+        prewarmed = true;
+        startAsync();
+      }
+      return;
+    }
+    if (shutdownAfter > 0 && isIdle(jettyServer)) {
+      IdleCheck check = idleCheck;
+      if (check != null && check.isInUse()) {
+        return;
+      }
+      platformThread.execute(new Runnable() {
+        public void run() {
+          stopIfIdle();
+        }
+      });
+    }
+  }
+
+  private static ThreadFactory daemonThreads(final String name) {
+    return new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, name);
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+  }
+}
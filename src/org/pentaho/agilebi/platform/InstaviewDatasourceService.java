@@ -18,56 +18,200 @@
 package org.pentaho.agilebi.platform;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.PrintWriter;
 import java.sql.Connection;
 import java.sql.SQLException;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Set;
-import java.util.logging.Logger;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
 
 import javax.sql.DataSource;
 
 import org.apache.commons.dbcp.ConnectionFactory;
-import org.apache.commons.dbcp.PoolableConnectionFactory;
-import org.apache.commons.dbcp.PoolingDriver;
+import org.apache.commons.dbcp.PoolingDataSource;
 import org.apache.commons.pool.KeyedObjectPoolFactory;
 import org.apache.commons.pool.impl.GenericKeyedObjectPoolFactory;
 import org.apache.commons.pool.impl.GenericObjectPool;
+import org.pentaho.di.core.Const;
 import org.pentaho.di.core.database.Database;
 import org.pentaho.di.core.database.DatabaseMeta;
 import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.logging.LogChannel;
+import org.pentaho.di.core.logging.LogChannelInterface;
 import org.pentaho.metadata.model.Domain;
 import org.pentaho.metadata.model.SqlPhysicalModel;
 import org.pentaho.metadata.util.ThinModelConverter;
-import org.pentaho.metadata.util.XmiParser;
 import org.pentaho.platform.api.data.DBDatasourceServiceException;
 import org.pentaho.platform.api.data.IDBDatasourceService;
 
+/**
+ * Serves the connections of the models' datasources. Each datasource (the model's .xmi file) gets a connection pool
+ * of its own, which is closed by {@link #clearDataSource(String)}, {@link #clearCache()} or
+ * {@link #releaseDataSource(String)} when the model is no longer shown. Idle connections are evicted in the
+ * background.
+ * <p>
+ * Concurrent requests for a datasource without a pool wait for the one request that creates it. A new pool opens one
+ * connection right away and the rest of its minimum in the background.
+ * <p>
+ * Query results are served from {@link ResultSetCache} when it is turned on; releasing a datasource drops them.
+ * <p>
+ * The pools are sized by these system properties:
+ * <ul>
+ * <li>{@value #MAX_ACTIVE_PROPERTY}: connections per datasource (default {@value #DEFAULT_MAX_ACTIVE})</li>
+ * <li>{@value #MAX_IDLE_PROPERTY}: idle connections kept per datasource (default {@value #DEFAULT_MAX_IDLE})</li>
+ * <li>{@value #MIN_IDLE_PROPERTY}: connections a new pool is warmed up to in the background, and kept at (default
+ * {@value #DEFAULT_MIN_IDLE})</li>
+ * <li>{@value #MAX_WAIT_PROPERTY}: milliseconds to wait for a free connection (default {@value #DEFAULT_MAX_WAIT})</li>
+ * <li>{@value #IDLE_TIMEOUT_PROPERTY}: seconds before an idle connection is closed (default
+ * {@value #DEFAULT_IDLE_TIMEOUT}, 0 keeps them open). Idle connections are also checked for staleness then.</li>
+ * <li>{@value #REVALIDATE_PROPERTY}: seconds a connection may sit idle before it is validated when borrowed (default
+ * {@value #DEFAULT_REVALIDATE_AFTER})</li>
+ * </ul>
+ */
 public class InstaviewDatasourceService implements IDBDatasourceService {
 
-	private GenericObjectPool gPool = new GenericObjectPool();
+  public static final String MAX_ACTIVE_PROPERTY = "KETTLE_AGILEBI_POOL_MAX_ACTIVE"; //$NON-NLS-1$
 
-	private KeyedObjectPoolFactory kopf =new GenericKeyedObjectPoolFactory(null, 8);
+  public static final String MAX_IDLE_PROPERTY = "KETTLE_AGILEBI_POOL_MAX_IDLE"; //$NON-NLS-1$
+
+  public static final String MIN_IDLE_PROPERTY = "KETTLE_AGILEBI_POOL_MIN_IDLE"; //$NON-NLS-1$
+
+  public static final String MAX_WAIT_PROPERTY = "KETTLE_AGILEBI_POOL_MAX_WAIT"; //$NON-NLS-1$
+
+  public static final String IDLE_TIMEOUT_PROPERTY = "KETTLE_AGILEBI_POOL_IDLE_TIMEOUT"; //$NON-NLS-1$
+
+  public static final String REVALIDATE_PROPERTY = "KETTLE_AGILEBI_POOL_REVALIDATE_AFTER"; //$NON-NLS-1$
+
+  public static final int DEFAULT_MAX_ACTIVE = 8;
+
+  public static final int DEFAULT_MAX_IDLE = 4;
+
+  public static final int DEFAULT_MIN_IDLE = 2;
+
+  public static final int DEFAULT_MAX_WAIT = 30000;
+
+  public static final int DEFAULT_IDLE_TIMEOUT = 300;
+
+  public static final int DEFAULT_REVALIDATE_AFTER = 30;
+
+  /** seconds */
+  private static final int VALIDATION_TIMEOUT = 5;
+
+  private static LogChannelInterface log = new LogChannel(InstaviewDatasourceService.class.getSimpleName());
+
+  /** every live service, so that the UI can release pools without a handle on the platform's instance */
+  private static final Set<InstaviewDatasourceService> services = Collections
+      .synchronizedSet(Collections.newSetFromMap(new WeakHashMap<InstaviewDatasourceService, Boolean>()));
+
+  /** warms new pools up in the background; connections are opened one at a time so the database isn't swamped */
+  private static final ExecutorService warmUp = Executors.newSingleThreadExecutor(new ThreadFactory() {
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "AgileBI connection pool warm-up"); //$NON-NLS-1$
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  private final KeyedObjectPoolFactory kopf = new GenericKeyedObjectPoolFactory(null, 8);
+
+  /**
+   * Pools by datasource key. A pool is created by the first caller only, everyone else waits for its future.
+   */
+  private final ConcurrentMap<String, FutureTask<GenericObjectPool>> pools = new ConcurrentHashMap<String, FutureTask<GenericObjectPool>>();
+
+  private final GenericObjectPool.Config poolConfig;
+
+  private final long revalidateAfter;
+
+  public InstaviewDatasourceService() {
+    this(createPoolConfig());
+  }
+
+  InstaviewDatasourceService(GenericObjectPool.Config poolConfig) {
+    this.poolConfig = poolConfig;
+    this.revalidateAfter = Const.toInt(System.getProperty(REVALIDATE_PROPERTY), DEFAULT_REVALIDATE_AFTER) * 1000L;
+    services.add(this);
+  }
+
+  /**
+   * Closes the pool of the datasource in every service, e.g. when the last view of a model is closed.
+   *
+   * @param dsName Datasource, i.e. the model's file
+   */
+  public static void releaseDataSource(String dsName) {
+    List<InstaviewDatasourceService> live;
+    synchronized (services) {
+      live = new ArrayList<InstaviewDatasourceService>(services);
+    }
+    for (InstaviewDatasourceService service : live) {
+      service.clearDataSource(dsName);
+    }
+  }
+
+  /**
+   * Closes every pool of every service, e.g. after the platform has been stopped.
+   */
+  public static void releaseAll() {
+    List<InstaviewDatasourceService> live;
+    synchronized (services) {
+      live = new ArrayList<InstaviewDatasourceService>(services);
+    }
+    for (InstaviewDatasourceService service : live) {
+      service.clearCache();
+    }
+  }
+
+  /**
+   * Creates the pool of the datasource in every service ahead of its first use.
+   *
+   * @param dsName Datasource, i.e. the model's file
+   */
+  public static void prepareDataSource(String dsName) throws DBDatasourceServiceException {
+    List<InstaviewDatasourceService> live;
+    synchronized (services) {
+      live = new ArrayList<InstaviewDatasourceService>(services);
+    }
+    for (InstaviewDatasourceService service : live) {
+      service.getDataSource(dsName);
+    }
+  }
+
+  /**
+   * Drops the cached query results that read a table of the datasource, e.g. after the table was reloaded.
+   *
+   * @param dsName Datasource, i.e. the model's file
+   * @param table Table name, with or without schema
+   */
+  public static void invalidateTable(String dsName, String table) {
+    ResultSetCache.getInstance().invalidateTable(getKey(dsName), table);
+  }
+
+  /**
+   * Drops all cached query results of the datasource, e.g. after its data was reloaded.
+   *
+   * @param dsName Datasource, i.e. the model's file
+   */
+  public static void invalidateResults(String dsName) {
+    ResultSetCache.getInstance().invalidate(getKey(dsName));
+  }
 
-	private Set<String> knownPools = new HashSet<String>();
-	
-	private int connectionCount = 0;
-	
-	private Map<String,DatabaseMeta> databaseMetaMap = new HashMap<String,DatabaseMeta>();
-	
-	public InstaviewDatasourceService() {
-		
-	}
-	
   public void clearCache() {
-    // TODO impl cache
+    for (String key : new ArrayList<String>(pools.keySet())) {
+      release(key);
+    }
   }
 
   public void clearDataSource(String dsName) {
-    // TODO impl cache
+    release(getKey(dsName));
   }
 
   public String getDSBoundName(String dsName) throws DBDatasourceServiceException {
@@ -78,182 +222,230 @@ public class InstaviewDatasourceService implements IDBDatasourceService {
     return dsName;
   }
 
+  /**
+   * Creates the pool of the datasource if it has none yet. The datasource returned always borrows from the current
+   * pool of the datasource, so it stays usable after the datasource was released, e.g. in Mondrian's schema cache.
+   */
   public DataSource getDataSource(String dsName) throws DBDatasourceServiceException {
+    getPool(dsName);
+    return new MeteredDataSource(dsName, getKey(dsName));
+  }
 
-	  DatabaseMeta databaseMeta = databaseMetaMap.get(dsName);
-	  
-	  if( knownPools.contains(dsName)) {
-		  try {
-				DatabaseMetaDataSource dataSource = new DatabaseMetaDataSource(dsName);
-				return dataSource;
-		} catch (Exception e) {
-			throw new DBDatasourceServiceException(e);
-		}
-	  }
-
-    // nothing in the pool so create a new pool
+  GenericObjectPool getPool(final String dsName) throws DBDatasourceServiceException {
+    String key = getKey(dsName);
+    FutureTask<GenericObjectPool> creation = pools.get(key);
+    if (creation == null) {
+      FutureTask<GenericObjectPool> task = new FutureTask<GenericObjectPool>(new Callable<GenericObjectPool>() {
+        public GenericObjectPool call() throws Exception {
+          return createPool(dsName);
+        }
+      });
+      creation = pools.putIfAbsent(key, task);
+      if (creation == null) {
+        creation = task;
+        task.run();
+      }
+    }
+    try {
+      GenericObjectPool pool = creation.get();
+      if (pools.get(key) != creation) {
+        // released while it was being created
+        closePool(pool);
+        DatasourceMetrics.getInstance().unregisterPool(key, pool);
+        throw new DBDatasourceServiceException("Datasource " + dsName + " was released"); //$NON-NLS-1$ //$NON-NLS-2$
+      }
+      return pool;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new DBDatasourceServiceException(e);
+    } catch (ExecutionException e) {
+      // let the next caller try again
+      pools.remove(key, creation);
+      if (e.getCause() instanceof DBDatasourceServiceException) {
+        throw (DBDatasourceServiceException) e.getCause();
+      }
+      throw new DBDatasourceServiceException(e.getCause());
+    }
+  }
+
+  /**
+   * @return the number of datasources that currently have a pool
+   */
+  public int getPoolCount() {
+    return pools.size();
+  }
+
+  private void release(String key) {
+    ResultSetCache.getInstance().invalidate(key);
+    FutureTask<GenericObjectPool> creation = pools.remove(key);
+    // a pool still being created is closed by its creator, see getDataSource
+    if (creation != null && creation.isDone()) {
+      try {
+        GenericObjectPool pool = creation.get();
+        closePool(pool);
+        DatasourceMetrics.getInstance().unregisterPool(key, pool);
+      } catch (Exception e) {
+        // creation failed, nothing to close
+      }
+    }
+  }
+
+  /**
+   * Opens the first connection right away, so that bad connection settings fail the caller, and warms the pool up to
+   * its minimum idle size in the background.
+   */
+  GenericObjectPool createPool(String dsName) throws DBDatasourceServiceException {
     Domain domain = null;
     try {
-      XmiParser parser = new XmiParser();
-      FileInputStream fis = new FileInputStream(new File(dsName));
-      domain = parser.parseXmi(fis);
+      domain = DomainCache.getInstance().getDomain(dsName);
     } catch (Exception e) {
       throw new DBDatasourceServiceException(e);
     }
 
-    if (domain.getPhysicalModels().size() == 0 || 
+    if (domain.getPhysicalModels().size() == 0 ||
         !(domain.getPhysicalModels().get(0) instanceof SqlPhysicalModel)) {
       throw new DBDatasourceServiceException("No SQL Physical Model Available");
-      
     }
-    
-    SqlPhysicalModel model = (SqlPhysicalModel)domain.getPhysicalModels().get(0);
-    
-    databaseMeta = ThinModelConverter.convertToLegacy(model.getId(), model.getDatasource());
-	
-    ConnectionFactory cf = new DatabaseMetaConnectionFactory(databaseMeta);
 
-    GenericObjectPool.Config config = new GenericObjectPool.Config();
-    config.testOnBorrow = true;
-    gPool.setConfig(config);
-
-	  PoolableConnectionFactory pcf =  new PoolableConnectionFactory(cf,
-            gPool,
-            kopf,
-            "select 1",
-            false,
-            true);
-	
-	try {
-//		for(int i = 0; i < 5; i++) {
-//		      gPool.addObject();
-//		    }
-
-		    // PoolingDataSource pds = new PoolingDataSource(gPool);
-		    PoolingDriver pd = new PoolingDriver();
-		    pd.registerPool(dsName, gPool);
-
-		    for(int i = 0; i < 5; i++) {
-		      gPool.addObject();
-		    }
-		
-	} catch (Exception e) {
-		throw new DBDatasourceServiceException(e);
-	}
-    
-    Database database = new Database(databaseMeta);
+    SqlPhysicalModel model = (SqlPhysicalModel) domain.getPhysicalModels().get(0);
+    DatabaseMeta databaseMeta = ThinModelConverter.convertToLegacy(model.getId(), model.getDatasource());
+
+    String key = getKey(dsName);
+    GenericObjectPool pool = new GenericObjectPool(null, poolConfig);
+    DatasourceMetrics.getInstance().registerPool(key, pool);
+    // registers itself as the pool's factory
+    new ValidatingConnectionFactory(new DatabaseMetaConnectionFactory(databaseMeta, key), pool, kopf,
+        ValidatingConnectionFactory.getValidationQuery(databaseMeta), revalidateAfter, VALIDATION_TIMEOUT);
+
+    // fail fast on bad connection settings; the connection stays in the pool for the first query
     try {
-      database.connect();
+      pool.returnObject(pool.borrowObject());
     } catch (Exception e) {
+      closePool(pool);
+      DatasourceMetrics.getInstance().unregisterPool(key, pool);
       throw new DBDatasourceServiceException(e);
     }
-    Connection connection = database.getConnection();
-	
-	knownPools.add(dsName);
-	databaseMetaMap.put(dsName, databaseMeta);
-	
-    return new DatabaseMetaDataSource(dsName);
+    warmUp(pool);
+    return pool;
+  }
+
+  private void warmUp(final GenericObjectPool pool) {
+    if (pool.getNumIdle() >= poolConfig.minIdle) {
+      return;
+    }
+    warmUp.execute(new Runnable() {
+      public void run() {
+        try {
+          while (pool.getNumIdle() + pool.getNumActive() < poolConfig.minIdle) {
+            pool.addObject();
+          }
+        } catch (IllegalStateException e) {
+          // closed while warming up
+        } catch (Exception e) {
+          log.logError("Error warming up connection pool", e); //$NON-NLS-1$
+        }
+      }
+    });
+  }
+
+  private static void closePool(GenericObjectPool pool) {
+    try {
+      // idle connections are closed now, borrowed ones when they are returned
+      pool.close();
+    } catch (Exception e) {
+      log.logError("Error closing connection pool", e); //$NON-NLS-1$
+    }
+  }
+
+  private static String getKey(String dsName) {
+    return new File(dsName).getAbsolutePath();
+  }
+
+  static GenericObjectPool.Config createPoolConfig() {
+    GenericObjectPool.Config config = new GenericObjectPool.Config();
+    // cheap unless the connection has been idle for a while, see ValidatingConnectionFactory
+    config.testOnBorrow = true;
+    config.testWhileIdle = true;
+    config.maxActive = Const.toInt(System.getProperty(MAX_ACTIVE_PROPERTY), DEFAULT_MAX_ACTIVE);
+    config.maxIdle = Const.toInt(System.getProperty(MAX_IDLE_PROPERTY), DEFAULT_MAX_IDLE);
+    config.minIdle = Math.min(config.maxIdle, Const.toInt(System.getProperty(MIN_IDLE_PROPERTY), DEFAULT_MIN_IDLE));
+    config.maxWait = Const.toInt(System.getProperty(MAX_WAIT_PROPERTY), DEFAULT_MAX_WAIT);
+    config.whenExhaustedAction = GenericObjectPool.WHEN_EXHAUSTED_BLOCK;
+    long idleTimeout = Const.toInt(System.getProperty(IDLE_TIMEOUT_PROPERTY), DEFAULT_IDLE_TIMEOUT) * 1000L;
+    if (idleTimeout > 0) {
+      config.minEvictableIdleTimeMillis = idleTimeout;
+      config.timeBetweenEvictionRunsMillis = Math.max(1000L, idleTimeout / 2);
+      config.numTestsPerEvictionRun = Math.max(1, config.maxIdle);
+    }
+    return config;
   }
 
   class DatabaseMetaConnectionFactory implements ConnectionFactory {
 
-	    DatabaseMeta databaseMeta;
-
-		public DatabaseMetaConnectionFactory(DatabaseMeta databaseMeta) {
-			this.databaseMeta = databaseMeta;
-		}
-		    
-
-		@Override
-		public Connection createConnection() throws SQLException {
-		      Database database = new Database(databaseMeta);
-		      try {
-		        database.connect();
-		        connectionCount++;
-    			IInstaviewHelper instaviewHelper = InstaviewHelper.getInstaviewHelper();
-    			if( instaviewHelper != null ) {
-    				instaviewHelper.connectionMade();
-    			}
-  		      Connection connection = database.getConnection();
-
-		      return connection;
-		        
-		      } catch (KettleException e) {
-		        e.printStackTrace();
-		        throw new SQLException(e.getMessage());
-		      }
-//		      WrappedConnection wrapper = new WrappedConnection(connection);
-		}
-	  
-  }  
-  
-  class DatabaseMetaDataSource implements DataSource {
-
-	    DatabaseMeta databaseMeta;
-	    
-	    Connection connection;
-	    
-	    String dsName;
-	    
-	    public DatabaseMetaDataSource(String dsName) {
-	      this.dsName = dsName;
-	    }
-	    
-	    public Connection getConnection() throws SQLException {
-			Connection connection = java.sql.DriverManager.getConnection("jdbc:apache:commons:dbcp:"+dsName); //$NON-NLS-1$
-/*
-			try {
-	        connectionCount++;
-	        if( connectionCount == BOUNCE_THREASHOLD ) {
-	    		try {
-	    			IInstaviewHelper instaviewHelper = InstaviewHelper.getInstaviewHelper();
-	    			if( instaviewHelper != null ) {
-	    				instaviewHelper.restartDatastore();
-			        	connectionCount = 0;
-	    			}
-				} catch (Exception e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				}
-	        }
-	      } catch (Exception e) {
-	        e.printStackTrace();
-	        throw new SQLException(e.getMessage());
-	      }
-	      */
-	      return connection;
-	    }
-
-	    public Connection getConnection(String username, String password) throws SQLException {
-	      return null;
-	    }
-
-	    public PrintWriter getLogWriter() throws SQLException {
-	      return null;
-	    }
-
-	    public int getLoginTimeout() throws SQLException {
-	      return 0;
-	    }
-
-	    public void setLogWriter(PrintWriter out) throws SQLException {
-	    }
-
-	    public void setLoginTimeout(int seconds) throws SQLException {
-	    }
-	   
-	    public boolean  isWrapperFor(Class<?> iface) {
-	      return false;
-	    }
-	    
-	    public <T> T unwrap(Class<T> iface) {
-	      return null;
-	    } 
-       
-            public Logger getParentLogger() {
-              return null;
-            }
-	    
-	  }
-  
+    DatabaseMeta databaseMeta;
+
+    String poolName;
+
+    public DatabaseMetaConnectionFactory(DatabaseMeta databaseMeta, String poolName) {
+      this.databaseMeta = databaseMeta;
+      this.poolName = poolName;
+    }
+
+    @Override
+    public Connection createConnection() throws SQLException {
+      Database database = new Database(databaseMeta);
+      try {
+        long start = System.currentTimeMillis();
+        database.connect();
+        DatasourceMetrics metrics = DatasourceMetrics.getInstance();
+        metrics.connectionCreated(poolName, System.currentTimeMillis() - start);
+        IInstaviewHelper instaviewHelper = InstaviewHelper.getInstaviewHelper();
+        if( instaviewHelper != null ) {
+          instaviewHelper.connectionMade();
+        }
+        return MeteredConnection.wrap(database.getConnection(), metrics);
+      } catch (KettleException e) {
+        e.printStackTrace();
+        throw new SQLException(e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Borrows from the datasource's current pool, which is created again if the datasource was released. Reports how
+   * long callers wait for a connection, and puts the result cache in front of it if that is turned on.
+   */
+  class MeteredDataSource extends PoolingDataSource {
+
+    private final String dsName;
+
+    private final String poolName;
+
+    MeteredDataSource(String dsName, String poolName) {
+      this.dsName = dsName;
+      this.poolName = poolName;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+      GenericObjectPool pool;
+      try {
+        pool = getPool(dsName);
+      } catch (DBDatasourceServiceException e) {
+        throw new SQLException(e.getMessage(), e);
+      }
+      DatasourceMetrics metrics = DatasourceMetrics.getInstance();
+      long start = System.currentTimeMillis();
+      metrics.borrowing(poolName);
+      Connection connection;
+      try {
+        // cheap, only wraps the pool
+        connection = new PoolingDataSource(pool).getConnection();
+      } finally {
+        metrics.borrowed(poolName, System.currentTimeMillis() - start);
+      }
+      ResultSetCache cache = ResultSetCache.getInstance();
+      return cache.isEnabled() ? CachingConnection.wrap(connection, poolName, cache) : connection;
+    }
+  }
 }
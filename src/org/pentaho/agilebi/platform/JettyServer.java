@@ -17,12 +17,23 @@
 
 package org.pentaho.agilebi.platform;
 
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
 import org.eclipse.jetty.server.Connector;
 import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.Server;
-import org.eclipse.jetty.server.bio.SocketConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
 import org.eclipse.jetty.server.handler.DefaultHandler;
+import org.eclipse.jetty.server.handler.GzipHandler;
 import org.eclipse.jetty.server.handler.HandlerCollection;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
 import org.eclipse.jetty.webapp.WebAppContext;
 import org.pentaho.di.core.logging.LogChannel;
 import org.pentaho.di.core.logging.LogChannelInterface;
@@ -35,6 +46,9 @@ public class JettyServer {
 
   public static final int PORT = 80;
 
+  /** where the datasource metrics are served as JSON */
+  public static final String METRICS_PATH = "/agilebi/metrics"; //$NON-NLS-1$
+
   private Server server;
 
   private String hostname;
@@ -43,9 +57,22 @@ public class JettyServer {
   
   private String webappsFolder = "plugins/spoon/agile-bi/platform/webapps"; //$NON-NLS-1$
 
+  private JettyServerConfig config;
+
+  private volatile WebAppContext pentahoContext;
+
+  private volatile long lastRequestTime;
+
+  private final AtomicInteger activeRequests = new AtomicInteger();
+
   public JettyServer(String hostname, int port) throws Exception {
+    this(hostname, port, JettyServerConfig.load());
+  }
+
+  public JettyServer(String hostname, int port, JettyServerConfig config) throws Exception {
     this.hostname = hostname;
     this.port = port;
+    this.config = config;
   }
 
   public void setWebappsFolder(String webappsFolder) {
@@ -56,25 +83,99 @@ public class JettyServer {
     return server;
   }
 
+  /**
+   * Starts the server and the Pentaho webapp.
+   */
   public void startServer() throws Exception {
+    startConnector();
+    startWebapp();
+  }
+
+  /**
+   * Starts listening on the port without booting the Pentaho webapp. Until {@link #startWebapp()} is called requests
+   * for /pentaho are answered with a 404.
+   */
+  public void startConnector() throws Exception {
     server = new Server();
+    server.setThreadPool(createThreadPool());
 
-    WebAppContext pentahoContext = new WebAppContext();
-    pentahoContext.setClassLoader(getClass().getClassLoader());
-    pentahoContext.setContextPath("/pentaho"); //$NON-NLS-1$
-    pentahoContext.setWar(webappsFolder + "/pentaho"); //$NON-NLS-1$
-    
-    pentahoContext.setParentLoaderPriority(true);
-    
     HandlerCollection handlers= new HandlerCollection();
-    handlers.setHandlers(new Handler[]{pentahoContext, new DefaultHandler()});
+    handlers.setHandlers(new Handler[]{new MetricsHandler(), new WebappHandler(), new DefaultHandler()});
 
-    server.setHandler(handlers);
+    if (config.isGzipEnabled()) {
+      GzipHandler gzipHandler = new GzipHandler();
+      gzipHandler.setMimeTypes(config.getGzipMimeTypes());
+      gzipHandler.setMinGzipSize(config.getGzipMinSize());
+      gzipHandler.setHandler(handlers);
+      server.setHandler(gzipHandler);
+    } else {
+      server.setHandler(handlers);
+    }
 
     // Start execution
-    createListeners();
+    SelectChannelConnector connector = createListeners();
 
     server.start();
+    // find out which port the OS picked when asked for any free one
+    port = connector.getLocalPort();
+  }
+
+  /**
+   * Boots the Pentaho webapp, which brings up the platform. Does nothing if it is already running.
+   */
+  public synchronized void startWebapp() throws Exception {
+    if (pentahoContext != null) {
+      return;
+    }
+    WebAppContext context = new WebAppContext();
+    context.setClassLoader(getClass().getClassLoader());
+    context.setContextPath("/pentaho"); //$NON-NLS-1$
+    context.setWar(webappsFolder + "/pentaho"); //$NON-NLS-1$
+    
+    context.setParentLoaderPriority(true);
+    if (config.getStaticCacheControl().length() > 0) {
+      // picked up by the DefaultServlet serving the webapp's static resources
+      context.setInitParameter("org.eclipse.jetty.servlet.Default.cacheControl", config.getStaticCacheControl()); //$NON-NLS-1$
+    }
+    context.setServer(server);
+    context.start();
+    pentahoContext = context;
+    lastRequestTime = System.currentTimeMillis();
+  }
+
+  /**
+   * Shuts the Pentaho webapp down, releasing the memory the platform holds, but keeps the port.
+   */
+  public synchronized void stopWebapp() {
+    WebAppContext context = pentahoContext;
+    if (context == null) {
+      return;
+    }
+    pentahoContext = null;
+    try {
+      context.stop();
+      context.destroy();
+    } catch (Exception e) {
+      log.logError("WebServer.Error.FailedToStop.Title", e);
+    }
+  }
+
+  public boolean isWebappStarted() {
+    return pentahoContext != null;
+  }
+
+  /**
+   * @return when the webapp last received or finished a request, or was started
+   */
+  public long getLastRequestTime() {
+    return lastRequestTime;
+  }
+
+  /**
+   * @return the number of requests the webapp is handling right now
+   */
+  public int getActiveRequests() {
+    return activeRequests.get();
   }
 
   protected void setupListeners() {
@@ -82,6 +183,7 @@ public class JettyServer {
   }
 
   public void stopServer() {
+    stopWebapp();
     try {
       if (server != null) {
         server.stop();
@@ -91,14 +193,78 @@ public class JettyServer {
     }
   }
 
-  private void createListeners() {
-    SocketConnector connector = new SocketConnector();
+  private QueuedThreadPool createThreadPool() {
+    QueuedThreadPool threadPool = new QueuedThreadPool();
+    threadPool.setName("AgileBI web server"); //$NON-NLS-1$
+    threadPool.setMinThreads(config.getMinThreads());
+    threadPool.setMaxThreads(config.getMaxThreads());
+    threadPool.setMaxQueued(config.getMaxQueued());
+    threadPool.setDaemon(true);
+    return threadPool;
+  }
+
+  private SelectChannelConnector createListeners() {
+    // non-blocking connector, so idle keep-alive connections don't each hold on to a thread
+    SelectChannelConnector connector = new SelectChannelConnector();
     connector.setPort(port);
     connector.setHost(hostname);
     connector.setName(hostname);
+    connector.setAcceptors(config.getAcceptors());
+    connector.setAcceptQueueSize(config.getAcceptQueueSize());
+    connector.setMaxIdleTime(config.getMaxIdleTime());
     log.logBasic("WebServer.Log.CreateListener " + hostname + ":" + port);
 
     server.setConnectors(new Connector[] { connector });
+    return connector;
+  }
+
+  public int getPort() {
+    return port;
+  }
+
+  /**
+   * Serves {@link DatasourceMetrics} on {@link #METRICS_PATH}, whether or not the webapp is running.
+   */
+  private static class MetricsHandler extends AbstractHandler {
+    public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response)
+      throws IOException, ServletException {
+      if (!METRICS_PATH.equals(target)) {
+        return;
+      }
+      response.setContentType("application/json"); //$NON-NLS-1$
+      response.setCharacterEncoding("UTF-8"); //$NON-NLS-1$
+      response.setHeader("Cache-Control", "no-cache"); //$NON-NLS-1$ //$NON-NLS-2$
+      response.getWriter().write(DatasourceMetrics.getInstance().getJson());
+      baseRequest.setHandled(true);
+    }
+  }
+
+  /**
+   * Passes requests on to the Pentaho webapp while it is running. Only requests for the webapp count as activity;
+   * the handler collection also calls this for metrics, favicon and other requests, which must not keep the
+   * platform from being shut down when idle.
+   */
+  private class WebappHandler extends AbstractHandler {
+    public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response)
+      throws IOException, ServletException {
+      WebAppContext context = pentahoContext;
+      if (context != null && !baseRequest.isHandled() && isWebappTarget(context, target)) {
+        activeRequests.incrementAndGet();
+        lastRequestTime = System.currentTimeMillis();
+        try {
+          context.handle(target, baseRequest, request, response);
+        } finally {
+          // a long render counts as activity until it is done
+          lastRequestTime = System.currentTimeMillis();
+          activeRequests.decrementAndGet();
+        }
+      }
+    }
+
+    private boolean isWebappTarget(WebAppContext context, String target) {
+      String contextPath = context.getContextPath();
+      return target.equals(contextPath) || target.startsWith(contextPath + "/"); //$NON-NLS-1$
+    }
   }
 
   /**
@@ -0,0 +1,145 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.platform;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Properties;
+
+import org.apache.commons.io.IOUtils;
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.logging.LogChannel;
+import org.pentaho.di.core.logging.LogChannelInterface;
+
+/**
+ * Tuning settings for the embedded {@link JettyServer}, read from plugins/spoon/agile-bi/jetty.properties. Missing
+ * or invalid entries fall back to the defaults.
+ */
+public class JettyServerConfig {
+
+  public static final String CONFIG_FILE_LOCATION = "plugins/spoon/agile-bi/jetty.properties"; //$NON-NLS-1$
+
+  private static LogChannelInterface log = new LogChannel(JettyServerConfig.class.getSimpleName());
+
+  private int minThreads = 4;
+
+  private int maxThreads = 32;
+
+  private int maxQueued = 256;
+
+  private int acceptors = 1;
+
+  private int acceptQueueSize = 128;
+
+  private int maxIdleTime = 30000;
+
+  private boolean gzipEnabled = true;
+
+  private int gzipMinSize = 1024;
+
+  private String gzipMimeTypes = "application/json,application/javascript,application/x-javascript,text/javascript," //$NON-NLS-1$
+      + "text/css,text/html,text/plain,text/xml,application/xml"; //$NON-NLS-1$
+
+  private String staticCacheControl = "max-age=86400,public"; //$NON-NLS-1$
+
+  /**
+   * Reads the configuration file, or returns the defaults if it does not exist.
+   */
+  public static JettyServerConfig load() {
+    return load(new File(CONFIG_FILE_LOCATION));
+  }
+
+  public static JettyServerConfig load(File file) {
+    JettyServerConfig config = new JettyServerConfig();
+    if (!file.exists()) {
+      return config;
+    }
+    InputStream in = null;
+    try {
+      in = new FileInputStream(file);
+      Properties props = new Properties();
+      props.load(in);
+      config.apply(props);
+    } catch (Exception e) {
+      log.logError("Unable to read " + file + ", using default web server settings", e); //$NON-NLS-1$ //$NON-NLS-2$
+    } finally {
+      IOUtils.closeQuietly(in);
+    }
+    return config;
+  }
+
+  void apply(Properties props) {
+    minThreads = Math.max(1, Const.toInt(props.getProperty("threads.min"), minThreads)); //$NON-NLS-1$
+    maxThreads = Math.max(minThreads, Const.toInt(props.getProperty("threads.max"), maxThreads)); //$NON-NLS-1$
+    maxQueued = Const.toInt(props.getProperty("threads.maxQueued"), maxQueued); //$NON-NLS-1$
+    acceptors = Math.max(1, Const.toInt(props.getProperty("acceptors"), acceptors)); //$NON-NLS-1$
+    acceptQueueSize = Const.toInt(props.getProperty("acceptQueueSize"), acceptQueueSize); //$NON-NLS-1$
+    maxIdleTime = Const.toInt(props.getProperty("maxIdleTime"), maxIdleTime); //$NON-NLS-1$
+    gzipEnabled = !"false".equalsIgnoreCase(props.getProperty("gzip.enabled")); //$NON-NLS-1$ //$NON-NLS-2$
+    gzipMinSize = Const.toInt(props.getProperty("gzip.minSize"), gzipMinSize); //$NON-NLS-1$
+    gzipMimeTypes = Const.NVL(props.getProperty("gzip.mimeTypes"), gzipMimeTypes); //$NON-NLS-1$
+    staticCacheControl = props.getProperty("static.cacheControl", staticCacheControl).trim(); //$NON-NLS-1$
+  }
+
+  public int getMinThreads() {
+    return minThreads;
+  }
+
+  public int getMaxThreads() {
+    return maxThreads;
+  }
+
+  /**
+   * @return requests that may wait for a worker thread, or a negative value for no limit
+   */
+  public int getMaxQueued() {
+    return maxQueued;
+  }
+
+  public int getAcceptors() {
+    return acceptors;
+  }
+
+  public int getAcceptQueueSize() {
+    return acceptQueueSize;
+  }
+
+  public int getMaxIdleTime() {
+    return maxIdleTime;
+  }
+
+  public boolean isGzipEnabled() {
+    return gzipEnabled;
+  }
+
+  public int getGzipMinSize() {
+    return gzipMinSize;
+  }
+
+  public String getGzipMimeTypes() {
+    return gzipMimeTypes;
+  }
+
+  /**
+   * @return the Cache-Control header for static resources, or an empty string to send none
+   */
+  public String getStaticCacheControl() {
+    return staticCacheControl;
+  }
+}
@@ -0,0 +1,151 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.platform;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+/**
+ * Wraps a JDBC connection so that the statements it creates report their execution time and the rows read from their
+ * result sets to {@link DatasourceMetrics}.
+ */
+public class MeteredConnection {
+
+  private MeteredConnection() {
+  }
+
+  public static Connection wrap(Connection connection, DatasourceMetrics metrics) {
+    return (Connection) Proxy.newProxyInstance(MeteredConnection.class.getClassLoader(),
+        new Class[] { Connection.class }, new ConnectionHandler(connection, metrics));
+  }
+
+  private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+    try {
+      return method.invoke(target, args);
+    } catch (InvocationTargetException e) {
+      throw e.getCause();
+    }
+  }
+
+  private static class ConnectionHandler implements InvocationHandler {
+    private final Connection connection;
+    private final DatasourceMetrics metrics;
+
+    ConnectionHandler(Connection connection, DatasourceMetrics metrics) {
+      this.connection = connection;
+      this.metrics = metrics;
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      String name = method.getName();
+      if (name.equals("equals")) { //$NON-NLS-1$
+        return proxy == args[0];
+      }
+      if (name.equals("hashCode")) { //$NON-NLS-1$
+        return System.identityHashCode(proxy);
+      }
+      Object result = MeteredConnection.invoke(connection, method, args);
+      if (result instanceof Statement) {
+        // the SQL of prepared and callable statements is known up front
+        String sql = (name.equals("prepareStatement") || name.equals("prepareCall")) ? (String) args[0] : null; //$NON-NLS-1$ //$NON-NLS-2$
+        Class<?> type = result instanceof CallableStatement ? CallableStatement.class
+            : (result instanceof PreparedStatement ? PreparedStatement.class : Statement.class);
+        return Proxy.newProxyInstance(MeteredConnection.class.getClassLoader(), new Class[] { type },
+            new StatementHandler((Statement) result, sql, metrics));
+      }
+      return result;
+    }
+  }
+
+  private static class StatementHandler implements InvocationHandler {
+    private final Statement statement;
+    private final String preparedSql;
+    private final DatasourceMetrics metrics;
+    private DatasourceMetrics.StatementStats lastExecuted;
+
+    StatementHandler(Statement statement, String preparedSql, DatasourceMetrics metrics) {
+      this.statement = statement;
+      this.preparedSql = preparedSql;
+      this.metrics = metrics;
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      String name = method.getName();
+      if (!name.startsWith("execute")) { //$NON-NLS-1$
+        Object result = MeteredConnection.invoke(statement, method, args);
+        if (result instanceof ResultSet && name.equals("getResultSet")) { //$NON-NLS-1$
+          return wrapResultSet((ResultSet) result);
+        }
+        return result;
+      }
+      String sql = args != null && args.length > 0 && args[0] instanceof String ? (String) args[0] : preparedSql;
+      if (sql == null) {
+        sql = "(batch)"; //$NON-NLS-1$
+      }
+      long start = System.currentTimeMillis();
+      Object result = MeteredConnection.invoke(statement, method, args);
+      lastExecuted = metrics.statementExecuted(sql, System.currentTimeMillis() - start);
+      if (result instanceof ResultSet) {
+        return wrapResultSet((ResultSet) result);
+      }
+      return result;
+    }
+
+    private ResultSet wrapResultSet(ResultSet resultSet) {
+      return (ResultSet) Proxy.newProxyInstance(MeteredConnection.class.getClassLoader(),
+          new Class[] { ResultSet.class }, new ResultSetHandler(resultSet, lastExecuted, metrics));
+    }
+  }
+
+  private static class ResultSetHandler implements InvocationHandler {
+    private final ResultSet resultSet;
+    private final DatasourceMetrics.StatementStats stats;
+    private final DatasourceMetrics metrics;
+    private long rows;
+    private boolean closed;
+
+    ResultSetHandler(ResultSet resultSet, DatasourceMetrics.StatementStats stats, DatasourceMetrics metrics) {
+      this.resultSet = resultSet;
+      this.stats = stats;
+      this.metrics = metrics;
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      String name = method.getName();
+      if (name.equals("next")) { //$NON-NLS-1$
+        Boolean more = (Boolean) MeteredConnection.invoke(resultSet, method, args);
+        if (more.booleanValue()) {
+          rows++;
+        }
+        return more;
+      }
+      if (name.equals("close") && !closed) { //$NON-NLS-1$
+        closed = true;
+        metrics.rowsFetched(stats, rows);
+      }
+      return MeteredConnection.invoke(resultSet, method, args);
+    }
+  }
+}
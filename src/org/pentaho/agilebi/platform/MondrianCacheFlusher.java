@@ -0,0 +1,231 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.platform;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import mondrian.olap.CacheControl;
+import mondrian.olap.Cube;
+import mondrian.olap.Dimension;
+import mondrian.olap.Hierarchy;
+import mondrian.olap.Member;
+import mondrian.olap.MondrianDef;
+import mondrian.olap.SchemaReader;
+import mondrian.olap.Util;
+import mondrian.rolap.RolapConnectionProperties;
+import mondrian.rolap.RolapHierarchy;
+import mondrian.rolap.RolapSchema;
+import mondrian.rolap.agg.AggregationManager;
+
+import org.pentaho.di.core.logging.LogChannel;
+import org.pentaho.di.core.logging.LogChannelInterface;
+import org.pentaho.platform.api.engine.ICacheManager;
+import org.pentaho.platform.engine.core.system.PentahoSystem;
+
+/**
+ * Flushes what the embedded platform and Mondrian have cached for one model, leaving the caches of the models shown in
+ * other tabs alone. The Mondrian schema of a model has a single cube named after the model; as models in different
+ * folders may share a name, a schema is only flushed if its connection reads the model's file as well.
+ */
+public class MondrianCacheFlusher {
+
+  /** where the platform keeps the catalog definitions, by locale */
+  public static final String CATALOG_CACHE_REGION = "mondrian-catalog-cache"; //$NON-NLS-1$
+
+  private static LogChannelInterface log = new LogChannel(MondrianCacheFlusher.class.getSimpleName());
+
+  private MondrianCacheFlusher() {
+  }
+
+  /**
+   * Makes the platform read the catalog's definition from the model file again the next time it is used.
+   *
+   * @param catalog Catalog, i.e. the model's file
+   */
+  public static void flushCatalogDefinition(String catalog) {
+    ICacheManager cacheMgr = PentahoSystem.getCacheManager(null);
+    if (cacheMgr == null || catalog == null) {
+      return;
+    }
+    Set<?> keys = cacheMgr.getAllKeysFromRegionCache(CATALOG_CACHE_REGION);
+    if (keys == null) {
+      return;
+    }
+    for (Object key : keys) {
+      Object cached = cacheMgr.getFromRegionCache(CATALOG_CACHE_REGION, key);
+      if (!(cached instanceof Map)) {
+        // not laid out the way we expect, fall back to dropping every definition
+        log.logDetailed("Unexpected content in " + CATALOG_CACHE_REGION + ", clearing it"); //$NON-NLS-1$ //$NON-NLS-2$
+        cacheMgr.clearRegionCache(CATALOG_CACHE_REGION);
+        return;
+      }
+      Map<Object, Object> catalogs = new HashMap<Object, Object>((Map<?, ?>) cached);
+      boolean removed = false;
+      for (Object name : new ArrayList<Object>(catalogs.keySet())) {
+        if (name instanceof String && isSameCatalog((String) name, catalog)) {
+          catalogs.remove(name);
+          removed = true;
+        }
+      }
+      if (removed) {
+        cacheMgr.putInRegionCache(CATALOG_CACHE_REGION, key, catalogs);
+      }
+    }
+  }
+
+  static boolean isSameCatalog(String name, String catalog) {
+    if (name.equals(catalog)) {
+      return true;
+    }
+    File file = new File(catalog);
+    return name.equals(file.getName()) || new File(name).getAbsoluteFile().equals(file.getAbsoluteFile());
+  }
+
+  /**
+   * Drops the model's catalog definition and everything Mondrian has cached for its schema, e.g. after the model
+   * changed.
+   *
+   * @param catalog Catalog, i.e. the model's file
+   * @param cubeName Cube of the model
+   * @return the number of schemas flushed
+   */
+  public static int flushCatalog(String catalog, String cubeName) {
+    flushCatalogDefinition(catalog);
+    return flushSchema(catalog, cubeName);
+  }
+
+  /**
+   * Drops everything Mondrian has cached for the model's schema, members as well as cells, e.g. after the model's data
+   * was reloaded.
+   *
+   * @param catalog Catalog, i.e. the model's file
+   * @param cubeName Cube of the model
+   * @return the number of schemas flushed
+   */
+  public static int flushSchema(String catalog, String cubeName) {
+    int flushed = 0;
+    for (RolapSchema schema : getSchemas(catalog, cubeName)) {
+      CacheControl cacheControl = AggregationManager.instance().getCacheControl(schema.getInternalConnection(), null);
+      cacheControl.flushSchema(schema);
+      flushed++;
+    }
+    return flushed;
+  }
+
+  /**
+   * Drops what Mondrian has cached from a table of the model after it was loaded again: the cube's cells, and the
+   * members of the hierarchies read from the table, e.g. when it is a dimension table or the single table of a flat
+   * model. Everything else in the schema is kept.
+   *
+   * @param catalog Catalog, i.e. the model's file
+   * @param cubeName Cube of the model
+   * @param tableName Table name, with or without schema; null drops the cells only
+   * @return the number of cubes flushed
+   */
+  public static int flushCube(String catalog, String cubeName, String tableName) {
+    int flushed = 0;
+    for (RolapSchema schema : getSchemas(catalog, cubeName)) {
+      CacheControl cacheControl = AggregationManager.instance().getCacheControl(schema.getInternalConnection(), null);
+      for (Cube cube : schema.getCubes()) {
+        if (cube.getName().equals(cubeName)) {
+          if (tableName != null) {
+            flushMembers(cacheControl, schema.getSchemaReader(), cube, tableName);
+          }
+          cacheControl.flush(cacheControl.createMeasuresRegion(cube));
+          flushed++;
+        }
+      }
+    }
+    return flushed;
+  }
+
+  private static void flushMembers(CacheControl cacheControl, SchemaReader reader, Cube cube, String tableName) {
+    for (Dimension dimension : cube.getDimensions()) {
+      if (dimension.isMeasures()) {
+        continue;
+      }
+      for (Hierarchy hierarchy : dimension.getHierarchies()) {
+        if (!(hierarchy instanceof RolapHierarchy)
+            || !readsTable(((RolapHierarchy) hierarchy).getRelation(), tableName)) {
+          continue;
+        }
+        for (Member root : reader.getHierarchyRootMembers(hierarchy)) {
+          cacheControl.flush(cacheControl.createMemberSet(root, true));
+        }
+      }
+    }
+  }
+
+  static boolean readsTable(MondrianDef.RelationOrJoin relation, String tableName) {
+    if (relation instanceof MondrianDef.Table) {
+      MondrianDef.Table table = (MondrianDef.Table) relation;
+      return tableName.equalsIgnoreCase(table.name)
+          || (table.schema != null && tableName.equalsIgnoreCase(table.schema + "." + table.name)); //$NON-NLS-1$
+    }
+    if (relation instanceof MondrianDef.Join) {
+      MondrianDef.Join join = (MondrianDef.Join) relation;
+      return readsTable(join.left, tableName) || readsTable(join.right, tableName);
+    }
+    return false;
+  }
+
+  /**
+   * @return the schemas holding the cube whose connection reads the model's file, as catalog or as data source
+   */
+  private static List<RolapSchema> getSchemas(String catalog, String cubeName) {
+    List<RolapSchema> schemas = new ArrayList<RolapSchema>();
+    for (RolapSchema schema : RolapSchema.getRolapSchemas()) {
+      if (!isSchemaOfModel(schema.getInternalConnection().getConnectString(), catalog)) {
+        continue;
+      }
+      for (Cube cube : schema.getCubes()) {
+        if (cube.getName().equals(cubeName)) {
+          schemas.add(schema);
+          break;
+        }
+      }
+    }
+    return schemas;
+  }
+
+  static boolean isSchemaOfModel(String connectString, String catalog) {
+    if (connectString == null || catalog == null) {
+      return false;
+    }
+    Util.PropertyList properties = Util.parseConnectString(connectString);
+    return namesModel(properties.get(RolapConnectionProperties.Catalog.name()), catalog)
+        || namesModel(properties.get(RolapConnectionProperties.DataSource.name()), catalog);
+  }
+
+  private static boolean namesModel(String name, String catalog) {
+    if (name == null) {
+      return false;
+    }
+    if (isSameCatalog(name, catalog)) {
+      return true;
+    }
+    // the catalog may be given as a url, e.g. solution:/models/sales.xmi
+    int scheme = name.indexOf(":/"); //$NON-NLS-1$
+    return scheme > 1 && new File(name.substring(scheme + 1)).getName().equals(new File(catalog).getName());
+  }
+}
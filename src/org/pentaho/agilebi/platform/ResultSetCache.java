@@ -0,0 +1,382 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.platform;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.logging.LogChannel;
+import org.pentaho.di.core.logging.LogChannelInterface;
+
+/**
+ * Keeps the results of queries run against the Instaview datasources, so that pivoting back and forth in Analyzer or
+ * re-running a report preview does not go to the database again. Results are stored column by column in primitive
+ * arrays where the values allow it, see {@link CachedResult}.
+ * <p>
+ * Entries are keyed by datasource, SQL (with whitespace outside of literals collapsed), statement parameters and row
+ * limit. The least recently used ones are evicted when the cache grows beyond its budget. An entry is dropped when a
+ * statement written through the same datasource modifies one of the tables it reads, when the datasource is released,
+ * when {@link #invalidateTable(String, String)} is called for one of its tables, or when it gets too old.
+ * <p>
+ * The cache is off unless {@value #SIZE_PROPERTY} is set:
+ * <ul>
+ * <li>{@value #SIZE_PROPERTY}: memory budget in megabytes (default 0, off)</li>
+ * <li>{@value #MAX_AGE_PROPERTY}: seconds an entry is served for (default {@value #DEFAULT_MAX_AGE}, 0 for no limit)</li>
+ * </ul>
+ */
+public class ResultSetCache {
+
+  public static final String SIZE_PROPERTY = "KETTLE_AGILEBI_RESULT_CACHE_MB"; //$NON-NLS-1$
+
+  public static final String MAX_AGE_PROPERTY = "KETTLE_AGILEBI_RESULT_CACHE_MAX_AGE"; //$NON-NLS-1$
+
+  public static final int DEFAULT_MAX_AGE = 300;
+
+  /** the largest share of the budget a single result may take */
+  private static final int MAX_ENTRY_FRACTION = 4;
+
+  private static final Pattern SELECT = Pattern.compile("^\\s*(?:\\(\\s*)*(?:SELECT|WITH)\\b", //$NON-NLS-1$
+      Pattern.CASE_INSENSITIVE);
+
+  private static final Pattern FOR_UPDATE = Pattern.compile("\\bFOR\\s+UPDATE\\b", Pattern.CASE_INSENSITIVE); //$NON-NLS-1$
+
+  private static final Pattern WRITE_TARGET = Pattern.compile(
+      "^\\s*(?:INSERT\\s+INTO|UPDATE|DELETE\\s+FROM|MERGE\\s+INTO|TRUNCATE\\s+TABLE|(?:CREATE|DROP|ALTER)\\s+TABLE(?:\\s+IF\\s+(?:NOT\\s+)?EXISTS)?)" //$NON-NLS-1$
+          + "\\s+((?:\"[^\"]+\"|`[^`]+`|\\[[^\\]]+\\]|[\\w$#]+)(?:\\s*\\.\\s*(?:\"[^\"]+\"|`[^`]+`|\\[[^\\]]+\\]|[\\w$#]+))*)", //$NON-NLS-1$
+      Pattern.CASE_INSENSITIVE);
+
+  private static final Pattern IDENTIFIER = Pattern.compile("\"([^\"]+)\"|`([^`]+)`|\\[([^\\]]+)\\]|([A-Za-z_][\\w$#]*)"); //$NON-NLS-1$
+
+  private static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^']|'')*'"); //$NON-NLS-1$
+
+  private static LogChannelInterface log = new LogChannel(ResultSetCache.class.getSimpleName());
+
+  private static ResultSetCache instance;
+
+  private final long budget;
+
+  private final long maxAge;
+
+  /** guarded by this */
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+  /** guarded by this */
+  private long size;
+
+  /** guarded by this; bumped by every invalidation, so that results read before it are not stored after it */
+  private long generation;
+
+  private long hits;
+
+  private long misses;
+
+  /**
+   * @param budget Bytes the cache may use, 0 to turn it off
+   * @param maxAge Milliseconds an entry is served for, 0 for no limit
+   */
+  ResultSetCache(long budget, long maxAge) {
+    this.budget = budget;
+    this.maxAge = maxAge;
+  }
+
+  public static synchronized ResultSetCache getInstance() {
+    if (instance == null) {
+      instance = new ResultSetCache(Const.toLong(System.getProperty(SIZE_PROPERTY), 0L) * 1024L * 1024L,
+          Const.toLong(System.getProperty(MAX_AGE_PROPERTY), DEFAULT_MAX_AGE) * 1000L);
+    }
+    return instance;
+  }
+
+  public boolean isEnabled() {
+    return budget > 0;
+  }
+
+  /**
+   * @return whether the results of the statement may be cached
+   */
+  static boolean isCacheable(String sql) {
+    return sql != null && SELECT.matcher(sql).find() && !FOR_UPDATE.matcher(sql).find();
+  }
+
+  /**
+   * @return the cache key of a query
+   */
+  static String getKey(String datasource, String sql, Map<Integer, String> parameters, int maxRows) {
+    StringBuilder key = new StringBuilder(datasource).append('\u0000').append(normalize(sql));
+    key.append('\u0000').append(maxRows);
+    if (parameters != null) {
+      for (Map.Entry<Integer, String> parameter : parameters.entrySet()) {
+        key.append('\u0000').append(parameter.getKey()).append('=').append(parameter.getValue());
+      }
+    }
+    return key.toString();
+  }
+
+  /**
+   * @return the SQL with runs of whitespace outside of literals and quoted identifiers replaced by a single space
+   */
+  static String normalize(String sql) {
+    StringBuilder normalized = new StringBuilder(sql.length());
+    char quote = 0;
+    boolean space = false;
+    for (int i = 0; i < sql.length(); i++) {
+      char c = sql.charAt(i);
+      if (quote != 0) {
+        normalized.append(c);
+        if (c == quote) {
+          quote = 0;
+        }
+      } else if (Character.isWhitespace(c)) {
+        space = normalized.length() > 0;
+      } else {
+        if (space) {
+          normalized.append(' ');
+          space = false;
+        }
+        if (c == '\'' || c == '"' || c == '`') {
+          quote = c;
+        }
+        normalized.append(c);
+      }
+    }
+    return normalized.toString();
+  }
+
+  /**
+   * @return the upper case names, without schema and quotes, of everything in the statement that may be a table
+   */
+  static Set<String> getIdentifiers(String sql) {
+    Set<String> identifiers = new HashSet<String>();
+    Matcher matcher = IDENTIFIER.matcher(STRING_LITERAL.matcher(sql).replaceAll("''")); //$NON-NLS-1$
+    while (matcher.find()) {
+      identifiers.add(getName(matcher));
+    }
+    return identifiers;
+  }
+
+  /**
+   * @return the upper case name, without schema and quotes, of the table the statement modifies, or {@code null} if it
+   *         can't be told
+   */
+  static String getWriteTarget(String sql) {
+    Matcher matcher = WRITE_TARGET.matcher(sql);
+    if (!matcher.find()) {
+      return null;
+    }
+    return getTableName(matcher.group(1));
+  }
+
+  /**
+   * @return the upper case name, without schema and quotes, of a possibly qualified and quoted table name, or
+   *         {@code null} if it holds no name
+   */
+  static String getTableName(String qualifiedName) {
+    String table = null;
+    Matcher identifier = IDENTIFIER.matcher(qualifiedName);
+    while (identifier.find()) {
+      table = getName(identifier);
+    }
+    return table;
+  }
+
+  private static String getName(Matcher identifier) {
+    for (int group = 1; group <= identifier.groupCount(); group++) {
+      if (identifier.group(group) != null) {
+        return identifier.group(group).toUpperCase(Locale.ENGLISH);
+      }
+    }
+    return identifier.group().toUpperCase(Locale.ENGLISH);
+  }
+
+  /**
+   * @return the cached result of the query, or {@code null}
+   */
+  public synchronized CachedResult get(String key) {
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      misses++;
+      return null;
+    }
+    if (maxAge > 0 && System.currentTimeMillis() - entry.created > maxAge) {
+      remove(key);
+      misses++;
+      return null;
+    }
+    hits++;
+    return entry.result;
+  }
+
+  /**
+   * Wraps the result set of a query that missed the cache. Its rows are stored when they have all been read, unless
+   * there are too many or something was invalidated in the meantime.
+   */
+  ResultSet record(String key, String sql, ResultSet resultSet, Statement statement) throws SQLException {
+    long started;
+    synchronized (this) {
+      started = generation;
+    }
+    CachedResult.Builder builder = CachedResult.Builder.create(resultSet.getMetaData(), budget / MAX_ENTRY_FRACTION);
+    if (builder == null) {
+      return resultSet;
+    }
+    return builder.record(resultSet, statement, this, new Entry(key, sql, started));
+  }
+
+  /**
+   * Called by a recording result set once all of its rows have been read.
+   */
+  synchronized void put(Entry entry, CachedResult result) {
+    if (entry.generation != generation) {
+      return;
+    }
+    entry.result = result;
+    entry.created = System.currentTimeMillis();
+    remove(entry.key);
+    entries.put(entry.key, entry);
+    size += result.getSize();
+    Iterator<Entry> eldest = entries.values().iterator();
+    while (size > budget && eldest.hasNext()) {
+      Entry evicted = eldest.next();
+      eldest.remove();
+      size -= evicted.result.getSize();
+    }
+  }
+
+  /**
+   * Drops the results that read the given table.
+   *
+   * @param datasource Datasource key, see {@link InstaviewDatasourceService#invalidateTable(String, String)}
+   * @param table Table name, with or without schema, quoted or not
+   */
+  public void invalidateTable(String datasource, String table) {
+    String name = table == null ? null : getTableName(table);
+    if (name == null) {
+      invalidate(datasource);
+    } else {
+      invalidateName(datasource, name);
+    }
+  }
+
+  private synchronized void invalidateName(String datasource, String name) {
+    generation++;
+    String prefix = datasource + '\u0000';
+    Iterator<Entry> it = entries.values().iterator();
+    while (it.hasNext()) {
+      Entry entry = it.next();
+      if (entry.key.startsWith(prefix) && entry.getIdentifiers().contains(name)) {
+        it.remove();
+        size -= entry.result.getSize();
+      }
+    }
+  }
+
+  /**
+   * Drops the results of the datasource after the statement modified it.
+   */
+  void invalidateWrite(String datasource, String sql) {
+    String table = sql == null ? null : getWriteTarget(sql);
+    if (table == null) {
+      if (log.isDebug()) {
+        log.logDebug("Dropping cached results of " + datasource + " after " + sql); //$NON-NLS-1$ //$NON-NLS-2$
+      }
+      invalidate(datasource);
+    } else {
+      invalidateName(datasource, table);
+    }
+  }
+
+  /**
+   * Drops the results of the datasource.
+   */
+  public synchronized void invalidate(String datasource) {
+    generation++;
+    String prefix = datasource + '\u0000';
+    Iterator<Entry> it = entries.values().iterator();
+    while (it.hasNext()) {
+      Entry entry = it.next();
+      if (entry.key.startsWith(prefix)) {
+        it.remove();
+        size -= entry.result.getSize();
+      }
+    }
+  }
+
+  public synchronized void clear() {
+    generation++;
+    entries.clear();
+    size = 0;
+  }
+
+  private void remove(String key) {
+    Entry removed = entries.remove(key);
+    if (removed != null) {
+      size -= removed.result.getSize();
+    }
+  }
+
+  /**
+   * @return the estimated number of bytes held
+   */
+  public synchronized long getSize() {
+    return size;
+  }
+
+  public synchronized int getEntryCount() {
+    return entries.size();
+  }
+
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  static class Entry {
+    final String key;
+    final String sql;
+    final long generation;
+    CachedResult result;
+    long created;
+    private Set<String> identifiers;
+
+    Entry(String key, String sql, long generation) {
+      this.key = key;
+      this.sql = sql;
+      this.generation = generation;
+    }
+
+    Set<String> getIdentifiers() {
+      if (identifiers == null) {
+        identifiers = ResultSetCache.getIdentifiers(sql);
+      }
+      return identifiers;
+    }
+  }
+}
@@ -0,0 +1,174 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.platform;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.apache.commons.dbcp.ConnectionFactory;
+import org.apache.commons.dbcp.PoolableConnectionFactory;
+import org.apache.commons.pool.KeyedObjectPoolFactory;
+import org.apache.commons.pool.ObjectPool;
+import org.pentaho.di.core.database.DatabaseMeta;
+
+/**
+ * Validates pooled connections only when they may have gone stale: a connection that was returned to the pool less
+ * than {@code revalidateAfter} milliseconds ago is handed out without a round trip to the database. Older ones are
+ * checked with {@link Connection#isValid(int)}, or with a query that works on the connection's database if the driver
+ * does not support it.
+ */
+public class ValidatingConnectionFactory extends PoolableConnectionFactory {
+
+  private static final Map<String, String> VALIDATION_QUERIES = new HashMap<String, String>();
+
+  static {
+    VALIDATION_QUERIES.put("ORACLE", "SELECT 1 FROM DUAL"); //$NON-NLS-1$ //$NON-NLS-2$
+    VALIDATION_QUERIES.put("ORACLERDB", "SELECT 1 FROM DUAL"); //$NON-NLS-1$ //$NON-NLS-2$
+    VALIDATION_QUERIES.put("DB2", "SELECT 1 FROM SYSIBM.SYSDUMMY1"); //$NON-NLS-1$ //$NON-NLS-2$
+    VALIDATION_QUERIES.put("AS/400", "SELECT 1 FROM SYSIBM.SYSDUMMY1"); //$NON-NLS-1$ //$NON-NLS-2$
+    VALIDATION_QUERIES.put("DERBY", "VALUES 1"); //$NON-NLS-1$ //$NON-NLS-2$
+    VALIDATION_QUERIES.put("HYPERSONIC", "SELECT 1 FROM INFORMATION_SCHEMA.SYSTEM_USERS"); //$NON-NLS-1$ //$NON-NLS-2$
+    VALIDATION_QUERIES.put("FIREBIRD", "SELECT 1 FROM RDB$DATABASE"); //$NON-NLS-1$ //$NON-NLS-2$
+    VALIDATION_QUERIES.put("INTERBASE", "SELECT 1 FROM RDB$DATABASE"); //$NON-NLS-1$ //$NON-NLS-2$
+    VALIDATION_QUERIES.put("INFORMIX", "SELECT 1 FROM SYSTABLES WHERE TABID = 1"); //$NON-NLS-1$ //$NON-NLS-2$
+    VALIDATION_QUERIES.put("INGRES", "SELECT 1"); //$NON-NLS-1$ //$NON-NLS-2$
+    VALIDATION_QUERIES.put("SYBASEIQ", "SELECT 1"); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+
+  private static final String DEFAULT_VALIDATION_QUERY = "SELECT 1"; //$NON-NLS-1$
+
+  private final String validationQuery;
+
+  private final long revalidateAfter;
+
+  private final int validationTimeout;
+
+  private volatile boolean useIsValid = true;
+
+  /** when each pooled connection was last known to be good */
+  private final Map<Object, Long> lastValidated = Collections.synchronizedMap(new WeakHashMap<Object, Long>());
+
+  /**
+   * @param connectionFactory Opens the physical connections
+   * @param pool Pool to register with
+   * @param statementPoolFactory Creates the prepared statement pools, may be {@code null}
+   * @param validationQuery Query used when the driver does not support {@link Connection#isValid(int)}
+   * @param revalidateAfter Milliseconds a connection may sit idle before it is validated again
+   * @param validationTimeout Seconds a validation may take
+   */
+  public ValidatingConnectionFactory(ConnectionFactory connectionFactory, ObjectPool pool,
+      KeyedObjectPoolFactory statementPoolFactory, String validationQuery, long revalidateAfter, int validationTimeout) {
+    super(connectionFactory, pool, statementPoolFactory, null, false, true);
+    this.validationQuery = validationQuery;
+    this.revalidateAfter = revalidateAfter;
+    this.validationTimeout = validationTimeout;
+  }
+
+  /**
+   * @return a query that returns one row on the connection's database
+   */
+  public static String getValidationQuery(DatabaseMeta databaseMeta) {
+    String query = null;
+    if (databaseMeta != null && databaseMeta.getDatabaseInterface() != null) {
+      query = VALIDATION_QUERIES.get(databaseMeta.getDatabaseInterface().getPluginId());
+    }
+    return query == null ? DEFAULT_VALIDATION_QUERY : query;
+  }
+
+  @Override
+  public Object makeObject() throws Exception {
+    Object connection = super.makeObject();
+    lastValidated.put(connection, System.currentTimeMillis());
+    return connection;
+  }
+
+  @Override
+  public void passivateObject(Object obj) throws Exception {
+    super.passivateObject(obj);
+    lastValidated.put(obj, System.currentTimeMillis());
+  }
+
+  @Override
+  public void destroyObject(Object obj) throws Exception {
+    lastValidated.remove(obj);
+    super.destroyObject(obj);
+  }
+
+  @Override
+  public boolean validateObject(Object obj) {
+    if (!(obj instanceof Connection)) {
+      return false;
+    }
+    Long validated = lastValidated.get(obj);
+    if (validated != null && System.currentTimeMillis() - validated < revalidateAfter) {
+      try {
+        return !((Connection) obj).isClosed();
+      } catch (SQLException e) {
+        return false;
+      }
+    }
+    try {
+      validateConnection((Connection) obj);
+    } catch (Exception e) {
+      return false;
+    }
+    lastValidated.put(obj, System.currentTimeMillis());
+    return true;
+  }
+
+  @Override
+  public void validateConnection(Connection conn) throws SQLException {
+    if (conn.isClosed()) {
+      throw new SQLException("validateConnection: connection closed"); //$NON-NLS-1$
+    }
+    if (useIsValid) {
+      try {
+        if (!conn.isValid(validationTimeout)) {
+          throw new SQLException("validateConnection: connection is no longer valid"); //$NON-NLS-1$
+        }
+        return;
+      } catch (SQLFeatureNotSupportedException e) {
+        useIsValid = false;
+      } catch (AbstractMethodError e) {
+        // pre-JDBC 4 driver
+        useIsValid = false;
+      }
+    }
+    Statement statement = conn.createStatement();
+    try {
+      statement.setQueryTimeout(validationTimeout);
+      ResultSet rs = statement.executeQuery(validationQuery);
+      try {
+        if (!rs.next()) {
+          throw new SQLException("validationQuery didn't return a row"); //$NON-NLS-1$
+        }
+      } finally {
+        rs.close();
+      }
+    } finally {
+      statement.close();
+    }
+  }
+}
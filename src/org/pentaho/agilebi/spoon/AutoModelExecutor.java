@@ -0,0 +1,305 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.spoon;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.pentaho.agilebi.modeler.ModelerWorkspace;
+import org.pentaho.di.core.Const;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs interactive auto-modeling in the background on a small shared pool. Runs for the same workspace never
+ * overlap, since the auto-model strategies are not safe to run concurrently on one workspace; runs for different
+ * workspaces proceed in parallel. Requests are coalesced per workspace and kind: at most one run of each kind is
+ * queued, and a newer request replaces the queued one and cancels the running one of the same kind.
+ * <p>
+ * Batch modeling does not belong here, see {@link BulkModeler}, which runs on a pool of its own.
+ */
+public class AutoModelExecutor {
+
+  /**
+   * The model a run builds.
+   */
+  public enum Kind {
+    OLAP, RELATIONAL
+  }
+
+  /**
+   * How a run ended.
+   */
+  public enum Status {
+    COMPLETED,
+    FAILED,
+    /** cancelled through {@link Request#cancel()} or {@link AutoModelExecutor#cancel(ModelerWorkspace)} */
+    CANCELLED,
+    /** cancelled because a newer request for the same workspace and kind was submitted */
+    SUPERSEDED
+  }
+
+  /**
+   * The work itself. Cancelling a run interrupts its thread, but a task that has started is not stopped unless it
+   * checks {@link Thread#isInterrupted()}. {@link SpoonModelerWorkspaceHelper} checks between the modeling phases; the
+   * auto-model strategies themselves do not, so a phase that has started is finished before the run is reported as
+   * cancelled. The next run for the workspace does not start before it has finished.
+   */
+  public interface Task {
+    void run() throws Exception;
+  }
+
+  /**
+   * Receives progress notifications on the pool thread running the request.
+   */
+  public interface Listener {
+    void started(ModelerWorkspace workspace, Kind kind);
+
+    void finished(ModelerWorkspace workspace, Kind kind, Status status, Exception error);
+  }
+
+  /**
+   * System property that overrides the number of auto-modeling threads.
+   */
+  public static final String THREADS_PROPERTY = "KETTLE_AGILEBI_AUTOMODEL_THREADS"; //$NON-NLS-1$
+
+  public static final int DEFAULT_THREADS = 2;
+
+  private static Logger logger = LoggerFactory.getLogger(AutoModelExecutor.class);
+
+  private static AutoModelExecutor instance;
+
+  private final ExecutorService executor;
+
+  /** guarded by itself */
+  private final Map<ModelerWorkspace, Slot> slots = new IdentityHashMap<ModelerWorkspace, Slot>();
+
+  public AutoModelExecutor(int threads) {
+    executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "AgileBI auto-model " + count.incrementAndGet()); //$NON-NLS-1$
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  public static synchronized AutoModelExecutor getInstance() {
+    if (instance == null) {
+      instance = new AutoModelExecutor(Math.max(1, Const.toInt(System.getProperty(THREADS_PROPERTY), DEFAULT_THREADS)));
+    }
+    return instance;
+  }
+
+  /**
+   * Queues a run, replacing any run of the same kind already queued for the workspace and cancelling one of the same
+   * kind in progress. The run starts once no other run for the workspace is in progress.
+   *
+   * @param workspace Workspace being modeled
+   * @param kind Model being built
+   * @param task The work
+   * @param listener Notified when the run starts and finishes (optional)
+   * @return a handle to cancel the run
+   */
+  public Request submit(ModelerWorkspace workspace, Kind kind, Task task, Listener listener) {
+    Request request = new Request(workspace, kind, task, listener);
+    Request superseded = null;
+    synchronized (slots) {
+      Slot slot = slots.get(workspace);
+      if (slot == null) {
+        slot = new Slot();
+        slots.put(workspace, slot);
+      }
+      if (slot.running == null) {
+        slot.running = request;
+        executor.execute(request);
+      } else {
+        superseded = slot.pending[kind.ordinal()];
+        slot.pending[kind.ordinal()] = request;
+        if (slot.running.kind == kind) {
+          slot.running.cancel(Status.SUPERSEDED);
+        }
+      }
+    }
+    if (superseded != null) {
+      // never started, so it never gets to report
+      superseded.notifyFinished(Status.SUPERSEDED, null);
+    }
+    return request;
+  }
+
+  /**
+   * Runs background modeling work that belongs to no workspace, e.g. checking a modeled table against the database.
+   */
+  public void execute(Runnable work) {
+    executor.execute(work);
+  }
+
+  /**
+   * Cancels every queued or running request for the workspace, e.g. because it has been closed.
+   */
+  public void cancel(ModelerWorkspace workspace) {
+    List<Request> dropped = new ArrayList<Request>();
+    synchronized (slots) {
+      Slot slot = slots.get(workspace);
+      if (slot == null) {
+        return;
+      }
+      for (int i = 0; i < slot.pending.length; i++) {
+        if (slot.pending[i] != null) {
+          dropped.add(slot.pending[i]);
+          slot.pending[i] = null;
+        }
+      }
+      slot.running.cancel(Status.CANCELLED);
+    }
+    for (Request request : dropped) {
+      // never started, so they never get to report
+      request.notifyFinished(Status.CANCELLED, null);
+    }
+  }
+
+  /**
+   * @return {@code true} if a run of this kind is queued or in progress for the workspace
+   */
+  public boolean isActive(ModelerWorkspace workspace, Kind kind) {
+    synchronized (slots) {
+      Slot slot = slots.get(workspace);
+      return slot != null && (slot.running.kind == kind || slot.pending[kind.ordinal()] != null);
+    }
+  }
+
+  /**
+   * Starts the next queued request of the finished request's workspace, or drops the workspace if nothing is queued.
+   * Kinds take turns, starting with the one after the finished request's.
+   */
+  private void finished(Request request) {
+    synchronized (slots) {
+      Slot slot = slots.get(request.workspace);
+      slot.running = null;
+      int kinds = slot.pending.length;
+      for (int i = 1; i <= kinds; i++) {
+        int next = (request.kind.ordinal() + i) % kinds;
+        if (slot.pending[next] != null) {
+          slot.running = slot.pending[next];
+          slot.pending[next] = null;
+          executor.execute(slot.running);
+          return;
+        }
+      }
+      slots.remove(request.workspace);
+    }
+  }
+
+  /**
+   * The run in progress for a workspace and the runs queued behind it, one per kind.
+   */
+  private static class Slot {
+    Request running;
+    final Request[] pending = new Request[Kind.values().length];
+  }
+
+  /**
+   * A single queued or running auto-model run.
+   */
+  public class Request implements Runnable {
+    private final ModelerWorkspace workspace;
+    private final Kind kind;
+    private final Task task;
+    private final Listener listener;
+    private volatile Status cancelStatus;
+    private volatile Thread thread;
+
+    Request(ModelerWorkspace workspace, Kind kind, Task task, Listener listener) {
+      this.workspace = workspace;
+      this.kind = kind;
+      this.task = task;
+      this.listener = listener;
+    }
+
+    public void cancel() {
+      cancel(Status.CANCELLED);
+    }
+
+    public boolean isCancelled() {
+      return cancelStatus != null;
+    }
+
+    void cancel(Status status) {
+      if (cancelStatus == null) {
+        cancelStatus = status;
+      }
+      Thread running = thread;
+      if (running != null) {
+        running.interrupt();
+      }
+    }
+
+    public void run() {
+      Status status = Status.COMPLETED;
+      Exception error = null;
+      thread = Thread.currentThread();
+      try {
+        if (cancelStatus == null) {
+          if (listener != null) {
+            listener.started(workspace, kind);
+          }
+          long start = System.currentTimeMillis();
+          task.run();
+          if (logger.isDebugEnabled()) {
+            logger.debug("Auto-modeled " + kind + " in " + (System.currentTimeMillis() - start) + "ms"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+          }
+        }
+      } catch (Exception e) {
+        error = e;
+        status = Status.FAILED;
+      } finally {
+        thread = null;
+        // don't leak an interrupt into the next run on this pool thread
+        Thread.interrupted();
+      }
+      if (cancelStatus != null) {
+        status = cancelStatus;
+      }
+      if (status == Status.FAILED) {
+        logger.error("Auto-modeling failed", error); //$NON-NLS-1$
+      }
+      // release the slot first so that listeners see the run as no longer active
+      AutoModelExecutor.this.finished(this);
+      notifyFinished(status, error);
+    }
+
+    void notifyFinished(Status status, Exception error) {
+      if (listener != null) {
+        try {
+          listener.finished(workspace, kind, status, error);
+        } catch (RuntimeException e) {
+          logger.error("Error notifying auto-model listener", e); //$NON-NLS-1$
+        }
+      }
+    }
+  }
+}
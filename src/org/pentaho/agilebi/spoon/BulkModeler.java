@@ -0,0 +1,314 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.spoon;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.IOUtils;
+import org.pentaho.agilebi.modeler.IModelerWorkspaceHelper;
+import org.pentaho.agilebi.modeler.ModelerPerspective;
+import org.pentaho.agilebi.modeler.ModelerWorkspace;
+import org.pentaho.agilebi.modeler.geo.GeoContext;
+import org.pentaho.agilebi.modeler.util.ModelerWorkspaceUtil;
+import org.pentaho.agilebi.modeler.util.TableModelerSource;
+import org.pentaho.di.core.ProvidesDatabaseConnectionInformation;
+import org.pentaho.di.job.JobMeta;
+import org.pentaho.di.job.entry.JobEntryCopy;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.step.StepMeta;
+import org.pentaho.metadata.model.LogicalModel;
+import org.pentaho.metadata.model.concept.types.LocalizedString;
+import org.pentaho.metadata.registry.IMetadataRegistry;
+import org.pentaho.metadata.registry.RegistryFactory;
+import org.pentaho.metadata.util.MondrianModelExporter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Models a batch of tables in one go, typically every step or job entry of a transformation or job that writes to a
+ * database table. The domains are generated, auto-modeled and written as .xmi files (and optionally Mondrian schemas)
+ * on a bounded thread pool. Nothing in here touches the SWT display, so it can run headless.
+ */
+public class BulkModeler {
+
+  /**
+   * Receives a notification each time a model has been written or has failed.
+   */
+  public interface ProgressListener {
+    void modelCompleted(Result result, int completed, int total);
+  }
+
+  /**
+   * Outcome of modeling a single source.
+   */
+  public static class Result {
+    private final TableModelerSource source;
+    private final String fileName;
+    private final String schemaFileName;
+    private final long duration;
+    private final Exception error;
+
+    Result(TableModelerSource source, String fileName, String schemaFileName, long duration, Exception error) {
+      this.source = source;
+      this.fileName = fileName;
+      this.schemaFileName = schemaFileName;
+      this.duration = duration;
+      this.error = error;
+    }
+
+    public TableModelerSource getSource() {
+      return source;
+    }
+
+    /**
+     * @return the .xmi file the model was written to
+     */
+    public String getFileName() {
+      return fileName;
+    }
+
+    /**
+     * @return the Mondrian schema file written for the model, or {@code null} if none was exported
+     */
+    public String getSchemaFileName() {
+      return schemaFileName;
+    }
+
+    /**
+     * @return milliseconds spent generating, auto-modeling and writing the model
+     */
+    public long getDuration() {
+      return duration;
+    }
+
+    /**
+     * @return the reason modeling failed, or {@code null} if it succeeded
+     */
+    public Exception getError() {
+      return error;
+    }
+
+    public boolean isSuccess() {
+      return error == null;
+    }
+  }
+
+  public static final int DEFAULT_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+  private static Logger logger = LoggerFactory.getLogger(BulkModeler.class);
+
+  private final int threads;
+
+  private boolean exportMondrianSchema;
+
+  public BulkModeler() {
+    this(DEFAULT_THREADS);
+  }
+
+  public BulkModeler(int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("threads must be at least 1");
+    }
+    this.threads = threads;
+  }
+
+  /**
+   * @param exportMondrianSchema {@code true} to write the Mondrian schema of each model next to its .xmi file
+   */
+  public void setExportMondrianSchema(boolean exportMondrianSchema) {
+    this.exportMondrianSchema = exportMondrianSchema;
+  }
+
+  public boolean isExportMondrianSchema() {
+    return exportMondrianSchema;
+  }
+
+  /**
+   * Find every step of the transformation that provides database connection information with a table to model.
+   *
+   * @param transMeta Transformation to search
+   * @return a modeler source per step
+   */
+  public static List<KettleModelerSource> findSources(TransMeta transMeta) {
+    List<KettleModelerSource> sources = new ArrayList<KettleModelerSource>();
+    for (StepMeta stepMeta : transMeta.getSteps()) {
+      ProvidesDatabaseConnectionInformation connectionInfo = ModelerHelper.getDatabaseConnectionInformation(stepMeta.getStepMetaInterface());
+      if (connectionInfo != null && ModelerHelper.isValidConnectionInformation(connectionInfo.getDatabaseMeta(), connectionInfo.getTableName())) {
+        sources.add(ModelerHelper.getModelerSourceForStepMeta(connectionInfo, transMeta, stepMeta));
+      }
+    }
+    return sources;
+  }
+
+  /**
+   * Find every entry of the job that provides database connection information with a table to model.
+   *
+   * @param jobMeta Job to search
+   * @return a modeler source per job entry
+   */
+  public static List<KettleModelerSource> findSources(JobMeta jobMeta) {
+    List<KettleModelerSource> sources = new ArrayList<KettleModelerSource>();
+    for (JobEntryCopy entry : jobMeta.getJobCopies()) {
+      ProvidesDatabaseConnectionInformation connectionInfo = ModelerHelper.getDatabaseConnectionInformation(entry.getEntry());
+      if (connectionInfo != null && ModelerHelper.isValidConnectionInformation(connectionInfo.getDatabaseMeta(), connectionInfo.getTableName())) {
+        sources.add(ModelerHelper.getModelerSourceForJobEntry(connectionInfo, jobMeta, entry));
+      }
+    }
+    return sources;
+  }
+
+  /**
+   * Generate, auto-model and save a model for each source. Sources writing to the same table get distinct file names.
+   * Blocks until every model has been written or has failed; a failure does not stop the remaining models.
+   *
+   * @param sources Sources to model
+   * @param outputFolder Folder the .xmi files are written to
+   * @param listener Notified as each model completes (optional)
+   * @return a result per source, in completion order
+   * @throws InterruptedException if the calling thread is interrupted while waiting
+   */
+  public List<Result> modelAll(List<? extends TableModelerSource> sources, File outputFolder, ProgressListener listener) throws InterruptedException {
+    outputFolder.mkdirs();
+
+    ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, Math.max(1, sources.size())), new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "AgileBI bulk modeler " + count.incrementAndGet()); //$NON-NLS-1$
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    List<Result> results = new ArrayList<Result>();
+    try {
+      CompletionService<Result> completion = new ExecutorCompletionService<Result>(executor);
+      Set<String> fileNames = new HashSet<String>();
+      for (final TableModelerSource source : sources) {
+        final String fileName = createUniqueFileName(outputFolder, source.getTableName(), fileNames);
+        completion.submit(new Callable<Result>() {
+          public Result call() {
+            // geo contexts are mutable, so every model gets its own
+            return model(source, fileName, SpoonModelerWorkspaceHelper.initGeoContext());
+          }
+        });
+      }
+
+      for (int i = 0; i < sources.size(); i++) {
+        Result result;
+        try {
+          result = completion.take().get();
+        } catch (ExecutionException e) {
+          // model() never throws, this is only reached on errors such as OutOfMemoryError
+          throw new IllegalStateException(e.getCause());
+        }
+        results.add(result);
+        if (listener != null) {
+          listener.modelCompleted(result, i + 1, sources.size());
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    commitLineage(results);
+    return results;
+  }
+
+  protected Result model(TableModelerSource source, String fileName, GeoContext geoContext) {
+    long start = System.currentTimeMillis();
+    String schemaFileName = null;
+    try {
+      ModelerWorkspace model = new ModelerWorkspace(createWorkspaceHelper(geoContext), geoContext);
+      ModelerWorkspaceUtil.populateModelFromSource(model, source);
+      model.setModelName(source.getTableName());
+      model.setFileName(fileName);
+      model.getWorkspaceHelper().autoModelFlat(model);
+      model.getWorkspaceHelper().populateDomain(model);
+      ModelerWorkspaceUtil.saveWorkspace(model, fileName);
+      if (exportMondrianSchema) {
+        schemaFileName = fileName.substring(0, fileName.length() - ".xmi".length()) + ".mondrian.xml"; //$NON-NLS-1$ //$NON-NLS-2$
+        exportMondrianSchema(model, schemaFileName);
+      }
+      long duration = System.currentTimeMillis() - start;
+      logger.info("Modeled " + source.getTableName() + " in " + duration + "ms"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+      return new Result(source, fileName, schemaFileName, duration, null);
+    } catch (Exception e) {
+      logger.error("Error modeling " + source.getTableName(), e); //$NON-NLS-1$
+      return new Result(source, fileName, schemaFileName, System.currentTimeMillis() - start, e);
+    }
+  }
+
+  /**
+   * Creates the helper that auto-models each workspace. Override to use one that does not need Spoon.
+   */
+  protected IModelerWorkspaceHelper createWorkspaceHelper(GeoContext geoContext) {
+    return new SpoonModelerWorkspaceHelper(geoContext);
+  }
+
+  private void exportMondrianSchema(ModelerWorkspace model, String schemaFileName) throws Exception {
+    LogicalModel lModel = model.getLogicalModel(ModelerPerspective.ANALYSIS);
+    String mondrianSchema = new MondrianModelExporter(lModel, LocalizedString.DEFAULT_LOCALE).createMondrianModelXML();
+    OutputStream out = new FileOutputStream(schemaFileName);
+    try {
+      out.write(mondrianSchema.getBytes("UTF-8")); //$NON-NLS-1$
+    } finally {
+      IOUtils.closeQuietly(out);
+    }
+  }
+
+  private void commitLineage(List<Result> results) {
+    IMetadataRegistry registry = RegistryFactory.getInstance().getMetadataRegistry();
+    if (registry == null) {
+      return;
+    }
+    for (Result result : results) {
+      if (result.isSuccess() && result.getSource() instanceof KettleModelerSource) {
+        ((KettleModelerSource) result.getSource()).registerLineageMetadata(registry);
+      }
+    }
+    try {
+      registry.commit();
+    } catch (Exception e) {
+      logger.error("Could not commit metadata registry", e);
+    }
+  }
+
+  private static String createUniqueFileName(File outputFolder, String tableName, Set<String> used) {
+    String baseName = tableName.replaceAll("[\\\\/:*?\"<>|]", "_"); //$NON-NLS-1$ //$NON-NLS-2$
+    String name = baseName;
+    int idx = 1;
+    while (!used.add(name.toLowerCase())) {
+      name = baseName + "_" + (++idx); //$NON-NLS-1$
+    }
+    return new File(outputFolder, name + ".xmi").getPath(); //$NON-NLS-1$
+  }
+}
@@ -0,0 +1,39 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.spoon;
+
+import org.pentaho.agilebi.modeler.ModelerException;
+import org.pentaho.agilebi.modeler.util.TableModelerSource;
+import org.pentaho.di.core.database.DatabaseMeta;
+import org.pentaho.metadata.model.Domain;
+
+/**
+ * {@link TableModelerSource} that reads its table metadata through the shared {@link TableMetadataCache}. It
+ * serializes into the domain exactly like a plain {@link TableModelerSource}, so saved models are unaffected.
+ */
+public class CachedTableModelerSource extends TableModelerSource {
+
+  public CachedTableModelerSource(DatabaseMeta databaseMeta, String tableName, String schemaName) {
+    super(databaseMeta, tableName, schemaName);
+  }
+
+  @Override
+  public Domain generateDomain() throws ModelerException {
+    return TableMetadataCache.getInstance().generateDomain(getDatabaseMeta(), getSchemaName(), getTableName());
+  }
+}
@@ -0,0 +1,312 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.spoon;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.pentaho.agilebi.modeler.IModelerWorkspaceHelper;
+import org.pentaho.agilebi.modeler.ModelerMessagesHolder;
+import org.pentaho.agilebi.modeler.geo.GeoContext;
+import org.pentaho.agilebi.modeler.strategy.SimpleAutoModelStrategy;
+import org.pentaho.agilebi.modeler.util.ModelerWorkspaceHelper;
+import org.pentaho.agilebi.modeler.util.TableModelerSource;
+import org.pentaho.agilebi.spoon.publish.BiServerConnection;
+import org.pentaho.agilebi.spoon.publish.ModelServerPublish;
+import org.pentaho.agilebi.spoon.publish.PublisherHelper;
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.KettleEnvironment;
+import org.pentaho.di.core.database.DatabaseMeta;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.logging.LogChannel;
+import org.pentaho.di.core.logging.LogChannelInterface;
+import org.pentaho.di.job.JobMeta;
+import org.pentaho.di.shared.SharedObjectInterface;
+import org.pentaho.di.shared.SharedObjects;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.metadata.model.concept.types.LocalizedString;
+
+/**
+ * Command line entry point that models (and optionally publishes) tables without starting Spoon. Tables are given
+ * either directly as {@code connection:schema.table}, with the connection looked up in shared.xml, or indirectly as
+ * .ktr/.kjb files whose table output steps and job entries are modeled. Modeling runs on a {@link BulkModeler} pool
+ * and publishing on a pool of the same size sharing one HTTP client. The Mondrian schema of every model is written
+ * next to its .xmi file.
+ * <p>
+ * Usage: {@code HeadlessModeler [-output dir] [-threads n] [-shared shared.xml] [-server url -user user -password pwd
+ * [-overwrite]] spec...}
+ */
+public class HeadlessModeler {
+
+  private static LogChannelInterface log = new LogChannel(HeadlessModeler.class.getSimpleName());
+
+  private final List<TableModelerSource> sources = new ArrayList<TableModelerSource>();
+
+  private final List<DatabaseMeta> databases = new ArrayList<DatabaseMeta>();
+
+  private File outputFolder = new File("models"); //$NON-NLS-1$
+
+  private int threads = BulkModeler.DEFAULT_THREADS;
+
+  private BiServerConnection server;
+
+  private boolean overwrite;
+
+  static {
+    // normally set up by the Spoon plugin, the modeler cannot resolve its messages without it
+    ModelerMessagesHolder.setMessages(new SpoonModelerMessages());
+  }
+
+  /**
+   * Makes the connections of a shared objects file available to {@link #addTable(String, String, String)}.
+   *
+   * @param sharedObjectsFile shared.xml to read, or {@code null} for the default one
+   * @throws KettleException if the file cannot be read
+   */
+  public void loadSharedObjects(String sharedObjectsFile) throws KettleException {
+    SharedObjects sharedObjects = new SharedObjects(sharedObjectsFile);
+    for (SharedObjectInterface object : sharedObjects.getObjectsMap().values()) {
+      if (object instanceof DatabaseMeta) {
+        databases.add((DatabaseMeta) object);
+      }
+    }
+  }
+
+  /**
+   * Makes a connection available to {@link #addTable(String, String, String)}.
+   */
+  public void addDatabase(DatabaseMeta databaseMeta) {
+    databases.add(databaseMeta);
+  }
+
+  public void addTable(String connectionName, String schemaName, String tableName) throws KettleException {
+    DatabaseMeta databaseMeta = DatabaseMeta.findDatabase(databases, connectionName);
+    if (databaseMeta == null) {
+      throw new KettleException("Unknown connection: " + connectionName); //$NON-NLS-1$
+    }
+    sources.add(new CachedTableModelerSource(databaseMeta, tableName, schemaName));
+  }
+
+  /**
+   * Adds a table given as {@code connection:table} or {@code connection:schema.table}.
+   */
+  public void addTable(String spec) throws KettleException {
+    int colon = spec.indexOf(':');
+    if (colon <= 0 || colon == spec.length() - 1) {
+      throw new KettleException("Expected connection:schema.table but got " + spec); //$NON-NLS-1$
+    }
+    String connectionName = spec.substring(0, colon);
+    String table = spec.substring(colon + 1);
+    int dot = table.indexOf('.');
+    if (dot < 0) {
+      addTable(connectionName, null, table);
+    } else {
+      addTable(connectionName, table.substring(0, dot), table.substring(dot + 1));
+    }
+  }
+
+  /**
+   * Adds every table written by a transformation (.ktr) or job (.kjb). The file's own connections also become
+   * available to {@link #addTable(String)}.
+   */
+  public void addFile(String fileName) throws KettleException {
+    if (fileName.toLowerCase().endsWith(".kjb")) { //$NON-NLS-1$
+      JobMeta jobMeta = new JobMeta(fileName, null);
+      databases.addAll(jobMeta.getDatabases());
+      sources.addAll(BulkModeler.findSources(jobMeta));
+    } else {
+      TransMeta transMeta = new TransMeta(fileName);
+      databases.addAll(transMeta.getDatabases());
+      sources.addAll(BulkModeler.findSources(transMeta));
+    }
+  }
+
+  public void setOutputFolder(File outputFolder) {
+    this.outputFolder = outputFolder;
+  }
+
+  public void setThreads(int threads) {
+    this.threads = threads;
+  }
+
+  /**
+   * @param server BI server to publish the models to, or {@code null} to only write them to disk
+   */
+  public void setServer(BiServerConnection server) {
+    this.server = server;
+  }
+
+  public void setOverwrite(boolean overwrite) {
+    this.overwrite = overwrite;
+  }
+
+  public List<TableModelerSource> getSources() {
+    return sources;
+  }
+
+  /**
+   * Models every source added so far and, if a server is set, publishes the successful models.
+   *
+   * @return {@code true} if every model was written (and published)
+   */
+  public boolean run() throws InterruptedException {
+    long start = System.currentTimeMillis();
+    BulkModeler modeler = new BulkModeler(threads) {
+      @Override
+      protected IModelerWorkspaceHelper createWorkspaceHelper(GeoContext geoContext) {
+        // the Spoon helper needs SWT, this one does not
+        ModelerWorkspaceHelper helper = new ModelerWorkspaceHelper(LocalizedString.DEFAULT_LOCALE);
+        helper.setAutoModelStrategy(new SimpleAutoModelStrategy(LocalizedString.DEFAULT_LOCALE, geoContext));
+        return helper;
+      }
+    };
+    modeler.setExportMondrianSchema(true);
+    List<BulkModeler.Result> results = modeler.modelAll(sources, outputFolder, null);
+
+    boolean success = true;
+    for (BulkModeler.Result result : results) {
+      if (result.isSuccess()) {
+        log.logBasic("Modeled " + result.getSource().getTableName() + " to " + result.getFileName() + " in " //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+            + result.getDuration() + "ms"); //$NON-NLS-1$
+      } else {
+        log.logError("Failed to model " + result.getSource().getTableName(), result.getError()); //$NON-NLS-1$
+        success = false;
+      }
+    }
+    if (server != null) {
+      success &= publish(results);
+    }
+    log.logBasic("Processed " + results.size() + " table(s) in " + (System.currentTimeMillis() - start) + "ms"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+    return success;
+  }
+
+  private boolean publish(List<BulkModeler.Result> results) throws InterruptedException {
+    // the JDK keeps this many idle connections per host alive; let every publishing thread reuse one
+    if (System.getProperty("http.maxConnections") == null) { //$NON-NLS-1$
+      System.setProperty("http.maxConnections", Integer.toString(threads)); //$NON-NLS-1$
+    }
+    final ModelServerPublish publisher = new ModelServerPublish(server);
+
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+    final List<BulkModeler.Result> published = new ArrayList<BulkModeler.Result>();
+    try {
+      for (final BulkModeler.Result result : results) {
+        if (!result.isSuccess()) {
+          continue;
+        }
+        published.add(result);
+        futures.add(executor.submit(new Callable<Integer>() {
+          public Integer call() throws Exception {
+            long start = System.currentTimeMillis();
+            TableModelerSource source = result.getSource();
+            String datasourceName = PublisherHelper.getBiServerCompatibleDatabaseName(source.getDatabaseMeta().getName());
+            int status = publisher.publishModel(new File(result.getSchemaFileName()), new File(result.getFileName()),
+                source.getTableName(), datasourceName, overwrite);
+            log.logBasic("Published " + source.getTableName() + " in " + (System.currentTimeMillis() - start) + "ms"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+            return status;
+          }
+        }));
+      }
+
+      boolean success = true;
+      for (int i = 0; i < futures.size(); i++) {
+        String tableName = published.get(i).getSource().getTableName();
+        try {
+          int status = futures.get(i).get();
+          if (status != ModelServerPublish.PUBLISH_SUCCESS) {
+            log.logError("Failed to publish " + tableName + ", status " + status); //$NON-NLS-1$ //$NON-NLS-2$
+            success = false;
+          }
+        } catch (ExecutionException e) {
+          log.logError("Failed to publish " + tableName, e.getCause()); //$NON-NLS-1$
+          success = false;
+        }
+      }
+      return success;
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    KettleEnvironment.init();
+
+    HeadlessModeler modeler = new HeadlessModeler();
+    String sharedObjectsFile = null;
+    BiServerConnection server = null;
+    List<String> specs = new ArrayList<String>();
+    try {
+      for (int i = 0; i < args.length; i++) {
+        String arg = args[i];
+        if ("-output".equals(arg)) { //$NON-NLS-1$
+          modeler.setOutputFolder(new File(args[++i]));
+        } else if ("-threads".equals(arg)) { //$NON-NLS-1$
+          modeler.setThreads(Math.max(1, Const.toInt(args[++i], BulkModeler.DEFAULT_THREADS)));
+        } else if ("-shared".equals(arg)) { //$NON-NLS-1$
+          sharedObjectsFile = args[++i];
+        } else if ("-server".equals(arg)) { //$NON-NLS-1$
+          server = server == null ? new BiServerConnection() : server;
+          String url = args[++i];
+          server.setUrl(url.endsWith("/") ? url : url + "/"); //$NON-NLS-1$ //$NON-NLS-2$
+        } else if ("-user".equals(arg)) { //$NON-NLS-1$
+          server = server == null ? new BiServerConnection() : server;
+          server.setUserId(args[++i]);
+        } else if ("-password".equals(arg)) { //$NON-NLS-1$
+          server = server == null ? new BiServerConnection() : server;
+          server.setPassword(args[++i]);
+        } else if ("-overwrite".equals(arg)) { //$NON-NLS-1$
+          modeler.setOverwrite(true);
+        } else {
+          specs.add(arg);
+        }
+      }
+    } catch (ArrayIndexOutOfBoundsException e) {
+      specs.clear();
+    }
+    if (specs.isEmpty() || (server != null && Const.isEmpty(server.getUrl()))) {
+      log.logError("Usage: HeadlessModeler [-output dir] [-threads n] [-shared shared.xml]" //$NON-NLS-1$
+          + " [-server url -user user -password password [-overwrite]] (connection:schema.table | file.ktr | file.kjb)..."); //$NON-NLS-1$
+      System.exit(2);
+    }
+
+    modeler.loadSharedObjects(sharedObjectsFile);
+    // load the files first so that their connections can be referenced by table specs
+    for (String spec : specs) {
+      String lower = spec.toLowerCase();
+      if (lower.endsWith(".ktr") || lower.endsWith(".kjb")) { //$NON-NLS-1$ //$NON-NLS-2$
+        modeler.addFile(spec);
+      }
+    }
+    for (String spec : specs) {
+      String lower = spec.toLowerCase();
+      if (!lower.endsWith(".ktr") && !lower.endsWith(".kjb")) { //$NON-NLS-1$ //$NON-NLS-2$
+        modeler.addTable(spec);
+      }
+    }
+    modeler.setServer(server);
+
+    System.exit(modeler.run() ? 0 : 1);
+  }
+}
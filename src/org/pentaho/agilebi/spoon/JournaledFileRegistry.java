@@ -0,0 +1,577 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.spoon;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.pentaho.metadata.registry.Entity;
+import org.pentaho.metadata.registry.Link;
+import org.pentaho.metadata.registry.OrderedFileRegistry;
+import org.pentaho.metadata.registry.Verb;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An {@link OrderedFileRegistry} that does not rewrite the whole registry file on every commit. Entities and links
+ * added or removed since the last commit are appended to a journal next to the registry file by a background writer,
+ * which coalesces commits arriving within {@link #COMMIT_DELAY} milliseconds into a single append. Entities handed
+ * out by {@link #getEntity(String, String)} are journaled again on commit if their title or attributes changed. Once
+ * the journal holds more than {@link #COMPACT_THRESHOLD} records it is folded back into the registry file.
+ * <p>
+ * {@link #init()} returns immediately and loads the registry on a background thread; any access before loading has
+ * finished waits for it. If loading fails the registry file is never compacted, so it cannot be overwritten with a
+ * partial registry.
+ */
+public class JournaledFileRegistry extends OrderedFileRegistry {
+
+  public static final String JOURNAL_EXTENSION = ".journal"; //$NON-NLS-1$
+
+  public static final String BACKUP_EXTENSION = ".bak"; //$NON-NLS-1$
+
+  public static final long COMMIT_DELAY = 500;
+
+  public static final int COMPACT_THRESHOLD = 5000;
+
+  private static final String ENTITY_RECORD = "E"; //$NON-NLS-1$
+
+  private static final String LINK_RECORD = "L"; //$NON-NLS-1$
+
+  private static final String REMOVE_ENTITY_RECORD = "RE"; //$NON-NLS-1$
+
+  private static final String REMOVE_LINK_RECORD = "RL"; //$NON-NLS-1$
+
+  private static Logger logger = LoggerFactory.getLogger(JournaledFileRegistry.class);
+
+  private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "AgileBI registry writer"); //$NON-NLS-1$
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  private final Runnable flushTask = new Runnable() {
+    public void run() {
+      flushJournal();
+    }
+  };
+
+  private final Object journalLock = new Object();
+
+  private final LineageIndex lineageIndex = new LineageIndex();
+
+  private String filePath;
+
+  /** records added since the last commit */
+  private List<String> pending = new ArrayList<String>();
+
+  /**
+   * entities added or handed out since the last commit, with their record at that time ({@code null} if added), so
+   * that changes made to them afterwards are journaled on commit
+   */
+  private Map<Entity, String> touched = new IdentityHashMap<Entity, String>();
+
+  /** records committed but not yet written to the journal */
+  private List<String> committed = new ArrayList<String>();
+
+  private boolean flushScheduled;
+
+  private boolean loaded;
+
+  private boolean loading;
+
+  /** guarded by journalLock once loading has finished */
+  private int journalRecords;
+
+  /** registries still in use, flushed by a single shutdown hook */
+  private static final Set<JournaledFileRegistry> instances = Collections.newSetFromMap(new WeakHashMap<JournaledFileRegistry, Boolean>());
+
+  static {
+    Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+      public void run() {
+        List<JournaledFileRegistry> registries;
+        synchronized (instances) {
+          registries = new ArrayList<JournaledFileRegistry>(instances);
+        }
+        for (JournaledFileRegistry registry : registries) {
+          try {
+            registry.commit();
+            registry.flushJournal();
+          } catch (Exception e) {
+            logger.error("Could not flush metadata registry journal", e); //$NON-NLS-1$
+          }
+        }
+      }
+    }, "AgileBI registry shutdown")); //$NON-NLS-1$
+  }
+
+  public JournaledFileRegistry() {
+    synchronized (instances) {
+      instances.add(this);
+    }
+  }
+
+  @Override
+  public void setFilePath(String filePath) {
+    super.setFilePath(filePath);
+    this.filePath = filePath;
+  }
+
+  /**
+   * Starts loading the registry and its journal in the background.
+   */
+  @Override
+  public void init() throws Exception {
+    writer.execute(new Runnable() {
+      public void run() {
+        ensureLoaded();
+      }
+    });
+  }
+
+  /**
+   * Loads the registry unless that has already succeeded. A failed load leaves the registry unloaded, so the next
+   * access tries again and the registry file is not compacted in the meantime.
+   */
+  private synchronized void ensureLoaded() {
+    if (loaded || loading) {
+      return;
+    }
+    long start = System.currentTimeMillis();
+    loading = true;
+    try {
+      super.init();
+      loaded = true;
+    } catch (Exception e) {
+      logger.error("Could not load metadata registry " + filePath, e); //$NON-NLS-1$
+      return;
+    } finally {
+      loading = false;
+    }
+    rebuildLineageIndex();
+    if (journalRecords > COMPACT_THRESHOLD) {
+      writer.execute(new Runnable() {
+        public void run() {
+          compact();
+        }
+      });
+    }
+    logger.info("Loaded metadata registry in " + (System.currentTimeMillis() - start) + "ms"); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+
+  @Override
+  protected void load() throws Exception {
+    File registryFile = new File(filePath);
+    File backupFile = getBackupFile();
+    if (!registryFile.exists() && backupFile.exists()) {
+      // a compaction was interrupted between moving the registry file aside and moving the snapshot in
+      logger.warn("Restoring metadata registry " + filePath + " from " + backupFile); //$NON-NLS-1$ //$NON-NLS-2$
+      if (!backupFile.renameTo(registryFile)) {
+        throw new IOException("Could not restore " + registryFile + " from " + backupFile); //$NON-NLS-1$ //$NON-NLS-2$
+      }
+    }
+    super.load();
+    journalRecords = replayJournal();
+  }
+
+  private void rebuildLineageIndex() {
+    lineageIndex.clear();
+    for (Link link : super.getLinks()) {
+      lineageIndex.addLink(link);
+    }
+  }
+
+  @Override
+  public synchronized void addEntity(Entity entity) {
+    ensureLoaded();
+    super.addEntity(entity);
+    if (!loading) {
+      touched.put(entity, null);
+    }
+  }
+
+  @Override
+  public synchronized void removeEntity(Entity entity) {
+    ensureLoaded();
+    super.removeEntity(entity);
+    if (!loading) {
+      touched.remove(entity);
+      pending.add(toRecord(REMOVE_ENTITY_RECORD, entity.getId(), entity.getTypeId()));
+    }
+  }
+
+  @Override
+  public synchronized void addLink(Link link) {
+    ensureLoaded();
+    super.addLink(link);
+    if (!loading) {
+      lineageIndex.addLink(link);
+      pending.add(toRecord(LINK_RECORD, link.getSubjectId(), link.getSubjectTypeId(), link.getVerbId(),
+          link.getObjectId(), link.getObjectTypeId()));
+    }
+  }
+
+  @Override
+  public synchronized void removeLink(Link link) {
+    ensureLoaded();
+    super.removeLink(link);
+    if (!loading) {
+      rebuildLineageIndex();
+      pending.add(toRecord(REMOVE_LINK_RECORD, link.getSubjectId(), link.getSubjectTypeId(), link.getVerbId(),
+          link.getObjectId(), link.getObjectTypeId()));
+    }
+  }
+
+  /**
+   * Returns the entity; changes made to it before the next commit are journaled by that commit.
+   */
+  @Override
+  public synchronized Entity getEntity(String id, String typeId) {
+    ensureLoaded();
+    Entity entity = super.getEntity(id, typeId);
+    if (entity != null && !touched.containsKey(entity)) {
+      touched.put(entity, toEntityRecord(entity));
+    }
+    return entity;
+  }
+
+  /**
+   * @return a read-only view of the links, use {@link #removeLink(Link)} so that removals are journaled
+   */
+  @Override
+  public synchronized List<Link> getLinks() {
+    ensureLoaded();
+    return Collections.unmodifiableList(super.getLinks());
+  }
+
+  /**
+   * @return an index over the links of this registry, kept up to date as links are added
+   */
+  public synchronized LineageIndex getLineageIndex() {
+    ensureLoaded();
+    return lineageIndex;
+  }
+
+  /**
+   * Hands the changes made since the last commit to the background writer and returns immediately.
+   */
+  @Override
+  public void commit() throws Exception {
+    synchronized (this) {
+      for (Iterator<Map.Entry<Entity, String>> i = touched.entrySet().iterator(); i.hasNext();) {
+        Map.Entry<Entity, String> entry = i.next();
+        String record = toEntityRecord(entry.getKey());
+        if (!record.equals(entry.getValue())) {
+          pending.add(record);
+        }
+        i.remove();
+      }
+      if (pending.isEmpty()) {
+        return;
+      }
+      committed.addAll(pending);
+      pending.clear();
+      if (flushScheduled) {
+        return;
+      }
+      flushScheduled = true;
+    }
+    writer.schedule(flushTask, COMMIT_DELAY, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Writes committed changes to the journal and waits for the write to finish.
+   */
+  public void flush() throws Exception {
+    writer.submit(flushTask).get();
+  }
+
+  /**
+   * Folds the journal into the registry file and waits for the write to finish.
+   */
+  public void compactNow() throws Exception {
+    writer.submit(new Runnable() {
+      public void run() {
+        compact();
+      }
+    }).get();
+  }
+
+  private void flushJournal() {
+    synchronized (journalLock) {
+      List<String> records;
+      synchronized (this) {
+        records = committed;
+        committed = new ArrayList<String>();
+        flushScheduled = false;
+      }
+      if (records.isEmpty()) {
+        return;
+      }
+      appendToJournal(records);
+      journalRecords += records.size();
+      if (journalRecords > COMPACT_THRESHOLD) {
+        compact();
+      }
+    }
+  }
+
+  private void appendToJournal(List<String> records) {
+    FileOutputStream out = null;
+    try {
+      out = new FileOutputStream(getJournalFile(), true);
+      Writer journal = new OutputStreamWriter(out, "UTF-8"); //$NON-NLS-1$
+      for (String record : records) {
+        journal.write(record);
+        journal.write('\n');
+      }
+      journal.flush();
+      out.getFD().sync();
+    } catch (IOException e) {
+      logger.error("Could not write metadata registry journal", e); //$NON-NLS-1$
+    } finally {
+      IOUtils.closeQuietly(out);
+    }
+  }
+
+  private void compact() {
+    synchronized (journalLock) {
+      compactJournal();
+    }
+  }
+
+  private void compactJournal() {
+    long start = System.currentTimeMillis();
+    File registryFile = new File(filePath);
+    File tempFile = new File(filePath + ".tmp"); //$NON-NLS-1$
+    synchronized (this) {
+      ensureLoaded();
+      if (!loaded) {
+        // writing now would replace the registry file with whatever little is in memory
+        logger.warn("Not compacting metadata registry " + filePath + " because it could not be loaded"); //$NON-NLS-1$ //$NON-NLS-2$
+        return;
+      }
+      try {
+        super.setFilePath(tempFile.getPath());
+        super.commit();
+      } catch (Exception e) {
+        logger.error("Could not compact metadata registry", e); //$NON-NLS-1$
+        return;
+      } finally {
+        super.setFilePath(filePath);
+      }
+      // keep the old registry file until the snapshot has taken its place, load() falls back to it
+      File backupFile = getBackupFile();
+      backupFile.delete();
+      if (registryFile.exists() && !registryFile.renameTo(backupFile)) {
+        logger.error("Could not move " + registryFile + " to " + backupFile); //$NON-NLS-1$ //$NON-NLS-2$
+        tempFile.delete();
+        return;
+      }
+      if (!tempFile.renameTo(registryFile)) {
+        logger.error("Could not replace " + registryFile + " with " + tempFile); //$NON-NLS-1$ //$NON-NLS-2$
+        backupFile.renameTo(registryFile);
+        tempFile.delete();
+        return;
+      }
+      // everything in memory is in the registry file now
+      pending.clear();
+      committed.clear();
+      touched.clear();
+      getJournalFile().delete();
+      backupFile.delete();
+    }
+    journalRecords = 0;
+    logger.info("Compacted metadata registry in " + (System.currentTimeMillis() - start) + "ms"); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+
+  private int replayJournal() throws IOException {
+    File journal = getJournalFile();
+    if (!journal.exists()) {
+      return 0;
+    }
+    Map<String, Verb> verbs = getVerbs();
+    int count = 0;
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journal), "UTF-8")); //$NON-NLS-1$
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] fields = fromRecord(line);
+        if (ENTITY_RECORD.equals(fields[0]) && fields.length >= 4 && fields.length % 2 == 0) {
+          Entity entity = new Entity(fields[1], fields[2], fields[3]);
+          for (int i = 4; i < fields.length; i += 2) {
+            entity.setAttribute(fields[i], fields[i + 1]);
+          }
+          super.addEntity(entity);
+        } else if (LINK_RECORD.equals(fields[0]) && fields.length == 6 && verbs.containsKey(fields[3])) {
+          Entity subject = findOrCreateEntity(fields[1], fields[2]);
+          Entity object = findOrCreateEntity(fields[4], fields[5]);
+          super.addLink(new Link(subject, verbs.get(fields[3]), object));
+        } else if (REMOVE_ENTITY_RECORD.equals(fields[0]) && fields.length == 3) {
+          Entity entity = super.getEntity(fields[1], fields[2]);
+          if (entity != null) {
+            super.removeEntity(entity);
+          }
+        } else if (REMOVE_LINK_RECORD.equals(fields[0]) && fields.length == 6) {
+          Link link = findLink(fields[1], fields[2], fields[3], fields[4], fields[5]);
+          if (link != null) {
+            super.removeLink(link);
+          }
+        } else {
+          // a torn write at the end of the journal, or a verb this version does not know
+          logger.warn("Skipping metadata registry journal record: " + line); //$NON-NLS-1$
+          continue;
+        }
+        count++;
+      }
+    } finally {
+      IOUtils.closeQuietly(reader);
+    }
+    return count;
+  }
+
+  private Entity findOrCreateEntity(String id, String typeId) {
+    Entity entity = super.getEntity(id, typeId);
+    return entity != null ? entity : new Entity(id, id, typeId);
+  }
+
+  private Link findLink(String subjectId, String subjectTypeId, String verbId, String objectId, String objectTypeId) {
+    for (Link link : super.getLinks()) {
+      if (link.getSubjectId().equals(subjectId) && link.getSubjectTypeId().equals(subjectTypeId)
+          && link.getVerbId().equals(verbId) && link.getObjectId().equals(objectId)
+          && link.getObjectTypeId().equals(objectTypeId)) {
+        return link;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return an entity record holding the entity's title and attributes, the attributes as key/value field pairs
+   */
+  private static String toEntityRecord(Entity entity) {
+    List<String> fields = new ArrayList<String>();
+    fields.add(ENTITY_RECORD);
+    fields.add(entity.getId());
+    fields.add(entity.getTitle());
+    fields.add(entity.getTypeId());
+    Map<String, String> attributes = entity.getAttributes();
+    if (attributes != null) {
+      for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+        fields.add(attribute.getKey());
+        fields.add(attribute.getValue());
+      }
+    }
+    return toRecord(fields.toArray(new String[fields.size()]));
+  }
+
+  private File getJournalFile() {
+    return new File(filePath + JOURNAL_EXTENSION);
+  }
+
+  private File getBackupFile() {
+    return new File(filePath + BACKUP_EXTENSION);
+  }
+
+  private static Map<String, Verb> getVerbs() {
+    Map<String, Verb> verbs = new HashMap<String, Verb>();
+    for (Field field : Verb.class.getFields()) {
+      if (Modifier.isStatic(field.getModifiers()) && field.getType() == Verb.class) {
+        try {
+          Verb verb = (Verb) field.get(null);
+          verbs.put(verb.getId(), verb);
+        } catch (IllegalAccessException e) {
+          // public field, cannot happen
+        }
+      }
+    }
+    return verbs;
+  }
+
+  static String toRecord(String... fields) {
+    StringBuilder record = new StringBuilder();
+    for (int i = 0; i < fields.length; i++) {
+      if (i > 0) {
+        record.append('\t');
+      }
+      String field = fields[i] == null ? "" : fields[i]; //$NON-NLS-1$
+      for (int j = 0; j < field.length(); j++) {
+        char c = field.charAt(j);
+        switch (c) {
+          case '\\':
+            record.append("\\\\"); //$NON-NLS-1$
+            break;
+          case '\t':
+            record.append("\\t"); //$NON-NLS-1$
+            break;
+          case '\n':
+            record.append("\\n"); //$NON-NLS-1$
+            break;
+          case '\r':
+            record.append("\\r"); //$NON-NLS-1$
+            break;
+          default:
+            record.append(c);
+        }
+      }
+    }
+    return record.toString();
+  }
+
+  static String[] fromRecord(String record) {
+    List<String> fields = new ArrayList<String>();
+    StringBuilder field = new StringBuilder();
+    for (int i = 0; i < record.length(); i++) {
+      char c = record.charAt(i);
+      if (c == '\t') {
+        fields.add(field.toString());
+        field.setLength(0);
+      } else if (c == '\\' && i + 1 < record.length()) {
+        char next = record.charAt(++i);
+        field.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+      } else {
+        field.append(c);
+      }
+    }
+    fields.add(field.toString());
+    return fields.toArray(new String[fields.size()]);
+  }
+}
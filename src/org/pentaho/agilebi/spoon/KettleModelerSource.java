@@ -18,7 +18,6 @@
 package org.pentaho.agilebi.spoon;
 
 import org.pentaho.agilebi.modeler.ModelerException;
-import org.pentaho.agilebi.modeler.util.ModelerSourceUtil;
 import org.pentaho.agilebi.modeler.util.TableModelerSource;
 import org.pentaho.di.core.Const;
 import org.pentaho.di.core.database.DatabaseMeta;
@@ -120,19 +119,29 @@ public class KettleModelerSource extends TableModelerSource {
 
   /**
    * Generates a {@link Domain} from the database meta, schema name, and table name. It additionally sets "SUPPORTS_OLAP"
-   * to {@code true} for all models.
+   * to {@code true} for all models. The table metadata is read through the {@link TableMetadataCache}.
    *
    * @return a domain that is backed by the database meta, schema name, and table name
    * @throws ModelerException if we cannot generate the domain
    */
   public Domain generateDomain() throws ModelerException {
-    Domain d = ModelerSourceUtil.generateDomain(getDatabaseMeta(), getSchemaName(), getTableName());
+    Domain d = createDomain();
     for(LogicalModel lModel : d.getLogicalModels()) {
       lModel.setProperty("SUPPORTS_OLAP", Boolean.TRUE.toString() );
     }
     return d;
   }
 
+  /**
+   * Creates the domain describing the physical table before any model properties are applied.
+   *
+   * @return a domain backed by the database meta, schema name, and table name
+   * @throws ModelerException if we cannot generate the domain
+   */
+  protected Domain createDomain() throws ModelerException {
+    return TableMetadataCache.getInstance().generateDomain(getDatabaseMeta(), getSchemaName(), getTableName());
+  }
+
   /**
    * Initialize the first model in the domain with our configuration.
    *
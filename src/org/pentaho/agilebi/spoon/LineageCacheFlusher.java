@@ -0,0 +1,122 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.spoon;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.pentaho.agilebi.platform.InstaviewDatasourceService;
+import org.pentaho.agilebi.platform.MondrianCacheFlusher;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.extension.ExtensionPoint;
+import org.pentaho.di.core.extension.ExtensionPointInterface;
+import org.pentaho.di.core.logging.LogChannelInterface;
+import org.pentaho.di.repository.Repository;
+import org.pentaho.di.trans.Trans;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.metadata.registry.Entity;
+import org.pentaho.metadata.registry.IMetadataRegistry;
+import org.pentaho.metadata.registry.RegistryFactory;
+import org.pentaho.metadata.registry.Type;
+import org.pentaho.metadata.registry.util.RegistryUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * When a transformation finishes, flushes the cached data of the models built on the tables it populates, according
+ * to the lineage recorded by {@link KettleModelerSource#registerLineageMetadata(IMetadataRegistry)} and
+ * {@link ModelerHelper#registerModelLineage(org.pentaho.agilebi.modeler.ModelerWorkspace)}: the cells Mondrian has
+ * cached for their cubes, the members of the hierarchies read from the tables and the query results cached for the
+ * tables. Every other model keeps its caches.
+ * <p>
+ * Set {@value #ENABLED_PROPERTY}=N to turn this off.
+ */
+@ExtensionPoint(id = "AgileBiLineageCacheFlush", extensionPointId = "TransformationFinish",
+    description = "Flushes the Agile BI caches of the models built on the tables a transformation populates")
+public class LineageCacheFlusher implements ExtensionPointInterface {
+
+  public static final String ENABLED_PROPERTY = "KETTLE_AGILEBI_LINEAGE_CACHE_FLUSH"; //$NON-NLS-1$
+
+  private static Logger logger = LoggerFactory.getLogger(LineageCacheFlusher.class);
+
+  private static final RegistryUtil UTIL = new RegistryUtil();
+
+  /**
+   * A model using a table populated by the transformation.
+   */
+  static class Target {
+    final String tableName;
+    final String modelFile;
+    final String cubeName;
+
+    Target(String tableName, String modelFile, String cubeName) {
+      this.tableName = tableName;
+      this.modelFile = modelFile;
+      this.cubeName = cubeName;
+    }
+  }
+
+  public void callExtensionPoint(LogChannelInterface log, Object object) throws KettleException {
+    if ("N".equalsIgnoreCase(System.getProperty(ENABLED_PROPERTY)) || !(object instanceof Trans)) { //$NON-NLS-1$
+      return;
+    }
+    TransMeta transMeta = ((Trans) object).getTransMeta();
+    if (transMeta == null || transMeta.getFilename() == null) {
+      return;
+    }
+    try {
+      IMetadataRegistry registry = RegistryFactory.getInstance().getMetadataRegistry();
+      if (registry == null) {
+        return;
+      }
+      Repository repository = transMeta.getRepository();
+      String transId = UTIL.generateCompositeId(repository == null ? null : repository.getName(), transMeta.getFilename());
+      for (Target target : findTargets(registry, transId)) {
+        InstaviewDatasourceService.invalidateTable(target.modelFile, target.tableName);
+        int flushed = MondrianCacheFlusher.flushCube(target.modelFile, target.cubeName, target.tableName);
+        logger.debug("Flushed " + flushed + " cached cube(s) of " + target.modelFile + " after " + transMeta.getName() //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+            + " populated " + target.tableName); //$NON-NLS-1$
+      }
+    } catch (Exception e) {
+      logger.warn("Could not flush the caches of the models populated by " + transMeta.getName(), e); //$NON-NLS-1$
+    }
+  }
+
+  /**
+   * @param transId Registry id of the transformation
+   * @return the models built on the tables the transformation populates
+   */
+  static List<Target> findTargets(IMetadataRegistry registry, String transId) {
+    List<Target> targets = new ArrayList<Target>();
+    LineageIndex index = LineageIndex.forRegistry(registry);
+    for (LineageIndex.Node table : index.getImpacted(transId, Type.TYPE_TRANSFORMATION.getId(),
+        Type.TYPE_PHYSICAL_TABLE.getId())) {
+      Entity tableEntity = registry.getEntity(table.getId(), table.getTypeId());
+      if (tableEntity == null) {
+        continue;
+      }
+      for (LineageIndex.Node model : index.getImpacted(table.getId(), table.getTypeId(), Type.TYPE_OLAP_MODEL.getId())) {
+        Entity modelEntity = registry.getEntity(model.getId(), model.getTypeId());
+        if (modelEntity != null) {
+          targets.add(new Target(tableEntity.getName(), modelEntity.getId(), modelEntity.getName()));
+        }
+      }
+    }
+    return targets;
+  }
+}
@@ -0,0 +1,203 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.spoon;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.pentaho.metadata.registry.IMetadataRegistry;
+import org.pentaho.metadata.registry.Link;
+import org.pentaho.metadata.registry.Verb;
+
+/**
+ * Adjacency index over the links of a metadata registry, answering impact-analysis questions such as "which models
+ * and reports are affected if this transformation or table changes" without scanning every link.
+ * <p>
+ * Links are directed by data flow: a transformation that {@link Verb#VERB_POPULATES populates} a table affects the
+ * table, and a table that is {@link Verb#VERB_USES used} by a model affects the model, which in turn affects the
+ * views that use it.
+ */
+public class LineageIndex {
+
+  /**
+   * An entity in the lineage graph, identified by its registry id and type.
+   */
+  public static class Node {
+    private final String id;
+    private final String typeId;
+
+    public Node(String id, String typeId) {
+      this.id = id;
+      this.typeId = typeId;
+    }
+
+    public String getId() {
+      return id;
+    }
+
+    public String getTypeId() {
+      return typeId;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Node)) {
+        return false;
+      }
+      Node other = (Node) obj;
+      return id.equals(other.id) && typeId.equals(other.typeId);
+    }
+
+    @Override
+    public int hashCode() {
+      return id.hashCode() * 31 + typeId.hashCode();
+    }
+
+    @Override
+    public String toString() {
+      return typeId + ":" + id; //$NON-NLS-1$
+    }
+  }
+
+  /** verbs whose object depends on the subject, rather than the subject depending on the object */
+  private static final Set<String> REVERSED_VERBS = new HashSet<String>(Arrays.asList(Verb.VERB_USES.getId()));
+
+  private final Map<Node, Set<Node>> downstream = new HashMap<Node, Set<Node>>();
+
+  private final Map<Node, Set<Node>> upstream = new HashMap<Node, Set<Node>>();
+
+  private int linkCount;
+
+  public LineageIndex() {
+  }
+
+  public LineageIndex(Collection<Link> links) {
+    for (Link link : links) {
+      addLink(link);
+    }
+  }
+
+  /**
+   * Returns the index of a registry. Registries that maintain an index incrementally return it, any other registry
+   * gets an index built from its current links.
+   */
+  public static LineageIndex forRegistry(IMetadataRegistry registry) {
+    if (registry instanceof JournaledFileRegistry) {
+      return ((JournaledFileRegistry) registry).getLineageIndex();
+    }
+    return new LineageIndex(registry.getLinks());
+  }
+
+  public synchronized void addLink(Link link) {
+    Node subject = new Node(link.getSubjectId(), link.getSubjectTypeId());
+    Node object = new Node(link.getObjectId(), link.getObjectTypeId());
+    if (REVERSED_VERBS.contains(link.getVerbId())) {
+      addEdge(object, subject);
+    } else {
+      addEdge(subject, object);
+    }
+  }
+
+  private void addEdge(Node from, Node to) {
+    Set<Node> targets = downstream.get(from);
+    if (targets == null) {
+      targets = new LinkedHashSet<Node>();
+      downstream.put(from, targets);
+    }
+    if (targets.add(to)) {
+      Set<Node> sources = upstream.get(to);
+      if (sources == null) {
+        sources = new LinkedHashSet<Node>();
+        upstream.put(to, sources);
+      }
+      sources.add(from);
+      linkCount++;
+    }
+  }
+
+  public synchronized void clear() {
+    downstream.clear();
+    upstream.clear();
+    linkCount = 0;
+  }
+
+  /**
+   * @return the number of distinct edges in the index
+   */
+  public synchronized int size() {
+    return linkCount;
+  }
+
+  /**
+   * Finds everything affected, directly or transitively, by a change to the given entity.
+   *
+   * @param id Registry id of the changed entity
+   * @param typeId Type of the changed entity
+   * @param typeIds Only return entities of these types, or every type if none are given
+   * @return affected entities in breadth-first order
+   */
+  public List<Node> getImpacted(String id, String typeId, String... typeIds) {
+    return traverse(downstream, new Node(id, typeId), typeIds);
+  }
+
+  /**
+   * Finds everything the given entity depends on, directly or transitively, e.g. the tables and transformations
+   * behind a report.
+   *
+   * @param id Registry id of the entity
+   * @param typeId Type of the entity
+   * @param typeIds Only return entities of these types, or every type if none are given
+   * @return entities the given one depends on, in breadth-first order
+   */
+  public List<Node> getDependencies(String id, String typeId, String... typeIds) {
+    return traverse(upstream, new Node(id, typeId), typeIds);
+  }
+
+  private synchronized List<Node> traverse(Map<Node, Set<Node>> edges, Node start, String... typeIds) {
+    Set<String> types = typeIds.length == 0 ? null : new HashSet<String>(Arrays.asList(typeIds));
+    Set<Node> visited = new HashSet<Node>();
+    visited.add(start);
+    ArrayDeque<Node> queue = new ArrayDeque<Node>();
+    queue.add(start);
+    List<Node> result = new ArrayList<Node>();
+    while (!queue.isEmpty()) {
+      Set<Node> next = edges.get(queue.poll());
+      if (next == null) {
+        continue;
+      }
+      for (Node node : next) {
+        if (visited.add(node)) {
+          queue.add(node);
+          if (types == null || types.contains(node.getTypeId())) {
+            result.add(node);
+          }
+        }
+      }
+    }
+    return Collections.unmodifiableList(result);
+  }
+}
@@ -21,9 +21,12 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.SerializationUtils;
 import org.eclipse.swt.SWT;
+import org.eclipse.swt.widgets.DirectoryDialog;
 import org.eclipse.swt.widgets.Display;
 import org.pentaho.agilebi.modeler.IModelerSource;
 import org.pentaho.agilebi.modeler.ModelerException;
@@ -31,6 +34,7 @@ import org.pentaho.agilebi.modeler.ModelerMessagesHolder;
 import org.pentaho.agilebi.modeler.ModelerWorkspace;
 import org.pentaho.agilebi.modeler.util.ModelerWorkspaceUtil;
 import org.pentaho.agilebi.modeler.util.TableModelerSource;
+import org.pentaho.agilebi.platform.DomainCache;
 import org.pentaho.agilebi.spoon.perspective.AgileBiModelerPerspective;
 import org.pentaho.agilebi.spoon.visualizations.IVisualization;
 import org.pentaho.agilebi.spoon.visualizations.VisualizationManager;
@@ -39,13 +43,19 @@ import org.pentaho.di.core.Const;
 import org.pentaho.di.core.EngineMetaInterface;
 import org.pentaho.di.core.ProvidesDatabaseConnectionInformation;
 import org.pentaho.di.core.database.DatabaseMeta;
+import org.pentaho.di.core.exception.KettleStepException;
 import org.pentaho.di.core.gui.SpoonFactory;
+import org.pentaho.di.core.lifecycle.pdi.AgileBILifecycleListener;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
 import org.pentaho.di.i18n.BaseMessages;
 import org.pentaho.di.job.JobMeta;
 import org.pentaho.di.job.entry.JobEntryCopy;
 import org.pentaho.di.repository.Repository;
 import org.pentaho.di.trans.TransMeta;
 import org.pentaho.di.trans.step.StepMeta;
+import org.pentaho.di.trans.steps.tableoutput.TableOutputMeta;
 import org.pentaho.di.ui.core.database.dialog.DatabaseExplorerDialog;
 import org.pentaho.di.ui.core.dialog.ErrorDialog;
 import org.pentaho.di.ui.spoon.ISpoonMenuController;
@@ -53,12 +63,13 @@ import org.pentaho.di.ui.spoon.Spoon;
 import org.pentaho.di.ui.spoon.SpoonPerspectiveManager;
 import org.pentaho.di.ui.spoon.TabMapEntry;
 import org.pentaho.metadata.model.Domain;
+import org.pentaho.metadata.registry.Entity;
 import org.pentaho.metadata.registry.IMetadataRegistry;
-import org.pentaho.metadata.registry.OrderedFileRegistry;
+import org.pentaho.metadata.registry.Link;
 import org.pentaho.metadata.registry.RegistryFactory;
 import org.pentaho.metadata.registry.Type;
-import org.pentaho.reporting.engine.classic.core.ClassicEngineBoot;
-import org.pentaho.reporting.libraries.base.util.ObjectUtilities;
+import org.pentaho.metadata.registry.Verb;
+import org.pentaho.metadata.registry.util.RegistryUtil;
 import org.pentaho.ui.xul.XulException;
 import org.pentaho.ui.xul.components.WaitBoxRunnable;
 import org.pentaho.ui.xul.components.XulWaitBox;
@@ -71,43 +82,56 @@ import org.slf4j.LoggerFactory;
 public class ModelerHelper extends AbstractXulEventHandler implements ISpoonMenuController {
 
   private static final String MODELER_NAME = "Model Editor"; 
-  private static final String TEMP_MODELS_FOLDER = "models";
+
+  /**
+   * System property that, when set to "Y", builds models for output steps from the step's row metadata instead of
+   * reading the table definition from the database.
+   */
+  public static final String OFFLINE_MODELING_PROPERTY = "KETTLE_AGILEBI_OFFLINE_MODELING"; //$NON-NLS-1$
+
+  /**
+   * System property that, when set to "N", skips the background check of the database table for models built from
+   * row metadata.
+   */
+  public static final String OFFLINE_MODELING_VERIFY_PROPERTY = "KETTLE_AGILEBI_OFFLINE_MODELING_VERIFY"; //$NON-NLS-1$
 
   private static ModelerHelper instance = null;
     
   private static Logger logger = LoggerFactory.getLogger(ModelerHelper.class);
 
   static{
+    ModelerMessagesHolder.setMessages(new SpoonModelerMessages());
+  }
 
-    try {
-      ModelerMessagesHolder.setMessages(new SpoonModelerMessages());
-      
-      RegistryFactory factory = RegistryFactory.getInstance();
-      IMetadataRegistry registry = factory.getMetadataRegistry();
-      if( registry == null ) {
-          try {
-        	  registry = new OrderedFileRegistry();
-        	  ((OrderedFileRegistry) registry).setFilePath(org.pentaho.di.core.Const.getKettleDirectory() + File.separator + "registry.xml"); //$NON-NLS-1$
-			factory.setMetadataRegistry(registry);
-			registry.init();
-		} catch (Exception e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
+  /**
+   * Returns the metadata registry, creating and loading the journaled registry in the Kettle directory the first
+   * time it is needed rather than when this class is loaded.
+   */
+  public static synchronized IMetadataRegistry getMetadataRegistry() {
+    RegistryFactory factory = RegistryFactory.getInstance();
+    IMetadataRegistry registry = factory.getMetadataRegistry();
+    if (registry == null) {
+      JournaledFileRegistry fileRegistry = new JournaledFileRegistry();
+      fileRegistry.setFilePath(org.pentaho.di.core.Const.getKettleDirectory() + File.separator + "registry.xml"); //$NON-NLS-1$
+      try {
+        factory.setMetadataRegistry(fileRegistry);
+      } catch (IllegalStateException e) {
+        // someone else set this first, use theirs
+        return factory.getMetadataRegistry();
       }
-      
-    } catch (IllegalStateException e) {
-      // someone else set this first, ignore this error
+      try {
+        fileRegistry.init();
+      } catch (Exception e) {
+        logger.error("Could not load metadata registry", e); //$NON-NLS-1$
+      }
+      registry = fileRegistry;
     }
+    return registry;
   }
+
   private ModelerHelper() {
-    File modelsDir = new File(TEMP_MODELS_FOLDER);
-    if(modelsDir.exists()) {
-      for(File file : modelsDir.listFiles()) {
-        file.delete();
-      }
-      modelsDir.delete();
-    }
+    // clears out the temporary models of the previous session in the background
+    TemporaryModelStore.getInstance();
   }
   
   public static synchronized ModelerHelper getInstance() {
@@ -271,7 +295,100 @@ public class ModelerHelper extends AbstractXulEventHandler implements ISpoonMenu
   protected static KettleModelerSource getModelerSourceForStepMeta(ProvidesDatabaseConnectionInformation connectionInfo, TransMeta transMeta, StepMeta stepMeta) {
     Repository repository = transMeta.getRepository();
     String repositoryName = repository == null ? null : repository.getName();
-    return new OutputStepModelerSource(connectionInfo.getDatabaseMeta(), connectionInfo.getTableName(), connectionInfo.getSchemaName(), transMeta.getName(), transMeta.getFilename(), repositoryName, stepMeta.getStepID());
+    OutputStepModelerSource source = new OutputStepModelerSource(connectionInfo.getDatabaseMeta(), connectionInfo.getTableName(), connectionInfo.getSchemaName(), transMeta.getName(), transMeta.getFilename(), repositoryName, stepMeta.getStepID());
+    if (isOfflineModelingEnabled()) {
+      source.setRowMeta(getTableFields(transMeta, stepMeta));
+    }
+    return source;
+  }
+
+  /**
+   * @return {@code true} if models for output steps should be built from the step's row metadata
+   */
+  public static boolean isOfflineModelingEnabled() {
+    return "Y".equalsIgnoreCase(System.getProperty(OFFLINE_MODELING_PROPERTY, "N")); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+
+  /**
+   * Determine the columns of the table a step writes to from the fields flowing into it. When a Table Output step maps
+   * stream fields to differently named table columns, only the mapped fields are returned, renamed to their columns.
+   *
+   * @param transMeta Transformation the step belongs to
+   * @param stepMeta Step writing the table
+   * @return the table's columns, or {@code null} if they cannot be determined without the database
+   */
+  protected static RowMetaInterface getTableFields(TransMeta transMeta, StepMeta stepMeta) {
+    try {
+      RowMetaInterface fields = transMeta.getStepFields(stepMeta);
+      if (fields == null || fields.isEmpty()) {
+        return null;
+      }
+      if (stepMeta.getStepMetaInterface() instanceof TableOutputMeta) {
+        TableOutputMeta tableOutputMeta = (TableOutputMeta) stepMeta.getStepMetaInterface();
+        if (tableOutputMeta.specifyFields()) {
+          RowMetaInterface mapped = new RowMeta();
+          for (int i = 0; i < tableOutputMeta.getFieldStream().length; i++) {
+            ValueMetaInterface field = fields.searchValueMeta(tableOutputMeta.getFieldStream()[i]);
+            if (field == null) {
+              return null;
+            }
+            field = field.clone();
+            field.setName(tableOutputMeta.getFieldDatabase()[i]);
+            mapped.addValueMeta(field);
+          }
+          return mapped;
+        }
+      }
+      RowMetaInterface columns = fields.clone();
+      if (stepMeta.getStepMetaInterface() instanceof TableOutputMeta) {
+        // fields the step adds to its output or only uses for routing are not columns of the table
+        TableOutputMeta tableOutputMeta = (TableOutputMeta) stepMeta.getStepMetaInterface();
+        if (tableOutputMeta.isReturningGeneratedKeys()) {
+          removeField(columns, tableOutputMeta.getGeneratedKeyField());
+        }
+        if (tableOutputMeta.isTableNameInField() && !tableOutputMeta.isTableNameInTable()) {
+          removeField(columns, tableOutputMeta.getTableNameField());
+        }
+      }
+      return columns.isEmpty() ? null : columns;
+    } catch (KettleStepException e) {
+      logger.warn("Unable to determine the fields of step " + stepMeta.getName() + ", reading them from the database", e);
+      return null;
+    }
+  }
+
+  private static void removeField(RowMetaInterface fields, String name) {
+    if (!Const.isEmpty(name)) {
+      int index = fields.indexOfValue(name);
+      if (index >= 0) {
+        fields.removeValueMeta(index);
+      }
+    }
+  }
+
+  /**
+   * Reads the table definition of a source that was modeled from row metadata in the background and logs a warning
+   * if the table does not exist yet or its columns differ in name or type. The harvested metadata is left in the
+   * {@link TableMetadataCache} for later use.
+   *
+   * @param source Source that was modeled without the database
+   */
+  protected static void verifyTableInBackground(final OutputStepModelerSource source) {
+    if (source.getRowMeta() == null || "N".equalsIgnoreCase(System.getProperty(OFFLINE_MODELING_VERIFY_PROPERTY, "Y"))) { //$NON-NLS-1$ //$NON-NLS-2$
+      return;
+    }
+    AutoModelExecutor.getInstance().execute(new Runnable() {
+      public void run() {
+        try {
+          Domain domain = TableMetadataCache.getInstance().generateDomain(source.getDatabaseMeta(), source.getSchemaName(), source.getTableName());
+          for (String difference : source.compareWithTable(domain)) {
+            logger.warn("Table " + source.getTableName() + ": " + difference);
+          }
+        } catch (Exception e) {
+          logger.warn("Table " + source.getTableName() + " could not be read from the database, it may not have been created yet", e);
+        }
+      }
+    });
   }
 
   /**
@@ -336,13 +453,15 @@ public class ModelerHelper extends AbstractXulEventHandler implements ISpoonMenu
     }
 
     Domain d = source.generateDomain();
+    if (source instanceof OutputStepModelerSource) {
+      verifyTableInBackground((OutputStepModelerSource) source);
+    }
 
     model.setModelSource(source);
     model.setModelName(connectionInfo.getTableName());
     model.setDomain(d);
 
-    RegistryFactory factory = RegistryFactory.getInstance();
-    IMetadataRegistry registry = factory.getMetadataRegistry();
+    IMetadataRegistry registry = getMetadataRegistry();
 
     source.registerLineageMetadata(registry);
 
@@ -356,6 +475,29 @@ public class ModelerHelper extends AbstractXulEventHandler implements ISpoonMenu
   }
 
 
+  /**
+   * Records that a saved model uses the table it was built from, so the model (and the views built on it) show up
+   * in the impact analysis of that table. See {@link LineageIndex}.
+   */
+  public static void registerModelLineage(ModelerWorkspace model) {
+    IMetadataRegistry registry = getMetadataRegistry();
+    if (registry == null || model.getFileName() == null || !(model.getModelSource() instanceof TableModelerSource)) {
+      return;
+    }
+    TableModelerSource source = (TableModelerSource) model.getModelSource();
+    Entity modelEntity = new Entity(model.getFileName(), model.getModelName(), Type.TYPE_OLAP_MODEL.getId());
+    Entity table = new Entity(new RegistryUtil().generateCompositeId(source.getDatabaseName(), source.getSchemaName(), source.getTableName()),
+        source.getTableName(), Type.TYPE_PHYSICAL_TABLE.getId());
+    registry.addEntity(modelEntity);
+    registry.addEntity(table);
+    registry.addLink(new Link(modelEntity, Verb.VERB_USES, table));
+    try {
+      registry.commit();
+    } catch (Exception e) {
+      logger.error("Could not commit metadata registry", e);
+    }
+  }
+
   public void createModelerTab() throws ModelerException {
     ModelerWorkspace model = createModelerWorkspace();
     
@@ -377,17 +519,18 @@ public class ModelerHelper extends AbstractXulEventHandler implements ISpoonMenu
     AgileBiModelerPerspective.getInstance().createTabForModel(model, getUniqueUntitledTabName(spoon, MODELER_NAME));
   }
 
-  // TODO: replace this code after M1
+  /**
+   * Loads the domain stored in {@code fname} through the shared {@link DomainCache}. The returned domain is shared
+   * with other readers of the same file and must not be modified.
+   *
+   * @param fname XMI file to load
+   * @return the domain, or {@code null} if it could not be loaded
+   */
   public Domain loadDomain(String fname){
     try{
-      ModelerWorkspace model = createModelerWorkspace();
-      String xml = new String(IOUtils.toByteArray(new FileInputStream(new File(fname))), "UTF-8"); //$NON-NLS-1$
-      ModelerWorkspaceUtil.loadWorkspace(fname, xml, model);
-      return model.getDomain();
-    } catch(ModelerException e){
-      e.printStackTrace();
+      return DomainCache.getInstance().getDomain(fname);
     } catch(IOException e){
-      e.printStackTrace();
+      logger.error("Error loading domain from " + fname, e);
     }
     return null;
   }
@@ -426,6 +569,120 @@ public class ModelerHelper extends AbstractXulEventHandler implements ISpoonMenu
     }
   }
 
+  /**
+   * Drops the cached table metadata for the currently selected transformation step or job entry and opens the modeler
+   * with metadata read fresh from the database.
+   */
+  public void refreshMetadata() {
+    if (!isValidEntrySelectedWithLogging()) {
+      return;
+    }
+    ProvidesDatabaseConnectionInformation connectionInfo = getDatabaseConnectionInformationForCurrentActiveEntry();
+    TableMetadataCache.getInstance().invalidate(connectionInfo.getDatabaseMeta(), connectionInfo.getSchemaName(), connectionInfo.getTableName());
+    openModeler();
+  }
+
+  /**
+   * Models every step or job entry of the active transformation or job that writes to a database table. The models
+   * are built on a background thread pool and written as .xmi files to a folder chosen by the user, and a summary with
+   * the time spent on each model is shown when they are done.
+   */
+  public void modelAllOutputs() {
+    final Spoon spoon = (Spoon) SpoonFactory.getInstance();
+    EngineMetaInterface metaInterface = spoon.getActiveMeta();
+    final List<KettleModelerSource> sources;
+    if (metaInterface instanceof TransMeta) {
+      sources = BulkModeler.findSources((TransMeta) metaInterface);
+    } else if (metaInterface instanceof JobMeta) {
+      sources = BulkModeler.findSources((JobMeta) metaInterface);
+    } else {
+      sources = new ArrayList<KettleModelerSource>();
+    }
+    if (sources.isEmpty()) {
+      showFriendlyModelerException(new ModelerException(BaseMessages.getString(ModelerHelper.class, "BulkModel.NoOutputs")));
+      return;
+    }
+
+    DirectoryDialog dialog = new DirectoryDialog(spoon.getShell());
+    dialog.setText(BaseMessages.getString(ModelerHelper.class, "BulkModel.SelectFolder"));
+    if (metaInterface.getFilename() != null) {
+      dialog.setFilterPath(new File(metaInterface.getFilename()).getAbsoluteFile().getParent());
+    }
+    final String folder = dialog.open();
+    if (folder == null) {
+      return;
+    }
+
+    try {
+      XulWaitBox box = (XulWaitBox) document.createElement("waitbox");
+      box.setIndeterminate(false);
+      box.setMaximum(sources.size());
+      box.setCanCancel(false);
+      box.setTitle(BaseMessages.getString(ModelerWorkspace.class, "wait_dialog_title"));
+      box.setMessage(BaseMessages.getString(ModelerHelper.class, "BulkModel.Progress", "0", Integer.toString(sources.size())));
+      box.setCancelLabel(BaseMessages.getString(ModelerWorkspace.class, "wait_dialog_btn"));
+      box.setDialogParent(spoon.getShell());
+      box.setRunnable(new WaitBoxRunnable(box) {
+        @Override
+        public void run() {
+          final Display display = Display.getDefault();
+          try {
+            // the bulk modeler records lineage in the registry only if one exists
+            getMetadataRegistry();
+            final List<BulkModeler.Result> results = new BulkModeler().modelAll(sources, new File(folder), new BulkModeler.ProgressListener() {
+              public void modelCompleted(BulkModeler.Result result, final int completed, final int total) {
+                // called on the modeling thread, the wait box may only be updated on the UI thread
+                display.asyncExec(new Runnable() {
+                  public void run() {
+                    waitBox.setValue(completed);
+                    waitBox.setMessage(BaseMessages.getString(ModelerHelper.class, "BulkModel.Progress", Integer.toString(completed), Integer.toString(total)));
+                  }
+                });
+              }
+            });
+            display.asyncExec(new Runnable() {
+              public void run() {
+                showBulkModelSummary(results);
+              }
+            });
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          } catch (final RuntimeException e) {
+            logger.error("Error modeling outputs", e);
+            display.asyncExec(new Runnable() {
+              public void run() {
+                new ErrorDialog(spoon.getShell(), "Error", "Error modeling outputs", e);
+              }
+            });
+          } finally {
+            waitBox.stop();
+          }
+        }
+
+        @Override
+        public void cancel() {
+        }
+      });
+      box.start();
+    } catch (XulException e) {
+      logger.error("Error modeling outputs", e);
+      new ErrorDialog(spoon.getShell(), "Error", "Error modeling outputs", e);
+    }
+  }
+
+  private void showBulkModelSummary(List<BulkModeler.Result> results) {
+    StringBuilder summary = new StringBuilder();
+    for (BulkModeler.Result result : results) {
+      if (result.isSuccess()) {
+        summary.append(BaseMessages.getString(ModelerHelper.class, "BulkModel.Success", result.getSource().getTableName(), result.getFileName(), Long.toString(result.getDuration())));
+      } else {
+        summary.append(BaseMessages.getString(ModelerHelper.class, "BulkModel.Failure", result.getSource().getTableName(), result.getError().getMessage()));
+      }
+      summary.append(Const.CR);
+    }
+    SpoonFactory.getInstance().messageBox(summary.toString(), MODELER_NAME, false, Const.INFO);
+  }
+
   public void quickVisualizeTable() {
     Spoon spoon = ((Spoon)SpoonFactory.getInstance());
     if( spoon.getSelectionObject() instanceof DatabaseMeta ) {
@@ -434,7 +691,7 @@ public class ModelerHelper extends AbstractXulEventHandler implements ISpoonMenu
       DatabaseExplorerDialog std = new DatabaseExplorerDialog(spoon.getShell(), SWT.NONE, databaseMeta, new ArrayList<DatabaseMeta>());
       if (std.open()) {
           
-        TableModelerSource source = new TableModelerSource( databaseMeta, std.getTableName(), std.getSchemaName() == null ? "" : std.getSchemaName() ); //$NON-NLS-1$
+        TableModelerSource source = new CachedTableModelerSource( databaseMeta, std.getTableName(), std.getSchemaName() == null ? "" : std.getSchemaName() ); //$NON-NLS-1$
         if( source.getSchemaName() == null ) {
           source.setSchemaName(""); //$NON-NLS-1$
         }
@@ -504,14 +761,9 @@ public class ModelerHelper extends AbstractXulEventHandler implements ISpoonMenu
             ModelerWorkspace model = createModelerWorkspace();
             populateModel(model);
 
-            ObjectUtilities.setClassLoader(getClass().getClassLoader());
-            ObjectUtilities.setClassLoaderSource(ObjectUtilities.CLASS_CONTEXT);
-            
-            if(ClassicEngineBoot.getInstance().isBootDone() == false){
-              ClassicEngineBoot engineBoot = ClassicEngineBoot.getInstance();
-              engineBoot.start();
-            }
-            createTemporaryModel(model, true, true);
+            ReportingEngineBoot.getInstance().boot();
+            AgileBILifecycleListener.ensurePlatformStarted();
+            TemporaryModelStore.getInstance().materialize(createTemporaryModel(model, true, true));
             EmbeddedWizard wizard = new EmbeddedWizard(model, true);
             waitBox.stop();
             wizard.run(null);
@@ -576,24 +828,17 @@ public class ModelerHelper extends AbstractXulEventHandler implements ISpoonMenu
 	    }
 	  }
 
+  /**
+   * Gives the model a temporary name and registers it with the {@link TemporaryModelStore}. The .xmi file is only
+   * written once something needs it, see {@link TemporaryModelStore#materialize(String)}.
+   *
+   * @return the file name of the temporary model
+   */
   public String createTemporaryModel(ModelerWorkspace model, boolean saveName, boolean autoModel) throws ModelerException {
     //give it a temporary name
-    File modelsDir = new File(TEMP_MODELS_FOLDER); //$NON-NLS-1$
-    modelsDir.mkdirs();
-    int idx = 1;
-    boolean looking = true;
-    File modelFile;
-    String fileName = ""; //$NON-NLS-1$
-    String modelName = ""; //$NON-NLS-1$
-    while( looking ) {
-      modelName = "Model "+idx; //$NON-NLS-1$
-      fileName = TEMP_MODELS_FOLDER + "/" + modelName+".xmi"; //$NON-NLS-1$ //$NON-NLS-2$
-      modelFile = new File(fileName);
-      if( !modelFile.exists() ) {
-        looking = false;
-      }
-      idx++;
-    }
+    TemporaryModelStore store = TemporaryModelStore.getInstance();
+    String modelName = store.nextModelName();
+    String fileName = store.getFileName(modelName);
     if(saveName){
       model.setFileName(fileName);
     }
@@ -602,7 +847,7 @@ public class ModelerHelper extends AbstractXulEventHandler implements ISpoonMenu
       model.getWorkspaceHelper().autoModelFlat(model);
     }
     model.getWorkspaceHelper().populateDomain(model);
-    ModelerWorkspaceUtil.saveWorkspace( model, fileName);
+    store.add(fileName, model);
     
     /*
     // link the model to the transformation
@@ -617,15 +862,41 @@ public class ModelerHelper extends AbstractXulEventHandler implements ISpoonMenu
     return fileName;
   }
   
+  /**
+   * Copies a model into a new temporary model. The domain is copied in memory; only if it cannot be copied that way
+   * is the model written out and parsed back in.
+   */
   public ModelerWorkspace clone(ModelerWorkspace model) throws ModelerException{
-    String fileName = createTemporaryModel(model, false, false);
+    TemporaryModelStore store = TemporaryModelStore.getInstance();
+    String modelName = store.nextModelName();
+    String fileName = store.getFileName(modelName);
+    model.setModelName(modelName);
+    model.getWorkspaceHelper().populateDomain(model);
     
     ModelerWorkspace newModel = createModelerWorkspace();
     
     newModel.setTemporary(true);
     newModel.setDirty(false);
+    Domain domain = null;
+    try {
+      domain = (Domain) SerializationUtils.clone(model.getDomain());
+    } catch (RuntimeException e) {
+      logger.debug("Unable to copy the domain in memory, reloading it from disk", e);
+    }
+    if (domain != null) {
+      newModel.setModelSource(model.getModelSource());
+      newModel.setDomain(domain);
+      newModel.setFileName(fileName);
+      newModel.setModelName(model.getModelName());
+      newModel.setDirty(false);
+      store.add(fileName, newModel);
+      return newModel;
+    }
+
     String xml;
     try {
+      store.add(fileName, model);
+      store.materialize(fileName);
       xml = new String(IOUtils.toByteArray(new FileInputStream(new File(fileName))), "UTF-8");
       ModelerWorkspaceUtil.loadWorkspace(fileName, xml, newModel);
     } catch (Exception e) {
@@ -642,7 +913,7 @@ public class ModelerHelper extends AbstractXulEventHandler implements ISpoonMenu
       DatabaseExplorerDialog std = new DatabaseExplorerDialog(spoon.getShell(), SWT.NONE, databaseMeta, new ArrayList<DatabaseMeta>());
       if (std.open()) {
           
-        TableModelerSource source = new TableModelerSource( databaseMeta, std.getTableName(), std.getSchemaName());
+        TableModelerSource source = new CachedTableModelerSource( databaseMeta, std.getTableName(), std.getSchemaName());
         try{
           ModelerWorkspace model = createModelerWorkspace();
           ModelerWorkspaceUtil.populateModelFromSource(model, source);
@@ -0,0 +1,255 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.spoon;
+
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+
+import org.dom4j.DocumentHelper;
+import org.pentaho.agilebi.modeler.ModelerPerspective;
+import org.pentaho.agilebi.modeler.ModelerWorkspace;
+import org.pentaho.metadata.model.LogicalColumn;
+import org.pentaho.metadata.model.LogicalModel;
+import org.pentaho.metadata.model.LogicalTable;
+import org.pentaho.metadata.model.concept.types.LocalizedString;
+import org.pentaho.metadata.model.olap.OlapCube;
+import org.pentaho.metadata.model.olap.OlapDimension;
+import org.pentaho.metadata.model.olap.OlapDimensionUsage;
+import org.pentaho.metadata.model.olap.OlapHierarchy;
+import org.pentaho.metadata.model.olap.OlapHierarchyLevel;
+import org.pentaho.metadata.model.olap.OlapMeasure;
+import org.pentaho.metadata.util.MondrianModelExporter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the Mondrian schemas generated for workspaces, so that publishing and exporting a model that hasn't changed in
+ * between don't run {@link MondrianModelExporter} again. Schemas are keyed by the workspace, a digest of what the
+ * exporter reads from the analysis model (cubes, dimensions, hierarchies, levels and measures, including the
+ * properties of their columns such as format and aggregation) and the locale. The logical model itself can't be used
+ * as key since {@code populateDomain} rebuilds it before every export, and not every edit is reported by the
+ * workspace, so the digest is taken from the rebuilt model each time.
+ * <p>
+ * The schema returned is the exporter's output as normalized by dom4j, which is what gets written and published.
+ */
+public class MondrianSchemaCache {
+
+  /** schemas kept; generated schemas of large models run into megabytes */
+  static final int MAX_ENTRIES = 20;
+
+  private static Logger logger = LoggerFactory.getLogger(MondrianSchemaCache.class);
+
+  private static MondrianSchemaCache instance;
+
+  /** guarded by this */
+  private final Map<String, String> schemas = new LinkedHashMap<String, String>(16, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+      return size() > MAX_ENTRIES;
+    }
+  };
+
+  /** guarded by this */
+  private final Map<ModelerWorkspace, String> workspaceIds = new WeakHashMap<ModelerWorkspace, String>();
+
+  /** guarded by this */
+  private long nextWorkspaceId;
+
+  MondrianSchemaCache() {
+  }
+
+  public static synchronized MondrianSchemaCache getInstance() {
+    if (instance == null) {
+      instance = new MondrianSchemaCache();
+    }
+    return instance;
+  }
+
+  /**
+   * @return the schema of the workspace's analysis model
+   */
+  public String getSchema(ModelerWorkspace workspace, String locale) throws Exception {
+    LogicalModel model = workspace.getLogicalModel(ModelerPerspective.ANALYSIS);
+    String digest = digest(model);
+    String workspaceId;
+    String key;
+    synchronized (this) {
+      workspaceId = workspaceIds.get(workspace);
+      if (workspaceId == null) {
+        workspaceId = Long.toString(nextWorkspaceId++);
+        workspaceIds.put(workspace, workspaceId);
+      }
+      key = workspaceId + "/" + locale + "/" + digest; //$NON-NLS-1$ //$NON-NLS-2$
+      String schema = schemas.get(key);
+      if (schema != null) {
+        return schema;
+      }
+    }
+    long start = System.currentTimeMillis();
+    String schema = generateSchema(model, locale);
+    logger.debug("Generated Mondrian schema in " + (System.currentTimeMillis() - start) + "ms"); //$NON-NLS-1$ //$NON-NLS-2$
+    synchronized (this) {
+      // the schema of the model before the edit is never asked for again
+      removeKeys(workspaceId + "/" + locale + "/"); //$NON-NLS-1$ //$NON-NLS-2$
+      schemas.put(key, schema);
+    }
+    return schema;
+  }
+
+  String generateSchema(LogicalModel model, String locale) throws Exception {
+    String schema = new MondrianModelExporter(model, locale).createMondrianModelXML();
+    return DocumentHelper.parseText(schema).asXML();
+  }
+
+  /**
+   * @return a digest of everything in the model the exporter turns into the schema
+   */
+  static String digest(LogicalModel model) throws Exception {
+    StringBuilder out = new StringBuilder();
+    out.append(model.getId()).append('|');
+    append(out, model.getName());
+    @SuppressWarnings("unchecked")
+    List<OlapDimension> dimensions = (List<OlapDimension>) model.getProperty(LogicalModel.PROPERTY_OLAP_DIMS);
+    if (dimensions != null) {
+      for (OlapDimension dimension : dimensions) {
+        appendDimension(out, dimension);
+      }
+    }
+    @SuppressWarnings("unchecked")
+    List<OlapCube> cubes = (List<OlapCube>) model.getProperty(LogicalModel.PROPERTY_OLAP_CUBES);
+    if (cubes != null) {
+      for (OlapCube cube : cubes) {
+        out.append("|cube:").append(cube.getName()); //$NON-NLS-1$
+        appendTable(out, cube.getLogicalTable());
+        for (OlapDimensionUsage usage : cube.getOlapDimensionUsages()) {
+          out.append("|usage:").append(usage.getName()).append('=').append(usage.getOlapDimension().getName()); //$NON-NLS-1$
+        }
+        for (OlapMeasure measure : cube.getOlapMeasures()) {
+          out.append("|measure:").append(measure.getName()); //$NON-NLS-1$
+          appendColumn(out, measure.getLogicalColumn());
+        }
+      }
+    }
+    byte[] hash = MessageDigest.getInstance("MD5").digest(out.toString().getBytes("UTF-8")); //$NON-NLS-1$ //$NON-NLS-2$
+    StringBuilder hex = new StringBuilder(hash.length * 2);
+    for (byte b : hash) {
+      hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    return hex.toString();
+  }
+
+  private static void appendDimension(StringBuilder out, OlapDimension dimension) {
+    out.append("|dimension:").append(dimension.getName()).append(',').append(dimension.isTimeDimension()); //$NON-NLS-1$
+    for (OlapHierarchy hierarchy : dimension.getHierarchies()) {
+      out.append("|hierarchy:").append(hierarchy.getName()).append(',').append(hierarchy.isHavingAll()); //$NON-NLS-1$
+      appendTable(out, hierarchy.getLogicalTable());
+      appendColumn(out, hierarchy.getPrimaryKey());
+      for (OlapHierarchyLevel level : hierarchy.getHierarchyLevels()) {
+        out.append("|level:").append(level.getName()).append(',').append(level.isHavingUniqueMembers()) //$NON-NLS-1$
+            .append(',').append(level.getLevelType());
+        appendColumn(out, level.getReferenceColumn());
+        for (LogicalColumn property : level.getLogicalColumns()) {
+          appendColumn(out, property);
+        }
+      }
+    }
+  }
+
+  private static void appendTable(StringBuilder out, LogicalTable table) {
+    if (table == null) {
+      return;
+    }
+    out.append("|table:").append(table.getId()); //$NON-NLS-1$
+    if (table.getPhysicalTable() != null) {
+      append(out, table.getPhysicalTable().getProperties());
+    }
+  }
+
+  private static void appendColumn(StringBuilder out, LogicalColumn column) {
+    if (column == null) {
+      return;
+    }
+    out.append("|column:").append(column.getId()); //$NON-NLS-1$
+    // includes the format mask and aggregation, also when inherited from the physical column
+    append(out, column.getProperties());
+  }
+
+  /**
+   * Appends a property value by content. Values of types the exporter does not read, e.g. colors and fonts, are
+   * appended by type only, since their string form may not reflect their content.
+   */
+  private static void append(StringBuilder out, Object value) {
+    if (value instanceof LocalizedString) {
+      out.append(new TreeMap<String, String>(((LocalizedString) value).getLocaleStringMap()));
+    } else if (value instanceof Map) {
+      out.append('{');
+      for (Map.Entry<?, ?> entry : new TreeMap<Object, Object>((Map<?, ?>) value).entrySet()) {
+        out.append(entry.getKey()).append('=');
+        append(out, entry.getValue());
+        out.append(',');
+      }
+      out.append('}');
+    } else if (value instanceof Collection) {
+      out.append('[');
+      for (Object element : (Collection<?>) value) {
+        append(out, element);
+        out.append(',');
+      }
+      out.append(']');
+    } else if (value == null || value instanceof String || value instanceof Number || value instanceof Boolean
+        || value instanceof Enum) {
+      out.append(value);
+    } else {
+      out.append(value.getClass().getName());
+    }
+  }
+
+  /**
+   * Drops the schemas generated for the workspace, the next one is generated again.
+   */
+  public synchronized void invalidate(ModelerWorkspace workspace) {
+    String workspaceId = workspaceIds.get(workspace);
+    if (workspaceId != null) {
+      removeKeys(workspaceId + "/"); //$NON-NLS-1$
+    }
+  }
+
+  private void removeKeys(String prefix) {
+    for (String key : new ArrayList<String>(schemas.keySet())) {
+      if (key.startsWith(prefix)) {
+        schemas.remove(key);
+      }
+    }
+  }
+
+  public synchronized void clear() {
+    schemas.clear();
+  }
+
+  synchronized int size() {
+    return schemas.size();
+  }
+}
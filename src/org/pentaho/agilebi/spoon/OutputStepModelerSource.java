@@ -17,7 +17,18 @@
 
 package org.pentaho.agilebi.spoon;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.pentaho.agilebi.modeler.ModelerException;
 import org.pentaho.di.core.database.DatabaseMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.metadata.model.Domain;
+import org.pentaho.metadata.model.IPhysicalColumn;
+import org.pentaho.metadata.model.IPhysicalTable;
+import org.pentaho.metadata.model.SqlPhysicalColumn;
 import org.pentaho.metadata.registry.Type;
 
 /**
@@ -31,6 +42,9 @@ public class OutputStepModelerSource extends KettleModelerSource {
 
 	public static final String OUTPUTSTEP_SOURCE_TYPE = OutputStepModelerSource.class.getSimpleName();
 
+  // Fields written by the step, used to build the domain without querying the database. Not serialized into the domain.
+  private RowMetaInterface rowMeta;
+
   /**
    * Default no-arg constructor so {@link org.pentaho.agilebi.modeler.util.ModelerSourceFactory} can instantiate us.
    */
@@ -60,4 +74,77 @@ public class OutputStepModelerSource extends KettleModelerSource {
   public String getSourceType() {
     return OUTPUTSTEP_SOURCE_TYPE;
   }
+
+  /**
+   * Builds the domain from the step's output row metadata when it is available, otherwise reads the table definition
+   * from the database.
+   */
+  @Override
+  protected Domain createDomain() throws ModelerException {
+    if (rowMeta == null) {
+      return super.createDomain();
+    }
+    return new RowMetaDomainGenerator().generateDomain(getDatabaseMeta(), getSchemaName(), getTableName(), rowMeta);
+  }
+
+  /**
+   * Compares the columns the step writes with the columns of the table as read from the database.
+   *
+   * @param table Domain harvested from the table
+   * @return a description of each column that is missing or has another type, empty if the step and the table agree
+   * @throws ModelerException if the step's columns cannot be modeled
+   */
+  public List<String> compareWithTable(Domain table) throws ModelerException {
+    List<String> differences = new ArrayList<String>();
+    if (rowMeta == null) {
+      return differences;
+    }
+    Map<String, IPhysicalColumn> columns = getColumns(table);
+    Map<String, IPhysicalColumn> fields = getColumns(new RowMetaDomainGenerator().generateDomain(getDatabaseMeta(),
+        getSchemaName(), getTableName(), rowMeta));
+    for (Map.Entry<String, IPhysicalColumn> field : fields.entrySet()) {
+      IPhysicalColumn column = columns.get(field.getKey());
+      if (column == null) {
+        differences.add("the step writes " + field.getKey() + " but the table has no such column"); //$NON-NLS-1$ //$NON-NLS-2$
+      } else if (column.getDataType() != field.getValue().getDataType()) {
+        differences.add("column " + field.getKey() + " is " + column.getDataType().name() + " but the step writes " //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+            + field.getValue().getDataType().name());
+      }
+    }
+    for (String column : columns.keySet()) {
+      if (!fields.containsKey(column)) {
+        differences.add("column " + column + " is not written by the step"); //$NON-NLS-1$ //$NON-NLS-2$
+      }
+    }
+    return differences;
+  }
+
+  /**
+   * @return the physical columns of the domain's first table by upper case column name
+   */
+  private static Map<String, IPhysicalColumn> getColumns(Domain domain) {
+    Map<String, IPhysicalColumn> columns = new LinkedHashMap<String, IPhysicalColumn>();
+    IPhysicalTable table = domain.getPhysicalModels().get(0).getPhysicalTables().get(0);
+    for (IPhysicalColumn column : table.getPhysicalColumns()) {
+      String name = column instanceof SqlPhysicalColumn ? ((SqlPhysicalColumn) column).getTargetColumn() : column.getId();
+      columns.put(name.toUpperCase(), column);
+    }
+    return columns;
+  }
+
+  /**
+   * @return the fields written by the step, or {@code null} if the domain is generated from the database
+   */
+  public RowMetaInterface getRowMeta() {
+    return rowMeta;
+  }
+
+  /**
+   * Set the fields written by the step so the domain can be generated without a database round trip.
+   *
+   * @param rowMeta Fields of the target table, {@code null} to read the table definition from the database
+   */
+  public void setRowMeta(RowMetaInterface rowMeta) {
+    this.rowMeta = rowMeta;
+  }
 }
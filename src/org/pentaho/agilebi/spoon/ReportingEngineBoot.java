@@ -0,0 +1,110 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.spoon;
+
+import org.pentaho.di.core.Const;
+import org.pentaho.reporting.engine.classic.core.ClassicEngineBoot;
+import org.pentaho.reporting.libraries.base.util.ObjectUtilities;
+import org.pentaho.reporting.libraries.fonts.LibFontBoot;
+import org.pentaho.reporting.libraries.resourceloader.LibLoaderBoot;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Boots the reporting engine used by the Report Wizard and .prpt visualizations. Spoon starts the boot on a
+ * low-priority background thread {@value #DELAY_PROPERTY} seconds after startup (default 5, a negative value leaves the
+ * boot to the first report). Report actions call {@link #boot()}, which waits for a background boot in progress
+ * instead of starting a second one.
+ */
+public class ReportingEngineBoot {
+
+  public static final String DELAY_PROPERTY = "KETTLE_AGILEBI_REPORTING_BOOT_DELAY"; //$NON-NLS-1$
+
+  public static final int DEFAULT_DELAY = 5;
+
+  private static Logger logger = LoggerFactory.getLogger(ReportingEngineBoot.class);
+
+  private static final ReportingEngineBoot instance = new ReportingEngineBoot();
+
+  private Thread backgroundBoot;
+
+  private boolean classLoaderSet;
+
+  private ReportingEngineBoot() {
+  }
+
+  public static ReportingEngineBoot getInstance() {
+    return instance;
+  }
+
+  public boolean isBooted() {
+    return ClassicEngineBoot.getInstance().isBootDone();
+  }
+
+  /**
+   * Starts the boot in the background after the configured delay, unless it is turned off or already started.
+   */
+  public synchronized void startInBackground() {
+    final long delay = Const.toInt(System.getProperty(DELAY_PROPERTY), DEFAULT_DELAY) * 1000L;
+    if (delay < 0 || backgroundBoot != null || isBooted()) {
+      return;
+    }
+    backgroundBoot = new Thread(new Runnable() {
+      public void run() {
+        try {
+          Thread.sleep(delay);
+          long start = System.currentTimeMillis();
+          boot();
+          logger.info("Reporting engine booted in " + (System.currentTimeMillis() - start) + "ms"); //$NON-NLS-1$ //$NON-NLS-2$
+        } catch (InterruptedException e) {
+          return;
+        } catch (Exception e) {
+          // the first report boots again and shows the error
+          logger.warn("Could not boot the reporting engine in the background", e); //$NON-NLS-1$
+        }
+      }
+    }, "Agile BI reporting engine boot"); //$NON-NLS-1$
+    backgroundBoot.setDaemon(true);
+    backgroundBoot.setPriority(Thread.MIN_PRIORITY);
+    backgroundBoot.start();
+  }
+
+  /**
+   * Boots the engine if it isn't booted yet. Blocks until it is, including when another thread is booting it.
+   */
+  public void boot() {
+    if (isBooted()) {
+      return;
+    }
+    synchronized (this) {
+      if (backgroundBoot != null && backgroundBoot != Thread.currentThread()) {
+        // someone is waiting for it now
+        backgroundBoot.setPriority(Thread.NORM_PRIORITY);
+      }
+      if (!classLoaderSet) {
+        ObjectUtilities.setClassLoader(ReportingEngineBoot.class.getClassLoader());
+        ObjectUtilities.setClassLoaderSource(ObjectUtilities.CLASS_CONTEXT);
+        classLoaderSet = true;
+      }
+    }
+    // the boots are synchronized and wait for a boot in progress in another thread
+    LibLoaderBoot.getInstance().start();
+    LibFontBoot.getInstance().start();
+    ClassicEngineBoot.getInstance().start();
+  }
+}
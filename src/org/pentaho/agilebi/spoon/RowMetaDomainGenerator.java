@@ -0,0 +1,174 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.spoon;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.pentaho.agilebi.modeler.ModelerException;
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.database.DatabaseMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.metadata.model.Category;
+import org.pentaho.metadata.model.Domain;
+import org.pentaho.metadata.model.LogicalColumn;
+import org.pentaho.metadata.model.LogicalModel;
+import org.pentaho.metadata.model.LogicalTable;
+import org.pentaho.metadata.model.SqlPhysicalColumn;
+import org.pentaho.metadata.model.SqlPhysicalModel;
+import org.pentaho.metadata.model.SqlPhysicalTable;
+import org.pentaho.metadata.model.concept.types.AggregationType;
+import org.pentaho.metadata.model.concept.types.DataType;
+import org.pentaho.metadata.model.concept.types.FieldType;
+import org.pentaho.metadata.model.concept.types.LocaleType;
+import org.pentaho.metadata.model.concept.types.LocalizedString;
+import org.pentaho.metadata.util.ThinModelConverter;
+
+/**
+ * Builds a {@link Domain} for a single physical table from row metadata that is already known inside Spoon, e.g. the
+ * fields a Table Output step writes, instead of reading the table definition from the database. The generated domain
+ * has the same shape as the one harvested over JDBC: one SQL physical model with one table, and a logical model with a
+ * single category holding a column per field.
+ */
+public class RowMetaDomainGenerator {
+
+  private final String locale;
+
+  public RowMetaDomainGenerator() {
+    this(LocalizedString.DEFAULT_LOCALE);
+  }
+
+  public RowMetaDomainGenerator(String locale) {
+    this.locale = locale;
+  }
+
+  /**
+   * @param databaseMeta Connection the table will live in
+   * @param schemaName Schema of the table (optional)
+   * @param tableName Name of the table
+   * @param rowMeta Columns of the table, in order
+   * @return a domain describing the table
+   * @throws ModelerException if there is nothing to model
+   */
+  public Domain generateDomain(DatabaseMeta databaseMeta, String schemaName, String tableName, RowMetaInterface rowMeta)
+    throws ModelerException {
+    if (databaseMeta == null || Const.isEmpty(tableName)) {
+      throw new ModelerException("A database connection and table name are required"); //$NON-NLS-1$
+    }
+    if (rowMeta == null || rowMeta.isEmpty()) {
+      throw new ModelerException("No fields available for table " + tableName); //$NON-NLS-1$
+    }
+
+    Domain domain = new Domain();
+    domain.setId(tableName);
+    List<LocaleType> locales = new ArrayList<LocaleType>();
+    locales.add(new LocaleType(locale, Locale.getDefault().getDisplayName()));
+    domain.setLocales(locales);
+
+    SqlPhysicalModel physicalModel = new SqlPhysicalModel();
+    physicalModel.setId(databaseMeta.getName());
+    physicalModel.setDatasource(ThinModelConverter.convertFromLegacy(databaseMeta));
+    domain.addPhysicalModel(physicalModel);
+
+    String tableId = toId(tableName);
+    SqlPhysicalTable physicalTable = new SqlPhysicalTable(physicalModel);
+    physicalTable.setId("PT_" + tableId); //$NON-NLS-1$
+    physicalTable.setName(new LocalizedString(locale, tableName));
+    physicalTable.setTargetTable(tableName);
+    physicalTable.setTargetSchema(Const.isEmpty(schemaName) ? null : schemaName);
+    physicalModel.getPhysicalTables().add(physicalTable);
+
+    LogicalModel logicalModel = new LogicalModel();
+    logicalModel.setId("MODEL_1"); //$NON-NLS-1$
+    logicalModel.setName(new LocalizedString(locale, tableName));
+    logicalModel.setPhysicalModel(physicalModel);
+
+    LogicalTable logicalTable = new LogicalTable();
+    logicalTable.setId("LT_" + tableId); //$NON-NLS-1$
+    logicalTable.setName(new LocalizedString(locale, tableName));
+    logicalTable.setPhysicalTable(physicalTable);
+    logicalTable.setLogicalModel(logicalModel);
+    logicalModel.addLogicalTable(logicalTable);
+
+    Category category = new Category();
+    category.setId("CATEGORY_1"); //$NON-NLS-1$
+    category.setName(new LocalizedString(locale, tableName));
+
+    for (ValueMetaInterface valueMeta : rowMeta.getValueMetaList()) {
+      String columnName = valueMeta.getName();
+      String columnId = toId(columnName);
+
+      SqlPhysicalColumn physicalColumn = new SqlPhysicalColumn(physicalTable);
+      physicalColumn.setId("PC_" + tableId + "_" + columnId); //$NON-NLS-1$ //$NON-NLS-2$
+      physicalColumn.setName(new LocalizedString(locale, columnName));
+      physicalColumn.setTargetColumn(columnName);
+      physicalColumn.setDataType(getDataType(valueMeta));
+      if (valueMeta.isNumeric()) {
+        physicalColumn.setFieldType(FieldType.FACT);
+        physicalColumn.setAggregationType(AggregationType.SUM);
+      } else {
+        physicalColumn.setFieldType(FieldType.DIMENSION);
+        physicalColumn.setAggregationType(AggregationType.NONE);
+      }
+      physicalTable.getPhysicalColumns().add(physicalColumn);
+
+      LogicalColumn logicalColumn = new LogicalColumn();
+      logicalColumn.setId("LC_" + tableId + "_" + columnId); //$NON-NLS-1$ //$NON-NLS-2$
+      logicalColumn.setName(new LocalizedString(locale, columnName));
+      logicalColumn.setPhysicalColumn(physicalColumn);
+      logicalColumn.setLogicalTable(logicalTable);
+      logicalTable.addLogicalColumn(logicalColumn);
+      category.addLogicalColumn(logicalColumn);
+    }
+
+    logicalModel.addCategory(category);
+    domain.addLogicalModel(logicalModel);
+    return domain;
+  }
+
+  protected DataType getDataType(ValueMetaInterface valueMeta) {
+    switch (valueMeta.getType()) {
+      case ValueMetaInterface.TYPE_STRING:
+        return DataType.STRING;
+      case ValueMetaInterface.TYPE_NUMBER:
+      case ValueMetaInterface.TYPE_INTEGER:
+      case ValueMetaInterface.TYPE_BIGNUMBER:
+        return DataType.NUMERIC;
+      case ValueMetaInterface.TYPE_DATE:
+      case ValueMetaInterface.TYPE_TIMESTAMP:
+        return DataType.DATE;
+      case ValueMetaInterface.TYPE_BOOLEAN:
+        return DataType.BOOLEAN;
+      case ValueMetaInterface.TYPE_BINARY:
+        return DataType.BINARY;
+      default:
+        return DataType.UNKNOWN;
+    }
+  }
+
+  private static String toId(String name) {
+    StringBuilder id = new StringBuilder(name.length());
+    for (int i = 0; i < name.length(); i++) {
+      char c = name.charAt(i);
+      id.append(Character.isLetterOrDigit(c) ? Character.toUpperCase(c) : '_');
+    }
+    return id.toString();
+  }
+}
@@ -24,6 +24,7 @@ import java.util.Comparator;
 import java.util.List;
 import java.util.Properties;
 
+import org.apache.commons.io.IOUtils;
 import org.eclipse.swt.widgets.Display;
 import org.pentaho.agilebi.modeler.BaseModelerWorkspaceHelper;
 import org.pentaho.agilebi.modeler.IModelerWorkspaceHelper;
@@ -50,6 +51,11 @@ public class SpoonModelerWorkspaceHelper extends BaseModelerWorkspaceHelper impl
   final GeoContext geoContext;
   private static final String GEO_CONFIG_FILE_LOCATION = "plugins/spoon/agile-bi/geoRoles.properties"; //$NON-NLS-1$
 
+  private static Properties cachedGeoProperties;
+  private static String geoPropertiesFile;
+  private static long geoContextLastModified;
+  private static long geoContextLength;
+
   public SpoonModelerWorkspaceHelper() {
     this( initGeoContext() );
   }
@@ -62,20 +68,35 @@ public class SpoonModelerWorkspaceHelper extends BaseModelerWorkspaceHelper impl
   }
 
   /**
-   * Builds an OLAP model that is attribute based.
+   * Builds an OLAP model that is attribute based. Both models are built on the calling thread, one after the other,
+   * since the strategies are not safe to run concurrently on one workspace. If the thread is interrupted, e.g.
+   * because the run was cancelled, the relational model is not built.
    *
    * @param workspace
    */
   public void autoModelFlat( ModelerWorkspace workspace ) throws ModelerException {
     workspace.setGeoContext( this.geoContext );
-    final AutoModelStrategy strategy = getAutoModelStrategy();
+    AutoModelStrategy strategy = getAutoModelStrategy();
+    checkCancelled();
     strategy.autoModelOlap( workspace, workspace.getModel() );
+    checkCancelled();
     strategy.autoModelRelational( workspace, workspace.getRelationalModel() );
   }
 
+  /**
+   * Stops a run between its phases once its thread has been interrupted. The strategies themselves do not check, so
+   * a phase that has started is always finished.
+   */
+  private static void checkCancelled() throws ModelerException {
+    if ( Thread.currentThread().isInterrupted() ) {
+      throw new ModelerException( "Auto-modeling cancelled" ); //$NON-NLS-1$
+    }
+  }
+
 
   /**
-   * Builds an OLAP model that is attribute based.
+   * Builds an OLAP model that is attribute based on the shared {@link AutoModelExecutor}. Repeated requests for the
+   * same workspace replace each other.
    *
    * @param workspace
    */
@@ -85,30 +106,24 @@ public class SpoonModelerWorkspaceHelper extends BaseModelerWorkspaceHelper impl
     final AutoModelStrategy strategy = getAutoModelStrategy();
 
     final Display display = Display.findDisplay( Thread.currentThread() );
-    Runnable worker = new Runnable() {
-
-      public void run() {
-        final boolean prevChangeState = ws.isModelChanging();
-        try {
-
-          MainModelNode node = ws.getModel();
-          node.setSupressEvents( true );
-          strategy.autoModelOlap( ws, node );
-        } catch ( ModelerException e ) {
-        }
-        display.syncExec( new Runnable() {
-
-          public void run() {
-            ws.getModel().setSupressEvents( false );
-            ws.setModelIsChanging( prevChangeState, true );
-            ws.setSelectedNode( ws.getModel() );
-          }
-        } );
+    final boolean prevChangeState = ws.isModelChanging();
+    AutoModelExecutor.getInstance().submit( ws, AutoModelExecutor.Kind.OLAP, new AutoModelExecutor.Task() {
+      public void run() throws Exception {
+        checkCancelled();
+        MainModelNode node = ws.getModel();
+        node.setSupressEvents( true );
+        strategy.autoModelOlap( ws, node );
+      }
+    }, new UiRefreshListener( display ) {
+      protected void restore() {
+        ws.getModel().setSupressEvents( false );
+        ws.setModelIsChanging( prevChangeState, true );
       }
-    };
-    new Thread( worker ).start();
-
 
+      protected void refresh() {
+        ws.setSelectedNode( ws.getModel() );
+      }
+    } );
   }
 
   /**
@@ -122,7 +137,8 @@ public class SpoonModelerWorkspaceHelper extends BaseModelerWorkspaceHelper impl
   }
 
   /**
-   * Builds a Relational Model that is attribute based, all available fields are added into a single Category
+   * Builds a Relational Model that is attribute based, all available fields are added into a single Category. Runs
+   * on the shared {@link AutoModelExecutor}; repeated requests for the same workspace replace each other.
    *
    * @param workspace
    * @throws ModelerException
@@ -132,27 +148,65 @@ public class SpoonModelerWorkspaceHelper extends BaseModelerWorkspaceHelper impl
     final AutoModelStrategy strategy = getAutoModelStrategy();
 
     final Display display = Display.findDisplay( Thread.currentThread() );
-    Runnable worker = new Runnable() {
-
-      public void run() {
-        final boolean prevChangeState = workspace.isModelChanging();
-        try {
-          RelationalModelNode node = workspace.getRelationalModel();
-          node.setSupressEvents( true );
-          strategy.autoModelRelational( workspace, node );
-        } catch ( ModelerException e ) {
-        }
-        display.syncExec( new Runnable() {
+    final boolean prevChangeState = workspace.isModelChanging();
+    AutoModelExecutor.getInstance().submit( workspace, AutoModelExecutor.Kind.RELATIONAL, new AutoModelExecutor.Task() {
+      public void run() throws Exception {
+        checkCancelled();
+        RelationalModelNode node = workspace.getRelationalModel();
+        node.setSupressEvents( true );
+        strategy.autoModelRelational( workspace, node );
+      }
+    }, new UiRefreshListener( display ) {
+      protected void restore() {
+        workspace.getRelationalModel().setSupressEvents( false );
+        workspace.setRelationalModelIsChanging( prevChangeState, true );
+      }
+
+      protected void refresh() {
+        workspace.setSelectedRelationalNode( workspace.getRelationalModel() );
+      }
+    } );
+  }
 
-          public void run() {
-            workspace.getRelationalModel().setSupressEvents( false );
-            workspace.setRelationalModelIsChanging( prevChangeState, true );
-            workspace.setSelectedRelationalNode( workspace.getRelationalModel() );
+  /**
+   * Re-enables events once a background run has ended, however it ended, unless a newer run has taken over and will
+   * do so itself. The UI is only refreshed after runs that were neither superseded nor cancelled.
+   */
+  private abstract static class UiRefreshListener implements AutoModelExecutor.Listener {
+    private final Display display;
+
+    UiRefreshListener( Display display ) {
+      this.display = display;
+    }
+
+    public void started( ModelerWorkspace workspace, AutoModelExecutor.Kind kind ) {
+    }
+
+    public void finished( final ModelerWorkspace workspace, final AutoModelExecutor.Kind kind,
+        AutoModelExecutor.Status status, Exception error ) {
+      // a newer run refreshes instead, or the workspace has been closed
+      final boolean current =
+          status != AutoModelExecutor.Status.SUPERSEDED && status != AutoModelExecutor.Status.CANCELLED;
+      Runnable refresh = new Runnable() {
+        public void run() {
+          if ( !AutoModelExecutor.getInstance().isActive( workspace, kind ) ) {
+            restore();
+            if ( current ) {
+              refresh();
+            }
           }
-        } );
+        }
+      };
+      if ( display == null || display.isDisposed() ) {
+        refresh.run();
+      } else {
+        display.asyncExec( refresh );
       }
-    };
-    new Thread( worker ).start();
+    }
+
+    protected abstract void restore();
+
+    protected abstract void refresh();
   }
 
   @Override
@@ -198,19 +252,54 @@ public class SpoonModelerWorkspaceHelper extends BaseModelerWorkspaceHelper impl
     return strategy;
   }
 
+  /**
+   * Returns the geo context configured in geoRoles.properties. The file is only read again when it changes on disk,
+   * but every caller gets a context of its own, because contexts are mutable and used from several threads.
+   *
+   * @return the geo context, or {@code null} if it cannot be loaded
+   */
   public static GeoContext initGeoContext() {
+    return initGeoContext( new File( GEO_CONFIG_FILE_LOCATION ) );
+  }
 
+  static GeoContext initGeoContext( File file ) {
+    Properties props = getGeoProperties( file );
+    if ( props == null ) {
+      return null;
+    }
     try {
-      FileInputStream fis = new FileInputStream( new File( GEO_CONFIG_FILE_LOCATION ) );
-      Properties props = new Properties();
-      props.load( fis );
-      GeoContextPropertiesProvider config = new GeoContextPropertiesProvider( props );
-
-      return GeoContextFactory.create( config );
+      return GeoContextFactory.create( new GeoContextPropertiesProvider( props ) );
     } catch ( Exception e ) {
-      //
+      return null;
+    }
+  }
+
+  /**
+   * @return a copy of the file's properties, or {@code null} if it cannot be read
+   */
+  private static synchronized Properties getGeoProperties( File file ) {
+    long lastModified = file.lastModified();
+    long length = file.length();
+    if ( !file.getPath().equals( geoPropertiesFile ) || lastModified != geoContextLastModified
+        || length != geoContextLength ) {
+      Properties props = null;
+      FileInputStream fis = null;
+      try {
+        fis = new FileInputStream( file );
+        props = new Properties();
+        props.load( fis );
+      } catch ( Exception e ) {
+        props = null;
+      } finally {
+        IOUtils.closeQuietly( fis );
+      }
+      // a failed load is remembered too, so a missing file is not retried for every workspace
+      cachedGeoProperties = props;
+      geoPropertiesFile = file.getPath();
+      geoContextLastModified = lastModified;
+      geoContextLength = length;
     }
-    return null;
+    return cachedGeoProperties == null ? null : (Properties) cachedGeoProperties.clone();
   }
 
 }
@@ -0,0 +1,218 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.spoon;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.lang.SerializationUtils;
+import org.pentaho.agilebi.modeler.ModelerException;
+import org.pentaho.agilebi.modeler.util.ModelerSourceUtil;
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.database.DatabaseMeta;
+import org.pentaho.di.core.exception.KettleDatabaseException;
+import org.pentaho.metadata.model.Domain;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Caches the table metadata (columns, data types and keys) harvested over JDBC by
+ * {@link ModelerSourceUtil#generateDomain(DatabaseMeta, String, String)}. Entries are keyed by connection, schema and
+ * table, expire after {@link #getTimeToLive()} milliseconds and can be invalidated explicitly when the user asks for
+ * fresh metadata.
+ * <p>
+ * Every caller receives its own copy of the generated {@link Domain}, so models built from the same table never
+ * share state.
+ */
+public class TableMetadataCache {
+
+  /**
+   * System property that overrides the time to live of cached metadata, in milliseconds. 0 disables caching.
+   */
+  public static final String TTL_PROPERTY = "KETTLE_AGILEBI_METADATA_CACHE_TTL"; //$NON-NLS-1$
+
+  public static final long DEFAULT_TTL = 10 * 60 * 1000L;
+
+  public static final int MAX_ENTRIES = 256;
+
+  private static Logger logger = LoggerFactory.getLogger(TableMetadataCache.class);
+
+  private static TableMetadataCache instance = new TableMetadataCache(
+      Const.toLong(System.getProperty(TTL_PROPERTY), DEFAULT_TTL));
+
+  private final Map<String, CachedMetadata> entries = new LinkedHashMap<String, CachedMetadata>(16, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, CachedMetadata> eldest) {
+      return size() > MAX_ENTRIES;
+    }
+  };
+
+  private volatile long timeToLive;
+
+  public TableMetadataCache(long timeToLive) {
+    this.timeToLive = timeToLive;
+  }
+
+  public static TableMetadataCache getInstance() {
+    return instance;
+  }
+
+  /**
+   * Returns a domain describing {@code tableName}, harvesting the table metadata from the database only if it is not
+   * cached or the cached copy has expired.
+   *
+   * @param databaseMeta Connection the table lives in
+   * @param schemaName Schema of the table (optional)
+   * @param tableName Table to describe
+   * @return a domain the caller is free to modify
+   * @throws ModelerException if the metadata cannot be read
+   */
+  public Domain generateDomain(DatabaseMeta databaseMeta, String schemaName, String tableName) throws ModelerException {
+    if (timeToLive <= 0 || databaseMeta == null) {
+      return harvest(databaseMeta, schemaName, tableName);
+    }
+
+    String key = createKey(databaseMeta, schemaName, tableName);
+    CachedMetadata cached;
+    synchronized (entries) {
+      cached = entries.get(key);
+      if (cached != null && cached.isExpired(timeToLive)) {
+        entries.remove(key);
+        cached = null;
+      }
+    }
+
+    if (cached == null) {
+      cached = new CachedMetadata(harvest(databaseMeta, schemaName, tableName));
+      synchronized (entries) {
+        entries.put(key, cached);
+      }
+    }
+    return (Domain) SerializationUtils.clone(cached.domain);
+  }
+
+  /**
+   * Harvests the table metadata from the database without consulting the cache, and replaces any cached copy with
+   * the result.
+   *
+   * @param databaseMeta Connection the table lives in
+   * @param schemaName Schema of the table (optional)
+   * @param tableName Table to describe
+   * @return a domain the caller is free to modify
+   * @throws ModelerException if the metadata cannot be read
+   */
+  public Domain refreshDomain(DatabaseMeta databaseMeta, String schemaName, String tableName) throws ModelerException {
+    invalidate(databaseMeta, schemaName, tableName);
+    return generateDomain(databaseMeta, schemaName, tableName);
+  }
+
+  /**
+   * Drops the cached metadata for a single table.
+   */
+  public void invalidate(DatabaseMeta databaseMeta, String schemaName, String tableName) {
+    if (databaseMeta == null) {
+      return;
+    }
+    String key = createKey(databaseMeta, schemaName, tableName);
+    synchronized (entries) {
+      entries.remove(key);
+    }
+  }
+
+  /**
+   * Drops the cached metadata for every table of a connection, e.g. after the connection has been edited.
+   */
+  public void invalidate(DatabaseMeta databaseMeta) {
+    if (databaseMeta == null) {
+      return;
+    }
+    String prefix = createConnectionKey(databaseMeta);
+    synchronized (entries) {
+      for (Iterator<String> keys = entries.keySet().iterator(); keys.hasNext();) {
+        if (keys.next().startsWith(prefix)) {
+          keys.remove();
+        }
+      }
+    }
+  }
+
+  public void clear() {
+    synchronized (entries) {
+      entries.clear();
+    }
+  }
+
+  public int size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  public long getTimeToLive() {
+    return timeToLive;
+  }
+
+  public void setTimeToLive(long timeToLive) {
+    this.timeToLive = timeToLive;
+  }
+
+  protected Domain harvest(DatabaseMeta databaseMeta, String schemaName, String tableName) throws ModelerException {
+    long start = System.currentTimeMillis();
+    Domain domain = ModelerSourceUtil.generateDomain(databaseMeta, schemaName, tableName);
+    if (logger.isDebugEnabled()) {
+      logger.debug("Harvested metadata for " + tableName + " in " + (System.currentTimeMillis() - start) + "ms"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+    }
+    return domain;
+  }
+
+  /**
+   * The connection part of the key is the connection's name, URL and user, so that pointing a connection elsewhere
+   * results in a fresh harvest. The password is left out so that it isn't kept in a long-lived map.
+   */
+  private static String createConnectionKey(DatabaseMeta databaseMeta) {
+    String url;
+    try {
+      url = databaseMeta.getURL();
+    } catch (KettleDatabaseException e) {
+      url = databaseMeta.getHostname() + ':' + databaseMeta.getDatabasePortNumberString() + '/'
+          + databaseMeta.getDatabaseName();
+    }
+    return Const.NVL(databaseMeta.getName(), "") + '\u0000' + Const.NVL(url, "") + '\u0000' //$NON-NLS-1$ //$NON-NLS-2$
+        + Const.NVL(databaseMeta.getUsername(), "") + '\u0000'; //$NON-NLS-1$
+  }
+
+  private static String createKey(DatabaseMeta databaseMeta, String schemaName, String tableName) {
+    return createConnectionKey(databaseMeta) + Const.NVL(schemaName, "") + '\u0000' + Const.NVL(tableName, ""); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+
+  private static class CachedMetadata {
+    final Domain domain;
+    final long created = System.currentTimeMillis();
+
+    CachedMetadata(Domain domain) {
+      this.domain = domain;
+    }
+
+    boolean isExpired(long timeToLive) {
+      return System.currentTimeMillis() - created > timeToLive;
+    }
+  }
+}
@@ -0,0 +1,250 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.spoon;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.FileUtils;
+import org.pentaho.agilebi.modeler.ModelerWorkspace;
+import org.pentaho.agilebi.platform.DomainCache;
+import org.pentaho.agilebi.platform.InstaviewDatasourceService;
+import org.pentaho.di.core.Const;
+import org.pentaho.metadata.model.Domain;
+import org.pentaho.metadata.util.XmiParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps track of the temporary models created for Quick Visualize and friends. Names come from a counter instead of
+ * probing the file system, and a model is only written to its .xmi file once something actually needs the file
+ * (see {@link #materialize(String)}), which is also the only time its XMI is generated. Until then the store holds the
+ * domain the model had when it was added, not the workspace itself, so closed workspaces can be collected.
+ * <p>
+ * At most {@link #getLimit()} temporary models are kept; the least recently used ones are dropped and their files
+ * deleted. A model whose workspace is still reachable, e.g. from an open tab, is never dropped, even if that means
+ * exceeding the limit for a while.
+ * <p>
+ * Files left behind by a previous session are deleted on a background thread when the store is created.
+ */
+public class TemporaryModelStore implements DomainCache.FileMaterializer {
+
+  /**
+   * System property that overrides the maximum number of temporary models kept.
+   */
+  public static final String LIMIT_PROPERTY = "KETTLE_AGILEBI_TEMP_MODEL_LIMIT"; //$NON-NLS-1$
+
+  public static final int DEFAULT_LIMIT = 20;
+
+  public static final String DEFAULT_FOLDER = "models"; //$NON-NLS-1$
+
+  private static final String MODEL_PREFIX = "Model "; //$NON-NLS-1$
+
+  private static final Pattern MODEL_FILE = Pattern.compile(MODEL_PREFIX + "(\\d+)\\.xmi"); //$NON-NLS-1$
+
+  private static Logger logger = LoggerFactory.getLogger(TemporaryModelStore.class);
+
+  private static TemporaryModelStore instance;
+
+  private final File folder;
+
+  private final int limit;
+
+  private int counter;
+
+  /** in access order, least recently used first */
+  private final Map<String, TemporaryModel> models = new LinkedHashMap<String, TemporaryModel>(16, 0.75f, true);
+
+  public TemporaryModelStore(File folder, int limit) {
+    if (limit < 1) {
+      throw new IllegalArgumentException("limit must be at least 1");
+    }
+    this.folder = folder;
+    this.limit = limit;
+    cleanupPreviousSession();
+  }
+
+  public static synchronized TemporaryModelStore getInstance() {
+    if (instance == null) {
+      instance = new TemporaryModelStore(new File(DEFAULT_FOLDER), Const.toInt(System.getProperty(LIMIT_PROPERTY), DEFAULT_LIMIT));
+      DomainCache.getInstance().setFileMaterializer(instance);
+    }
+    return instance;
+  }
+
+  /**
+   * @return a model name no other temporary model of this session uses
+   */
+  public synchronized String nextModelName() {
+    return MODEL_PREFIX + (++counter);
+  }
+
+  /**
+   * @return the file a temporary model of the given name is (or will be) stored in
+   */
+  public String getFileName(String modelName) {
+    return folder.getPath() + "/" + modelName + ".xmi"; //$NON-NLS-1$ //$NON-NLS-2$
+  }
+
+  /**
+   * Registers a temporary model whose domain has been populated. The file is not written until
+   * {@link #materialize(String)} is called for it.
+   *
+   * @param fileName File the model belongs in, see {@link #getFileName(String)}
+   * @param model Model to store
+   */
+  public void add(String fileName, ModelerWorkspace model) {
+    TemporaryModel temporaryModel = new TemporaryModel(model, model == null ? null : model.getDomain());
+    synchronized (this) {
+      models.put(getKey(fileName), temporaryModel);
+      evict();
+    }
+    DomainCache.getInstance().invalidate(fileName);
+  }
+
+  /**
+   * @return the XMI a model's file is written with
+   */
+  String generateXmi(Domain domain) {
+    return new XmiParser().generateXmi(domain);
+  }
+
+  /**
+   * Drops least recently used models until the limit is met, skipping the ones whose workspace is still reachable.
+   */
+  private void evict() {
+    for (Iterator<Map.Entry<String, TemporaryModel>> i = models.entrySet().iterator(); i.hasNext() && models.size() > limit;) {
+      Map.Entry<String, TemporaryModel> entry = i.next();
+      if (!entry.getValue().isInUse()) {
+        i.remove();
+        discard(entry.getKey(), entry.getValue());
+      }
+    }
+  }
+
+  public synchronized boolean contains(String fileName) {
+    return fileName != null && models.containsKey(getKey(fileName));
+  }
+
+  /**
+   * Makes sure the file of a temporary model exists, writing it if this has not happened yet. Files this store does
+   * not know about are left alone.
+   *
+   * @param fileName File that is about to be read
+   * @return {@code true} if the file belongs to a temporary model
+   */
+  public boolean materialize(String fileName) throws IOException {
+    if (fileName == null) {
+      return false;
+    }
+    TemporaryModel temporaryModel;
+    synchronized (this) {
+      temporaryModel = models.get(getKey(fileName));
+    }
+    if (temporaryModel == null) {
+      return false;
+    }
+    synchronized (temporaryModel) {
+      if (!temporaryModel.written) {
+        folder.mkdirs();
+        FileUtils.writeStringToFile(new File(fileName), generateXmi(temporaryModel.domain), "UTF-8"); //$NON-NLS-1$
+        DomainCache.getInstance().invalidate(fileName);
+        temporaryModel.written = true;
+        // the file holds it now
+        temporaryModel.domain = null;
+      }
+    }
+    return true;
+  }
+
+  public synchronized int size() {
+    return models.size();
+  }
+
+  public int getLimit() {
+    return limit;
+  }
+
+  private void discard(String key, TemporaryModel temporaryModel) {
+    InstaviewDatasourceService.releaseDataSource(key);
+    if (temporaryModel.written) {
+      new File(key).delete();
+      DomainCache.getInstance().invalidate(key);
+    }
+  }
+
+  private String getKey(String fileName) {
+    return new File(fileName).getAbsolutePath();
+  }
+
+  /**
+   * Continues numbering after the models left behind by a previous session and deletes them in the background,
+   * so that starting Spoon does not wait for the deletes.
+   */
+  private void cleanupPreviousSession() {
+    File[] files = folder.listFiles();
+    if (files == null || files.length == 0) {
+      return;
+    }
+    final List<File> stale = new ArrayList<File>(files.length);
+    for (File file : files) {
+      Matcher matcher = MODEL_FILE.matcher(file.getName());
+      if (matcher.matches()) {
+        counter = Math.max(counter, Const.toInt(matcher.group(1), 0));
+      }
+      stale.add(file);
+    }
+    Thread cleanup = new Thread(new Runnable() {
+      public void run() {
+        for (File file : stale) {
+          if (!file.delete() && file.exists()) {
+            logger.debug("Could not delete temporary model " + file); //$NON-NLS-1$
+          }
+        }
+      }
+    }, "AgileBI temporary model cleanup"); //$NON-NLS-1$
+    cleanup.setDaemon(true);
+    cleanup.setPriority(Thread.MIN_PRIORITY);
+    cleanup.start();
+  }
+
+  private static class TemporaryModel {
+    /** only used to tell whether the workspace is still in use */
+    final WeakReference<ModelerWorkspace> model;
+    /** guarded by this, {@code null} once written */
+    Domain domain;
+    volatile boolean written;
+
+    TemporaryModel(ModelerWorkspace model, Domain domain) {
+      this.model = new WeakReference<ModelerWorkspace>(model);
+      this.domain = domain;
+    }
+
+    boolean isInUse() {
+      return model.get() != null;
+    }
+  }
+}
@@ -17,6 +17,7 @@
 
 package org.pentaho.agilebi.spoon.modeler;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -31,8 +32,11 @@ import org.pentaho.agilebi.modeler.ModelerWorkspace;
 import org.pentaho.agilebi.modeler.util.ISpoonModelerSource;
 import org.pentaho.agilebi.modeler.util.ModelerWorkspaceUtil;
 import org.pentaho.agilebi.modeler.util.TableModelerSource;
+import org.pentaho.agilebi.platform.DomainCache;
+import org.pentaho.agilebi.spoon.ModelerHelper;
 import org.pentaho.agilebi.spoon.OutputStepModelerSource;
 import org.pentaho.agilebi.spoon.SpoonModelerWorkspaceHelper;
+import org.pentaho.agilebi.spoon.TemporaryModelStore;
 import org.pentaho.agilebi.spoon.publish.PublisherHelper;
 import org.pentaho.agilebi.spoon.visualizations.IVisualization;
 import org.pentaho.agilebi.spoon.visualizations.VisualizationManager;
@@ -249,6 +253,11 @@ public class SpoonModelerController extends ModelerController {
 
   public void publish() throws ModelerException{
     String publishingFile = workspace.getFileName();
+    try {
+      TemporaryModelStore.getInstance().materialize(publishingFile);
+    } catch (IOException e) {
+      throw new ModelerException(e);
+    }
     int treeDepth = 0;
     DatabaseMeta databaseMeta = ((ISpoonModelerSource) workspace.getModelSource()).getDatabaseMeta();
     boolean checkDatasources = true;
@@ -326,9 +335,11 @@ public class SpoonModelerController extends ModelerController {
       return false;
     }
     ModelerWorkspaceUtil.saveWorkspace(workspace, fileName);
+    DomainCache.getInstance().invalidate(fileName);
     workspace.setFileName(fileName);
     workspace.setDirty(false);
     workspace.setTemporary(false);
+    ModelerHelper.registerModelLineage(workspace);
     return true;
   }
 
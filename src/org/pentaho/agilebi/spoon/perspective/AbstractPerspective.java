@@ -158,6 +158,10 @@ public abstract class AbstractPerspective extends AbstractXulEventHandler implem
 
   public abstract String getId();
 
+  public boolean hasOpenTabs() {
+    return tabs != null && tabs.getTabCount() > 0;
+  }
+
   public final Composite getUI() {
     return (Composite) container.getDocumentRoot().getRootElement().getFirstChild().getManagedObject();
   }
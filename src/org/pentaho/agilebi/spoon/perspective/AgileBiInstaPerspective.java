@@ -433,6 +433,20 @@ public class AgileBiInstaPerspective extends AbstractPerspective implements Spoo
     return false;
   }
   
+  /**
+   * Unloads the Instaview page after the platform serving it has been stopped, so that it is loaded afresh by
+   * {@link #onStart()} once the platform runs again.
+   */
+  public void onStop() {
+    display.asyncExec(new Runnable() {
+      public void run() {
+        if (browser != null) {
+          browser.setSrc("about:blank"); //$NON-NLS-1$
+        }
+      }
+    });
+  }
+
   public void shutdown() {
   }
   
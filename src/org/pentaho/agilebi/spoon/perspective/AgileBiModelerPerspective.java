@@ -30,7 +30,6 @@ import java.util.Locale;
 import java.util.Map;
 
 import org.apache.commons.io.IOUtils;
-import org.dom4j.DocumentHelper;
 import org.eclipse.jface.dialogs.MessageDialog;
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.widgets.Composite;
@@ -38,10 +37,11 @@ import org.eclipse.swt.widgets.FileDialog;
 import org.pentaho.agilebi.modeler.IncompatibleModelerException;
 import org.pentaho.agilebi.modeler.ModelerException;
 import org.pentaho.agilebi.modeler.ModelerMessagesHolder;
-import org.pentaho.agilebi.modeler.ModelerPerspective;
 import org.pentaho.agilebi.modeler.ModelerWorkspace;
 import org.pentaho.agilebi.modeler.util.ModelerWorkspaceUtil;
+import org.pentaho.agilebi.spoon.AutoModelExecutor;
 import org.pentaho.agilebi.spoon.ModelerEngineMeta;
+import org.pentaho.agilebi.spoon.MondrianSchemaCache;
 import org.pentaho.agilebi.spoon.SpoonModelerMessages;
 import org.pentaho.agilebi.spoon.SpoonModelerWorkspaceHelper;
 import org.pentaho.agilebi.spoon.XulUI;
@@ -52,9 +52,7 @@ import org.pentaho.di.i18n.BaseMessages;
 import org.pentaho.di.ui.spoon.FileListener;
 import org.pentaho.di.ui.spoon.Spoon;
 import org.pentaho.di.ui.spoon.SpoonPerspectiveManager;
-import org.pentaho.metadata.model.LogicalModel;
 import org.pentaho.metadata.model.concept.types.LocalizedString;
-import org.pentaho.metadata.util.MondrianModelExporter;
 import org.pentaho.ui.xul.XulException;
 import org.pentaho.ui.xul.XulOverlay;
 import org.pentaho.ui.xul.binding.Binding;
@@ -300,6 +298,8 @@ public class AgileBiModelerPerspective extends AbstractPerspective implements Fi
    * @param pos Position of tab being closed
    */
   private void tabClosed(final int pos) {
+    // don't keep modeling a workspace nobody is looking at any more
+    AutoModelExecutor.getInstance().cancel(models.get(pos));
     models.remove(pos);
     metas.remove(tabbox.getTabs().getChildNodes().get(pos));
   }
@@ -324,19 +324,16 @@ public class AgileBiModelerPerspective extends AbstractPerspective implements Fi
     try {
       if (this.model.isValid()) {
         this.model.getWorkspaceHelper().populateDomain(this.model);
-        LogicalModel lModel = this.model.getLogicalModel(ModelerPerspective.ANALYSIS);
 
         FileDialog fileDialog = new FileDialog(Spoon.getInstance().getShell(), SWT.SAVE);
         String[] theExtensions = { "*.xml" };
         fileDialog.setFilterExtensions(theExtensions);
         String theFile = fileDialog.open();
         if(theFile != null) {
-          MondrianModelExporter exporter = new MondrianModelExporter(lModel, LocalizedString.DEFAULT_LOCALE);
-          String mondrianSchema = exporter.createMondrianModelXML();
+          String mondrianSchema = MondrianSchemaCache.getInstance().getSchema(this.model, LocalizedString.DEFAULT_LOCALE);
           logger.info(mondrianSchema);
   
-          org.dom4j.Document schemaDoc = DocumentHelper.parseText(mondrianSchema);
-          byte schemaBytes[] = schemaDoc.asXML().getBytes();
+          byte schemaBytes[] = mondrianSchema.getBytes();
   
           File modelFile = new File(theFile);
           OutputStream out = new FileOutputStream(modelFile);
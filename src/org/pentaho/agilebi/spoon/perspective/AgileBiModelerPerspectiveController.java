@@ -21,17 +21,14 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.OutputStream;
 
-import org.dom4j.DocumentHelper;
 import org.eclipse.jface.dialogs.MessageDialog;
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.widgets.FileDialog;
-import org.pentaho.agilebi.modeler.ModelerPerspective;
 import org.pentaho.agilebi.modeler.ModelerWorkspace;
 import org.pentaho.agilebi.spoon.ModelerEngineMeta;
+import org.pentaho.agilebi.spoon.MondrianSchemaCache;
 import org.pentaho.di.ui.spoon.Spoon;
-import org.pentaho.metadata.model.LogicalModel;
 import org.pentaho.metadata.model.concept.types.LocalizedString;
-import org.pentaho.metadata.util.MondrianModelExporter;
 import org.pentaho.ui.xul.XulDomContainer;
 import org.pentaho.ui.xul.binding.Binding;
 import org.pentaho.ui.xul.binding.BindingFactory;
@@ -95,19 +92,16 @@ public class AgileBiModelerPerspectiveController extends AbstractXulEventHandler
       ModelerWorkspace model = this.meta.getController().getModel();
       if (model.isValid()) {
         model.getWorkspaceHelper().populateDomain(model);
-        LogicalModel lModel = model.getLogicalModel(ModelerPerspective.ANALYSIS);
 
         FileDialog fileDialog = new FileDialog(Spoon.getInstance().getShell(), SWT.SAVE);
         String[] theExtensions = { "*.xml" };
         fileDialog.setFilterExtensions(theExtensions);
         String theFile = fileDialog.open();
         if(theFile != null) {
-          MondrianModelExporter exporter = new MondrianModelExporter(lModel, LocalizedString.DEFAULT_LOCALE);
-          String mondrianSchema = exporter.createMondrianModelXML();
+          String mondrianSchema = MondrianSchemaCache.getInstance().getSchema(model, LocalizedString.DEFAULT_LOCALE);
           logger.info(mondrianSchema);
   
-          org.dom4j.Document schemaDoc = DocumentHelper.parseText(mondrianSchema);
-          byte schemaBytes[] = schemaDoc.asXML().getBytes();
+          byte schemaBytes[] = mondrianSchema.getBytes();
   
           File modelFile = new File(theFile);
           OutputStream out = new FileOutputStream(modelFile);
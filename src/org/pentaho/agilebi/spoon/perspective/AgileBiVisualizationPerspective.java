@@ -33,6 +33,7 @@ import org.eclipse.swt.widgets.Composite;
 import org.pentaho.agilebi.modeler.ModelerException;
 import org.pentaho.agilebi.modeler.ModelerWorkspace;
 import org.pentaho.agilebi.modeler.util.ModelerWorkspaceUtil;
+import org.pentaho.agilebi.platform.InstaviewDatasourceService;
 import org.pentaho.agilebi.spoon.ModelerEngineMeta;
 import org.pentaho.agilebi.spoon.SpoonModelerWorkspaceHelper;
 import org.pentaho.agilebi.spoon.XulUI;
@@ -232,6 +233,8 @@ public class AgileBiVisualizationPerspective extends AbstractPerspective {
       confirm.addDialogCallback(callback);
       confirm.open();
       if(callback.closeIt){
+          releaseDataSource(controller);
+          controller.dispose();
           switchToCaller(contentId);
         return true;
       } else {
@@ -239,9 +242,30 @@ public class AgileBiVisualizationPerspective extends AbstractPerspective {
       }
       
     }
+    releaseDataSource(controller);
+    controller.dispose();
     switchToCaller(contentId);
     return true;
   }
+
+  /**
+   * Closes the connection pool of the closing tab's model, unless another open tab still shows the model.
+   */
+  private void releaseDataSource(AnalyzerVisualizationController closing) {
+    String xmiFile = closing.getXmiFileLocation();
+    if (xmiFile == null) {
+      return;
+    }
+    for (EngineMetaInterface meta : super.metas.values()) {
+      if (meta != selectedMeta && meta instanceof AnalyzerVisualizationMeta) {
+        AnalyzerVisualizationController other = (AnalyzerVisualizationController) ((AnalyzerVisualizationMeta) meta).getController();
+        if (xmiFile.equals(other.getXmiFileLocation())) {
+          return;
+        }
+      }
+    }
+    InstaviewDatasourceService.releaseDataSource(xmiFile);
+  }
   
   
 
@@ -32,12 +32,11 @@ import javax.ws.rs.core.MediaType;
 
 import org.codehaus.jackson.map.ObjectMapper;
 import org.codehaus.jackson.type.TypeReference;
-import org.dom4j.DocumentHelper;
 import org.jfree.util.Log;
 import org.pentaho.agilebi.modeler.ModelerException;
-import org.pentaho.agilebi.modeler.ModelerPerspective;
 import org.pentaho.agilebi.modeler.ModelerWorkspace;
 import org.pentaho.agilebi.modeler.util.ISpoonModelerSource;
+import org.pentaho.agilebi.spoon.MondrianSchemaCache;
 import org.pentaho.database.IDatabaseDialect;
 import org.pentaho.database.model.DatabaseAccessType;
 import org.pentaho.database.model.DatabaseConnection;
@@ -50,9 +49,7 @@ import org.pentaho.di.core.database.DatabaseMeta;
 import org.pentaho.di.core.exception.KettleDatabaseException;
 import org.pentaho.di.core.gui.SpoonFactory;
 import org.pentaho.di.i18n.BaseMessages;
-import org.pentaho.metadata.model.LogicalModel;
 import org.pentaho.metadata.model.concept.types.LocalizedString;
-import org.pentaho.metadata.util.MondrianModelExporter;
 import org.pentaho.platform.api.engine.PentahoAccessControlException;
 import org.pentaho.platform.api.repository2.unified.RepositoryFile;
 import org.pentaho.platform.dataaccess.datasource.wizard.service.ConnectionServiceException;
@@ -142,7 +139,7 @@ public class ModelServerPublish {
   }
 
   public ModelServerPublish(BiServerConnection aBiServerConnection) {
-    super();
+    this();
     this.setBiServerConnection(aBiServerConnection);
   }
 
@@ -462,6 +459,37 @@ public class ModelServerPublish {
   }
 
 
+  /**
+   * Publishes a Mondrian schema and its metadata model to the current BI server without any user interaction.
+   * Safe to call from several threads on the same instance; the underlying Jersey client is shared.
+   * @param schemaFile Mondrian schema to publish
+   * @param xmiFile metadata model to publish
+   * @param modelName catalog name, also used as the metadata domain id
+   * @param datasourceName name of the server side datasource the schema queries
+   * @param overwrite replace an existing catalog of the same name
+   * @return one of the PUBLISH_* codes
+   * @throws Exception
+   */
+  public int publishModel(File schemaFile, File xmiFile, String modelName, String datasourceName, boolean overwrite)
+      throws Exception {
+    int result;
+    InputStream schema = new FileInputStream(schemaFile);
+    try {
+      result = publishMondrainSchema(schema, modelName, datasourceName, overwrite);
+    } finally {
+      schema.close();
+    }
+    if (result != ModelServerPublish.PUBLISH_SUCCESS) {
+      return result;
+    }
+    InputStream metadata = new FileInputStream(xmiFile);
+    try {
+      return publishMetaDataFile(metadata, modelName + EXTENSION_XMI);
+    } finally {
+      metadata.close();
+    }
+  }
+
   /**
    * Publishes the specified file, model, schema, and connection to the current BI server
    * using new REST Services
@@ -760,13 +788,8 @@ public class ModelServerPublish {
     publishFile = new File(modelsDir, schemaName);
     publishFile.createNewFile();
 
-    LogicalModel lModel = this.model.getLogicalModel(ModelerPerspective.ANALYSIS);
-
-    MondrianModelExporter exporter = new MondrianModelExporter(lModel, LocalizedString.DEFAULT_LOCALE);
-    String mondrianSchema = exporter.createMondrianModelXML();
-
-    org.dom4j.Document schemaDoc = DocumentHelper.parseText(mondrianSchema);
-    byte schemaBytes[] = schemaDoc.asXML().getBytes();
+    String mondrianSchema = MondrianSchemaCache.getInstance().getSchema(this.model, LocalizedString.DEFAULT_LOCALE);
+    byte schemaBytes[] = mondrianSchema.getBytes();
 
     if (!publishFile.exists()) {
       throw new ModelerException("Schema file does not exist"); //$NON-NLS-1$
@@ -785,7 +808,7 @@ public class ModelServerPublish {
       showFeedback(result);
       return result;
     }
-    result = handleModelOverwrite(jndiName, modelName, showFeedback, schemaDoc, result);
+    result = handleModelOverwrite(jndiName, modelName, showFeedback, schemaBytes, result);
 
     return result;
   }
@@ -804,13 +827,12 @@ public class ModelServerPublish {
   }
 
   private int handleModelOverwrite(String jndiName, String modelName, boolean showFeedback,
-      org.dom4j.Document schemaDoc, int result) throws Exception {
+      byte schemaBytes[], int result) throws Exception {
     int response = result;
     if (showFeedback) {
       if (showFeedback(result)) {
         //Handle Overwrite the byte stream has already be read - need to re-read
-        byte schemaBytes2[] = schemaDoc.asXML().getBytes();
-        InputStream schema2 = new ByteArrayInputStream(schemaBytes2);
+        InputStream schema2 = new ByteArrayInputStream(schemaBytes);
         response = publishMondrainSchema(schema2, modelName, jndiName, true);
         showFeedback(response);
       }
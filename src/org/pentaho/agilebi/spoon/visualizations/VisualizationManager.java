@@ -38,7 +38,7 @@ public class VisualizationManager {
 
 	public static final String PLUGIN_FILE = "plugin.xml"; //$NON-NLS-1$
 
-	public static VisualizationManager getInstance() {
+	public static synchronized VisualizationManager getInstance() {
 	  if (instance == null) {
 	    instance = new VisualizationManager("plugins/spoon/agile-bi/visualizations"); //$NON-NLS-1$
 	  }
@@ -0,0 +1,380 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.spoon.visualizations.analyzer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.pentaho.agilebi.platform.EmbeddedPlatform;
+import org.pentaho.agilebi.platform.InstaviewDatasourceService;
+import org.pentaho.agilebi.platform.MondrianCacheFlusher;
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.KettleEnvironment;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Exports saved Analyzer reports through the embedded platform's export service, without a browser. Reports run
+ * concurrently, each result is streamed to a file and timed. Meant for regenerating reports after their data was
+ * reloaded, so the caches of the reports' models are flushed first.
+ * <p>
+ * Runs inside Spoon, using its platform, or from the command line, where it starts the platform itself. Like Spoon it
+ * must then be started in the PDI folder, so that the platform and the models are found.
+ * <p>
+ * Usage: {@code AnalyzerBatchExporter [-output dir] [-format PDF|CSV|EXCEL]... [-threads n] report.xanalyzer...}
+ */
+public class AnalyzerBatchExporter {
+
+  public static final String PARALLELISM_PROPERTY = "KETTLE_AGILEBI_EXPORT_PARALLELISM"; //$NON-NLS-1$
+
+  public static final String URL_PROPERTY = "KETTLE_AGILEBI_EXPORT_URL"; //$NON-NLS-1$
+
+  public static final int DEFAULT_PARALLELISM = 2;
+
+  /** ${port}, ${path} and ${format} are filled in per export */
+  public static final String DEFAULT_URL =
+      "http://localhost:${port}/pentaho/api/repos/${path}/export?outputFormat=${format}"; //$NON-NLS-1$
+
+  /** milliseconds a report may take to render */
+  private static final int READ_TIMEOUT = 10 * 60 * 1000;
+
+  private static final int CONNECT_TIMEOUT = 30 * 1000;
+
+  private static Logger logger = LoggerFactory.getLogger(AnalyzerBatchExporter.class);
+
+  public enum Format {
+    PDF("PDF", "pdf"), CSV("CSV", "csv"), EXCEL("EXCEL", "xlsx"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$ //$NON-NLS-6$
+
+    private final String outputFormat;
+
+    private final String extension;
+
+    private Format(String outputFormat, String extension) {
+      this.outputFormat = outputFormat;
+      this.extension = extension;
+    }
+
+    public String getOutputFormat() {
+      return outputFormat;
+    }
+
+    public String getExtension() {
+      return extension;
+    }
+  }
+
+  /**
+   * The outcome of exporting one report to one format.
+   */
+  public static class Result {
+    private final File report;
+    private final Format format;
+    private final File output;
+    private long millis;
+    private long bytes;
+    private Exception error;
+
+    Result(File report, Format format, File output) {
+      this.report = report;
+      this.format = format;
+      this.output = output;
+    }
+
+    public File getReport() {
+      return report;
+    }
+
+    public Format getFormat() {
+      return format;
+    }
+
+    public File getOutput() {
+      return output;
+    }
+
+    public long getMillis() {
+      return millis;
+    }
+
+    public long getBytes() {
+      return bytes;
+    }
+
+    /**
+     * @return why the export failed, {@code null} if it succeeded
+     */
+    public Exception getError() {
+      return error;
+    }
+
+    public boolean isSuccess() {
+      return error == null;
+    }
+  }
+
+  private final String urlTemplate;
+
+  private final int parallelism;
+
+  /** whether to start and use the embedded platform, off in tests */
+  private final boolean embedded;
+
+  public AnalyzerBatchExporter() {
+    this(Const.NVL(System.getProperty(URL_PROPERTY), DEFAULT_URL), Const.toInt(System
+        .getProperty(PARALLELISM_PROPERTY), DEFAULT_PARALLELISM));
+  }
+
+  /**
+   * @param urlTemplate Export service, see {@link #DEFAULT_URL}
+   * @param parallelism Reports exported at the same time
+   */
+  public AnalyzerBatchExporter(String urlTemplate, int parallelism) {
+    this(urlTemplate, parallelism, true);
+  }
+
+  AnalyzerBatchExporter(String urlTemplate, int parallelism, boolean embedded) {
+    this.urlTemplate = urlTemplate;
+    this.parallelism = Math.max(1, parallelism);
+    this.embedded = embedded;
+  }
+
+  /**
+   * Exports every report to every format. Failures are reported in the results, they don't stop the batch.
+   *
+   * @param reports .xanalyzer files
+   * @param formats Formats to export each report to
+   * @param outputDir Directory for the exports, named after the reports
+   * @return a result per report and format, in the order of the reports
+   */
+  public List<Result> export(List<File> reports, Collection<Format> formats, File outputDir) throws Exception {
+    if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+      throw new IOException("Could not create " + outputDir); //$NON-NLS-1$
+    }
+    int port = 0;
+    if (embedded) {
+      EmbeddedPlatform platform = EmbeddedPlatform.getInstance();
+      // started by Spoon at startup, outside of it this starts it
+      platform.startServer("localhost").get(); //$NON-NLS-1$
+      platform.ensureStarted();
+      port = platform.getPort();
+      flushCaches(reports);
+    }
+
+    List<Result> results = new ArrayList<Result>();
+    List<Future<Result>> futures = new ArrayList<Future<Result>>();
+    Set<String> names = new HashSet<String>();
+    ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+    long start = System.currentTimeMillis();
+    try {
+      for (File report : reports) {
+        String name = getOutputName(report, names);
+        for (Format format : formats) {
+          final Result result = new Result(report, format, new File(outputDir, name + "." + format.getExtension())); //$NON-NLS-1$
+          final String url = getUrl(port, report, format);
+          results.add(result);
+          futures.add(executor.submit(new Callable<Result>() {
+            public Result call() throws Exception {
+              return export(url, result);
+            }
+          }));
+        }
+      }
+      for (Future<Result> future : futures) {
+        try {
+          future.get();
+        } catch (ExecutionException e) {
+          // recorded in the result
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    int failed = 0;
+    for (Result result : results) {
+      if (!result.isSuccess()) {
+        failed++;
+      }
+    }
+    logger.info("Finished " + (results.size() - failed) + " of " + results.size() + " exports in " //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        + (System.currentTimeMillis() - start) + "ms"); //$NON-NLS-1$
+    return results;
+  }
+
+  String getUrl(int port, File report, Format format) {
+    String path = AnalyzerVisualization.encodeString(AnalyzerVisualization.convertPathToRepoUrlFormat(report
+        .getAbsolutePath()));
+    return urlTemplate.replace("${port}", Integer.toString(port)).replace("${path}", path) //$NON-NLS-1$ //$NON-NLS-2$
+        .replace("${format}", format.getOutputFormat()); //$NON-NLS-1$
+  }
+
+  /**
+   * @return the report's name, numbered if another report of the batch has the same name
+   */
+  static String getOutputName(File report, Set<String> used) {
+    String name = report.getName();
+    if (name.endsWith(".xanalyzer")) { //$NON-NLS-1$
+      name = name.substring(0, name.length() - ".xanalyzer".length()); //$NON-NLS-1$
+    }
+    String unique = name;
+    for (int i = 2; !used.add(unique); i++) {
+      unique = name + " (" + i + ")"; //$NON-NLS-1$ //$NON-NLS-2$
+    }
+    return unique;
+  }
+
+  private Result export(String url, Result result) {
+    long start = System.currentTimeMillis();
+    File part = new File(result.output.getPath() + ".part"); //$NON-NLS-1$
+    try {
+      // the platform is not shut down while it is handling the request
+      HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+      connection.setConnectTimeout(CONNECT_TIMEOUT);
+      connection.setReadTimeout(READ_TIMEOUT);
+      try {
+        int status = connection.getResponseCode();
+        if (status != HttpURLConnection.HTTP_OK) {
+          throw new IOException("The export service answered " + status + " " + connection.getResponseMessage()); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        InputStream in = connection.getInputStream();
+        try {
+          result.bytes = copy(in, part);
+        } finally {
+          in.close();
+        }
+      } finally {
+        connection.disconnect();
+      }
+      if ((result.output.exists() && !result.output.delete()) || !part.renameTo(result.output)) {
+        throw new IOException("Could not replace " + result.output); //$NON-NLS-1$
+      }
+    } catch (Exception e) {
+      part.delete();
+      result.error = e;
+    }
+    result.millis = System.currentTimeMillis() - start;
+    if (result.isSuccess()) {
+      logger.info("Exported " + result.report + " to " + result.output + " in " + result.millis + "ms"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+    } else {
+      logger.warn("Could not export " + result.report + " to " + result.format + ": " + result.error.getMessage()); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+    }
+    return result;
+  }
+
+  private static long copy(InputStream in, File file) throws IOException {
+    OutputStream out = new FileOutputStream(file);
+    try {
+      byte[] buffer = new byte[8192];
+      long total = 0;
+      int n;
+      while ((n = in.read(buffer)) != -1) {
+        out.write(buffer, 0, n);
+        total += n;
+      }
+      return total;
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Makes the reports see the data as it is now: drops the cached schemas, members, cells and query results of
+   * their models.
+   */
+  private static void flushCaches(List<File> reports) {
+    Map<String, String> cubes = new HashMap<String, String>();
+    for (File report : reports) {
+      try {
+        XAnalyzerHeader header = XAnalyzerHeader.read(report);
+        cubes.put(header.getCatalog(), header.getCube());
+      } catch (IOException e) {
+        // fails again, and is reported, when exported
+        logger.debug("Could not read " + report, e); //$NON-NLS-1$
+      }
+    }
+    for (Map.Entry<String, String> cube : cubes.entrySet()) {
+      MondrianCacheFlusher.flushCatalog(cube.getKey(), cube.getValue());
+      InstaviewDatasourceService.invalidateResults(cube.getKey());
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    KettleEnvironment.init();
+
+    File outputDir = new File("exports"); //$NON-NLS-1$
+    int threads = Const.toInt(System.getProperty(PARALLELISM_PROPERTY), DEFAULT_PARALLELISM);
+    Set<Format> formats = new LinkedHashSet<Format>();
+    List<File> reports = new ArrayList<File>();
+    try {
+      for (int i = 0; i < args.length; i++) {
+        String arg = args[i];
+        if ("-output".equals(arg)) { //$NON-NLS-1$
+          outputDir = new File(args[++i]);
+        } else if ("-format".equals(arg)) { //$NON-NLS-1$
+          formats.add(Format.valueOf(args[++i].toUpperCase()));
+        } else if ("-threads".equals(arg)) { //$NON-NLS-1$
+          threads = Math.max(1, Const.toInt(args[++i], DEFAULT_PARALLELISM));
+        } else {
+          reports.add(new File(arg));
+        }
+      }
+    } catch (ArrayIndexOutOfBoundsException e) {
+      reports.clear();
+    } catch (IllegalArgumentException e) {
+      // unknown format
+      reports.clear();
+    }
+    if (reports.isEmpty()) {
+      logger.error("Usage: AnalyzerBatchExporter [-output dir] [-format PDF|CSV|EXCEL]... [-threads n] report.xanalyzer..."); //$NON-NLS-1$
+      System.exit(2);
+    }
+    if (formats.isEmpty()) {
+      formats.add(Format.PDF);
+    }
+
+    boolean success = true;
+    try {
+      AnalyzerBatchExporter exporter = new AnalyzerBatchExporter(Const.NVL(System.getProperty(URL_PROPERTY),
+          DEFAULT_URL), threads);
+      for (Result result : exporter.export(reports, formats, outputDir)) {
+        success &= result.isSuccess();
+      }
+    } finally {
+      EmbeddedPlatform.getInstance().shutdown();
+    }
+    System.exit(success ? 0 : 1);
+  }
+}
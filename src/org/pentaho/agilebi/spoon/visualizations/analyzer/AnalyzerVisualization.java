@@ -18,13 +18,14 @@
 package org.pentaho.agilebi.spoon.visualizations.analyzer;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.net.URLEncoder;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Matcher;
 
 import org.dom4j.Document;
-import org.dom4j.DocumentHelper;
+import org.dom4j.io.SAXReader;
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.layout.GridData;
 import org.eclipse.swt.widgets.Composite;
@@ -35,17 +36,20 @@ import org.pentaho.agilebi.modeler.IModelerSource;
 import org.pentaho.agilebi.modeler.ModelerPerspective;
 import org.pentaho.agilebi.modeler.ModelerWorkspace;
 import org.pentaho.agilebi.modeler.util.ModelerSourceFactory;
+import org.pentaho.agilebi.platform.CachePrewarmer;
+import org.pentaho.agilebi.platform.DomainCache;
+import org.pentaho.agilebi.platform.MondrianCacheFlusher;
 import org.pentaho.agilebi.spoon.ModelerHelper;
-import org.pentaho.agilebi.spoon.PDIMessages;
 import org.pentaho.agilebi.spoon.SpoonModelerWorkspaceHelper;
+import org.pentaho.agilebi.spoon.TemporaryModelStore;
 import org.pentaho.agilebi.spoon.perspective.AbstractPerspective.XulTabAndPanel;
 import org.pentaho.agilebi.spoon.perspective.AgileBiVisualizationPerspective;
 import org.pentaho.agilebi.spoon.visualizations.AbstractVisualization;
-import org.pentaho.agilebi.spoon.visualizations.IVisualization;
 import org.pentaho.di.core.EngineMetaInterface;
 import org.pentaho.di.core.exception.KettleException;
 import org.pentaho.di.core.gui.SpoonFactory;
 import org.pentaho.di.core.lifecycle.pdi.AgileBILifecycleListener;
+import org.pentaho.di.ui.core.dialog.ErrorDialog;
 import org.pentaho.di.ui.spoon.Spoon;
 import org.pentaho.di.ui.spoon.SpoonPerspectiveManager;
 import org.pentaho.metadata.model.Domain;
@@ -53,16 +57,9 @@ import org.pentaho.metadata.model.LogicalModel;
 import org.pentaho.metadata.registry.Entity;
 import org.pentaho.metadata.registry.IMetadataRegistry;
 import org.pentaho.metadata.registry.Link;
-import org.pentaho.metadata.registry.RegistryFactory;
 import org.pentaho.metadata.registry.Type;
 import org.pentaho.metadata.registry.Verb;
-import org.pentaho.metadata.util.XmiParser;
-import org.pentaho.platform.api.engine.ICacheManager;
-import org.pentaho.platform.engine.core.system.PentahoSystem;
 import org.pentaho.platform.util.RepositoryPathEncoder;
-import org.pentaho.ui.xul.XulDomContainer;
-import org.pentaho.ui.xul.swt.SwtXulLoader;
-import org.pentaho.ui.xul.swt.SwtXulRunner;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Node;
@@ -72,9 +69,13 @@ public class AnalyzerVisualization extends AbstractVisualization {
 	public static final String WEB_VISUALIZATION = "org/pentaho/agilebi/spoon/visualizations/analyzer/analyzer_visualization_browser.xul";
 
 	  private static Logger logger = LoggerFactory.getLogger(AnalyzerVisualization.class);
+
+	/** compiled expressions of {@link #getDocumentText} and {@link #setDocumentText} */
+	private static final ConcurrentMap<String, Dom4jXPath> xpathCache = new ConcurrentHashMap<String, Dom4jXPath>();
 	
 	private String newUrl;
 	private String openUrl;
+	private String shellUrl;
 	private String saveJavascript;
 	private String callerId;
 	
@@ -107,6 +108,17 @@ public class AnalyzerVisualization extends AbstractVisualization {
 	public void setOpenUrl(String openUrl) {
 	  this.openUrl = openUrl;
 	}
+
+	public String getShellUrl() {
+	  return shellUrl;
+	}
+
+	/**
+	 * @param shellUrl Page pooled browsers load ahead of use, so that Analyzer's scripts are cached
+	 */
+	public void setShellUrl(String shellUrl) {
+	  this.shellUrl = shellUrl;
+	}
 	
 
   public void setSaveJavascript(String saveJavascript) {
@@ -182,6 +194,13 @@ public class AnalyzerVisualization extends AbstractVisualization {
     return str.replaceAll( "\\$\\{" + fieldName + "\\}", Matcher.quoteReplacement(value) ); //$NON-NLS-1$ //$NON-NLS-2$
 	}
 	
+	public String generateShellUrl() {
+	  if (shellUrl == null) {
+	    return "about:blank"; //$NON-NLS-1$
+	  }
+	  return replaceField(shellUrl, "port", ""+AgileBILifecycleListener.consolePort, false); //$NON-NLS-1$
+	}
+
 	public String generateNewUrl(String fileLocation, String modelId) {
     String str = replaceField(newUrl, "modelLocation",
       fileLocation, true); //$NON-NLS-1$
@@ -223,53 +242,55 @@ public class AnalyzerVisualization extends AbstractVisualization {
 	}
 	
 	public void createVisualizationFromModel(ModelerWorkspace model, boolean tempModel) {
-		Spoon spoon = ((Spoon)SpoonFactory.getInstance());
+    // the platform may still have to boot
+    if (!AgileBILifecycleListener.waitForPlatform()) {
+      return;
+    }
     try {
-      if(tempModel){
-        ModelerHelper theHelper = ModelerHelper.getInstance();
-        model = theHelper.clone(model);
-      }
-      
-    	SwtXulLoader theXulLoader = new SwtXulLoader();
-
-      theXulLoader.registerClassLoader(getClass().getClassLoader());
-      
-      String theFileName = model.getFileName();
-      if(theFileName == null) {
-        theFileName = "models/" + model.getModelName() + ".xmi";
-      }
-
-      // flush the cache before creating an analyzer visualization
-      flushAnalyzerCache();
-      
-      AnalyzerVisualizationController theController = new AnalyzerVisualizationController(spoon.tabfolder.getSwtTabset(), this, theFileName, model.getModelName(), null, null);
-      theController.setModel(model);
-    	XulDomContainer theXulContainer = theXulLoader.loadXul(WEB_VISUALIZATION, new PDIMessages(IVisualization.class));
-			theXulContainer.addEventHandler(theController);
-			Composite theMainBox = (Composite) theXulContainer.getDocumentRoot().getElementById("mainVBox").getManagedObject();
-			SwtXulRunner theRunner = new SwtXulRunner();
-			theRunner.addContainer(theXulContainer);
-			theRunner.initialize();
-      createTabForBrowser(theMainBox, theController, model);   
-      reportName = "Unsaved Report"; //$NON-NLS-1$
-      String contentId = AgileBiVisualizationPerspective.PERSPECTIVE_ID+"\t"+theController.toString(); //$NON-NLS-1$
-// TODO - JD enable this in Spoon 4.4
-//      Spoon.getInstance().addCaller(callerId, contentId);
-
+      showVisualization(model, tempModel);
     } catch (Throwable e) {
-      throw new RuntimeException(e);
+      showError(e);
     }
   }
-	
-	private void flushAnalyzerCache() {
-    ICacheManager cacheMgr = PentahoSystem.getCacheManager(null);
-    if (cacheMgr != null) {
-      cacheMgr.clearRegionCache("mondrian-catalog-cache"); //$NON-NLS-1$
+
+  private void showVisualization(ModelerWorkspace model, boolean tempModel) throws Exception {
+		Spoon spoon = ((Spoon)SpoonFactory.getInstance());
+    if(tempModel){
+      ModelerHelper theHelper = ModelerHelper.getInstance();
+      model = theHelper.clone(model);
+    }
+    
+    String theFileName = model.getFileName();
+    if(theFileName == null) {
+      theFileName = "models/" + model.getModelName() + ".xmi";
     }
+    // the embedded platform reads the model from disk
+    TemporaryModelStore.getInstance().materialize(theFileName);
 
+    // make the platform read the (possibly regenerated) model again
+    MondrianCacheFlusher.flushCatalogDefinition(theFileName);
+
+    // load the members while the browser starts up
+    CachePrewarmer.getInstance().prewarm(theFileName, model.getModelName());
     
-	}
+    AnalyzerVisualizationController theController = new AnalyzerVisualizationController(spoon.tabfolder.getSwtTabset(), this, theFileName, model.getModelName(), null, null);
+    theController.setModel(model);
+    BrowserPool.PooledBrowser theBrowser = BrowserPool.getInstance().acquire(this, spoon.getShell());
+    theBrowser.getContainer().addEventHandler(theController);
+    theController.setPooledBrowser(theBrowser);
+    theController.init();
+    createTabForBrowser(theBrowser.getMainBox(), theController, model);   
+    reportName = "Unsaved Report"; //$NON-NLS-1$
+    String contentId = AgileBiVisualizationPerspective.PERSPECTIVE_ID+"\t"+theController.toString(); //$NON-NLS-1$
+// TODO - JD enable this in Spoon 4.4
+//      Spoon.getInstance().addCaller(callerId, contentId);
+  }
 
+  private void showError(Throwable e) {
+    Spoon spoon = ((Spoon)SpoonFactory.getInstance());
+    new ErrorDialog(spoon.getShell(), "Error", "Error opening the visualization", e); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+	
 	private void createTabForBrowser(Composite composite, AnalyzerVisualizationController controller, ModelerWorkspace model) throws KettleException {
 
     SpoonPerspectiveManager.getInstance().activatePerspective(AgileBiVisualizationPerspective.class);
@@ -297,114 +318,95 @@ public class AnalyzerVisualization extends AbstractVisualization {
 	}
 	
 	public static Document getXAnalyzerDocument( File file ) throws Exception {
-	  
-    FileInputStream in = new FileInputStream( file );
-    StringBuilder sb = new StringBuilder();
-    byte b[] = new byte[2048];
-    int n = in.read(b);
-    while( n != -1 ) {
-      sb.append( new String(b, 0, n) );
-      n = in.read(b);
-    }
-    
-    Document doc = DocumentHelper.parseText(sb.toString());
+    // let the parser detect the encoding
+    return new SAXReader().read( file );
+	}
 
-    return doc;
+	private static Dom4jXPath getXPath( String xPath ) throws JaxenException {
+    Dom4jXPath xpath = xpathCache.get( xPath );
+    if ( xpath == null ) {
+      xpath = new Dom4jXPath( xPath );
+      HashMap<String, String> map = new HashMap<String, String>();
+      map.put( "pho", "http://www.pentaho.com");  //$NON-NLS-1$//$NON-NLS-2$
+      xpath.setNamespaceContext( new SimpleNamespaceContext( map));
+      Dom4jXPath previous = xpathCache.putIfAbsent( xPath, xpath );
+      if ( previous != null ) {
+        xpath = previous;
+      }
+    }
+    return xpath;
 	}
 	
 	public static String getDocumentText( Document doc, String xPath ) throws JaxenException {
-    Dom4jXPath xpath = new Dom4jXPath( xPath );
-    HashMap<String, String> map = new HashMap<String, String>();
-    map.put( "pho", "http://www.pentaho.com");  //$NON-NLS-1$//$NON-NLS-2$
-    xpath.setNamespaceContext( new SimpleNamespaceContext( map));
-    org.dom4j.Node node = (org.dom4j.Node) xpath.selectSingleNode( doc);
+    org.dom4j.Node node = (org.dom4j.Node) getXPath( xPath ).selectSingleNode( doc);
     return node.getText();
 	}
 
 	 public static void setDocumentText( Document doc, String xPath, String value ) throws JaxenException {
-	    Dom4jXPath xpath = new Dom4jXPath( xPath );
-	    HashMap<String, String> map = new HashMap<String, String>();
-	    map.put( "pho", "http://www.pentaho.com");  //$NON-NLS-1$//$NON-NLS-2$
-	    xpath.setNamespaceContext( new SimpleNamespaceContext( map));
-	    org.dom4j.Node node = (org.dom4j.Node) xpath.selectSingleNode( doc);
+	    org.dom4j.Node node = (org.dom4j.Node) getXPath( xPath ).selectSingleNode( doc);
 	    node.setText( value );
 	  }
 
   public boolean open(Node transNode, String fname, boolean importfile) {
-    Spoon spoon = ((Spoon)SpoonFactory.getInstance());
+    // the platform may still have to boot
+    if (!AgileBILifecycleListener.waitForPlatform()) {
+      return false;
+    }
     try {
-      File f = new File( fname );
-      reportName = f.getName();
-      reportName = reportName.substring(0, reportName.indexOf(".xanalyzer")); //$NON-NLS-1$
-      FileInputStream in = new FileInputStream( f );
-      StringBuilder sb = new StringBuilder();
-      byte b[] = new byte[2048];
-      int n = in.read(b);
-      while( n != -1 ) {
-        sb.append( new String(b, 0, n) );
-        n = in.read(b);
-      }
-      
-      Document doc = DocumentHelper.parseText(sb.toString());
-      Dom4jXPath xpath = new Dom4jXPath( "//@catalog"); //$NON-NLS-1$
-      Dom4jXPath xpath2 = new Dom4jXPath( "//@cube"); //$NON-NLS-1$
-      HashMap map = new HashMap();
-      map.put( "pho", "http://www.pentaho.com"); //$NON-NLS-1$ //$NON-NLS-2$
-      xpath.setNamespaceContext( new SimpleNamespaceContext( map));
-      xpath2.setNamespaceContext( new SimpleNamespaceContext( map));
-      org.dom4j.Node node = (org.dom4j.Node) xpath.selectSingleNode( doc);
-      org.dom4j.Node node2 = (org.dom4j.Node) xpath2.selectSingleNode( doc);
-
-      String modelFileName = node.getText();
-      String modelId = node2.getText();            
-      
-      SwtXulLoader theXulLoader = new SwtXulLoader();
-      theXulLoader.registerClassLoader(getClass().getClassLoader());
-      AnalyzerVisualizationController theController = new AnalyzerVisualizationController(spoon.tabfolder.getSwtTabset(), this, modelFileName, modelId, f.toString(), f.getName());
-      theController.setDirty(false);
-    	XulDomContainer theXulContainer = theXulLoader.loadXul(WEB_VISUALIZATION, new PDIMessages(IVisualization.class));
-			theXulContainer.addEventHandler(theController);
-			Composite theMainBox = (Composite) theXulContainer.getDocumentRoot().getElementById("mainVBox").getManagedObject(); //$NON-NLS-1$
-			SwtXulRunner theRunner = new SwtXulRunner();
-			theRunner.addContainer(theXulContainer);
-			theRunner.initialize();
+      openReport(fname);
+      return true;
+    } catch (Throwable e) {
+      showError(e);
+      return false;
+    }
+  }
+
+  private void openReport(String fname) throws Exception {
+  Spoon spoon = ((Spoon)SpoonFactory.getInstance());
+    File f = new File( fname );
+    reportName = f.getName();
+    reportName = reportName.substring(0, reportName.indexOf(".xanalyzer")); //$NON-NLS-1$
+    // only the model is needed here, the browser loads the report itself
+    XAnalyzerHeader header = XAnalyzerHeader.read( f );
+    String modelFileName = header.getCatalog();
+    String modelId = header.getCube();            
+    
+    AnalyzerVisualizationController theController = new AnalyzerVisualizationController(spoon.tabfolder.getSwtTabset(), this, modelFileName, modelId, f.toString(), f.getName());
+    theController.setDirty(false);
+    BrowserPool.PooledBrowser theBrowser = BrowserPool.getInstance().acquire(this, spoon.getShell());
+    theBrowser.getContainer().addEventHandler(theController);
+    theController.setPooledBrowser(theBrowser);
+    theController.init();
 
 			ModelerWorkspace model = new ModelerWorkspace(new SpoonModelerWorkspaceHelper(), SpoonModelerWorkspaceHelper.initGeoContext());
-	    XmiParser parser = new XmiParser();
-	    FileInputStream inputStream = new FileInputStream(new File(modelFileName));
-	    Domain domain = parser.parseXmi(inputStream);
-	    inputStream.close();
+	    Domain domain = DomainCache.getInstance().getDomainCopy(modelFileName);
 	    if(model.getDomain() != null) {
-        LogicalModel logical = model.getLogicalModel(ModelerPerspective.ANALYSIS);
-        Object property = logical.getProperty("source_type"); //$NON-NLS-1$
-        if( property != null ) {
-          IModelerSource theSource = ModelerSourceFactory.generateSource(property.toString());
-          theSource.initialize(domain);
-          model.setModelSource(theSource);
-        }
-      }
-      if (domain.getId() == null) {
-        domain.setId(modelId);
+      LogicalModel logical = model.getLogicalModel(ModelerPerspective.ANALYSIS);
+      Object property = logical.getProperty("source_type"); //$NON-NLS-1$
+      if( property != null ) {
+        IModelerSource theSource = ModelerSourceFactory.generateSource(property.toString());
+        theSource.initialize(domain);
+        model.setModelSource(theSource);
       }
+    }
+    if (domain.getId() == null) {
+      domain.setId(modelId);
+    }
 	    model.setDomain(domain);
 	    model.setModelName(domain.getId());
 	    model.setFileName(modelFileName); 
 	    model.setTemporary(false);
 	    theController.setModel(model);
-	    theXulContainer.addEventHandler(theController);
 			
-      createTabForBrowser(theMainBox, theController, model);
-
-      // flush the cache before opening an analyzer visualization
-      flushAnalyzerCache();
-      theController.openReport(fname);
-      
-      String fullPath = f.getAbsolutePath();
-      spoon.getProperties().addLastFile("Analyzer", fullPath, null, false, null); //$NON-NLS-1$
-      spoon.addMenuLast();
-    } catch (Throwable e) {
-      throw new RuntimeException(e);
-    }    return true;
+    createTabForBrowser(theBrowser.getMainBox(), theController, model);
+
+    // make the platform read the (possibly regenerated) model again
+    MondrianCacheFlusher.flushCatalogDefinition(modelFileName);
+    theController.openReport(fname);
+    
+    String fullPath = f.getAbsolutePath();
+    spoon.getProperties().addLastFile("Analyzer", fullPath, null, false, null); //$NON-NLS-1$
+    spoon.addMenuLast();
   }
 
   public boolean save(EngineMetaInterface meta, String fname, boolean isExport) {
@@ -422,8 +424,7 @@ public class AnalyzerVisualization extends AbstractVisualization {
     AgileBiVisualizationPerspective.getInstance().setNameForTab(wvmeta.getTab(), name);
 
     // register this in the metadata registry
-    RegistryFactory factory = RegistryFactory.getInstance();
-    IMetadataRegistry registry = factory.getMetadataRegistry();
+    IMetadataRegistry registry = ModelerHelper.getMetadataRegistry();
     Entity vizEntity = new Entity(fname, name, Type.TYPE_ANALYZER_VIEW.getId());
     registry.addEntity(vizEntity);
     
@@ -17,8 +17,9 @@
 
 package org.pentaho.agilebi.spoon.visualizations.analyzer;
 
-import mondrian.rolap.agg.AggregationManager;
 import org.pentaho.agilebi.modeler.util.ISpoonModelerSource;
+import org.pentaho.agilebi.platform.InstaviewDatasourceService;
+import org.pentaho.agilebi.platform.MondrianCacheFlusher;
 import org.pentaho.metadata.model.concept.types.LocalizedString;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -75,6 +76,8 @@ public class AnalyzerVisualizationController extends AbstractXulEventHandler imp
 	private BindingFactory bf;
 	private Binding modelNameBinding;
 	private Binding factTableNameBinding;
+	private Binding propPanelBinding;
+	private BrowserPool.PooledBrowser pooledBrowser;
 	private String factTableName;
 	private XulEditpanel propPanel;
 	private ModelerWorkspace workspace;
@@ -109,11 +112,32 @@ public class AnalyzerVisualizationController extends AbstractXulEventHandler imp
 		this.modelNameBinding = this.bf.createBinding(this, "modelId", "modelName", "value");
 		this.factTableNameBinding = this.bf.createBinding(this, "factTableName", "factTableName", "value");
     this.bf.setBindingType(Type.BI_DIRECTIONAL);
-    bf.createBinding(this.propPanel, "visible", this, "propVisible");
+    this.propPanelBinding = bf.createBinding(this.propPanel, "visible", this, "propVisible");
 		fireBindings();
 		setPropVisible(false);
 	}
 	
+	public void setPooledBrowser(BrowserPool.PooledBrowser pooledBrowser) {
+	  this.pooledBrowser = pooledBrowser;
+	}
+
+	/**
+	 * Detaches the controller from its panel and hands the panel back to the {@link BrowserPool}. Call before the tab
+	 * is closed.
+	 */
+	public void dispose() {
+	  Binding[] bindings = { modelNameBinding, factTableNameBinding, propPanelBinding };
+	  for (Binding binding : bindings) {
+	    if (binding != null) {
+	      binding.destroyBindings();
+	    }
+	  }
+	  if (pooledBrowser != null) {
+	    BrowserPool.getInstance().release(pooledBrowser, visualization);
+	    pooledBrowser = null;
+	  }
+	}
+
 	public void openReport(String aReport) {
 	  String theLocation = visualization.generateOpenUrl( aReport );
 	  this.browser.setSrc(theLocation);
@@ -206,9 +230,9 @@ public class AnalyzerVisualizationController extends AbstractXulEventHandler imp
 	}
 
 	public void refreshData() {
-		// first clear the server cache
-
-		AggregationManager.instance().getCacheControl(null, null).flushSchemaCache();
+		// first clear the server cache, of this model only
+		MondrianCacheFlusher.flushSchema(xmiFileLocation, modelId);
+		InstaviewDatasourceService.invalidateResults(xmiFileLocation);
 		browser.execute(visualization.generateRefreshDataJavascript(xmiFileLocation, modelId));
 	}
 
@@ -216,7 +240,8 @@ public class AnalyzerVisualizationController extends AbstractXulEventHandler imp
 		// first save the view
 		// if (true) throw new UnsupportedOperationException();
 		// TODO: can we do this without requiring a "remote save"?
-		AggregationManager.instance().getCacheControl(null, null).flushSchemaCache();
+		MondrianCacheFlusher.flushCatalog(xmiFileLocation, modelId);
+		InstaviewDatasourceService.invalidateResults(xmiFileLocation);
 
 		browser.execute(visualization.generateRefreshModelJavascript(xmiFileLocation, modelId));
 		// "gCtrlr.repositoryBrowserController.remoteSave('"+modelId+"','tmp', '', 'xanalyzer', true)"
@@ -258,6 +283,10 @@ public class AnalyzerVisualizationController extends AbstractXulEventHandler imp
 
 	}
 
+	public String getXmiFileLocation() {
+		return xmiFileLocation;
+	}
+
 	public void setXmiFileLocation(String xmiFileLocation) {
 		this.xmiFileLocation = xmiFileLocation;
 	}
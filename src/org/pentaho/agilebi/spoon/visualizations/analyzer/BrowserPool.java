@@ -0,0 +1,259 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.spoon.visualizations.analyzer;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.widgets.Composite;
+import org.eclipse.swt.widgets.Display;
+import org.eclipse.swt.widgets.Shell;
+import org.pentaho.agilebi.spoon.PDIMessages;
+import org.pentaho.agilebi.spoon.visualizations.IVisualization;
+import org.pentaho.di.core.Const;
+import org.pentaho.ui.xul.XulDomContainer;
+import org.pentaho.ui.xul.XulException;
+import org.pentaho.ui.xul.components.XulBrowser;
+import org.pentaho.ui.xul.impl.AbstractXulEventHandler;
+import org.pentaho.ui.xul.swt.SwtXulLoader;
+import org.pentaho.ui.xul.swt.SwtXulRunner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps loaded visualization panels whose browser has already started and loaded the Analyzer shell page, so that a
+ * new tab only has to point an existing browser at its report. Panels of closed tabs return to the pool. The pool is
+ * refilled in the background after each use and holds {@value #SIZE_PROPERTY} panels per shell; 0 turns it off.
+ * <p>
+ * A browser that has loaded a page is only ever moved between composites of the shell it is pooled for: idle panels
+ * wait in a hidden composite of that shell, not in a window of their own. Moving a live native browser to another
+ * shell breaks it on GTK and Cocoa, while reparenting within one shell works on every SWT platform. A panel is only
+ * moved across shells once, right after it is created, as visualization panels always were.
+ * <p>
+ * Must be used from the UI thread.
+ */
+public class BrowserPool {
+
+  public static final String SIZE_PROPERTY = "KETTLE_AGILEBI_BROWSER_POOL_SIZE"; //$NON-NLS-1$
+
+  public static final int DEFAULT_SIZE = 1;
+
+  private static Logger logger = LoggerFactory.getLogger(BrowserPool.class);
+
+  private static BrowserPool instance;
+
+  private final int size;
+
+  /** idle panels by the shell they are shown in */
+  private final Map<Shell, LinkedList<PooledBrowser>> idle = new HashMap<Shell, LinkedList<PooledBrowser>>();
+
+  /** shells a refill is scheduled for */
+  private final Map<Shell, Boolean> refillScheduled = new HashMap<Shell, Boolean>();
+
+  BrowserPool(int size) {
+    this.size = size;
+  }
+
+  public static synchronized BrowserPool getInstance() {
+    if (instance == null) {
+      instance = new BrowserPool(Math.max(0, Const.toInt(System.getProperty(SIZE_PROPERTY), DEFAULT_SIZE)));
+    }
+    return instance;
+  }
+
+  /**
+   * @param shell Shell the panel will be shown in; the panel must not be moved to another one
+   * @return a pooled panel, or a new one if the pool is empty. Add the tab's controller to its container and
+   *         {@link AnalyzerVisualizationController#init() initialize} it.
+   */
+  public PooledBrowser acquire(AnalyzerVisualization visualization, Shell shell) throws XulException {
+    PooledBrowser browser = null;
+    LinkedList<PooledBrowser> browsers = idle.get(shell);
+    while (browser == null && browsers != null && !browsers.isEmpty()) {
+      browser = browsers.removeFirst();
+      if (browser.isDisposed()) {
+        browser = null;
+      }
+    }
+    if (browser == null) {
+      browser = create(visualization, shell, false);
+    }
+    scheduleRefill(visualization, shell);
+    return browser;
+  }
+
+  /**
+   * Takes back the panel of a closing tab, or disposes it if the pool is full or the panel has left its shell.
+   */
+  public void release(PooledBrowser browser, AnalyzerVisualization visualization) {
+    if (browser.isDisposed()) {
+      return;
+    }
+    LinkedList<PooledBrowser> browsers = getIdle(browser.getShell());
+    if (browsers.size() >= size || !browser.reset(visualization.generateShellUrl())) {
+      browser.dispose();
+      return;
+    }
+    browsers.addLast(browser);
+  }
+
+  int getIdleCount(Shell shell) {
+    LinkedList<PooledBrowser> browsers = idle.get(shell);
+    return browsers == null ? 0 : browsers.size();
+  }
+
+  private LinkedList<PooledBrowser> getIdle(Shell shell) {
+    LinkedList<PooledBrowser> browsers = idle.get(shell);
+    if (browsers == null) {
+      browsers = new LinkedList<PooledBrowser>();
+      idle.put(shell, browsers);
+    }
+    return browsers;
+  }
+
+  private void scheduleRefill(final AnalyzerVisualization visualization, final Shell shell) {
+    if (refillScheduled.containsKey(shell) || getIdleCount(shell) >= size) {
+      return;
+    }
+    refillScheduled.put(shell, Boolean.TRUE);
+    // one panel at a time, after the UI has caught up with the new tab
+    asyncExec(new Runnable() {
+      public void run() {
+        refillScheduled.remove(shell);
+        if (shell.isDisposed()) {
+          idle.remove(shell);
+          return;
+        }
+        try {
+          getIdle(shell).addLast(create(visualization, shell, true));
+        } catch (Exception e) {
+          logger.warn("Could not pre-load a browser", e); //$NON-NLS-1$
+          return;
+        }
+        scheduleRefill(visualization, shell);
+      }
+    });
+  }
+
+  void asyncExec(Runnable runnable) {
+    Display.getCurrent().asyncExec(runnable);
+  }
+
+  /**
+   * @param preload {@code true} to have the browser load the Analyzer shell page right away
+   */
+  PooledBrowser create(AnalyzerVisualization visualization, Shell shell, boolean preload) throws XulException {
+    SwtXulLoader loader = new SwtXulLoader();
+    loader.registerClassLoader(visualization.getClass().getClassLoader());
+    XulDomContainer container = loader.loadXul(AnalyzerVisualization.WEB_VISUALIZATION, new PDIMessages(
+        IVisualization.class));
+    PooledBrowser browser = new PooledBrowser(container, shell);
+    // stands in for the controller until the panel is used
+    container.addEventHandler(new ShellHandler(preload ? visualization.generateShellUrl() : null));
+    SwtXulRunner runner = new SwtXulRunner();
+    runner.addContainer(container);
+    runner.initialize();
+    return browser;
+  }
+
+  /**
+   * A loaded visualization panel.
+   */
+  public static class PooledBrowser {
+
+    private final XulDomContainer container;
+
+    private final Composite mainBox;
+
+    /** the XUL window the panel was loaded into */
+    private final Shell window;
+
+    /** where the panel waits while it is not shown in a tab, a hidden composite in the shell of its tabs */
+    private final Composite home;
+
+    /**
+     * Moves the freshly loaded panel into the shell it will be shown in, before its browser has loaded anything.
+     */
+    PooledBrowser(XulDomContainer container, Shell shell) {
+      this.container = container;
+      this.mainBox = (Composite) container.getDocumentRoot().getElementById("mainVBox").getManagedObject(); //$NON-NLS-1$
+      this.window = mainBox.getShell();
+      this.home = new Composite(shell, SWT.NONE);
+      home.setVisible(false);
+      mainBox.setParent(home);
+    }
+
+    public XulDomContainer getContainer() {
+      return container;
+    }
+
+    public Composite getMainBox() {
+      return mainBox;
+    }
+
+    Shell getShell() {
+      return home.getShell();
+    }
+
+    boolean isDisposed() {
+      return mainBox.isDisposed() || home.isDisposed();
+    }
+
+    boolean reset(String url) {
+      if (mainBox.getShell() != home.getShell() || !mainBox.setParent(home)) {
+        return false;
+      }
+      ((XulBrowser) container.getDocumentRoot().getElementById("web_visualization_browser")).setSrc(url); //$NON-NLS-1$
+      return true;
+    }
+
+    void dispose() {
+      if (!mainBox.isDisposed()) {
+        mainBox.dispose();
+      }
+      if (!home.isDisposed()) {
+        home.dispose();
+      }
+      if (!window.isDisposed()) {
+        window.dispose();
+      }
+    }
+  }
+
+  private static class ShellHandler extends AbstractXulEventHandler {
+
+    private final String url;
+
+    ShellHandler(String url) {
+      this.url = url;
+    }
+
+    @Override
+    public String getName() {
+      return "analyzerVis"; //$NON-NLS-1$
+    }
+
+    public void init() {
+      if (url != null) {
+        ((XulBrowser) document.getElementById("web_visualization_browser")).setSrc(url); //$NON-NLS-1$
+      }
+    }
+  }
+}
@@ -0,0 +1,110 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.spoon.visualizations.analyzer;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * The model an Analyzer report (.xanalyzer) was built on. Read with a streaming parser that stops at the first catalog
+ * and cube attributes, so that opening a report doesn't parse the whole definition.
+ */
+public class XAnalyzerHeader {
+
+  private static final XMLInputFactory factory = XMLInputFactory.newInstance();
+
+  static {
+    factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+    factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+  }
+
+  private final String catalog;
+
+  private final String cube;
+
+  XAnalyzerHeader(String catalog, String cube) {
+    this.catalog = catalog;
+    this.cube = cube;
+  }
+
+  /**
+   * @return the model file
+   */
+  public String getCatalog() {
+    return catalog;
+  }
+
+  /**
+   * @return the model id
+   */
+  public String getCube() {
+    return cube;
+  }
+
+  public static XAnalyzerHeader read(File file) throws IOException {
+    InputStream in = new BufferedInputStream(new FileInputStream(file));
+    try {
+      return read(in);
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * @throws IOException if the document is malformed or has no catalog or cube
+   */
+  public static XAnalyzerHeader read(InputStream in) throws IOException {
+    String catalog = null;
+    String cube = null;
+    try {
+      // the parser detects the encoding from the declaration
+      XMLStreamReader reader = factory.createXMLStreamReader(in);
+      try {
+        while (reader.hasNext() && (catalog == null || cube == null)) {
+          if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+            continue;
+          }
+          for (int i = 0; i < reader.getAttributeCount(); i++) {
+            String name = reader.getAttributeLocalName(i);
+            if (catalog == null && name.equals("catalog")) { //$NON-NLS-1$
+              catalog = reader.getAttributeValue(i);
+            } else if (cube == null && name.equals("cube")) { //$NON-NLS-1$
+              cube = reader.getAttributeValue(i);
+            }
+          }
+        }
+      } finally {
+        reader.close();
+      }
+    } catch (XMLStreamException e) {
+      throw new IOException("Could not read the Analyzer report: " + e.getMessage(), e); //$NON-NLS-1$
+    }
+    if (catalog == null || cube == null) {
+      throw new IOException("The Analyzer report does not name its catalog and cube"); //$NON-NLS-1$
+    }
+    return new XAnalyzerHeader(catalog, cube);
+  }
+}
@@ -18,7 +18,6 @@
 package org.pentaho.agilebi.spoon.visualizations.prpt;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.util.Locale;
 
 import org.eclipse.swt.widgets.Composite;
@@ -27,9 +26,12 @@ import org.pentaho.agilebi.modeler.IModelerSource;
 import org.pentaho.agilebi.modeler.ModelerException;
 import org.pentaho.agilebi.modeler.ModelerWorkspace;
 import org.pentaho.agilebi.modeler.util.ModelerSourceFactory;
+import org.pentaho.agilebi.platform.DomainCache;
 import org.pentaho.agilebi.spoon.ModelerHelper;
 import org.pentaho.agilebi.spoon.PDIMessages;
+import org.pentaho.agilebi.spoon.ReportingEngineBoot;
 import org.pentaho.agilebi.spoon.SpoonModelerWorkspaceHelper;
+import org.pentaho.agilebi.spoon.TemporaryModelStore;
 import org.pentaho.agilebi.spoon.perspective.AbstractPerspective.XulTabAndPanel;
 import org.pentaho.agilebi.spoon.perspective.AgileBiVisualizationPerspective;
 import org.pentaho.agilebi.spoon.visualizations.AbstractVisualization;
@@ -47,16 +49,10 @@ import org.pentaho.metadata.model.concept.types.LocalizedString;
 import org.pentaho.metadata.registry.Entity;
 import org.pentaho.metadata.registry.IMetadataRegistry;
 import org.pentaho.metadata.registry.Link;
-import org.pentaho.metadata.registry.RegistryFactory;
 import org.pentaho.metadata.registry.Type;
 import org.pentaho.metadata.registry.Verb;
-import org.pentaho.metadata.util.XmiParser;
-import org.pentaho.reporting.engine.classic.core.ClassicEngineBoot;
 import org.pentaho.reporting.engine.classic.core.MasterReport;
 import org.pentaho.reporting.engine.classic.extensions.datasources.pmd.PmdDataFactory;
-import org.pentaho.reporting.libraries.base.util.ObjectUtilities;
-import org.pentaho.reporting.libraries.fonts.LibFontBoot;
-import org.pentaho.reporting.libraries.resourceloader.LibLoaderBoot;
 import org.pentaho.reporting.libraries.resourceloader.Resource;
 import org.pentaho.reporting.libraries.resourceloader.ResourceManager;
 import org.pentaho.ui.xul.XulDomContainer;
@@ -113,15 +109,7 @@ public class PRPTVisualization extends AbstractVisualization {
   public boolean open(Node transNode, String fname, boolean importfile) {
     try {
       
-      if(ClassicEngineBoot.getInstance().isBootDone() == false){
-
-        ObjectUtilities.setClassLoader(getClass().getClassLoader());
-        ObjectUtilities.setClassLoaderSource(ObjectUtilities.CLASS_CONTEXT);
-        
-        LibLoaderBoot.getInstance().start();
-        LibFontBoot.getInstance().start();
-        ClassicEngineBoot.getInstance().start();
-      }      
+      ReportingEngineBoot.getInstance().boot();
       
       ResourceManager theResourceManager = new ResourceManager();
       theResourceManager.registerDefaults();
@@ -150,10 +138,7 @@ public class PRPTVisualization extends AbstractVisualization {
       String theXmiFile = theDataFactory.getXmiFile();
       
       ModelerWorkspace model = new ModelerWorkspace(new SpoonModelerWorkspaceHelper(), SpoonModelerWorkspaceHelper.initGeoContext());
-      XmiParser parser = new XmiParser();
-      FileInputStream inputStream = new FileInputStream(new File(theXmiFile));
-      Domain domain = parser.parseXmi(inputStream);
-      inputStream.close();
+      Domain domain = DomainCache.getInstance().getDomainCopy(theXmiFile);
 
       LogicalModel logical = domain.getLogicalModels().get(0);
       Object property = logical.getProperty("source_type"); //$NON-NLS-1$
@@ -204,8 +189,7 @@ public class PRPTVisualization extends AbstractVisualization {
       AgileBiVisualizationPerspective.getInstance().setNameForTab(prptMeta.getTab(), name);
       
       // register this in the metadata registry
-      RegistryFactory factory = RegistryFactory.getInstance();
-      IMetadataRegistry registry = factory.getMetadataRegistry();
+      IMetadataRegistry registry = ModelerHelper.getMetadataRegistry();
       Entity vizEntity = new Entity(fname, name, Type.TYPE_REPORT.getId());
       registry.addEntity(vizEntity);
       
@@ -245,6 +229,8 @@ public class PRPTVisualization extends AbstractVisualization {
         ModelerHelper theHelper = ModelerHelper.getInstance();
         model = theHelper.clone(model);
       }
+      // the reporting engine reads the model from disk
+      TemporaryModelStore.getInstance().materialize(model.getFileName());
       final ModelerWorkspace fModel = model;
       Spoon spoon = ((Spoon)SpoonFactory.getInstance());
       Document document = spoon.getMainSpoonContainer().getDocumentRoot();
@@ -266,13 +252,7 @@ public class PRPTVisualization extends AbstractVisualization {
           
           try {
 
-            ObjectUtilities.setClassLoader(getClass().getClassLoader());
-            ObjectUtilities.setClassLoaderSource(ObjectUtilities.CLASS_CONTEXT);
-            
-            if(ClassicEngineBoot.getInstance().isBootDone() == false){
-              ClassicEngineBoot engineBoot = ClassicEngineBoot.getInstance();
-              engineBoot.start();
-            }
+            ReportingEngineBoot.getInstance().boot();
             EmbeddedWizard wizard = new EmbeddedWizard(fModel, tempModel);
             waitBox.stop();
             wizard.run(null);
@@ -306,11 +286,7 @@ public class PRPTVisualization extends AbstractVisualization {
   public void createVisualizationFromMasterReport(MasterReport rpt, boolean tempModel){
     try{
       
-      if(ClassicEngineBoot.getInstance().isBootDone() == false){
-        LibLoaderBoot.getInstance().start();
-        LibFontBoot.getInstance().start();
-        ClassicEngineBoot.getInstance().start();
-      }
+      ReportingEngineBoot.getInstance().boot();
       
       XulTabAndPanel tabAndPanel = AgileBiVisualizationPerspective.getInstance().createTab();      
       AgileBiVisualizationPerspective.getInstance().setNameForTab(tabAndPanel.tab, "Untitled Report"); //$NON-NLS-1$
@@ -331,10 +307,7 @@ public class PRPTVisualization extends AbstractVisualization {
       PmdDataFactory theDataFactory = (PmdDataFactory) rpt.getDataFactory();
       String theXmiFile = theDataFactory.getXmiFile();
       
-      XmiParser parser = new XmiParser();
-      FileInputStream inputStream = new FileInputStream(new File(theXmiFile));
-      Domain domain = parser.parseXmi(inputStream);
-      inputStream.close();      
+      Domain domain = DomainCache.getInstance().getDomainCopy(theXmiFile);
       
       ModelerWorkspace model = new ModelerWorkspace(new SpoonModelerWorkspaceHelper(), SpoonModelerWorkspaceHelper.initGeoContext());
       LogicalModel logical = domain.getLogicalModels().get(0);
@@ -18,6 +18,7 @@
 package org.pentaho.agilebi.spoon.visualizations.prpt;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.TreeMap;
@@ -26,6 +27,7 @@ import org.pentaho.agilebi.modeler.ModelerException;
 import org.pentaho.agilebi.modeler.ModelerWorkspace;
 import org.pentaho.agilebi.modeler.util.ISpoonModelerSource;
 import org.pentaho.agilebi.spoon.ModelerHelper;
+import org.pentaho.agilebi.spoon.TemporaryModelStore;
 import org.pentaho.agilebi.spoon.perspective.AgileBiModelerPerspective;
 import org.pentaho.agilebi.spoon.publish.PublisherHelper;
 import org.pentaho.agilebi.spoon.visualizations.AbstractVisualization;
@@ -327,6 +329,11 @@ public class PRPTVisualizationController extends AbstractXulEventHandler impleme
     String theOldDomainId = thePmdDataFactory.getDomainId();
     
     String thePrpt = getFileName();
+    try {
+      TemporaryModelStore.getInstance().materialize(model.getFileName());
+    } catch (IOException e) {
+      throw new ModelerException(e);
+    }
     PublisherHelper.publishPrpt(this.report, model, modelName, thePrpt, treeDepth, databaseMeta, model.getFileName(), checkDatasources,
         showServerSelection, showFolders, showCurrentFolder, serverPathTemplate, databaseName);
     
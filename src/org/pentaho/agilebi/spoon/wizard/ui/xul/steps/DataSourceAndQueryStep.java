@@ -18,6 +18,7 @@
 package org.pentaho.agilebi.spoon.wizard.ui.xul.steps;
 
 import org.pentaho.agilebi.modeler.ModelerWorkspace;
+import org.pentaho.agilebi.spoon.TemporaryModelStore;
 import org.pentaho.agilebi.spoon.wizard.EmbeddedWizard;
 import org.pentaho.commons.metadata.mqleditor.MqlQuery;
 import org.pentaho.commons.metadata.mqleditor.editor.MQLEditorService;
@@ -57,6 +58,7 @@ import org.pentaho.ui.xul.swt.SwtXulLoader;
 
 import javax.swing.table.TableModel;
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -269,7 +271,7 @@ public class DataSourceAndQueryStep extends AbstractWizardStep
       df = new PmdDataFactory();
       PmdConnectionProvider connectionProvider = new PmdConnectionProvider();
       df.setConnectionProvider(connectionProvider);
-      df.setXmiFile(model.getFileName());
+      df.setXmiFile(getXmiFile());
       df.setDomainId(DEFAULT);
       getEditorModel().getReportDefinition().setDataFactory(df);
 
@@ -287,7 +289,7 @@ public class DataSourceAndQueryStep extends AbstractWizardStep
         PmdConnectionProvider connectionProvider = new PmdConnectionProvider();
         df.setConnectionProvider(connectionProvider);
         if (model != null) {
-          df.setXmiFile(model.getFileName());
+          df.setXmiFile(getXmiFile());
         }
         df.setDomainId(DEFAULT);
       }
@@ -301,6 +303,18 @@ public class DataSourceAndQueryStep extends AbstractWizardStep
     setValid(validateStep());
   }
 
+  /**
+   * The reporting engine reads the model from disk, so make sure temporary models have been written.
+   */
+  private String getXmiFile() {
+    try {
+      TemporaryModelStore.getInstance().materialize(model.getFileName());
+    } catch (IOException e) {
+      DebugLog.log("Unable to write " + model.getFileName(), e); //$NON-NLS-1$
+    }
+    return model.getFileName();
+  }
+
 
   
   /**
@@ -18,14 +18,22 @@
 package org.pentaho.di.core.lifecycle.pdi;
 
 import org.apache.commons.lang.ObjectUtils.Null;
+import org.eclipse.swt.SWT;
 import org.eclipse.swt.widgets.Display;
+import org.eclipse.swt.widgets.Event;
+import org.eclipse.swt.widgets.Listener;
+import org.pentaho.agilebi.modeler.ModelerWorkspace;
 import org.pentaho.agilebi.modeler.util.ModelerSourceFactory;
-import org.pentaho.agilebi.platform.JettyServer;
+import org.pentaho.agilebi.platform.EmbeddedPlatform;
+import org.pentaho.agilebi.platform.InstaviewDatasourceService;
 import org.pentaho.agilebi.spoon.KettleModelerSource;
 import org.pentaho.agilebi.spoon.OutputStepModelerSource;
+import org.pentaho.agilebi.spoon.ReportingEngineBoot;
+import org.pentaho.agilebi.spoon.perspective.AbstractPerspective;
 import org.pentaho.agilebi.spoon.perspective.AgileBiInstaPerspective;
 import org.pentaho.agilebi.spoon.perspective.AgileBiModelerPerspective;
 import org.pentaho.agilebi.spoon.perspective.AgileBiSpoonInstaPlugin;
+import org.pentaho.agilebi.spoon.perspective.AgileBiVisualizationPerspective;
 import org.pentaho.agilebi.spoon.visualizations.IVisualization;
 import org.pentaho.agilebi.spoon.visualizations.VisualizationManager;
 import org.pentaho.di.core.annotations.LifecyclePlugin;
@@ -35,19 +43,26 @@ import org.pentaho.di.core.lifecycle.LifeEventHandler;
 import org.pentaho.di.core.lifecycle.LifecycleException;
 import org.pentaho.di.core.lifecycle.LifecycleListener;
 import org.pentaho.di.core.plugins.PluginClassTypeMapping;
+import org.pentaho.di.i18n.BaseMessages;
 import org.pentaho.di.ui.core.PropsUI;
+import org.pentaho.di.ui.core.dialog.ErrorDialog;
 import org.pentaho.di.ui.spoon.Spoon;
+import org.pentaho.di.ui.spoon.SpoonPerspective;
+import org.pentaho.di.ui.spoon.SpoonPerspectiveListener;
+import org.pentaho.di.ui.spoon.SpoonPerspectiveManager;
 import org.pentaho.platform.api.engine.IPluginManager;
 import org.pentaho.platform.engine.core.system.PentahoSystem;
+import org.pentaho.ui.xul.XulException;
+import org.pentaho.ui.xul.components.WaitBoxRunnable;
+import org.pentaho.ui.xul.components.XulWaitBox;
 
-import java.net.Socket;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 @LifecyclePlugin(id = "AgileBiPlugin")
 @PluginClassTypeMapping(classTypes = { GUIOption.class }, implementationClass = { Null.class })
 public class AgileBILifecycleListener implements LifecycleListener, GUIOption<Object> {
-  public static int consolePort;
-
-  private JettyServer server = null;
+  public static volatile int consolePort;
 
   private boolean showTips;
 
@@ -65,51 +80,85 @@ public class AgileBILifecycleListener implements LifecycleListener, GUIOption<Ob
       props.setRepositoriesDialogAtStartupShown(false);
     }
 
+    final EmbeddedPlatform platform = EmbeddedPlatform.getInstance();
+    platform.addListener(new EmbeddedPlatform.Listener() {
+      public void serverStarted(int port) {
+        AgileBILifecycleListener.consolePort = port;
+      }
+
+      public void platformStarted() {
+        // Only initialize the Instaview perspective if the Instaview plugin is registered
+        if (AgileBiSpoonInstaPlugin.isInstaviewRegistered(PentahoSystem.get(IPluginManager.class))) {
+          AgileBiInstaPerspective.getInstance().onStart();
+        }
+      }
+
+      public void platformStopped() {
+        // the webapp is gone, but the platform's static state and our pools outlive it; clear them so that the
+        // next boot starts from scratch instead of reusing objects of the stopped webapp
+        if (PentahoSystem.getInitializedOK()) {
+          PentahoSystem.shutdown();
+        }
+        PentahoSystem.clearObjectFactory();
+        InstaviewDatasourceService.releaseAll();
+        AgileBiInstaPerspective.getInstance().onStop();
+      }
+    });
+    platform.setIdleCheck(new EmbeddedPlatform.IdleCheck() {
+      public boolean isInUse() {
+        final boolean[] inUse = new boolean[1];
+        Display display = Display.getDefault();
+        if (display.isDisposed()) {
+          return false;
+        }
+        display.syncExec(new Runnable() {
+          public void run() {
+            inUse[0] = isPlatformInUse();
+          }
+        });
+        return inUse[0];
+      }
+    });
+    final Future<?> serverStarted = platform.startServer("localhost"); //$NON-NLS-1$
+    if (platform.isLazy() && AgileBiInstaPerspective.PERSPECTIVE_ID.equals(spoon.getStartupPerspective())) {
+      platform.startAsync();
+    }
+
+    final StartupOrchestrator startup = new StartupOrchestrator("Agile BI"); //$NON-NLS-1$
+    startup.addStep("web server", new StartupOrchestrator.Step() { //$NON-NLS-1$
+      public void run() throws Exception {
+        serverStarted.get();
+      }
+    });
+    startup.addStep("modeler sources", new StartupOrchestrator.Step() { //$NON-NLS-1$
+      public void run() {
+        ModelerSourceFactory.registerSourceType(OutputStepModelerSource.OUTPUTSTEP_SOURCE_TYPE,
+            OutputStepModelerSource.class);
+        ModelerSourceFactory.registerSourceType(KettleModelerSource.SOURCE_TYPE, KettleModelerSource.class);
+      }
+    });
+    startup.addStep("visualizations", new StartupOrchestrator.Step() { //$NON-NLS-1$
+      public void run() {
+        VisualizationManager.getInstance();
+      }
+    });
+
     new Thread(new Runnable() {
 
       @Override
       public void run() {
         try {
-          int port = 9999;
-          boolean portFound = false;
-          int tries = 100;
-          while (portFound == false && tries > 0) {
-            port++;
-            tries--;
-            Socket sock = null;
-            try {
-              sock = new Socket("localhost", port);
-            } catch (Exception e) {
-              portFound = true;
-            } finally {
-              if (sock != null) {
-                sock.close();
-              }
-            }
-          }
-          if (!portFound) {
-            throw new IllegalStateException("Could not find an open port to start the Agile-BI server on");
-          }
-
-          AgileBILifecycleListener.consolePort = port;
-          server = new JettyServer("localhost", port); //$NON-NLS-1$
-          server.startServer();
-
-          // Only initialize the Instaview perspective if the Instaview plugin is registered
-          if (AgileBiSpoonInstaPlugin.isInstaviewRegistered(PentahoSystem.get(IPluginManager.class))) {
-            AgileBiInstaPerspective.getInstance().onStart();
-          }
-        } catch (Exception e) {
-          e.printStackTrace();
+          startup.run();
+        } catch (InterruptedException e) {
+          return;
         }
+        // not needed until the first report, so it waits until Spoon is up and then runs at low priority
+        ReportingEngineBoot.getInstance().startInBackground();
 
         Display.getDefault().asyncExec(new Runnable() {
 
           @Override
           public void run() {
-            ModelerSourceFactory.registerSourceType(OutputStepModelerSource.OUTPUTSTEP_SOURCE_TYPE,
-                OutputStepModelerSource.class);
-            ModelerSourceFactory.registerSourceType(KettleModelerSource.SOURCE_TYPE, KettleModelerSource.class);
             if (SpoonFactory.getInstance() != null) { // condition if for unit testing
               ((Spoon) SpoonFactory.getInstance()).addFileListener(AgileBiModelerPerspective.getInstance());
 
@@ -117,14 +166,122 @@ public class AgileBILifecycleListener implements LifecycleListener, GUIOption<Ob
                 ((Spoon) SpoonFactory.getInstance()).addFileListener(viz);
               }
             }
+            // boot the platform in the background as soon as a perspective that needs it is opened
+            startPlatformOnActivation(AgileBiVisualizationPerspective.getInstance());
+            startPlatformOnActivation(AgileBiInstaPerspective.getInstance());
+            trackUserActivity(platform);
           }
         });
       }
-    }).start();
+    }, "Agile BI startup").start(); //$NON-NLS-1$
+  }
+
+  /**
+   * Boots the embedded platform if it is not running yet and waits for it. Booting takes a while, so this must not
+   * be called on the UI thread; use {@link #waitForPlatform()} there.
+   */
+  public static void ensurePlatformStarted() throws Exception {
+    if (Display.getCurrent() != null) {
+      throw new IllegalStateException("Waiting for the Agile BI platform would block the UI thread"); //$NON-NLS-1$
+    }
+    EmbeddedPlatform.getInstance().ensureStarted();
+  }
+
+  /**
+   * Boots the embedded platform if it is not running yet and waits for it on the UI thread. While it boots a wait box
+   * is shown and UI events keep being dispatched, so Spoon stays responsive; the caller continues once the platform
+   * is up, and can report whether what it was asked to do worked.
+   *
+   * @return {@code true} if the platform is running, {@code false} if it could not be started (the error has been
+   *         shown)
+   */
+  public static boolean waitForPlatform() {
+    EmbeddedPlatform platform = EmbeddedPlatform.getInstance();
+    if (platform.isStarted()) {
+      return true;
+    }
+    final Future<?> boot = platform.startAsync();
+    final Spoon spoon = (Spoon) SpoonFactory.getInstance();
+    final Display display = Display.getCurrent();
+    try {
+      XulWaitBox box = (XulWaitBox) spoon.getMainSpoonContainer().getDocumentRoot().createElement("waitbox"); //$NON-NLS-1$
+      box.setIndeterminate(true);
+      box.setCanCancel(false);
+      box.setTitle(BaseMessages.getString(ModelerWorkspace.class, "wait_dialog_title")); //$NON-NLS-1$
+      box.setMessage(BaseMessages.getString(ModelerWorkspace.class, "wait_dialog_message")); //$NON-NLS-1$
+      box.setDialogParent(spoon.getShell());
+      box.setRunnable(new WaitBoxRunnable(box) {
+        @Override
+        public void run() {
+          try {
+            boot.get();
+          } catch (Exception e) {
+            // reported on the UI thread below
+          } finally {
+            waitBox.stop();
+            display.wake();
+          }
+        }
+
+        @Override
+        public void cancel() {
+        }
+      });
+      box.start();
+    } catch (XulException e) {
+      // no wait box then, the platform boots all the same
+    }
+    // the wait box may return before the boot has finished
+    while (!boot.isDone() && !display.isDisposed()) {
+      if (!display.readAndDispatch()) {
+        display.sleep();
+      }
+    }
+    try {
+      boot.get();
+      return true;
+    } catch (Exception e) {
+      Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+      new ErrorDialog(spoon.getShell(), "Error", "Error starting the Agile BI platform", cause); //$NON-NLS-1$ //$NON-NLS-2$
+      return false;
+    }
+  }
+
+  private static void startPlatformOnActivation(AbstractPerspective perspective) {
+    perspective.addPerspectiveListener(new SpoonPerspectiveListener() {
+      public void onActivation() {
+        EmbeddedPlatform.getInstance().startAsync();
+      }
+
+      public void onDeactication() {
+      }
+    });
+  }
+
+  private static void trackUserActivity(final EmbeddedPlatform platform) {
+    Listener activity = new Listener() {
+      public void handleEvent(Event event) {
+        platform.userActivity();
+      }
+    };
+    Display display = Display.getCurrent();
+    display.addFilter(SWT.KeyDown, activity);
+    display.addFilter(SWT.MouseDown, activity);
+  }
+
+  /**
+   * @return {@code true} while a page served by the platform is showing. Runs on the UI thread.
+   */
+  private static boolean isPlatformInUse() {
+    SpoonPerspective active = SpoonPerspectiveManager.getInstance().getActivePerspective();
+    if (active instanceof AgileBiInstaPerspective) {
+      return true;
+    }
+    return AgileBiVisualizationPerspective.getInstance().hasOpenTabs();
   }
 
   public void onExit(LifeEventHandler arg0) throws LifecycleException {
-    server.stopServer();
+    EmbeddedPlatform.getInstance().shutdown();
     AgileBiInstaPerspective.getInstance().shutdown();
 
     // reset tooltips and the repositories dialog
@@ -0,0 +1,102 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.platform;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+import java.util.Properties;
+
+import mondrian.olap.Cube;
+import mondrian.olap.Dimension;
+import mondrian.olap.Hierarchy;
+import mondrian.olap.Level;
+import mondrian.olap.SchemaReader;
+
+import org.junit.Test;
+
+public class CachePrewarmerTest {
+
+  @Test
+  public void testQueriesCoverEveryHierarchy() {
+    Cube cube = createCube();
+
+    List<String> queries = CachePrewarmer.getQueries(cube);
+    assertEquals(1, queries.size());
+    assertEquals("SELECT {[Region].DefaultMember} ON COLUMNS FROM [Sales]", queries.get(0));
+  }
+
+  @Test
+  public void testLargeLevelsAreNotLoaded() {
+    Cube cube = createCube();
+    Level[] levels = cube.getDimensions()[1].getHierarchies()[0].getLevels();
+    SchemaReader reader = mock(SchemaReader.class);
+    when(reader.getLevelCardinality(levels[1], true, true)).thenReturn(12);
+    when(reader.getLevelCardinality(levels[2], true, true)).thenReturn(50000);
+
+    List<Level> toLoad = CachePrewarmer.getLevelsToLoad(reader, cube, 1000);
+    assertEquals(1, toLoad.size());
+    assertSame(levels[1], toLoad.get(0));
+  }
+
+  @Test
+  public void testDisabledByDefault() {
+    CachePrewarmer prewarmer = CachePrewarmer.create(new Properties());
+    assertFalse(prewarmer.isEnabled());
+    // must not need a running platform
+    prewarmer.prewarm("models/sales.xmi", "Sales");
+  }
+
+  @Test
+  public void testEnabledByProperty() {
+    Properties properties = new Properties();
+    properties.setProperty(CachePrewarmer.ENABLED_PROPERTY, "y");
+    assertTrue(CachePrewarmer.create(properties).isEnabled());
+  }
+
+  private static Cube createCube() {
+    Level all = level("[Region].[(All)]", true);
+    Level region = level("[Region].[Region]", false);
+    Level city = level("[Region].[City]", false);
+    Hierarchy hierarchy = mock(Hierarchy.class);
+    when(hierarchy.getUniqueName()).thenReturn("[Region]");
+    when(hierarchy.getLevels()).thenReturn(new Level[] { all, region, city });
+    Dimension dimension = mock(Dimension.class);
+    when(dimension.getHierarchies()).thenReturn(new Hierarchy[] { hierarchy });
+
+    Dimension measures = mock(Dimension.class);
+    when(measures.isMeasures()).thenReturn(true);
+
+    Cube cube = mock(Cube.class);
+    when(cube.getName()).thenReturn("Sales");
+    when(cube.getDimensions()).thenReturn(new Dimension[] { measures, dimension });
+    return cube;
+  }
+
+  private static Level level(String uniqueName, boolean isAll) {
+    Level level = mock(Level.class);
+    when(level.getUniqueName()).thenReturn(uniqueName);
+    when(level.isAll()).thenReturn(isAll);
+    return level;
+  }
+}
@@ -0,0 +1,134 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.platform;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class DatasourceMetricsTest {
+
+  /**
+   * @return a proxy of the given type that answers every call with a default value, or with the given result set
+   */
+  private static Object fake(Class<?> type, final ResultSet resultSet, final int rows) {
+    return Proxy.newProxyInstance(DatasourceMetricsTest.class.getClassLoader(), new Class[] { type },
+        new InvocationHandler() {
+          int remaining = rows;
+
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            if (name.equals("next")) { //$NON-NLS-1$
+              return remaining-- > 0;
+            }
+            Class<?> returnType = method.getReturnType();
+            if (returnType == ResultSet.class) {
+              return resultSet;
+            }
+            if (returnType == Statement.class) {
+              return fake(Statement.class, resultSet, 0);
+            }
+            if (returnType == Boolean.TYPE) {
+              return Boolean.FALSE;
+            }
+            if (returnType == Integer.TYPE) {
+              return 0;
+            }
+            return null;
+          }
+        });
+  }
+
+  @Test
+  public void fingerprintReplacesLiterals() {
+    assertEquals("SELECT a FROM t1 WHERE b = ? AND c IN (?) AND d > ?", //$NON-NLS-1$
+        DatasourceMetrics.fingerprint("SELECT  a\n FROM t1 WHERE b = 'it''s' AND c IN (1, 2,3) AND d > -4.5")); //$NON-NLS-1$
+    assertEquals(DatasourceMetrics.fingerprint("SELECT * FROM t WHERE id = 1"), //$NON-NLS-1$
+        DatasourceMetrics.fingerprint("SELECT * FROM t WHERE id = 42")); //$NON-NLS-1$
+    assertEquals("", DatasourceMetrics.fingerprint(null)); //$NON-NLS-1$
+  }
+
+  @Test
+  public void histogramBuckets() {
+    DatasourceMetrics.Histogram histogram = new DatasourceMetrics.Histogram();
+    histogram.record(0);
+    histogram.record(1);
+    histogram.record(3);
+    histogram.record(20000);
+    assertEquals(4, histogram.getCount());
+    assertEquals(20000, histogram.getMax());
+    assertEquals(20004 / 4.0, histogram.getMean(), 0.001);
+    assertEquals(2, histogram.getBucket(0));
+    assertEquals(1, histogram.getBucket(1));
+    assertEquals(1, histogram.getBucket(DatasourceMetrics.Histogram.BOUNDS.length));
+    histogram.reset();
+    assertEquals(0, histogram.getCount());
+    assertEquals(0, histogram.getMax());
+  }
+
+  @Test
+  public void meteredConnectionRecordsStatementsAndRows() throws Exception {
+    DatasourceMetrics metrics = new DatasourceMetrics(0L);
+    ResultSet resultSet = (ResultSet) fake(ResultSet.class, null, 3);
+    Connection connection = MeteredConnection.wrap((Connection) fake(Connection.class, resultSet, 0), metrics);
+
+    Statement statement = connection.createStatement();
+    ResultSet rs = statement.executeQuery("SELECT * FROM t WHERE id = 1"); //$NON-NLS-1$
+    while (rs.next()) {
+      // read everything
+    }
+    rs.close();
+    rs.close();
+    statement.executeQuery("SELECT * FROM t WHERE id = 2").close(); //$NON-NLS-1$
+
+    assertEquals(2, metrics.getStatementCount());
+    assertEquals(3, metrics.getRowsFetched());
+    assertEquals(0, metrics.getSlowStatementCount());
+    JSONObject statementJson = new JSONObject(metrics.getJson()).getJSONArray("statements").getJSONObject(0); //$NON-NLS-1$
+    assertEquals("SELECT * FROM t WHERE id = ?", statementJson.getString("sql")); //$NON-NLS-1$ //$NON-NLS-2$
+    assertEquals(2, statementJson.getLong("count")); //$NON-NLS-1$
+    assertEquals(3, statementJson.getLong("rows")); //$NON-NLS-1$
+  }
+
+  @Test
+  public void slowStatementsAreCounted() {
+    DatasourceMetrics metrics = new DatasourceMetrics(100L);
+    metrics.statementExecuted("SELECT 1", 50); //$NON-NLS-1$
+    metrics.statementExecuted("SELECT 1", 150); //$NON-NLS-1$
+    assertEquals(1, metrics.getSlowStatementCount());
+    metrics.setSlowQueryThreshold(0);
+    metrics.statementExecuted("SELECT 1", 5000); //$NON-NLS-1$
+    assertEquals(1, metrics.getSlowStatementCount());
+  }
+
+  @Test
+  public void wrappedConnectionEqualsOnlyItself() {
+    Connection connection = MeteredConnection.wrap((Connection) fake(Connection.class, null, 0), new DatasourceMetrics(0L));
+    assertSame(Boolean.TRUE, connection.equals(connection));
+    assertEquals(System.identityHashCode(connection), connection.hashCode());
+  }
+}
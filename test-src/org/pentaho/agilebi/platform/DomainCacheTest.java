@@ -0,0 +1,93 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.platform;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import org.pentaho.metadata.model.Domain;
+
+public class DomainCacheTest {
+
+  private static final String XMI = "test-res/example_olap.xmi"; //$NON-NLS-1$
+
+  @Test
+  public void sharedInstanceIsReused() throws IOException {
+    DomainCache cache = new DomainCache(2);
+    Domain first = cache.getDomain(XMI);
+    Domain second = cache.getDomain(new File(XMI).getAbsolutePath());
+
+    assertNotNull(first);
+    assertSame(first, second);
+    assertEquals(1, cache.getMissCount());
+    assertEquals(1, cache.getHitCount());
+  }
+
+  @Test
+  public void copiesAreNotShared() throws IOException {
+    DomainCache cache = new DomainCache(2);
+    Domain shared = cache.getDomain(XMI);
+    Domain copy = cache.getDomainCopy(XMI);
+
+    assertNotSame(shared, copy);
+    assertEquals(shared.getId(), copy.getId());
+    assertEquals(1, cache.getMissCount());
+  }
+
+  @Test
+  public void changedFileIsReparsed() throws IOException {
+    File tmp = File.createTempFile("domaincache", ".xmi"); //$NON-NLS-1$ //$NON-NLS-2$
+    tmp.deleteOnExit();
+    FileUtils.copyFile(new File(XMI), tmp);
+
+    DomainCache cache = new DomainCache(2);
+    Domain first = cache.getDomain(tmp.getPath());
+    tmp.setLastModified(tmp.lastModified() - 10000);
+    Domain second = cache.getDomain(tmp.getPath());
+
+    assertNotSame(first, second);
+    assertEquals(2, cache.getMissCount());
+  }
+
+  @Test
+  public void invalidateAndEviction() throws IOException {
+    File tmp = File.createTempFile("domaincache", ".xmi"); //$NON-NLS-1$ //$NON-NLS-2$
+    tmp.deleteOnExit();
+    FileUtils.copyFile(new File(XMI), tmp);
+
+    DomainCache cache = new DomainCache(1);
+    cache.getDomain(XMI);
+    cache.getDomain(tmp.getPath());
+    assertEquals(1, cache.size());
+
+    cache.invalidate(tmp.getPath());
+    assertEquals(0, cache.size());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void maxEntriesMustBePositive() {
+    new DomainCache(0);
+  }
+}
@@ -0,0 +1,228 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.platform;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class EmbeddedPlatformTest {
+
+  @Test
+  public void lazyModeOnlyReservesThePort() throws Exception {
+    EmbeddedPlatform platform = new EmbeddedPlatform(true, 0, 0);
+    final int[] reported = new int[] { -1 };
+    platform.addListener(new EmbeddedPlatform.Listener() {
+      public void serverStarted(int port) {
+        reported[0] = port;
+      }
+
+      public void platformStarted() {
+      }
+
+      public void platformStopped() {
+      }
+    });
+    try {
+      platform.startServer("localhost").get(30, TimeUnit.SECONDS); //$NON-NLS-1$
+      assertTrue(platform.getPort() > 0);
+      assertEquals(platform.getPort(), reported[0]);
+      assertFalse(platform.isStarted());
+
+      // the port is taken
+      Socket socket = new Socket("localhost", platform.getPort()); //$NON-NLS-1$
+      socket.close();
+    } finally {
+      platform.shutdown();
+    }
+  }
+
+  @Test
+  public void bootsOnce() throws Exception {
+    FakeServer server = new FakeServer();
+    RecordingListener listener = new RecordingListener();
+    EmbeddedPlatform platform = createPlatform(server, 0);
+    platform.addListener(listener);
+    try {
+      platform.startServer("localhost").get(30, TimeUnit.SECONDS); //$NON-NLS-1$
+      assertFalse(platform.isStarted());
+
+      platform.ensureStarted();
+      assertTrue(platform.isStarted());
+      platform.ensureStarted();
+      assertEquals(1, server.boots.get());
+      assertEquals(1, listener.started.get());
+    } finally {
+      platform.shutdown();
+    }
+  }
+
+  @Test
+  public void stopsWhenIdle() throws Exception {
+    FakeServer server = new FakeServer();
+    RecordingListener listener = new RecordingListener();
+    EmbeddedPlatform platform = createPlatform(server, 100);
+    platform.addListener(listener);
+    try {
+      platform.startServer("localhost").get(30, TimeUnit.SECONDS); //$NON-NLS-1$
+      platform.ensureStarted();
+
+      waitUntilStopped(platform);
+      assertEquals(1, listener.stopped.get());
+    } finally {
+      platform.shutdown();
+    }
+  }
+
+  @Test
+  public void restartsAfterIdleShutdown() throws Exception {
+    FakeServer server = new FakeServer();
+    RecordingListener listener = new RecordingListener();
+    EmbeddedPlatform platform = createPlatform(server, 100);
+    platform.addListener(listener);
+    try {
+      platform.startServer("localhost").get(30, TimeUnit.SECONDS); //$NON-NLS-1$
+      platform.ensureStarted();
+      waitUntilStopped(platform);
+
+      platform.ensureStarted();
+      assertTrue(platform.isStarted());
+      assertEquals(2, server.boots.get());
+      assertEquals(2, listener.started.get());
+    } finally {
+      platform.shutdown();
+    }
+  }
+
+  @Test
+  public void staysUpWhileHandlingRequests() throws Exception {
+    FakeServer server = new FakeServer();
+    RecordingListener listener = new RecordingListener();
+    EmbeddedPlatform platform = createPlatform(server, 100);
+    platform.addListener(listener);
+    try {
+      platform.startServer("localhost").get(30, TimeUnit.SECONDS); //$NON-NLS-1$
+      platform.ensureStarted();
+      // e.g. a long export
+      server.activeRequests = 1;
+      Thread.sleep(500);
+      assertTrue(platform.isStarted());
+
+      server.activeRequests = 0;
+      waitUntilStopped(platform);
+      assertEquals(1, listener.stopped.get());
+    } finally {
+      platform.shutdown();
+    }
+  }
+
+  private static EmbeddedPlatform createPlatform(final FakeServer server, long shutdownAfter) {
+    return new EmbeddedPlatform(true, 0, shutdownAfter, 20) {
+      @Override
+      protected JettyServer createServer(String hostname) {
+        return server;
+      }
+    };
+  }
+
+  private static void waitUntilStopped(EmbeddedPlatform platform) throws InterruptedException {
+    long timeout = System.currentTimeMillis() + 10000;
+    while (platform.isStarted() && System.currentTimeMillis() < timeout) {
+      Thread.sleep(10);
+    }
+    assertFalse(platform.isStarted());
+  }
+
+  private static class RecordingListener implements EmbeddedPlatform.Listener {
+    final AtomicInteger started = new AtomicInteger();
+
+    final AtomicInteger stopped = new AtomicInteger();
+
+    public void serverStarted(int port) {
+    }
+
+    public void platformStarted() {
+      started.incrementAndGet();
+    }
+
+    public void platformStopped() {
+      stopped.incrementAndGet();
+    }
+  }
+
+  /**
+   * Stands in for Jetty, booting the webapp only flips a flag.
+   */
+  private static class FakeServer extends JettyServer {
+    final AtomicInteger boots = new AtomicInteger();
+
+    private volatile boolean webappStarted;
+
+    volatile int activeRequests;
+
+    FakeServer() throws Exception {
+      super("localhost", 0, null); //$NON-NLS-1$
+    }
+
+    @Override
+    public void startConnector() {
+    }
+
+    @Override
+    public synchronized void startWebapp() {
+      boots.incrementAndGet();
+      webappStarted = true;
+    }
+
+    @Override
+    public synchronized void stopWebapp() {
+      webappStarted = false;
+    }
+
+    @Override
+    public boolean isWebappStarted() {
+      return webappStarted;
+    }
+
+    @Override
+    public long getLastRequestTime() {
+      return 0;
+    }
+
+    @Override
+    public int getActiveRequests() {
+      return activeRequests;
+    }
+
+    @Override
+    public void stopServer() {
+      webappStarted = false;
+    }
+
+    @Override
+    public int getPort() {
+      return 1;
+    }
+  }
+}
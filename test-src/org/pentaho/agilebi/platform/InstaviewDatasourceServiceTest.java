@@ -0,0 +1,168 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.platform;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.pool.BasePoolableObjectFactory;
+import org.apache.commons.pool.impl.GenericObjectPool;
+import org.pentaho.platform.api.data.DBDatasourceServiceException;
+import org.junit.After;
+import org.junit.Test;
+
+public class InstaviewDatasourceServiceTest {
+
+  @After
+  public void cleanup() {
+    System.clearProperty(InstaviewDatasourceService.MAX_ACTIVE_PROPERTY);
+    System.clearProperty(InstaviewDatasourceService.IDLE_TIMEOUT_PROPERTY);
+  }
+
+  @Test
+  public void poolSettingsComeFromSystemProperties() {
+    System.setProperty(InstaviewDatasourceService.MAX_ACTIVE_PROPERTY, "3"); //$NON-NLS-1$
+    System.setProperty(InstaviewDatasourceService.IDLE_TIMEOUT_PROPERTY, "60"); //$NON-NLS-1$
+    GenericObjectPool.Config config = InstaviewDatasourceService.createPoolConfig();
+    assertEquals(3, config.maxActive);
+    assertEquals(InstaviewDatasourceService.DEFAULT_MAX_IDLE, config.maxIdle);
+    assertEquals(60000L, config.minEvictableIdleTimeMillis);
+    assertEquals(30000L, config.timeBetweenEvictionRunsMillis);
+  }
+
+  @Test
+  public void zeroIdleTimeoutDisablesEviction() {
+    System.setProperty(InstaviewDatasourceService.IDLE_TIMEOUT_PROPERTY, "0"); //$NON-NLS-1$
+    GenericObjectPool.Config config = InstaviewDatasourceService.createPoolConfig();
+    assertEquals(GenericObjectPool.DEFAULT_TIME_BETWEEN_EVICTION_RUNS_MILLIS, config.timeBetweenEvictionRunsMillis);
+  }
+
+  @Test
+  public void clearingUnknownDatasourcesIsHarmless() {
+    InstaviewDatasourceService service = new InstaviewDatasourceService();
+    service.clearDataSource("models/unknown.xmi"); //$NON-NLS-1$
+    InstaviewDatasourceService.releaseDataSource("models/unknown.xmi"); //$NON-NLS-1$
+    service.clearCache();
+    assertEquals(0, service.getPoolCount());
+  }
+
+  /**
+   * Creates empty pools, slowly, and can be told to fail.
+   */
+  private static class CountingService extends InstaviewDatasourceService {
+    final AtomicInteger created = new AtomicInteger();
+    final CountDownLatch release = new CountDownLatch(1);
+    volatile boolean fail;
+
+    CountingService() {
+      super(new GenericObjectPool.Config());
+    }
+
+    @Override
+    GenericObjectPool createPool(String dsName) throws DBDatasourceServiceException {
+      created.incrementAndGet();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        throw new DBDatasourceServiceException(e);
+      }
+      if (fail) {
+        throw new DBDatasourceServiceException("no connection"); //$NON-NLS-1$
+      }
+      return new GenericObjectPool(new BasePoolableObjectFactory() {
+        @Override
+        public Object makeObject() {
+          return mock(Connection.class);
+        }
+      });
+    }
+  }
+
+  @Test
+  public void concurrentCallersShareOnePoolCreation() throws Exception {
+    final CountingService service = new CountingService();
+    ExecutorService callers = Executors.newFixedThreadPool(8);
+    List<Future<DataSource>> results = new ArrayList<Future<DataSource>>();
+    for (int i = 0; i < 8; i++) {
+      results.add(callers.submit(new Callable<DataSource>() {
+        public DataSource call() throws Exception {
+          return service.getDataSource("models/Model 1.xmi"); //$NON-NLS-1$
+        }
+      }));
+    }
+    Thread.sleep(100);
+    service.release.countDown();
+    for (Future<DataSource> result : results) {
+      assertNotNull(result.get());
+    }
+    callers.shutdown();
+    assertEquals(1, service.created.get());
+    assertEquals(1, service.getPoolCount());
+  }
+
+  @Test
+  public void failedCreationIsRetried() throws Exception {
+    CountingService service = new CountingService();
+    service.release.countDown();
+    service.fail = true;
+    try {
+      service.getDataSource("models/Model 1.xmi"); //$NON-NLS-1$
+      fail();
+    } catch (DBDatasourceServiceException e) {
+      // expected
+    }
+    assertEquals(0, service.getPoolCount());
+
+    service.fail = false;
+    assertNotNull(service.getDataSource("models/Model 1.xmi")); //$NON-NLS-1$
+    assertEquals(2, service.created.get());
+    service.clearCache();
+    assertEquals(0, service.getPoolCount());
+  }
+
+  @Test
+  public void releasedDatasourceReconnects() throws Exception {
+    CountingService service = new CountingService();
+    service.release.countDown();
+    DataSource dataSource = service.getDataSource("models/Model 1.xmi"); //$NON-NLS-1$
+    dataSource.getConnection().close();
+
+    service.clearDataSource("models/Model 1.xmi"); //$NON-NLS-1$
+    assertEquals(0, service.getPoolCount());
+
+    // e.g. held by Mondrian's schema cache
+    assertNotNull(dataSource.getConnection());
+    assertEquals(2, service.created.get());
+    assertEquals(1, service.getPoolCount());
+    service.clearCache();
+  }
+}
@@ -0,0 +1,65 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.platform;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Properties;
+
+import org.junit.Test;
+
+public class JettyServerConfigTest {
+
+  @Test
+  public void missingFileUsesDefaults() {
+    JettyServerConfig config = JettyServerConfig.load(new File("does-not-exist.properties")); //$NON-NLS-1$
+    assertEquals(32, config.getMaxThreads());
+    assertTrue(config.isGzipEnabled());
+    assertTrue(config.getGzipMimeTypes().contains("application/json")); //$NON-NLS-1$
+  }
+
+  @Test
+  public void propertiesOverrideDefaults() {
+    Properties props = new Properties();
+    props.setProperty("threads.min", "2"); //$NON-NLS-1$ //$NON-NLS-2$
+    props.setProperty("threads.max", "64"); //$NON-NLS-1$ //$NON-NLS-2$
+    props.setProperty("gzip.enabled", "false"); //$NON-NLS-1$ //$NON-NLS-2$
+    props.setProperty("static.cacheControl", ""); //$NON-NLS-1$ //$NON-NLS-2$
+    JettyServerConfig config = new JettyServerConfig();
+    config.apply(props);
+    assertEquals(2, config.getMinThreads());
+    assertEquals(64, config.getMaxThreads());
+    assertFalse(config.isGzipEnabled());
+    assertEquals("", config.getStaticCacheControl()); //$NON-NLS-1$
+  }
+
+  @Test
+  public void invalidValuesAreCorrected() {
+    Properties props = new Properties();
+    props.setProperty("threads.min", "8"); //$NON-NLS-1$ //$NON-NLS-2$
+    props.setProperty("threads.max", "2"); //$NON-NLS-1$ //$NON-NLS-2$
+    props.setProperty("acceptors", "x"); //$NON-NLS-1$ //$NON-NLS-2$
+    JettyServerConfig config = new JettyServerConfig();
+    config.apply(props);
+    assertEquals(8, config.getMaxThreads());
+    assertEquals(1, config.getAcceptors());
+  }
+}
@@ -0,0 +1,56 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.platform;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import mondrian.olap.MondrianDef;
+
+import org.junit.Test;
+
+public class MondrianCacheFlusherTest {
+
+  @Test
+  public void schemasAreMatchedByModelFile() {
+    String byUrl = "Provider=mondrian;DataSource=sales;Catalog=solution:/models/sales.xmi"; //$NON-NLS-1$
+    assertTrue(MondrianCacheFlusher.isSchemaOfModel(byUrl, "models/sales.xmi")); //$NON-NLS-1$
+    assertTrue(MondrianCacheFlusher.isSchemaOfModel("Provider=mondrian;DataSource=models/sales.xmi", //$NON-NLS-1$
+        new File("models/sales.xmi").getAbsolutePath())); //$NON-NLS-1$
+    assertFalse(MondrianCacheFlusher.isSchemaOfModel("Provider=mondrian;DataSource=models/sales.xmi", //$NON-NLS-1$
+        "models/customers.xmi")); //$NON-NLS-1$
+  }
+
+  @Test
+  public void tablesAreFoundInJoins() {
+    MondrianDef.Table sales = new MondrianDef.Table();
+    sales.name = "sales"; //$NON-NLS-1$
+    MondrianDef.Table customers = new MondrianDef.Table();
+    customers.schema = "dw"; //$NON-NLS-1$
+    customers.name = "customers"; //$NON-NLS-1$
+    MondrianDef.Join join = new MondrianDef.Join();
+    join.left = sales;
+    join.right = customers;
+
+    assertTrue(MondrianCacheFlusher.readsTable(join, "dw.customers")); //$NON-NLS-1$
+    assertTrue(MondrianCacheFlusher.readsTable(sales, "SALES")); //$NON-NLS-1$
+    assertFalse(MondrianCacheFlusher.readsTable(customers, "sales")); //$NON-NLS-1$
+  }
+}
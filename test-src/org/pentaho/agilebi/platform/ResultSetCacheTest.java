@@ -0,0 +1,267 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.platform;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class ResultSetCacheTest {
+
+  private static final Object[][] ROWS = { { "East", 10, 1.5 }, { "West", null, 2.5 }, { "East", 30, null } };
+
+  /**
+   * A connection whose queries all return {@link #ROWS}, counting how often it is asked.
+   */
+  private static class FakeDatabase implements InvocationHandler {
+    final AtomicInteger queries = new AtomicInteger();
+    final AtomicInteger updates = new AtomicInteger();
+
+    Connection connect() {
+      return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { Connection.class }, this);
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) {
+      String name = method.getName();
+      if (name.equals("createStatement") || name.equals("prepareStatement")) { //$NON-NLS-1$ //$NON-NLS-2$
+        return Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class[] { name.equals("createStatement") ? Statement.class : PreparedStatement.class }, //$NON-NLS-1$
+            new InvocationHandler() {
+              public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("executeQuery")) { //$NON-NLS-1$
+                  queries.incrementAndGet();
+                  return resultSet();
+                }
+                if (method.getName().equals("executeUpdate")) { //$NON-NLS-1$
+                  updates.incrementAndGet();
+                  return 1;
+                }
+                return defaultValue(method);
+              }
+            });
+      }
+      if (name.equals("getAutoCommit")) { //$NON-NLS-1$
+        return Boolean.TRUE;
+      }
+      return defaultValue(method);
+    }
+
+    ResultSet resultSet() {
+      final ResultSetMetaData metaData = (ResultSetMetaData) Proxy.newProxyInstance(getClass().getClassLoader(),
+          new Class[] { ResultSetMetaData.class }, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+              String name = method.getName();
+              if (name.equals("getColumnCount")) { //$NON-NLS-1$
+                return 3;
+              }
+              if (name.equals("getColumnLabel") || name.equals("getColumnName")) { //$NON-NLS-1$ //$NON-NLS-2$
+                return new String[] { "region", "units", "price" }[(Integer) args[0] - 1]; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+              }
+              if (name.equals("getColumnType")) { //$NON-NLS-1$
+                return new int[] { Types.VARCHAR, Types.INTEGER, Types.DOUBLE }[(Integer) args[0] - 1];
+              }
+              return defaultValue(method);
+            }
+          });
+      return (ResultSet) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { ResultSet.class },
+          new InvocationHandler() {
+            int row = -1;
+
+            public Object invoke(Object proxy, Method method, Object[] args) {
+              String name = method.getName();
+              if (name.equals("next")) { //$NON-NLS-1$
+                return ++row < ROWS.length;
+              }
+              if (name.equals("getMetaData")) { //$NON-NLS-1$
+                return metaData;
+              }
+              if (name.equals("getObject")) { //$NON-NLS-1$
+                return ROWS[row][(Integer) args[0] - 1];
+              }
+              return defaultValue(method);
+            }
+          });
+    }
+  }
+
+  private static Object defaultValue(Method method) {
+    Class<?> type = method.getReturnType();
+    if (type == Boolean.TYPE) {
+      return Boolean.FALSE;
+    }
+    if (type == Integer.TYPE) {
+      return 0;
+    }
+    return null;
+  }
+
+  private static int readAll(ResultSet rs) throws Exception {
+    int rows = 0;
+    while (rs.next()) {
+      rows++;
+    }
+    rs.close();
+    return rows;
+  }
+
+  @Test
+  public void normalizeCollapsesWhitespaceOutsideLiterals() {
+    assertEquals("SELECT a FROM t WHERE b = 'x  y'", //$NON-NLS-1$
+        ResultSetCache.normalize("  SELECT a\n\tFROM   t WHERE b = 'x  y' ")); //$NON-NLS-1$
+  }
+
+  @Test
+  public void writeTargets() {
+    assertEquals("SALES", ResultSetCache.getWriteTarget("insert into sales values (1)")); //$NON-NLS-1$ //$NON-NLS-2$
+    assertEquals("SALES", ResultSetCache.getWriteTarget("UPDATE dw.\"Sales\" SET x = 1")); //$NON-NLS-1$ //$NON-NLS-2$
+    assertEquals("SALES", ResultSetCache.getWriteTarget("DROP TABLE IF EXISTS sales")); //$NON-NLS-1$ //$NON-NLS-2$
+    assertNull(ResultSetCache.getWriteTarget("CALL refresh()")); //$NON-NLS-1$
+    assertTrue(ResultSetCache.getIdentifiers("select \"x\" from \"Sales\" s where y = 'ORDERS'").contains("SALES")); //$NON-NLS-1$ //$NON-NLS-2$
+    assertFalse(ResultSetCache.getIdentifiers("select x from sales where y = 'ORDERS'").contains("ORDERS")); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+
+  @Test
+  public void repeatedQueriesAreServedFromTheCache() throws Exception {
+    FakeDatabase database = new FakeDatabase();
+    ResultSetCache cache = new ResultSetCache(1024 * 1024, 0);
+    Connection connection = CachingConnection.wrap(database.connect(), "ds", cache); //$NON-NLS-1$
+
+    assertEquals(3, readAll(connection.createStatement().executeQuery("SELECT * FROM sales"))); //$NON-NLS-1$
+    ResultSet cached = connection.createStatement().executeQuery("SELECT *\n FROM sales"); //$NON-NLS-1$
+    assertEquals(1, database.queries.get());
+
+    assertTrue(cached.next());
+    assertEquals("East", cached.getString("REGION")); //$NON-NLS-1$ //$NON-NLS-2$
+    assertEquals(10, cached.getInt(2));
+    assertEquals(1.5, cached.getDouble("price"), 0); //$NON-NLS-1$
+    assertTrue(cached.next());
+    assertEquals(0, cached.getInt(2));
+    assertTrue(cached.wasNull());
+    assertEquals(null, cached.getObject(2));
+    assertTrue(cached.next());
+    assertEquals(Integer.valueOf(30), cached.getObject(2));
+    assertFalse(cached.next());
+    assertEquals(Types.INTEGER, cached.getMetaData().getColumnType(2));
+  }
+
+  @Test
+  public void parametersArePartOfTheKey() throws Exception {
+    FakeDatabase database = new FakeDatabase();
+    ResultSetCache cache = new ResultSetCache(1024 * 1024, 0);
+    Connection connection = CachingConnection.wrap(database.connect(), "ds", cache); //$NON-NLS-1$
+    PreparedStatement statement = connection.prepareStatement("SELECT * FROM sales WHERE region = ?"); //$NON-NLS-1$
+    statement.setString(1, "East"); //$NON-NLS-1$
+    readAll(statement.executeQuery());
+    statement.setString(1, "West"); //$NON-NLS-1$
+    readAll(statement.executeQuery());
+    statement.setString(1, "East"); //$NON-NLS-1$
+    readAll(statement.executeQuery());
+    assertEquals(2, database.queries.get());
+  }
+
+  @Test
+  public void writesInvalidateTheTablesTheyModify() throws Exception {
+    FakeDatabase database = new FakeDatabase();
+    ResultSetCache cache = new ResultSetCache(1024 * 1024, 0);
+    Connection connection = CachingConnection.wrap(database.connect(), "ds", cache); //$NON-NLS-1$
+    readAll(connection.createStatement().executeQuery("SELECT * FROM sales")); //$NON-NLS-1$
+    readAll(connection.createStatement().executeQuery("SELECT * FROM customers")); //$NON-NLS-1$
+
+    connection.createStatement().executeUpdate("DELETE FROM sales WHERE 1 = 0"); //$NON-NLS-1$
+    readAll(connection.createStatement().executeQuery("SELECT * FROM sales")); //$NON-NLS-1$
+    readAll(connection.createStatement().executeQuery("SELECT * FROM customers")); //$NON-NLS-1$
+    assertEquals(3, database.queries.get());
+
+    cache.invalidateTable("ds", "dw.customers"); //$NON-NLS-1$ //$NON-NLS-2$
+    readAll(connection.createStatement().executeQuery("SELECT * FROM customers")); //$NON-NLS-1$
+    assertEquals(4, database.queries.get());
+  }
+
+  @Test
+  public void quotedTableNamesInvalidate() throws Exception {
+    FakeDatabase database = new FakeDatabase();
+    ResultSetCache cache = new ResultSetCache(1024 * 1024, 0);
+    Connection connection = CachingConnection.wrap(database.connect(), "ds", cache); //$NON-NLS-1$
+    readAll(connection.createStatement().executeQuery("SELECT * FROM sales")); //$NON-NLS-1$
+
+    cache.invalidateTable("ds", "\"SALES\""); //$NON-NLS-1$ //$NON-NLS-2$
+    readAll(connection.createStatement().executeQuery("SELECT * FROM sales")); //$NON-NLS-1$
+    cache.invalidateTable("ds", "dw.[sales]"); //$NON-NLS-1$ //$NON-NLS-2$
+    readAll(connection.createStatement().executeQuery("SELECT * FROM sales")); //$NON-NLS-1$
+    assertEquals(3, database.queries.get());
+  }
+
+  @Test
+  public void cachedExecuteHasNoUpdateCount() throws Exception {
+    FakeDatabase database = new FakeDatabase();
+    ResultSetCache cache = new ResultSetCache(1024 * 1024, 0);
+    Connection connection = CachingConnection.wrap(database.connect(), "ds", cache); //$NON-NLS-1$
+    readAll(connection.createStatement().executeQuery("SELECT * FROM sales")); //$NON-NLS-1$
+
+    Statement statement = connection.createStatement();
+    assertTrue(statement.execute("SELECT * FROM sales")); //$NON-NLS-1$
+    readAll(statement.getResultSet());
+    assertFalse(statement.getMoreResults());
+    assertEquals(-1, statement.getUpdateCount());
+    assertNull(statement.getResultSet());
+    assertEquals(1, database.queries.get());
+  }
+
+  @Test
+  public void partlyReadResultsAreNotCached() throws Exception {
+    FakeDatabase database = new FakeDatabase();
+    ResultSetCache cache = new ResultSetCache(1024 * 1024, 0);
+    Connection connection = CachingConnection.wrap(database.connect(), "ds", cache); //$NON-NLS-1$
+    ResultSet rs = connection.createStatement().executeQuery("SELECT * FROM sales"); //$NON-NLS-1$
+    rs.next();
+    rs.close();
+    assertEquals(0, cache.getEntryCount());
+  }
+
+  @Test
+  public void leastRecentlyUsedResultsAreEvicted() throws Exception {
+    FakeDatabase database = new FakeDatabase();
+    ResultSetCache cache = new ResultSetCache(1024 * 1024, 0);
+    Connection connection = CachingConnection.wrap(database.connect(), "ds", cache); //$NON-NLS-1$
+    readAll(connection.createStatement().executeQuery("SELECT * FROM sales")); //$NON-NLS-1$
+    long entrySize = cache.getSize();
+    assertTrue(entrySize > 0);
+
+    cache = new ResultSetCache(entrySize * 4, 0);
+    connection = CachingConnection.wrap(database.connect(), "ds", cache); //$NON-NLS-1$
+    for (int i = 0; i < 5; i++) {
+      readAll(connection.createStatement().executeQuery("SELECT * FROM sales WHERE id = " + i)); //$NON-NLS-1$
+    }
+    assertEquals(4, cache.getEntryCount());
+    assertNull(cache.get(ResultSetCache.getKey("ds", "SELECT * FROM sales WHERE id = 0", null, 0))); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+}
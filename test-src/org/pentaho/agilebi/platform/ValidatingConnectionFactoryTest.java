@@ -0,0 +1,98 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.platform;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.dbcp.ConnectionFactory;
+import org.apache.commons.pool.impl.GenericObjectPool;
+import org.junit.Test;
+
+public class ValidatingConnectionFactoryTest {
+
+  /**
+   * Hands out fake connections that count their isValid calls.
+   */
+  private static class FakeConnections implements ConnectionFactory {
+    final AtomicInteger validations = new AtomicInteger();
+
+    public Connection createConnection() throws SQLException {
+      return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { Connection.class },
+          new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+              if (method.getName().equals("isValid")) { //$NON-NLS-1$
+                validations.incrementAndGet();
+                return Boolean.TRUE;
+              }
+              if (method.getName().equals("hashCode")) { //$NON-NLS-1$
+                return System.identityHashCode(proxy);
+              }
+              if (method.getName().equals("equals")) { //$NON-NLS-1$
+                return proxy == args[0];
+              }
+              Class<?> type = method.getReturnType();
+              if (type == Boolean.TYPE) {
+                return Boolean.FALSE;
+              }
+              if (type == Integer.TYPE) {
+                return 0;
+              }
+              return null;
+            }
+          });
+    }
+  }
+
+  private GenericObjectPool createPool(FakeConnections connections, long revalidateAfter) {
+    GenericObjectPool pool = new GenericObjectPool();
+    pool.setTestOnBorrow(true);
+    new ValidatingConnectionFactory(connections, pool, null, "SELECT 1", revalidateAfter, 5); //$NON-NLS-1$
+    return pool;
+  }
+
+  @Test
+  public void recentlyUsedConnectionsAreNotValidated() throws Exception {
+    FakeConnections connections = new FakeConnections();
+    GenericObjectPool pool = createPool(connections, 60000L);
+    for (int i = 0; i < 5; i++) {
+      pool.returnObject(pool.borrowObject());
+    }
+    assertEquals(0, connections.validations.get());
+  }
+
+  @Test
+  public void idleConnectionsAreValidated() throws Exception {
+    FakeConnections connections = new FakeConnections();
+    GenericObjectPool pool = createPool(connections, 0L);
+    pool.returnObject(pool.borrowObject());
+    pool.returnObject(pool.borrowObject());
+    assertEquals(2, connections.validations.get());
+  }
+
+  @Test
+  public void unknownDatabasesUseTheDefaultQuery() {
+    assertEquals("SELECT 1", ValidatingConnectionFactory.getValidationQuery(null)); //$NON-NLS-1$
+  }
+}
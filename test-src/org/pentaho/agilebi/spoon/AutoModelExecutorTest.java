@@ -0,0 +1,174 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.spoon;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.pentaho.agilebi.modeler.ModelerWorkspace;
+
+public class AutoModelExecutorTest {
+
+  /**
+   * Records the status each named run finished with.
+   */
+  private static class RecordingListener implements AutoModelExecutor.Listener {
+    final Map<String, AutoModelExecutor.Status> statuses;
+    final String name;
+    final CountDownLatch done;
+
+    RecordingListener(Map<String, AutoModelExecutor.Status> statuses, String name, CountDownLatch done) {
+      this.statuses = statuses;
+      this.name = name;
+      this.done = done;
+    }
+
+    public void started(ModelerWorkspace workspace, AutoModelExecutor.Kind kind) {
+    }
+
+    public void finished(ModelerWorkspace workspace, AutoModelExecutor.Kind kind, AutoModelExecutor.Status status,
+        Exception error) {
+      statuses.put(name, status);
+      done.countDown();
+    }
+  }
+
+  private static AutoModelExecutor.Task blockUntil(final CountDownLatch started, final CountDownLatch release) {
+    return new AutoModelExecutor.Task() {
+      public void run() throws Exception {
+        started.countDown();
+        release.await();
+      }
+    };
+  }
+
+  private static final AutoModelExecutor.Task NOOP = new AutoModelExecutor.Task() {
+    public void run() {
+    }
+  };
+
+  @Test
+  public void newerRequestsSupersedeOlderOnes() throws Exception {
+    AutoModelExecutor executor = new AutoModelExecutor(2);
+    ModelerWorkspace workspace = new ModelerWorkspace(new SpoonModelerWorkspaceHelper());
+    Map<String, AutoModelExecutor.Status> statuses = new ConcurrentHashMap<String, AutoModelExecutor.Status>();
+    CountDownLatch done = new CountDownLatch(3);
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+
+    executor.submit(workspace, AutoModelExecutor.Kind.OLAP, blockUntil(started, release), new RecordingListener(statuses, "first", done)); //$NON-NLS-1$
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+    executor.submit(workspace, AutoModelExecutor.Kind.OLAP, NOOP, new RecordingListener(statuses, "second", done)); //$NON-NLS-1$
+    executor.submit(workspace, AutoModelExecutor.Kind.OLAP, NOOP, new RecordingListener(statuses, "third", done)); //$NON-NLS-1$
+
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    // the first run was interrupted, the second never ran
+    assertEquals(AutoModelExecutor.Status.SUPERSEDED, statuses.get("first")); //$NON-NLS-1$
+    assertEquals(AutoModelExecutor.Status.SUPERSEDED, statuses.get("second")); //$NON-NLS-1$
+    assertEquals(AutoModelExecutor.Status.COMPLETED, statuses.get("third")); //$NON-NLS-1$
+    assertFalse(executor.isActive(workspace, AutoModelExecutor.Kind.OLAP));
+  }
+
+  @Test
+  public void kindsOfOneWorkspaceRunInTurn() throws Exception {
+    AutoModelExecutor executor = new AutoModelExecutor(2);
+    ModelerWorkspace workspace = new ModelerWorkspace(new SpoonModelerWorkspaceHelper());
+    Map<String, AutoModelExecutor.Status> statuses = new ConcurrentHashMap<String, AutoModelExecutor.Status>();
+    CountDownLatch done = new CountDownLatch(2);
+    CountDownLatch olapStarted = new CountDownLatch(1);
+    CountDownLatch relationalStarted = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+
+    executor.submit(workspace, AutoModelExecutor.Kind.OLAP, blockUntil(olapStarted, release), new RecordingListener(statuses, "olap", done)); //$NON-NLS-1$
+    executor.submit(workspace, AutoModelExecutor.Kind.RELATIONAL, blockUntil(relationalStarted, new CountDownLatch(0)), new RecordingListener(statuses, "relational", done)); //$NON-NLS-1$
+
+    // the relational run waits for the OLAP run although a thread is free
+    assertTrue(olapStarted.await(5, TimeUnit.SECONDS));
+    assertFalse(relationalStarted.await(200, TimeUnit.MILLISECONDS));
+    assertTrue(executor.isActive(workspace, AutoModelExecutor.Kind.RELATIONAL));
+    release.countDown();
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertEquals(AutoModelExecutor.Status.COMPLETED, statuses.get("olap")); //$NON-NLS-1$
+    assertEquals(AutoModelExecutor.Status.COMPLETED, statuses.get("relational")); //$NON-NLS-1$
+  }
+
+  @Test
+  public void workspacesRunInParallel() throws Exception {
+    AutoModelExecutor executor = new AutoModelExecutor(2);
+    ModelerWorkspace first = new ModelerWorkspace(new SpoonModelerWorkspaceHelper());
+    ModelerWorkspace second = new ModelerWorkspace(new SpoonModelerWorkspaceHelper());
+    Map<String, AutoModelExecutor.Status> statuses = new ConcurrentHashMap<String, AutoModelExecutor.Status>();
+    CountDownLatch done = new CountDownLatch(2);
+    CountDownLatch started = new CountDownLatch(2);
+    CountDownLatch release = new CountDownLatch(1);
+
+    executor.submit(first, AutoModelExecutor.Kind.OLAP, blockUntil(started, release), new RecordingListener(statuses, "first", done)); //$NON-NLS-1$
+    executor.submit(second, AutoModelExecutor.Kind.OLAP, blockUntil(started, release), new RecordingListener(statuses, "second", done)); //$NON-NLS-1$
+
+    // both are running at the same time
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+    release.countDown();
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertEquals(AutoModelExecutor.Status.COMPLETED, statuses.get("first")); //$NON-NLS-1$
+    assertEquals(AutoModelExecutor.Status.COMPLETED, statuses.get("second")); //$NON-NLS-1$
+  }
+
+  @Test
+  public void cancelDropsEveryRunOfTheWorkspace() throws Exception {
+    AutoModelExecutor executor = new AutoModelExecutor(1);
+    ModelerWorkspace workspace = new ModelerWorkspace(new SpoonModelerWorkspaceHelper());
+    Map<String, AutoModelExecutor.Status> statuses = new ConcurrentHashMap<String, AutoModelExecutor.Status>();
+    CountDownLatch done = new CountDownLatch(2);
+    CountDownLatch started = new CountDownLatch(1);
+
+    executor.submit(workspace, AutoModelExecutor.Kind.OLAP, blockUntil(started, new CountDownLatch(1)), new RecordingListener(statuses, "running", done)); //$NON-NLS-1$
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+    executor.submit(workspace, AutoModelExecutor.Kind.RELATIONAL, NOOP, new RecordingListener(statuses, "queued", done)); //$NON-NLS-1$
+    executor.cancel(workspace);
+
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertEquals(AutoModelExecutor.Status.CANCELLED, statuses.get("running")); //$NON-NLS-1$
+    assertEquals(AutoModelExecutor.Status.CANCELLED, statuses.get("queued")); //$NON-NLS-1$
+    assertFalse(executor.isActive(workspace, AutoModelExecutor.Kind.OLAP));
+    assertFalse(executor.isActive(workspace, AutoModelExecutor.Kind.RELATIONAL));
+  }
+
+  @Test
+  public void failuresAreReported() throws Exception {
+    AutoModelExecutor executor = new AutoModelExecutor(1);
+    ModelerWorkspace workspace = new ModelerWorkspace(new SpoonModelerWorkspaceHelper());
+    Map<String, AutoModelExecutor.Status> statuses = new ConcurrentHashMap<String, AutoModelExecutor.Status>();
+    CountDownLatch done = new CountDownLatch(1);
+
+    executor.submit(workspace, AutoModelExecutor.Kind.OLAP, new AutoModelExecutor.Task() {
+      public void run() throws Exception {
+        throw new Exception("boom"); //$NON-NLS-1$
+      }
+    }, new RecordingListener(statuses, "failing", done)); //$NON-NLS-1$
+
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertEquals(AutoModelExecutor.Status.FAILED, statuses.get("failing")); //$NON-NLS-1$
+  }
+}
@@ -0,0 +1,142 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.spoon;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.pentaho.agilebi.modeler.IModelerWorkspaceHelper;
+import org.pentaho.agilebi.modeler.ModelerMessagesHolder;
+import org.pentaho.agilebi.modeler.geo.GeoContext;
+import org.pentaho.agilebi.modeler.strategy.SimpleAutoModelStrategy;
+import org.pentaho.agilebi.modeler.util.ModelerWorkspaceHelper;
+import org.pentaho.di.core.KettleEnvironment;
+import org.pentaho.di.core.database.DatabaseMeta;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaString;
+import org.pentaho.metadata.model.concept.types.LocalizedString;
+
+public class BulkModelerTest {
+
+  private File folder;
+
+  @BeforeClass
+  public static void init() throws Exception {
+    KettleEnvironment.init();
+    ModelerMessagesHolder.setMessages(new SpoonModelerMessages());
+  }
+
+  @Before
+  public void setup() {
+    folder = new File(System.getProperty("java.io.tmpdir"), "bulk-modeler-test-" + System.nanoTime());
+  }
+
+  @After
+  public void cleanup() {
+    FileUtils.deleteQuietly(folder);
+  }
+
+  /**
+   * @return a modeler that auto-models without Spoon
+   */
+  private static BulkModeler createModeler() {
+    return new BulkModeler(2) {
+      @Override
+      protected IModelerWorkspaceHelper createWorkspaceHelper(GeoContext geoContext) {
+        ModelerWorkspaceHelper helper = new ModelerWorkspaceHelper(LocalizedString.DEFAULT_LOCALE);
+        helper.setAutoModelStrategy(new SimpleAutoModelStrategy(LocalizedString.DEFAULT_LOCALE, geoContext));
+        return helper;
+      }
+    };
+  }
+
+  /**
+   * @return a source writing the given fields to the table, one without fields can't be modeled
+   */
+  private static OutputStepModelerSource createSource(String tableName, String... fields) {
+    DatabaseMeta databaseMeta = new DatabaseMeta("test", "MYSQL", "Native", "localhost", "db", "3306", "user", "pass");
+    OutputStepModelerSource source = new OutputStepModelerSource(databaseMeta, tableName, null, "Transformation 1", null, null, "step0");
+    RowMetaInterface rowMeta = new RowMeta();
+    for (String field : fields) {
+      rowMeta.addValueMeta(new ValueMetaString(field));
+    }
+    source.setRowMeta(rowMeta);
+    return source;
+  }
+
+  @Test
+  public void failureDoesNotStopTheOtherModels() throws Exception {
+    List<OutputStepModelerSource> sources = new ArrayList<OutputStepModelerSource>();
+    sources.add(createSource("sales", "region", "product"));
+    sources.add(createSource("broken"));
+    sources.add(createSource("customers", "name", "city"));
+    final int[] completed = new int[1];
+
+    List<BulkModeler.Result> results = createModeler().modelAll(sources, folder, new BulkModeler.ProgressListener() {
+      public void modelCompleted(BulkModeler.Result result, int count, int total) {
+        completed[0] = count;
+        assertEquals(3, total);
+      }
+    });
+
+    assertEquals(3, results.size());
+    assertEquals(3, completed[0]);
+    for (BulkModeler.Result result : results) {
+      if (result.getSource().getTableName().equals("broken")) {
+        assertFalse(result.isSuccess());
+        assertNotNull(result.getError());
+        assertFalse(new File(result.getFileName()).exists());
+      } else {
+        assertTrue(result.isSuccess());
+        assertTrue(new File(result.getFileName()).length() > 0);
+      }
+    }
+  }
+
+  @Test
+  public void sameTableGetsDistinctFiles() throws Exception {
+    List<OutputStepModelerSource> sources = new ArrayList<OutputStepModelerSource>();
+    sources.add(createSource("sales", "region"));
+    sources.add(createSource("sales", "product"));
+
+    List<BulkModeler.Result> results = createModeler().modelAll(sources, folder, null);
+
+    Set<String> fileNames = new HashSet<String>();
+    for (BulkModeler.Result result : results) {
+      assertTrue(result.isSuccess());
+      fileNames.add(new File(result.getFileName()).getName());
+    }
+    assertEquals(2, fileNames.size());
+    assertTrue(fileNames.contains("sales.xmi"));
+    assertTrue(fileNames.contains("sales_2.xmi"));
+  }
+}
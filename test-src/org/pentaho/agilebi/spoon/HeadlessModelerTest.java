@@ -0,0 +1,94 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.spoon;
+
+import java.io.File;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.pentaho.agilebi.modeler.util.TableModelerSource;
+import org.pentaho.di.core.KettleEnvironment;
+import org.pentaho.di.core.database.DatabaseMeta;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaString;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class HeadlessModelerTest {
+
+  @BeforeClass
+  public static void init() throws KettleException {
+    KettleEnvironment.init();
+  }
+
+  @Test
+  public void addTableParsesSpecs() throws KettleException {
+    HeadlessModeler modeler = new HeadlessModeler();
+    modeler.addDatabase(new DatabaseMeta("conn", "MYSQL", "Native", "localhost", "db", "3306", "user", "pass"));
+
+    modeler.addTable("conn:schema.table");
+    modeler.addTable("conn:other");
+
+    TableModelerSource source = modeler.getSources().get(0);
+    assertEquals("conn", source.getDatabaseMeta().getName());
+    assertEquals("schema", source.getSchemaName());
+    assertEquals("table", source.getTableName());
+    source = modeler.getSources().get(1);
+    assertNull(source.getSchemaName());
+    assertEquals("other", source.getTableName());
+  }
+
+  @Test(expected = KettleException.class)
+  public void addTableRejectsUnknownConnections() throws KettleException {
+    new HeadlessModeler().addTable("missing:schema.table");
+  }
+
+  @Test(expected = KettleException.class)
+  public void addTableRejectsSpecsWithoutConnection() throws KettleException {
+    new HeadlessModeler().addTable("schema.table");
+  }
+
+  @Test
+  public void runWritesModelsToDisk() throws Exception {
+    File folder = new File(System.getProperty("java.io.tmpdir"), "headless-modeler-test-" + System.nanoTime());
+    try {
+      DatabaseMeta databaseMeta = new DatabaseMeta("test", "MYSQL", "Native", "localhost", "db", "3306", "user", "pass");
+      OutputStepModelerSource source = new OutputStepModelerSource(databaseMeta, "sales", null, "Transformation 1", null, null, "step0");
+      RowMetaInterface rowMeta = new RowMeta();
+      rowMeta.addValueMeta(new ValueMetaString("region"));
+      rowMeta.addValueMeta(new ValueMetaInteger("amount"));
+      source.setRowMeta(rowMeta);
+
+      HeadlessModeler modeler = new HeadlessModeler();
+      modeler.setOutputFolder(folder);
+      modeler.getSources().add(source);
+
+      assertTrue(modeler.run());
+      assertTrue(new File(folder, "sales.xmi").length() > 0);
+      assertTrue(new File(folder, "sales.mondrian.xml").length() > 0);
+    } finally {
+      FileUtils.deleteQuietly(folder);
+    }
+  }
+}
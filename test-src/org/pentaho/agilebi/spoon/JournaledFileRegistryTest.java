@@ -0,0 +1,175 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.spoon;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.apache.commons.io.FileUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.pentaho.metadata.registry.Entity;
+import org.pentaho.metadata.registry.Link;
+import org.pentaho.metadata.registry.Type;
+import org.pentaho.metadata.registry.Verb;
+
+public class JournaledFileRegistryTest {
+
+  private File registryFile;
+
+  @Before
+  public void setup() throws Exception {
+    registryFile = File.createTempFile("registry", ".xml"); //$NON-NLS-1$ //$NON-NLS-2$
+    registryFile.delete();
+  }
+
+  @After
+  public void cleanup() {
+    registryFile.delete();
+    new File(registryFile.getPath() + JournaledFileRegistry.JOURNAL_EXTENSION).delete();
+    new File(registryFile.getPath() + JournaledFileRegistry.BACKUP_EXTENSION).delete();
+  }
+
+  private JournaledFileRegistry createRegistry() throws Exception {
+    JournaledFileRegistry registry = new JournaledFileRegistry();
+    registry.setFilePath(registryFile.getPath());
+    registry.init();
+    return registry;
+  }
+
+  private void addLineage(JournaledFileRegistry registry) throws Exception {
+    Entity trans = new Entity("repo~trans.ktr", "trans", Type.TYPE_TRANSFORMATION.getId()); //$NON-NLS-1$ //$NON-NLS-2$
+    Entity table = new Entity("db~schema~table", "table", Type.TYPE_PHYSICAL_TABLE.getId()); //$NON-NLS-1$ //$NON-NLS-2$
+    registry.addEntity(trans);
+    registry.addEntity(table);
+    registry.addLink(new Link(trans, Verb.VERB_POPULATES, table));
+    registry.commit();
+  }
+
+  private void assertLineage(JournaledFileRegistry registry) {
+    assertNotNull(registry.getEntity("repo~trans.ktr", Type.TYPE_TRANSFORMATION.getId())); //$NON-NLS-1$
+    assertNotNull(registry.getEntity("db~schema~table", Type.TYPE_PHYSICAL_TABLE.getId())); //$NON-NLS-1$
+    assertEquals(1, registry.getLinks().size());
+    Link link = registry.getLinks().get(0);
+    assertEquals(Verb.VERB_POPULATES.getId(), link.getVerbId());
+    assertEquals("db~schema~table", link.getObjectId()); //$NON-NLS-1$
+  }
+
+  @Test
+  public void commitAppendsToJournal() throws Exception {
+    JournaledFileRegistry registry = createRegistry();
+    addLineage(registry);
+    registry.flush();
+
+    assertTrue(new File(registryFile.getPath() + JournaledFileRegistry.JOURNAL_EXTENSION).exists());
+    assertLineage(createRegistry());
+  }
+
+  @Test
+  public void compactFoldsJournalIntoRegistry() throws Exception {
+    JournaledFileRegistry registry = createRegistry();
+    addLineage(registry);
+    registry.flush();
+    registry.compactNow();
+
+    assertFalse(new File(registryFile.getPath() + JournaledFileRegistry.JOURNAL_EXTENSION).exists());
+    assertTrue(registryFile.exists());
+    assertLineage(createRegistry());
+  }
+
+  @Test
+  public void compactKeepsNoBackup() throws Exception {
+    JournaledFileRegistry registry = createRegistry();
+    addLineage(registry);
+    registry.flush();
+    registry.compactNow();
+    addLineage(registry);
+    registry.flush();
+    registry.compactNow();
+
+    assertFalse(new File(registryFile.getPath() + JournaledFileRegistry.BACKUP_EXTENSION).exists());
+    assertLineage(createRegistry());
+  }
+
+  @Test
+  public void interruptedCompactionIsRestoredFromBackup() throws Exception {
+    JournaledFileRegistry registry = createRegistry();
+    addLineage(registry);
+    registry.flush();
+    registry.compactNow();
+    // as if the process died after moving the registry file aside
+    assertTrue(registryFile.renameTo(new File(registryFile.getPath() + JournaledFileRegistry.BACKUP_EXTENSION)));
+
+    assertLineage(createRegistry());
+    assertTrue(registryFile.exists());
+  }
+
+  @Test
+  public void removalsAreJournaled() throws Exception {
+    JournaledFileRegistry registry = createRegistry();
+    addLineage(registry);
+    registry.removeLink(registry.getLinks().get(0));
+    registry.removeEntity(registry.getEntity("repo~trans.ktr", Type.TYPE_TRANSFORMATION.getId())); //$NON-NLS-1$
+    registry.commit();
+    registry.flush();
+
+    JournaledFileRegistry reloaded = createRegistry();
+    assertTrue(reloaded.getLinks().isEmpty());
+    assertNull(reloaded.getEntity("repo~trans.ktr", Type.TYPE_TRANSFORMATION.getId())); //$NON-NLS-1$
+    assertNotNull(reloaded.getEntity("db~schema~table", Type.TYPE_PHYSICAL_TABLE.getId())); //$NON-NLS-1$
+    assertEquals(0, reloaded.getLineageIndex().size());
+  }
+
+  @Test
+  public void attributeChangesAreJournaled() throws Exception {
+    JournaledFileRegistry registry = createRegistry();
+    addLineage(registry);
+    registry.getEntity("db~schema~table", Type.TYPE_PHYSICAL_TABLE.getId()).setAttribute("rows", "42"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+    registry.commit();
+    registry.flush();
+
+    Entity table = createRegistry().getEntity("db~schema~table", Type.TYPE_PHYSICAL_TABLE.getId()); //$NON-NLS-1$
+    assertEquals("42", table.getAttributes().get("rows")); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+
+  @Test
+  public void failedLoadDoesNotCompact() throws Exception {
+    FileUtils.writeStringToFile(registryFile, "not a registry", "UTF-8"); //$NON-NLS-1$ //$NON-NLS-2$
+    JournaledFileRegistry registry = createRegistry();
+    addLineage(registry);
+    registry.flush();
+    registry.compactNow();
+
+    assertEquals("not a registry", FileUtils.readFileToString(registryFile, "UTF-8")); //$NON-NLS-1$ //$NON-NLS-2$
+    assertTrue(new File(registryFile.getPath() + JournaledFileRegistry.JOURNAL_EXTENSION).exists());
+  }
+
+  @Test
+  public void recordEscaping() {
+    String[] fields = { "E", "a\tb", "c\\d", "e\nf", "" }; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$
+    assertArrayEquals(fields, JournaledFileRegistry.fromRecord(JournaledFileRegistry.toRecord(fields)));
+  }
+}
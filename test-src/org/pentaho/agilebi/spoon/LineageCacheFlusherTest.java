@@ -0,0 +1,82 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.spoon;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.pentaho.metadata.registry.Entity;
+import org.pentaho.metadata.registry.Link;
+import org.pentaho.metadata.registry.Type;
+import org.pentaho.metadata.registry.Verb;
+
+public class LineageCacheFlusherTest {
+
+  private File registryFile;
+
+  private JournaledFileRegistry registry;
+
+  @Before
+  public void setup() throws Exception {
+    registryFile = File.createTempFile("registry", ".xml"); //$NON-NLS-1$ //$NON-NLS-2$
+    registryFile.delete();
+    registry = new JournaledFileRegistry();
+    registry.setFilePath(registryFile.getPath());
+    registry.init();
+
+    Entity trans = new Entity("repo~trans.ktr", "trans", Type.TYPE_TRANSFORMATION.getId()); //$NON-NLS-1$ //$NON-NLS-2$
+    Entity sales = new Entity("db~dw~sales", "sales", Type.TYPE_PHYSICAL_TABLE.getId()); //$NON-NLS-1$ //$NON-NLS-2$
+    Entity customers = new Entity("db~dw~customers", "customers", Type.TYPE_PHYSICAL_TABLE.getId()); //$NON-NLS-1$ //$NON-NLS-2$
+    Entity salesModel = new Entity("models/sales.xmi", "Sales", Type.TYPE_OLAP_MODEL.getId()); //$NON-NLS-1$ //$NON-NLS-2$
+    Entity customerModel = new Entity("models/customers.xmi", "Customers", Type.TYPE_OLAP_MODEL.getId()); //$NON-NLS-1$ //$NON-NLS-2$
+    Entity view = new Entity("reports/sales.xanalyzer", "report", Type.TYPE_ANALYZER_VIEW.getId()); //$NON-NLS-1$ //$NON-NLS-2$
+    for (Entity entity : new Entity[] { trans, sales, customers, salesModel, customerModel, view }) {
+      registry.addEntity(entity);
+    }
+    registry.addLink(new Link(trans, Verb.VERB_POPULATES, sales));
+    registry.addLink(new Link(salesModel, Verb.VERB_USES, sales));
+    registry.addLink(new Link(customerModel, Verb.VERB_USES, customers));
+    registry.addLink(new Link(view, Verb.VERB_USES, salesModel));
+  }
+
+  @After
+  public void cleanup() {
+    registryFile.delete();
+    new File(registryFile.getPath() + JournaledFileRegistry.JOURNAL_EXTENSION).delete();
+  }
+
+  @Test
+  public void onlyModelsOnPopulatedTablesAreTargeted() {
+    List<LineageCacheFlusher.Target> targets = LineageCacheFlusher.findTargets(registry, "repo~trans.ktr"); //$NON-NLS-1$
+    assertEquals(1, targets.size());
+    assertEquals("sales", targets.get(0).tableName); //$NON-NLS-1$
+    assertEquals("models/sales.xmi", targets.get(0).modelFile); //$NON-NLS-1$
+    assertEquals("Sales", targets.get(0).cubeName); //$NON-NLS-1$
+  }
+
+  @Test
+  public void unknownTransformationHasNoTargets() {
+    assertTrue(LineageCacheFlusher.findTargets(registry, "repo~other.ktr").isEmpty()); //$NON-NLS-1$
+  }
+}
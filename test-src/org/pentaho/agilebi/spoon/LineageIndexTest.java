@@ -0,0 +1,102 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.spoon;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.pentaho.metadata.registry.Entity;
+import org.pentaho.metadata.registry.Link;
+import org.pentaho.metadata.registry.Type;
+import org.pentaho.metadata.registry.Verb;
+
+public class LineageIndexTest {
+
+  private Entity trans;
+  private Entity table;
+  private Entity model;
+  private Entity view;
+  private LineageIndex index;
+
+  @Before
+  public void setup() {
+    trans = new Entity("repo~trans.ktr", "trans", Type.TYPE_TRANSFORMATION.getId()); //$NON-NLS-1$ //$NON-NLS-2$
+    table = new Entity("db~schema~table", "table", Type.TYPE_PHYSICAL_TABLE.getId()); //$NON-NLS-1$ //$NON-NLS-2$
+    model = new Entity("models/table.xmi", "table", Type.TYPE_OLAP_MODEL.getId()); //$NON-NLS-1$ //$NON-NLS-2$
+    view = new Entity("reports/table.xanalyzer", "report", Type.TYPE_ANALYZER_VIEW.getId()); //$NON-NLS-1$ //$NON-NLS-2$
+
+    index = new LineageIndex();
+    index.addLink(new Link(trans, Verb.VERB_POPULATES, table));
+    index.addLink(new Link(model, Verb.VERB_USES, table));
+    index.addLink(new Link(view, Verb.VERB_USES, model));
+  }
+
+  @Test
+  public void impactOfTransformation() {
+    List<LineageIndex.Node> impacted = index.getImpacted(trans.getId(), trans.getTypeId());
+    assertEquals(3, impacted.size());
+    assertEquals(table.getId(), impacted.get(0).getId());
+    assertEquals(model.getId(), impacted.get(1).getId());
+    assertEquals(view.getId(), impacted.get(2).getId());
+  }
+
+  @Test
+  public void impactFilteredByType() {
+    List<LineageIndex.Node> impacted = index.getImpacted(table.getId(), table.getTypeId(), Type.TYPE_ANALYZER_VIEW.getId());
+    assertEquals(1, impacted.size());
+    assertEquals(view.getId(), impacted.get(0).getId());
+  }
+
+  @Test
+  public void dependenciesOfView() {
+    List<LineageIndex.Node> dependencies = index.getDependencies(view.getId(), view.getTypeId(), Type.TYPE_TRANSFORMATION.getId());
+    assertEquals(1, dependencies.size());
+    assertEquals(trans.getId(), dependencies.get(0).getId());
+  }
+
+  @Test
+  public void duplicateLinksAreIgnored() {
+    index.addLink(new Link(trans, Verb.VERB_POPULATES, table));
+    assertEquals(3, index.size());
+  }
+
+  @Test
+  public void largeGraph() {
+    // 100k links: one transformation populating 25k tables, each with a model and a view
+    LineageIndex large = new LineageIndex();
+    for (int i = 0; i < 25000; i++) {
+      Entity t = new Entity("db~schema~table" + i, "table" + i, Type.TYPE_PHYSICAL_TABLE.getId()); //$NON-NLS-1$ //$NON-NLS-2$
+      Entity m = new Entity("models/table" + i + ".xmi", "table" + i, Type.TYPE_OLAP_MODEL.getId()); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+      Entity v = new Entity("reports/table" + i + ".xanalyzer", "report" + i, Type.TYPE_ANALYZER_VIEW.getId()); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+      large.addLink(new Link(trans, Verb.VERB_POPULATES, t));
+      large.addLink(new Link(m, Verb.VERB_USES, t));
+      large.addLink(new Link(v, Verb.VERB_USES, m));
+      large.addLink(new Link(v, Verb.VERB_USES, t));
+    }
+    assertEquals(100000, large.size());
+
+    List<LineageIndex.Node> single = large.getImpacted("db~schema~table42", Type.TYPE_PHYSICAL_TABLE.getId()); //$NON-NLS-1$
+    assertEquals(2, single.size());
+
+    List<LineageIndex.Node> views = large.getImpacted(trans.getId(), trans.getTypeId(), Type.TYPE_ANALYZER_VIEW.getId());
+    assertEquals(25000, views.size());
+  }
+}
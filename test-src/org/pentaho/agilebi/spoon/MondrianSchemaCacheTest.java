@@ -0,0 +1,145 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.spoon;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.pentaho.agilebi.modeler.IModelerWorkspaceHelper;
+import org.pentaho.agilebi.modeler.ModelerMessagesHolder;
+import org.pentaho.agilebi.modeler.ModelerPerspective;
+import org.pentaho.agilebi.modeler.ModelerWorkspace;
+import org.pentaho.agilebi.modeler.geo.GeoContext;
+import org.pentaho.agilebi.modeler.nodes.MeasureMetaData;
+import org.pentaho.agilebi.modeler.strategy.SimpleAutoModelStrategy;
+import org.pentaho.agilebi.modeler.util.ModelerWorkspaceHelper;
+import org.pentaho.agilebi.modeler.util.ModelerWorkspaceUtil;
+import org.pentaho.di.core.KettleEnvironment;
+import org.pentaho.di.core.database.DatabaseMeta;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaString;
+import org.pentaho.metadata.model.LogicalModel;
+import org.pentaho.metadata.model.concept.types.AggregationType;
+import org.pentaho.metadata.model.concept.types.LocalizedString;
+
+public class MondrianSchemaCacheTest {
+
+  @BeforeClass
+  public static void init() throws Exception {
+    KettleEnvironment.init();
+    ModelerMessagesHolder.setMessages(new SpoonModelerMessages());
+  }
+
+  /**
+   * Counts the schemas generated instead of running the exporter.
+   */
+  private static class CountingCache extends MondrianSchemaCache {
+    int generated;
+
+    @Override
+    String generateSchema(LogicalModel model, String locale) {
+      generated++;
+      return "<Schema name=\"" + model.getId() + "\"/>"; //$NON-NLS-1$ //$NON-NLS-2$
+    }
+  }
+
+  private static ModelerWorkspace createWorkspace() {
+    LogicalModel model = new LogicalModel();
+    model.setId("MODEL_1"); //$NON-NLS-1$
+    ModelerWorkspace workspace = mock(ModelerWorkspace.class);
+    when(workspace.getLogicalModel(ModelerPerspective.ANALYSIS)).thenReturn(model);
+    return workspace;
+  }
+
+  /**
+   * @return a workspace auto-modeled from a sales table with a region and an amount
+   */
+  private static ModelerWorkspace createModeledWorkspace() throws Exception {
+    DatabaseMeta databaseMeta = new DatabaseMeta("test", "MYSQL", "Native", "localhost", "db", "3306", "user", "pass");
+    OutputStepModelerSource source = new OutputStepModelerSource(databaseMeta, "sales", null, "Transformation 1", null, null, "step0");
+    RowMetaInterface rowMeta = new RowMeta();
+    rowMeta.addValueMeta(new ValueMetaString("region")); //$NON-NLS-1$
+    rowMeta.addValueMeta(new ValueMetaInteger("amount")); //$NON-NLS-1$
+    source.setRowMeta(rowMeta);
+
+    GeoContext geoContext = SpoonModelerWorkspaceHelper.initGeoContext();
+    ModelerWorkspaceHelper helper = new ModelerWorkspaceHelper(LocalizedString.DEFAULT_LOCALE);
+    helper.setAutoModelStrategy(new SimpleAutoModelStrategy(LocalizedString.DEFAULT_LOCALE, geoContext));
+    ModelerWorkspace workspace = new ModelerWorkspace(helper, geoContext);
+    ModelerWorkspaceUtil.populateModelFromSource(workspace, source);
+    workspace.setModelName("sales"); //$NON-NLS-1$
+    helper.autoModelFlat(workspace);
+    return workspace;
+  }
+
+  @Test
+  public void consecutiveExportsAreGeneratedOnce() throws Exception {
+    ModelerWorkspace workspace = createModeledWorkspace();
+    IModelerWorkspaceHelper helper = workspace.getWorkspaceHelper();
+
+    // every export populates the domain again before asking for the schema
+    CountingCache cache = new CountingCache();
+    helper.populateDomain(workspace);
+    cache.getSchema(workspace, LocalizedString.DEFAULT_LOCALE);
+    helper.populateDomain(workspace);
+    cache.getSchema(workspace, LocalizedString.DEFAULT_LOCALE);
+    helper.populateDomain(workspace);
+    cache.getSchema(workspace, LocalizedString.DEFAULT_LOCALE);
+    assertEquals(1, cache.generated);
+  }
+
+  @Test
+  public void editedMeasureIsGeneratedAgain() throws Exception {
+    ModelerWorkspace workspace = createModeledWorkspace();
+    IModelerWorkspaceHelper helper = workspace.getWorkspaceHelper();
+    CountingCache cache = new CountingCache();
+    helper.populateDomain(workspace);
+    cache.getSchema(workspace, LocalizedString.DEFAULT_LOCALE);
+
+    MeasureMetaData measure = workspace.getModel().getMeasures().get(0);
+    measure.setFormat("#,##0.00"); //$NON-NLS-1$
+    helper.populateDomain(workspace);
+    cache.getSchema(workspace, LocalizedString.DEFAULT_LOCALE);
+    assertEquals(2, cache.generated);
+
+    measure.setDefaultAggregation(AggregationType.AVERAGE);
+    helper.populateDomain(workspace);
+    cache.getSchema(workspace, LocalizedString.DEFAULT_LOCALE);
+    assertEquals(3, cache.generated);
+    // the schemas generated before the edits are gone
+    assertEquals(1, cache.size());
+  }
+
+  @Test
+  public void workspacesAreCachedSeparately() throws Exception {
+    CountingCache cache = new CountingCache();
+    ModelerWorkspace first = createWorkspace();
+    ModelerWorkspace second = createWorkspace();
+    cache.getSchema(first, LocalizedString.DEFAULT_LOCALE);
+    cache.getSchema(second, LocalizedString.DEFAULT_LOCALE);
+    cache.invalidate(first);
+    cache.getSchema(second, LocalizedString.DEFAULT_LOCALE);
+    assertEquals(2, cache.generated);
+    assertEquals(1, cache.size());
+  }
+}
@@ -17,9 +17,24 @@
 
 package org.pentaho.agilebi.spoon;
 
+import java.util.List;
+
 import org.junit.Test;
+import org.pentaho.agilebi.modeler.ModelerException;
+import org.pentaho.di.core.KettleEnvironment;
+import org.pentaho.di.core.database.DatabaseMeta;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaString;
+import org.pentaho.metadata.model.Domain;
+import org.pentaho.metadata.model.IPhysicalTable;
+import org.pentaho.metadata.model.LogicalModel;
+import org.pentaho.metadata.model.concept.types.DataType;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class OutputStepModelerSourceTest {
   @Test
@@ -60,4 +75,55 @@ public class OutputStepModelerSourceTest {
     OutputStepModelerSource source = new OutputStepModelerSource();
     assertEquals(OutputStepModelerSource.OUTPUTSTEP_SOURCE_TYPE, source.getSourceType());
   }
+
+  @Test
+  public void generateDomainFromRowMeta() throws KettleException, ModelerException {
+    KettleEnvironment.init();
+    DatabaseMeta databaseMeta = new DatabaseMeta("test", "MYSQL", "Native", "localhost", "db", "3306", "user", "pass");
+    OutputStepModelerSource source = new OutputStepModelerSource(databaseMeta, "sales", null, "Transformation 1", null, null, "step0");
+
+    RowMetaInterface rowMeta = new RowMeta();
+    rowMeta.addValueMeta(new ValueMetaString("region"));
+    rowMeta.addValueMeta(new ValueMetaInteger("amount"));
+    source.setRowMeta(rowMeta);
+
+    Domain domain = source.generateDomain();
+
+    IPhysicalTable table = domain.getPhysicalModels().get(0).getPhysicalTables().get(0);
+    assertEquals(2, table.getPhysicalColumns().size());
+    assertEquals(DataType.STRING, table.getPhysicalColumns().get(0).getDataType());
+    assertEquals(DataType.NUMERIC, table.getPhysicalColumns().get(1).getDataType());
+
+    LogicalModel logicalModel = domain.getLogicalModels().get(0);
+    assertEquals(2, logicalModel.getLogicalTables().get(0).getLogicalColumns().size());
+    assertEquals(Boolean.TRUE.toString(), logicalModel.getProperty("SUPPORTS_OLAP"));
+  }
+
+  @Test
+  public void compareWithTable() throws KettleException, ModelerException {
+    KettleEnvironment.init();
+    DatabaseMeta databaseMeta = new DatabaseMeta("test", "MYSQL", "Native", "localhost", "db", "3306", "user", "pass");
+    RowMetaInterface tableColumns = new RowMeta();
+    tableColumns.addValueMeta(new ValueMetaString("REGION"));
+    tableColumns.addValueMeta(new ValueMetaInteger("amount"));
+    tableColumns.addValueMeta(new ValueMetaString("city"));
+    Domain table = new RowMetaDomainGenerator().generateDomain(databaseMeta, null, "sales", tableColumns);
+
+    OutputStepModelerSource source = new OutputStepModelerSource(databaseMeta, "sales", null, "Transformation 1", null, null, "step0");
+    RowMetaInterface rowMeta = new RowMeta();
+    rowMeta.addValueMeta(new ValueMetaString("region"));
+    rowMeta.addValueMeta(new ValueMetaString("amount"));
+    rowMeta.addValueMeta(new ValueMetaString("town"));
+    source.setRowMeta(rowMeta);
+
+    List<String> differences = source.compareWithTable(table);
+    assertEquals(3, differences.size());
+    assertEquals("column AMOUNT is NUMERIC but the step writes STRING", differences.get(0));
+    assertEquals("the step writes TOWN but the table has no such column", differences.get(1));
+    assertEquals("column CITY is not written by the step", differences.get(2));
+
+    rowMeta.setValueMeta(1, new ValueMetaInteger("amount"));
+    rowMeta.setValueMeta(2, new ValueMetaString("city"));
+    assertTrue(source.compareWithTable(table).isEmpty());
+  }
 }
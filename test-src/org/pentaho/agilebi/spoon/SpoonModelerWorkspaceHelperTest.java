@@ -0,0 +1,82 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.spoon;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+
+import org.junit.Test;
+import org.pentaho.agilebi.modeler.ModelerException;
+import org.pentaho.agilebi.modeler.ModelerWorkspace;
+import org.pentaho.agilebi.modeler.geo.GeoContext;
+import org.pentaho.agilebi.modeler.nodes.MainModelNode;
+import org.pentaho.agilebi.modeler.nodes.RelationalModelNode;
+import org.pentaho.agilebi.modeler.strategy.SimpleAutoModelStrategy;
+
+public class SpoonModelerWorkspaceHelperTest {
+
+  @Test
+  public void everyCallerGetsItsOwnGeoContext() {
+    File file = new File("package-res/geoRoles.properties"); //$NON-NLS-1$
+    GeoContext first = SpoonModelerWorkspaceHelper.initGeoContext(file);
+    GeoContext second = SpoonModelerWorkspaceHelper.initGeoContext(file);
+
+    assertNotNull(first);
+    assertNotSame(first, second);
+    assertEquals("Geography", first.getDimensionName()); //$NON-NLS-1$
+    assertEquals(first.getDimensionName(), second.getDimensionName());
+  }
+
+  @Test
+  public void missingFile() {
+    assertNull(SpoonModelerWorkspaceHelper.initGeoContext(new File("does/not/exist.properties"))); //$NON-NLS-1$
+  }
+
+  @Test
+  public void interruptedRunStopsAfterOlapModel() throws Exception {
+    SpoonModelerWorkspaceHelper helper = new SpoonModelerWorkspaceHelper(new GeoContext());
+    ModelerWorkspace work = new ModelerWorkspace(helper);
+    final boolean[] relational = new boolean[1];
+    helper.setAutoModelStrategy(new SimpleAutoModelStrategy(null) {
+      @Override
+      public void autoModelOlap(ModelerWorkspace workspace, MainModelNode mainModel) throws ModelerException {
+        // as if the run was cancelled while the OLAP model was built
+        Thread.currentThread().interrupt();
+      }
+
+      @Override
+      public void autoModelRelational(ModelerWorkspace workspace, RelationalModelNode relationalModelNode) throws ModelerException {
+        relational[0] = true;
+      }
+    });
+    try {
+      helper.autoModelFlat(work);
+      fail();
+    } catch (ModelerException e) {
+      assertTrue(Thread.interrupted());
+    }
+    assertFalse(relational[0]);
+  }
+}
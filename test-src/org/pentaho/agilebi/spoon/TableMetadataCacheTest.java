@@ -0,0 +1,123 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.spoon;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.pentaho.agilebi.modeler.ModelerException;
+import org.pentaho.di.core.KettleEnvironment;
+import org.pentaho.di.core.database.DatabaseMeta;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.metadata.model.Domain;
+
+public class TableMetadataCacheTest {
+
+  /**
+   * Cache that counts harvests instead of talking to a database
+   */
+  private static class CountingCache extends TableMetadataCache {
+    int harvests;
+
+    CountingCache(long timeToLive) {
+      super(timeToLive);
+    }
+
+    @Override
+    protected Domain harvest(DatabaseMeta databaseMeta, String schemaName, String tableName) throws ModelerException {
+      harvests++;
+      Domain domain = new Domain();
+      domain.setId(tableName);
+      return domain;
+    }
+  }
+
+  @BeforeClass
+  public static void setup() throws KettleException {
+    KettleEnvironment.init();
+  }
+
+  private DatabaseMeta createDatabaseMeta(String host) {
+    return new DatabaseMeta("test", "MYSQL", "Native", host, "db", "3306", "user", "pass"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$ //$NON-NLS-6$ //$NON-NLS-7$
+  }
+
+  @Test
+  public void cachedPerTable() throws ModelerException {
+    CountingCache cache = new CountingCache(60000);
+    DatabaseMeta meta = createDatabaseMeta("localhost"); //$NON-NLS-1$
+
+    Domain first = cache.generateDomain(meta, "public", "sales"); //$NON-NLS-1$ //$NON-NLS-2$
+    Domain second = cache.generateDomain(meta, "public", "sales"); //$NON-NLS-1$ //$NON-NLS-2$
+    cache.generateDomain(meta, "public", "customers"); //$NON-NLS-1$ //$NON-NLS-2$
+
+    assertNotSame(first, second);
+    assertEquals("sales", second.getId()); //$NON-NLS-1$
+    assertEquals(2, cache.harvests);
+  }
+
+  @Test
+  public void connectionChangesAreNotServedFromCache() throws ModelerException {
+    CountingCache cache = new CountingCache(60000);
+
+    cache.generateDomain(createDatabaseMeta("host1"), "public", "sales"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+    cache.generateDomain(createDatabaseMeta("host2"), "public", "sales"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+
+    assertEquals(2, cache.harvests);
+  }
+
+  @Test
+  public void passwordIsNotPartOfTheKey() throws ModelerException {
+    CountingCache cache = new CountingCache(60000);
+    DatabaseMeta meta = createDatabaseMeta("localhost"); //$NON-NLS-1$
+
+    cache.generateDomain(meta, "public", "sales"); //$NON-NLS-1$ //$NON-NLS-2$
+    meta.setPassword("changed"); //$NON-NLS-1$
+    cache.generateDomain(meta, "public", "sales"); //$NON-NLS-1$ //$NON-NLS-2$
+
+    assertEquals(1, cache.harvests);
+  }
+
+  @Test
+  public void invalidateAndRefresh() throws ModelerException {
+    CountingCache cache = new CountingCache(60000);
+    DatabaseMeta meta = createDatabaseMeta("localhost"); //$NON-NLS-1$
+
+    cache.generateDomain(meta, null, "sales"); //$NON-NLS-1$
+    cache.refreshDomain(meta, null, "sales"); //$NON-NLS-1$
+    assertEquals(2, cache.harvests);
+
+    cache.generateDomain(meta, null, "customers"); //$NON-NLS-1$
+    assertEquals(2, cache.size());
+    cache.invalidate(meta);
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void disabledWhenTimeToLiveIsZero() throws ModelerException {
+    CountingCache cache = new CountingCache(0);
+    DatabaseMeta meta = createDatabaseMeta("localhost"); //$NON-NLS-1$
+
+    cache.generateDomain(meta, null, "sales"); //$NON-NLS-1$
+    cache.generateDomain(meta, null, "sales"); //$NON-NLS-1$
+
+    assertEquals(2, cache.harvests);
+    assertEquals(0, cache.size());
+  }
+}
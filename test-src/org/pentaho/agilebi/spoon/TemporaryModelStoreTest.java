@@ -0,0 +1,157 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.spoon;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.pentaho.agilebi.modeler.ModelerWorkspace;
+import org.pentaho.metadata.model.Domain;
+
+public class TemporaryModelStoreTest {
+
+  private File folder;
+
+  private int generated;
+
+  @Before
+  public void setup() throws Exception {
+    folder = File.createTempFile("models", ""); //$NON-NLS-1$ //$NON-NLS-2$
+    folder.delete();
+    folder.mkdirs();
+  }
+
+  @After
+  public void cleanup() {
+    File[] files = folder.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    folder.delete();
+  }
+
+  /**
+   * @return a store that writes a domain's id instead of its XMI and counts how often it does
+   */
+  private TemporaryModelStore createStore(int limit) {
+    return new TemporaryModelStore(folder, limit) {
+      @Override
+      String generateXmi(Domain domain) {
+        generated++;
+        return domain == null ? "" : domain.getId(); //$NON-NLS-1$
+      }
+    };
+  }
+
+  @Test
+  public void namesComeFromCounter() {
+    TemporaryModelStore store = createStore(10);
+    assertEquals("Model 1", store.nextModelName()); //$NON-NLS-1$
+    assertEquals("Model 2", store.nextModelName()); //$NON-NLS-1$
+    assertEquals(folder.getPath() + "/Model 2.xmi", store.getFileName("Model 2")); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+
+  @Test
+  public void numberingContinuesAfterPreviousSession() throws Exception {
+    new File(folder, "Model 7.xmi").createNewFile(); //$NON-NLS-1$
+    new File(folder, "Model 3.xmi").createNewFile(); //$NON-NLS-1$
+    TemporaryModelStore store = createStore(10);
+    assertEquals("Model 8", store.nextModelName()); //$NON-NLS-1$
+  }
+
+  @Test
+  public void leastRecentlyUsedModelsAreDropped() throws Exception {
+    TemporaryModelStore store = createStore(2);
+    String first = store.getFileName(store.nextModelName());
+    String second = store.getFileName(store.nextModelName());
+    String third = store.getFileName(store.nextModelName());
+    store.add(first, null);
+    store.add(second, null);
+    store.add(third, null);
+
+    assertEquals(2, store.size());
+    assertFalse(store.contains(first));
+    assertTrue(store.contains(second));
+    assertTrue(store.contains(third));
+  }
+
+  @Test
+  public void modelsInUseAreNotDropped() throws Exception {
+    TemporaryModelStore store = createStore(1);
+    String first = store.getFileName(store.nextModelName());
+    String second = store.getFileName(store.nextModelName());
+    ModelerWorkspace firstModel = mock(ModelerWorkspace.class);
+    ModelerWorkspace secondModel = mock(ModelerWorkspace.class);
+    store.add(first, firstModel);
+    store.add(second, secondModel);
+
+    assertEquals(2, store.size());
+    assertTrue(store.contains(first));
+    assertTrue(store.contains(second));
+    // keeps the models reachable until after the asserts
+    assertNotNull(firstModel);
+    assertNotNull(secondModel);
+  }
+
+  @Test
+  public void materializeWritesTheDomainAsAdded() throws Exception {
+    TemporaryModelStore store = createStore(2);
+    String fileName = store.getFileName(store.nextModelName());
+    Domain before = new Domain();
+    before.setId("before"); //$NON-NLS-1$
+    Domain after = new Domain();
+    after.setId("after"); //$NON-NLS-1$
+    ModelerWorkspace model = mock(ModelerWorkspace.class);
+    when(model.getDomain()).thenReturn(before);
+    store.add(fileName, model);
+    when(model.getDomain()).thenReturn(after);
+
+    assertTrue(store.materialize(fileName));
+    assertEquals("before", FileUtils.readFileToString(new File(fileName), "UTF-8")); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+
+  @Test
+  public void xmiIsOnlyGeneratedWhenMaterialized() throws Exception {
+    TemporaryModelStore store = createStore(2);
+    String fileName = store.getFileName(store.nextModelName());
+    store.add(fileName, mock(ModelerWorkspace.class));
+    assertEquals(0, generated);
+
+    store.materialize(fileName);
+    store.materialize(fileName);
+    assertEquals(1, generated);
+  }
+
+  @Test
+  public void unknownFilesAreNotMaterialized() throws Exception {
+    TemporaryModelStore store = createStore(2);
+    assertFalse(store.materialize(new File(folder, "other.xmi").getPath())); //$NON-NLS-1$
+  }
+}
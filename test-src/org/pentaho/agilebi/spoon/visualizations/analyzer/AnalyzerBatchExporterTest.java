@@ -0,0 +1,118 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.spoon.visualizations.analyzer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.pentaho.agilebi.spoon.visualizations.analyzer.AnalyzerBatchExporter.Format;
+import org.pentaho.agilebi.spoon.visualizations.analyzer.AnalyzerBatchExporter.Result;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class AnalyzerBatchExporterTest {
+
+  private HttpServer server;
+
+  private File dir;
+
+  @Before
+  public void setUp() throws Exception {
+    // answers with the requested format, or 404 for reports named "missing"
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0); //$NON-NLS-1$
+    server.createContext("/", new HttpHandler() { //$NON-NLS-1$
+      public void handle(HttpExchange exchange) throws IOException {
+        String query = exchange.getRequestURI().getQuery();
+        boolean missing = exchange.getRequestURI().getPath().contains("missing"); //$NON-NLS-1$
+        byte[] body = query.getBytes("UTF-8"); //$NON-NLS-1$
+        exchange.sendResponseHeaders(missing ? 404 : 200, missing ? -1 : body.length);
+        OutputStream out = exchange.getResponseBody();
+        if (!missing) {
+          out.write(body);
+        }
+        out.close();
+      }
+    });
+    server.start();
+    dir = File.createTempFile("export", ""); //$NON-NLS-1$ //$NON-NLS-2$
+    dir.delete();
+  }
+
+  @After
+  public void tearDown() {
+    server.stop(0);
+  }
+
+  @Test
+  public void testExport() throws Exception {
+    AnalyzerBatchExporter exporter = new AnalyzerBatchExporter("http://localhost:" //$NON-NLS-1$
+        + server.getAddress().getPort() + "/${path}?outputFormat=${format}", 2, false); //$NON-NLS-1$
+    List<File> reports = Arrays.asList(new File("a/Sales.xanalyzer"), new File("b/Sales.xanalyzer"), //$NON-NLS-1$ //$NON-NLS-2$
+        new File("missing.xanalyzer")); //$NON-NLS-1$
+    File out = new File(dir, "out"); //$NON-NLS-1$
+    List<Result> results = exporter.export(reports, Arrays.asList(Format.PDF, Format.CSV), out);
+
+    assertEquals(6, results.size());
+    assertTrue(results.get(0).isSuccess());
+    assertEquals(new File(out, "Sales.pdf"), results.get(0).getOutput()); //$NON-NLS-1$
+    assertEquals("outputFormat=PDF", read(results.get(0).getOutput())); //$NON-NLS-1$
+    assertEquals("outputFormat=CSV", read(new File(out, "Sales.csv"))); //$NON-NLS-1$ //$NON-NLS-2$
+    assertEquals(new File(out, "Sales (2).pdf"), results.get(2).getOutput()); //$NON-NLS-1$
+    assertTrue(results.get(2).getOutput().exists());
+
+    Result failed = results.get(4);
+    assertFalse(failed.isSuccess());
+    assertFalse(failed.getOutput().exists());
+    assertFalse(new File(failed.getOutput().getPath() + ".part").exists()); //$NON-NLS-1$
+  }
+
+  @Test
+  public void testOutputName() {
+    Set<String> used = new HashSet<String>();
+    assertEquals("Sales", AnalyzerBatchExporter.getOutputName(new File("x/Sales.xanalyzer"), used)); //$NON-NLS-1$ //$NON-NLS-2$
+    assertEquals("Sales (2)", AnalyzerBatchExporter.getOutputName(new File("y/Sales.xanalyzer"), used)); //$NON-NLS-1$ //$NON-NLS-2$
+    assertEquals("Sales (3)", AnalyzerBatchExporter.getOutputName(new File("z/Sales.xanalyzer"), used)); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+
+  private static String read(File file) throws IOException {
+    FileInputStream in = new FileInputStream(file);
+    try {
+      byte[] bytes = new byte[(int) file.length()];
+      int n = in.read(bytes);
+      return new String(bytes, 0, n, "UTF-8"); //$NON-NLS-1$
+    } finally {
+      in.close();
+    }
+  }
+}
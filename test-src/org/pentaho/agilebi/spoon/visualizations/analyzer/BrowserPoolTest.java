@@ -0,0 +1,160 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.spoon.visualizations.analyzer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.swt.widgets.Shell;
+import org.junit.Before;
+import org.junit.Test;
+import org.pentaho.agilebi.spoon.visualizations.analyzer.BrowserPool.PooledBrowser;
+
+public class BrowserPoolTest {
+
+  private AnalyzerVisualization visualization;
+
+  private TestPool pool;
+
+  /**
+   * Hands out mocked panels and keeps the refills until {@link #runRefills()} instead of loading browsers.
+   */
+  private static class TestPool extends BrowserPool {
+    final List<Runnable> refills = new ArrayList<Runnable>();
+    int created;
+    int preloaded;
+
+    TestPool(int size) {
+      super(size);
+    }
+
+    @Override
+    void asyncExec(Runnable runnable) {
+      refills.add(runnable);
+    }
+
+    @Override
+    PooledBrowser create(AnalyzerVisualization visualization, Shell shell, boolean preload) {
+      created++;
+      if (preload) {
+        preloaded++;
+      }
+      return createBrowser(shell);
+    }
+
+    void runRefills() {
+      while (!refills.isEmpty()) {
+        refills.remove(0).run();
+      }
+    }
+  }
+
+  private static PooledBrowser createBrowser(Shell shell) {
+    PooledBrowser browser = mock(PooledBrowser.class);
+    when(browser.getShell()).thenReturn(shell);
+    when(browser.reset(anyString())).thenReturn(true);
+    return browser;
+  }
+
+  @Before
+  public void setup() {
+    visualization = mock(AnalyzerVisualization.class);
+    when(visualization.generateShellUrl()).thenReturn("about:blank"); //$NON-NLS-1$
+    pool = new TestPool(1);
+  }
+
+  @Test
+  public void acquireTakesThePreloadedPanel() throws Exception {
+    Shell shell = mock(Shell.class);
+    pool.acquire(visualization, shell);
+    assertEquals(1, pool.created);
+    assertEquals(0, pool.getIdleCount(shell));
+
+    pool.runRefills();
+    assertEquals(1, pool.preloaded);
+    assertEquals(1, pool.getIdleCount(shell));
+
+    pool.acquire(visualization, shell);
+    assertEquals(2, pool.created);
+    assertEquals(0, pool.getIdleCount(shell));
+  }
+
+  @Test
+  public void releasedPanelIsReused() throws Exception {
+    Shell shell = mock(Shell.class);
+    PooledBrowser browser = pool.acquire(visualization, shell);
+    pool.refills.clear();
+    pool.release(browser, visualization);
+
+    verify(browser).reset("about:blank"); //$NON-NLS-1$
+    verify(browser, never()).dispose();
+    assertSame(browser, pool.acquire(visualization, shell));
+  }
+
+  @Test
+  public void poolIsLimitedPerShell() throws Exception {
+    Shell shell = mock(Shell.class);
+    Shell other = mock(Shell.class);
+    PooledBrowser first = createBrowser(shell);
+    PooledBrowser second = createBrowser(shell);
+    PooledBrowser third = createBrowser(other);
+
+    pool.release(first, visualization);
+    pool.release(second, visualization);
+    pool.release(third, visualization);
+
+    verify(first, never()).dispose();
+    verify(second).dispose();
+    verify(third, never()).dispose();
+    assertEquals(1, pool.getIdleCount(shell));
+    assertEquals(1, pool.getIdleCount(other));
+  }
+
+  @Test
+  public void panelsOfClosedShellAreNotHandedOut() throws Exception {
+    Shell shell = mock(Shell.class);
+    PooledBrowser browser = createBrowser(shell);
+    pool.release(browser, visualization);
+
+    // closing the shell disposes the hidden composite the panel waits in
+    when(shell.isDisposed()).thenReturn(true);
+    when(browser.isDisposed()).thenReturn(true);
+    PooledBrowser acquired = pool.acquire(visualization, shell);
+    assertEquals(1, pool.created);
+    assertEquals(0, pool.getIdleCount(shell));
+
+    // no panel is preloaded for a closed shell
+    pool.runRefills();
+    assertEquals(0, pool.preloaded);
+    assertEquals(0, pool.getIdleCount(shell));
+
+    // nor is a closed shell's panel taken back
+    when(acquired.isDisposed()).thenReturn(true);
+    pool.release(acquired, visualization);
+    verify(acquired, never()).reset(anyString());
+    assertEquals(0, pool.getIdleCount(shell));
+  }
+}
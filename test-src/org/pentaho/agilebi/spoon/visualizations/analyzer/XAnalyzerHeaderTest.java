@@ -0,0 +1,55 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.spoon.visualizations.analyzer;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class XAnalyzerHeaderTest {
+
+  private static final String REPORT = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" //$NON-NLS-1$
+      + "<reportRecord xmlns=\"http://www.pentaho.com\">" //$NON-NLS-1$
+      + "<commonStorageAttributes path=\"\"/>" //$NON-NLS-1$
+      + "<report catalog=\"models/Verkäufe.xmi\" cube=\"Verkäufe\" reportTypeEnum=\"PIVOT\">" //$NON-NLS-1$
+      + "<measures><measure formula=\"[Measures].[Umsatz]\"/></measures>" //$NON-NLS-1$
+      + "</report></reportRecord>"; //$NON-NLS-1$
+
+  @Test
+  public void testRead() throws Exception {
+    XAnalyzerHeader header = XAnalyzerHeader.read(new ByteArrayInputStream(REPORT.getBytes("UTF-8"))); //$NON-NLS-1$
+    assertEquals("models/Verkäufe.xmi", header.getCatalog()); //$NON-NLS-1$
+    assertEquals("Verkäufe", header.getCube()); //$NON-NLS-1$
+  }
+
+  @Test
+  public void testStopsAtHeader() throws Exception {
+    // the rest of the document is never parsed
+    String truncated = REPORT.substring(0, REPORT.indexOf("<measures>")) + "<measures><broken"; //$NON-NLS-1$ //$NON-NLS-2$
+    XAnalyzerHeader header = XAnalyzerHeader.read(new ByteArrayInputStream(truncated.getBytes("UTF-8"))); //$NON-NLS-1$
+    assertEquals("Verkäufe", header.getCube()); //$NON-NLS-1$
+  }
+
+  @Test(expected = IOException.class)
+  public void testMissingCube() throws Exception {
+    XAnalyzerHeader.read(new ByteArrayInputStream("<report catalog=\"a.xmi\"/>".getBytes("UTF-8"))); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+}
@@ -0,0 +1,67 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.di.core.lifecycle.pdi;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class StartupOrchestratorTest {
+
+  @Test
+  public void stepsRunConcurrently() throws Exception {
+    final CountDownLatch bothRunning = new CountDownLatch(2);
+    StartupOrchestrator.Step step = new StartupOrchestrator.Step() {
+      public void run() throws Exception {
+        bothRunning.countDown();
+        // only returns if the other step is running at the same time
+        if (!bothRunning.await(5, TimeUnit.SECONDS)) {
+          throw new IllegalStateException("steps ran one after the other"); //$NON-NLS-1$
+        }
+      }
+    };
+    StartupOrchestrator startup = new StartupOrchestrator("test"); //$NON-NLS-1$
+    startup.addStep("first", step); //$NON-NLS-1$
+    startup.addStep("second", step); //$NON-NLS-1$
+    assertTrue(startup.run());
+    assertTrue(startup.getDuration("first") >= 0); //$NON-NLS-1$
+  }
+
+  @Test
+  public void failuresDoNotStopOtherSteps() throws Exception {
+    final boolean[] ran = new boolean[1];
+    StartupOrchestrator startup = new StartupOrchestrator("test"); //$NON-NLS-1$
+    startup.addStep("failing", new StartupOrchestrator.Step() { //$NON-NLS-1$
+      public void run() throws Exception {
+        throw new Exception("boom"); //$NON-NLS-1$
+      }
+    });
+    startup.addStep("working", new StartupOrchestrator.Step() { //$NON-NLS-1$
+      public void run() {
+        ran[0] = true;
+      }
+    });
+    assertFalse(startup.run());
+    assertTrue(ran[0]);
+    assertTrue(startup.getReport(10).contains("failing")); //$NON-NLS-1$
+  }
+}